@@ -358,8 +358,27 @@ public class PyroClient {
 
     private long lastEventTime;
 
+    private boolean readPaused;
+
     boolean didTimeout(long now) {
-        return this.timeout != 0 && (now - this.lastEventTime) > this.timeout;
+        return !this.readPaused && this.timeout != 0 && (now - this.lastEventTime) > this.timeout;
+    }
+
+    /**
+     * Stops or resumes reading from the channel, so that a consumer that
+     * falls behind can push back on the network.
+     */
+    public void setReadPaused(boolean paused) {
+        this.selector.checkThread();
+
+        if (this.readPaused == paused || !this.key.isValid()) {
+            return;
+        }
+        this.readPaused = paused;
+        if (!paused) {
+            this.lastEventTime = System.currentTimeMillis();
+        }
+        this.selector.adjustInterestOp(this.key, SelectionKey.OP_READ, !paused);
     }
 
     private void onReadyToConnect(long now) throws IOException {
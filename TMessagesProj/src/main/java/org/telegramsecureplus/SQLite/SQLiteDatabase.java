@@ -11,21 +11,85 @@ package org.telegramsecureplus.SQLite;
 import org.telegramsecureplus.messenger.FileLog;
 import org.telegramsecureplus.messenger.ApplicationLoader;
 
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
 public class SQLiteDatabase {
+    private static final int STATEMENT_CACHE_SIZE = 48;
+
 	private final int sqliteHandle;
 
 	private boolean isOpen = false;
     private boolean inTransaction = false;
+    private final boolean isReadOnly;
+    private final LinkedHashMap<String, SQLitePreparedStatement> statementsCache = new LinkedHashMap<String, SQLitePreparedStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLitePreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                eldest.getValue().evictFromCache();
+                return true;
+            }
+            return false;
+        }
+    };
 
 	public int getSQLiteHandle() {
 		return sqliteHandle;
 	}
 
 	public SQLiteDatabase(String fileName) throws SQLiteException {
-		sqliteHandle = opendb(fileName, ApplicationLoader.applicationContext.getFilesDir().getPath());
-		isOpen = true;
+        this(fileName, false);
 	}
 
+    public SQLiteDatabase(String fileName, boolean readOnly) throws SQLiteException {
+        synchronized (SQLiteDatabase.class) {
+            sqliteHandle = opendb(fileName, ApplicationLoader.applicationContext.getFilesDir().getPath());
+        }
+        isOpen = true;
+        isReadOnly = readOnly;
+        if (readOnly) {
+            executeFast("PRAGMA query_only = 1").stepThis().dispose();
+        }
+    }
+
+    public boolean isReadOnly() {
+        return isReadOnly;
+    }
+
+    public void setBusyTimeout(int timeout) throws SQLiteException {
+        executeFast(String.format(Locale.US, "PRAGMA busy_timeout = %d", timeout)).stepThis().dispose();
+    }
+
+    /**
+     * Switches the database file to WAL so readers on other connections see the last
+     * committed state without waiting for the writer. autoCheckpointPages of 0 disables
+     * automatic checkpoints, the owner is then expected to call checkpoint() itself.
+     */
+    public boolean enableWriteAheadLogging(int autoCheckpointPages) throws SQLiteException {
+        checkOpened();
+        String mode = null;
+        SQLiteCursor cursor = queryFinalized("PRAGMA journal_mode = WAL");
+        try {
+            if (cursor.next()) {
+                mode = cursor.stringValue(0);
+            }
+        } finally {
+            cursor.dispose();
+        }
+        if (!"wal".equalsIgnoreCase(mode)) {
+            return false;
+        }
+        executeFast("PRAGMA synchronous = NORMAL").stepThis().dispose();
+        executeFast(String.format(Locale.US, "PRAGMA wal_autocheckpoint = %d", autoCheckpointPages)).stepThis().dispose();
+        return true;
+    }
+
+    public void checkpoint(boolean truncate) throws SQLiteException {
+        checkOpened();
+        executeFast(truncate ? "PRAGMA wal_checkpoint(TRUNCATE)" : "PRAGMA wal_checkpoint(PASSIVE)").stepThis().dispose();
+    }
+
 	public boolean tableExists(String tableName) throws SQLiteException {
 		checkOpened();
 		String s = "SELECT rowid FROM sqlite_master WHERE type='table' AND name=?;";
@@ -36,6 +100,39 @@ public class SQLiteDatabase {
         return new SQLitePreparedStatement(this, sql, true);
     }
 
+    /**
+     * Same as executeFast, but keeps the compiled statement for the next call with the
+     * same sql. Only use it for constant sql with ? parameters; dispose() resets the
+     * statement and returns it to the cache instead of finalizing it. Parameters are
+     * cleared to NULL on every checkout, as they would be on a freshly prepared one.
+     */
+    public SQLitePreparedStatement executeCached(String sql) throws SQLiteException {
+        checkOpened();
+        synchronized (statementsCache) {
+            SQLitePreparedStatement statement = statementsCache.get(sql);
+            if (statement == null) {
+                statement = new SQLitePreparedStatement(this, sql, false);
+                statement.setCached(true);
+                statementsCache.put(sql, statement);
+            } else if (statement.isInUse()) {
+                return new SQLitePreparedStatement(this, sql, true);
+            } else {
+                statement.clearBindings();
+            }
+            statement.setInUse(true);
+            return statement;
+        }
+    }
+
+    private void clearStatementsCache() {
+        synchronized (statementsCache) {
+            for (SQLitePreparedStatement statement : statementsCache.values()) {
+                statement.evictFromCache();
+            }
+            statementsCache.clear();
+        }
+    }
+
 	public Integer executeInt(String sql, Object... args) throws SQLiteException {
 		checkOpened();
 		SQLiteCursor cursor = queryFinalized(sql, args);
@@ -58,6 +155,7 @@ public class SQLiteDatabase {
 		if (isOpen) {
 			try {
                 commitTransaction();
+                clearStatementsCache();
 				closedb(sqliteHandle);
 			} catch (SQLiteException e) {
                 FileLog.e("tmessages", e.getMessage(), e);
@@ -20,6 +20,8 @@ public class SQLitePreparedStatement {
 
 	private int queryArgsCount;
 	private boolean finalizeAfterQuery = false;
+    private boolean isCached = false;
+    private boolean inUse = false;
 
     private static HashMap<SQLitePreparedStatement, String> hashMap;
 
@@ -85,11 +87,47 @@ public class SQLitePreparedStatement {
 	}
 
 	public void dispose() {
-		if (finalizeAfterQuery) {
+        if (isCached) {
+            inUse = false;
+            try {
+                reset(sqliteStatementHandle);
+            } catch (SQLiteException e) {
+                FileLog.e("tmessages", e.getMessage(), e);
+            }
+        } else if (finalizeAfterQuery) {
 			finalizeQuery();
 		}
 	}
 
+    void setCached(boolean cached) {
+        isCached = cached;
+    }
+
+    boolean isInUse() {
+        return inUse;
+    }
+
+    void setInUse(boolean value) {
+        inUse = value;
+    }
+
+    void clearBindings() throws SQLiteException {
+        checkFinalized();
+        reset(sqliteStatementHandle);
+        for (int a = 1; a <= queryArgsCount; a++) {
+            bindNull(sqliteStatementHandle, a);
+        }
+    }
+
+    void evictFromCache() {
+        isCached = false;
+        if (inUse) {
+            finalizeAfterQuery = true;
+        } else {
+            finalizeQuery();
+        }
+    }
+
 	void checkFinalized() throws SQLiteException {
 		if (isFinalized) {
 			throw new SQLiteException("Prepared query finalized");
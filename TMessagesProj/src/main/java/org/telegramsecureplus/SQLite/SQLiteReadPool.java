@@ -0,0 +1,134 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.SQLite;
+
+import org.telegramsecureplus.messenger.DispatchQueue;
+import org.telegramsecureplus.messenger.FileLog;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of read-only connections to a WAL database, each one owned by its own
+ * queue. Reads posted here see the last committed state and never wait for the
+ * writer connection; writes must stay on the owner's storage queue.
+ */
+public class SQLiteReadPool {
+
+    private final DispatchQueue[] queues;
+    private final SQLiteDatabase[] readers;
+    private final AtomicInteger[] pendingReads;
+    private final ThreadLocal<SQLiteDatabase> currentReader = new ThreadLocal<>();
+    private volatile boolean isOpen = false;
+
+    public SQLiteReadPool(String name, int size) {
+        queues = new DispatchQueue[size];
+        readers = new SQLiteDatabase[size];
+        pendingReads = new AtomicInteger[size];
+        for (int a = 0; a < size; a++) {
+            queues[a] = new DispatchQueue(name + a);
+            pendingReads[a] = new AtomicInteger();
+        }
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    public void open(final String fileName, final int busyTimeout) {
+        isOpen = true;
+        for (int a = 0; a < queues.length; a++) {
+            final int index = a;
+            queues[a].postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SQLiteDatabase reader = new SQLiteDatabase(fileName, true);
+                        reader.setBusyTimeout(busyTimeout);
+                        readers[index] = reader;
+                        currentReader.set(reader);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the read-only connection owned by the calling thread, or null when the
+     * caller is not running on one of the pool queues.
+     */
+    public SQLiteDatabase getDatabase() {
+        return currentReader.get();
+    }
+
+    /**
+     * Runs the read on the least busy reader, or on the fallback queue when that reader
+     * failed to open, so a read never ends up sharing the writer connection.
+     */
+    public void postRead(final Runnable runnable, final DispatchQueue fallbackQueue) {
+        int index = 0;
+        int minPending = Integer.MAX_VALUE;
+        for (int a = 0; a < queues.length; a++) {
+            int pending = pendingReads[a].get();
+            if (pending < minPending) {
+                minPending = pending;
+                index = a;
+            }
+        }
+        final AtomicInteger pending = pendingReads[index];
+        pending.incrementAndGet();
+        queues[index].postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isOpen) {
+                        if (currentReader.get() != null) {
+                            runnable.run();
+                        } else {
+                            fallbackQueue.postRunnable(runnable);
+                        }
+                    }
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    public void close() {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+        final Semaphore semaphore = new Semaphore(0);
+        for (int a = 0; a < queues.length; a++) {
+            final int index = a;
+            queues[a].cleanupQueue();
+            pendingReads[a].set(0);
+            queues[a].postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    if (readers[index] != null) {
+                        readers[index].close();
+                        readers[index] = null;
+                    }
+                    currentReader.remove();
+                    semaphore.release();
+                }
+            });
+        }
+        try {
+            semaphore.acquire(queues.length);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps bitmaps evicted from the memory cache so decodes can reuse them through inBitmap.
+ * Bitmaps are grouped by the power of two of their allocation size, a request is served
+ * from its own group or the next one, so the reused bitmap is never much larger than needed.
+ */
+public class BitmapPool {
+
+    private static final int CLASSES_COUNT = 32;
+
+    private final ArrayList<Bitmap>[] classes;
+    private final int maxBytes;
+    private int currentBytes;
+
+    @SuppressWarnings("unchecked")
+    public BitmapPool(int maxSize) {
+        maxBytes = maxSize;
+        classes = new ArrayList[CLASSES_COUNT];
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 19;
+    }
+
+    private static int sizeClass(int byteCount) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(byteCount, 1));
+    }
+
+    /**
+     * Takes ownership of the bitmap, returns false if it can't be reused and should be recycled.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes / 4) {
+            return false;
+        }
+        while (currentBytes + size > maxBytes) {
+            if (!trimLargest()) {
+                return false;
+            }
+        }
+        int index = sizeClass(size);
+        ArrayList<Bitmap> bitmaps = classes[index];
+        if (bitmaps == null) {
+            classes[index] = bitmaps = new ArrayList<>();
+        }
+        bitmaps.add(bitmap);
+        currentBytes += size;
+        return true;
+    }
+
+    /**
+     * Returns a mutable bitmap with at least byteCount bytes allocated, or null.
+     */
+    public synchronized Bitmap get(int byteCount) {
+        if (!isSupported() || byteCount <= 0) {
+            return null;
+        }
+        int index = sizeClass(byteCount);
+        for (int a = index; a <= index + 1 && a < CLASSES_COUNT; a++) {
+            ArrayList<Bitmap> bitmaps = classes[a];
+            if (bitmaps == null) {
+                continue;
+            }
+            for (int b = bitmaps.size() - 1; b >= 0; b--) {
+                Bitmap bitmap = bitmaps.get(b);
+                int size = bitmap.getAllocationByteCount();
+                if (size >= byteCount) {
+                    bitmaps.remove(b);
+                    currentBytes -= size;
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        for (int a = 0; a < CLASSES_COUNT; a++) {
+            ArrayList<Bitmap> bitmaps = classes[a];
+            if (bitmaps == null) {
+                continue;
+            }
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+        }
+        currentBytes = 0;
+    }
+
+    private boolean trimLargest() {
+        for (int a = CLASSES_COUNT - 1; a >= 0; a--) {
+            ArrayList<Bitmap> bitmaps = classes[a];
+            if (bitmaps != null && !bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.remove(0);
+                currentBytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -10,11 +10,6 @@ public class DeleteMessageRepeat extends IntentService {
     public DeleteMessageRepeat() { super("DeleteMessageRepeat");}
     @Override
     protected void onHandleIntent(Intent intent) {
-        AndroidUtilities.runOnUIThread(new Runnable() {
-            @Override
-            public void run() {
-                MessagesController.getInstance().deleteMesaages();
-            }
-        });
+        MessagesController.getInstance().deleteMesaages();
     }
 }
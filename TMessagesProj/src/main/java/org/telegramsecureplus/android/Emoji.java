@@ -10,7 +10,6 @@ package org.telegramsecureplus.android;
 
 import java.io.File;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Locale;
 
 import android.graphics.Bitmap;
@@ -20,10 +19,12 @@ import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.Spanned;
 import android.text.style.DynamicDrawableSpan;
 import android.text.style.ImageSpan;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
@@ -33,7 +34,9 @@ import org.telegramsecureplus.messenger.Utilities;
 import org.telegramsecureplus.messenger.ApplicationLoader;
 
 public class Emoji {
-	private static HashMap<Long, DrawableInfo> rects = new HashMap<>();
+	private static EmojiTokenizer tokenizer;
+	private static DrawableInfo[] emojiInfos;
+	private static final int MAX_EMOJI_COUNT = 50;
 	private static int drawImgSize;
     private static int bigImgSize;
 	private static boolean inited = false;
@@ -210,12 +213,23 @@ public class Emoji {
             bigImgSize = AndroidUtilities.dp(32);
         }
 
+        int count = 0;
+        for (int j = 1; j < data.length; j++) {
+            count += data[j].length;
+        }
+        tokenizer = new EmojiTokenizer(count);
+        emojiInfos = new DrawableInfo[count];
+        int index = 0;
 		for (int j = 1; j < data.length; j++) {
 			for (int i = 0; i < data[j].length; i++) {
                 Rect rect = new Rect((i % cols[j - 1]) * emojiFullSize, (i / cols[j - 1]) * emojiFullSize, (i % cols[j - 1] + 1) * emojiFullSize, (i / cols[j - 1] + 1) * emojiFullSize);
-				rects.put(data[j][i], new DrawableInfo(rect, (byte)(j - 1)));
+				emojiInfos[index] = new DrawableInfo(rect, (byte)(j - 1));
+                tokenizer.put(data[j][i], index++);
 			}
 		}
+        for (char c : emojiChars) {
+            tokenizer.putSingleChar(c);
+        }
 		placeholderPaint = new Paint();
 		placeholderPaint.setColor(0x00000000);
 	}
@@ -319,8 +333,13 @@ public class Emoji {
 		}
 	}
 	
+    private static DrawableInfo findDrawableInfo(long code) {
+        int index = tokenizer.find(code);
+        return index != -1 ? emojiInfos[index] : null;
+    }
+
 	public static EmojiDrawable getEmojiDrawable(long code) {
-		DrawableInfo info = rects.get(code);
+		DrawableInfo info = findDrawableInfo(code);
 		if (info == null) {
             FileLog.e("tmessages", "No emoji drawable for code " + String.format("%016X", code));
 			return null;
@@ -401,6 +420,7 @@ public class Emoji {
 	private static class DrawableInfo {
         public Rect rect;
         public byte page;
+        private SparseArray<EmojiDrawable> drawables;
 
 		public DrawableInfo(Rect r, byte p) {
 			rect = r;
@@ -408,21 +428,22 @@ public class Emoji {
 		}
 	}
 
-    private static boolean inArray(char c, char[] a) {
-        for (char cc : a) {
-            if (cc == c) {
-                return true;
+    /**
+     * Spans of the same size only ever set the same bounds, so they can share one drawable.
+     */
+    private static EmojiDrawable getSharedDrawable(DrawableInfo info, int size) {
+        synchronized (info) {
+            if (info.drawables == null) {
+                info.drawables = new SparseArray<>(2);
             }
+            EmojiDrawable drawable = info.drawables.get(size);
+            if (drawable == null) {
+                drawable = new EmojiDrawable(info);
+                drawable.setBounds(0, 0, size, size);
+                info.drawables.put(size, drawable);
+            }
+            return drawable;
         }
-        return false;
-    }
-
-    private static boolean isNextCharIsColor(CharSequence cs, int i) {
-        if (i + 2 >= cs.length()) {
-            return false;
-        }
-        int value = cs.charAt(i + 1) << 16 | cs.charAt(i + 2);
-        return value == 0xd83cdffb || value == 0xd83cdffc || value == 0xd83cdffd || value == 0xd83cdffe || value == 0xd83cdfff;
     }
 
     public static CharSequence replaceEmoji(CharSequence cs, Paint.FontMetricsInt fontMetrics, int size) {
@@ -435,73 +456,46 @@ public class Emoji {
         } else {
             s = Spannable.Factory.getInstance().newSpannable(cs);
         }
-        long buf = 0;
-        int emojiCount = 0;
+        replaceEmoji(s, fontMetrics, size, 0, s.length(), 0);
+        return s;
+    }
+
+    /**
+     * Re-tokenizes only the text around the range reported by TextWatcher.onTextChanged, emoji
+     * spans elsewhere in the editable are kept as they are and count towards MAX_EMOJI_COUNT.
+     */
+    public static void replaceEmoji(Editable editable, int start, int count, Paint.FontMetricsInt fontMetrics, int size) {
+        int length = editable.length();
+        int scanStart = Math.max(0, Math.min(start, length) - EmojiTokenizer.MAX_TOKEN_LENGTH);
+        int scanEnd = Math.min(length, start + count + EmojiTokenizer.MAX_TOKEN_LENGTH);
+        EmojiSpan[] spans = editable.getSpans(scanStart, scanEnd, EmojiSpan.class);
+        for (EmojiSpan span : spans) {
+            scanStart = Math.min(scanStart, editable.getSpanStart(span));
+            scanEnd = Math.max(scanEnd, editable.getSpanEnd(span));
+            editable.removeSpan(span);
+        }
+        int emojiCount = editable.getSpans(0, length, EmojiSpan.class).length;
+        if (emojiCount >= MAX_EMOJI_COUNT) {
+            return;
+        }
+        replaceEmoji(editable, fontMetrics, size, scanStart, scanEnd, emojiCount);
+    }
+
+    private static void replaceEmoji(final Spannable s, final Paint.FontMetricsInt fontMetrics, int size, int start, int end, final int emojiCount) {
+        final int drawableSize = fontMetrics != null ? EmojiSpan.getSpanSize(fontMetrics) : size;
         try {
-            for (int i = 0; i < cs.length(); i++) {
-                char c = cs.charAt(i);
-                if (c == 0xD83C || c == 0xD83D || (buf != 0 && (buf & 0xFFFFFFFF00000000L) == 0 && (c >= 0xDDE6 && c <= 0xDDFA))) {
-                    buf <<= 16;
-                    buf |= c;
-                } else if (buf > 0 && (c & 0xF000) == 0xD000) {
-                    buf <<= 16;
-                    buf |= c;
-                    EmojiDrawable d = Emoji.getEmojiDrawable(buf);
-                    if (d != null) {
-                        boolean nextIsSkinTone = isNextCharIsColor(cs, i);
-                        EmojiSpan span = new EmojiSpan(d, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
-                        emojiCount++;
-                        if (c >= 0xDDE6 && c <= 0xDDFA) {
-                            s.setSpan(span, i - 3, i + (nextIsSkinTone ? 3 : 1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        } else {
-                            s.setSpan(span, i - 1, i + (nextIsSkinTone ? 3 : 1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        }
-                        if (nextIsSkinTone) {
-                            i += 2;
-                        }
-                    }
-                    buf = 0;
-                } else if (c == 0x20E3) {
-                    if (i > 0) {
-                        char c2 = cs.charAt(i - 1);
-                        if ((c2 >= '0' && c2 <= '9') || c2 == '#') {
-                            buf = c2;
-                            buf <<= 16;
-                            buf |= c;
-                            EmojiDrawable d = Emoji.getEmojiDrawable(buf);
-                            if (d != null) {
-                                boolean nextIsSkinTone = isNextCharIsColor(cs, i);
-                                EmojiSpan span = new EmojiSpan(d, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
-                                emojiCount++;
-                                s.setSpan(span, i - 1, i + (nextIsSkinTone ? 3 : 1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                                if (nextIsSkinTone) {
-                                    i += 2;
-                                }
-                            }
-                            buf = 0;
-                        }
-                    }
-                } else if (inArray(c, emojiChars)) {
-                    EmojiDrawable d = Emoji.getEmojiDrawable(c);
-                    if (d != null) {
-                        boolean nextIsSkinTone = isNextCharIsColor(cs, i);
-                        EmojiSpan span = new EmojiSpan(d, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
-                        emojiCount++;
-                        s.setSpan(span, i, i + (nextIsSkinTone ? 3 : 1), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        if (nextIsSkinTone) {
-                            i += 2;
-                        }
-                    }
-                }
-                if (emojiCount >= 50) {
-                    break;
+            tokenizer.tokenize(s, start, end, new EmojiTokenizer.Callback() {
+                private int count = emojiCount;
+
+                @Override
+                public boolean emojiFound(int value, int start, int end) {
+                    s.setSpan(new EmojiSpan(getSharedDrawable(emojiInfos[value], drawableSize), DynamicDrawableSpan.ALIGN_BOTTOM, drawableSize, fontMetrics), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    return ++count < MAX_EMOJI_COUNT;
                 }
-            }
+            });
         } catch (Exception e) {
             FileLog.e("tmessages", e);
-            return cs;
         }
-        return s;
     }
 
     public static class EmojiSpan extends ImageSpan {
@@ -512,13 +506,17 @@ public class Emoji {
             super(d, verticalAlignment);
             fontMetrics = original;
             if (original != null) {
-                size = Math.abs(fontMetrics.descent) + Math.abs(fontMetrics.ascent);
-                if (size == 0) {
-                    size = AndroidUtilities.dp(20);
-                }
+                size = getSpanSize(original);
+            } else if (s > 0) {
+                size = s;
             }
         }
 
+        private static int getSpanSize(Paint.FontMetricsInt fontMetrics) {
+            int size = Math.abs(fontMetrics.descent) + Math.abs(fontMetrics.ascent);
+            return size != 0 ? size : AndroidUtilities.dp(20);
+        }
+
         @Override
         public int getSize(Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
             if (fm == null) {
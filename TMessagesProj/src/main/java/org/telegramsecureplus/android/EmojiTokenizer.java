@@ -0,0 +1,128 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android;
+
+/**
+ * Finds emoji in text with one forward pass. Codes are the UTF-16 units of an emoji packed
+ * into a long, each one maps to an int value in an open-addressing table. A skin tone
+ * modifier following an emoji is made part of its token.
+ */
+class EmojiTokenizer {
+
+    public interface Callback {
+        /**
+         * Called for every emoji found, returns false to stop the scan.
+         */
+        boolean emojiFound(int value, int start, int end);
+    }
+
+    public static final int MAX_TOKEN_LENGTH = 6;
+
+    private final long[] codes;
+    private final int[] values;
+    private final int mask;
+    private final long[] singleChars = new long[1024];
+
+    public EmojiTokenizer(int count) {
+        int capacity = Integer.highestOneBit(Math.max(1, count) * 2) * 2;
+        codes = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int a = 0; a < capacity; a++) {
+            values[a] = -1;
+        }
+    }
+
+    private static int hashCode(long code) {
+        code ^= code >>> 33;
+        code *= 0xff51afd7ed558ccdL;
+        code ^= code >>> 33;
+        return (int) code;
+    }
+
+    public void put(long code, int value) {
+        int index = hashCode(code) & mask;
+        while (values[index] != -1 && codes[index] != code) {
+            index = (index + 1) & mask;
+        }
+        codes[index] = code;
+        values[index] = value;
+    }
+
+    /**
+     * Marks a character outside the surrogate ranges that is an emoji on its own.
+     */
+    public void putSingleChar(char c) {
+        singleChars[c >> 6] |= 1L << c;
+    }
+
+    public int find(long code) {
+        int index = hashCode(code) & mask;
+        int value;
+        while ((value = values[index]) != -1) {
+            if (codes[index] == code) {
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean isRegionalIndicator(char c) {
+        return c >= 0xDDE6 && c <= 0xDDFA;
+    }
+
+    private static boolean isSkinTone(CharSequence cs, int i) {
+        return i + 1 < cs.length() && cs.charAt(i) == 0xD83C && cs.charAt(i + 1) >= 0xDFFB && cs.charAt(i + 1) <= 0xDFFF;
+    }
+
+    /**
+     * Reports the emoji starting in [start, end), a token may extend past end.
+     */
+    public void tokenize(CharSequence s, int start, int end, Callback callback) {
+        int length = s.length();
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            long code;
+            int codeLength;
+            if ((c == 0xD83C || c == 0xD83D) && i + 1 < length) {
+                char c2 = s.charAt(i + 1);
+                code = ((long) c << 16) | c2;
+                codeLength = 2;
+                if (c == 0xD83C && isRegionalIndicator(c2) && i + 3 < length && s.charAt(i + 2) == 0xD83C && isRegionalIndicator(s.charAt(i + 3))) {
+                    code = (code << 32) | ((long) s.charAt(i + 2) << 16) | s.charAt(i + 3);
+                    codeLength = 4;
+                }
+            } else if (c == '#' || c >= '0' && c <= '9') {
+                if (i + 1 >= length || s.charAt(i + 1) != 0x20E3) {
+                    continue;
+                }
+                code = ((long) c << 16) | 0x20E3;
+                codeLength = 2;
+            } else if ((singleChars[c >> 6] & (1L << c)) != 0) {
+                code = c;
+                codeLength = 1;
+            } else {
+                continue;
+            }
+            int value = find(code);
+            if (value == -1) {
+                continue;
+            }
+            int tokenEnd = i + codeLength;
+            if (isSkinTone(s, tokenEnd)) {
+                tokenEnd += 2;
+            }
+            if (!callback.emojiFound(value, i, tokenEnd)) {
+                return;
+            }
+            i = tokenEnd - 1;
+        }
+    }
+}
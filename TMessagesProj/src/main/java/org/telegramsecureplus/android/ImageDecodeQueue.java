@@ -0,0 +1,159 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android;
+
+import android.os.Process;
+
+import org.telegramsecureplus.messenger.FileLog;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs image decodes on a pool sized to the device cores. Thumbs go before full images and,
+ * within the same kind, the most recently requested or promoted task runs first, so the cells
+ * that are on screen during a fling are decoded before the ones that scrolled past.
+ */
+public class ImageDecodeQueue {
+
+    private class Entry implements Runnable, Comparable<Entry> {
+        private Runnable task;
+        private boolean thumb;
+        private long sequence;
+        private long enqueueTime;
+
+        @Override
+        public void run() {
+            synchronized (sync) {
+                if (entries.get(task) != this) {
+                    return;
+                }
+                entries.remove(task);
+            }
+            long startTime = System.nanoTime();
+            long waitTime = startTime - enqueueTime;
+            totalQueueTime.addAndGet(waitTime);
+            if (waitTime > maxQueueTime.get()) {
+                maxQueueTime.set(waitTime);
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                FileLog.e("tmessages", e);
+            }
+            totalDecodeTime.addAndGet(System.nanoTime() - startTime);
+            decodedCount.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            if (thumb != another.thumb) {
+                return thumb ? -1 : 1;
+            }
+            if (sequence != another.sequence) {
+                return sequence > another.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final String name;
+    private final Object sync = new Object();
+    private final ThreadPoolExecutor executor;
+    private final HashMap<Runnable, Entry> entries = new HashMap<>();
+    private long lastSequence;
+
+    private final AtomicLong decodedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong totalQueueTime = new AtomicLong();
+    private final AtomicLong maxQueueTime = new AtomicLong();
+    private final AtomicLong totalDecodeTime = new AtomicLong();
+
+    public ImageDecodeQueue(final String threadName, int threadsCount) {
+        name = threadName;
+        executor = new ThreadPoolExecutor(threadsCount, threadsCount, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNum = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, threadName + "-" + threadNum.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static int getDefaultThreadsCount() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Queues the task, a task that is already queued is moved to the front of its kind.
+     */
+    public void postRunnable(Runnable task, boolean thumb) {
+        enqueue(task, thumb, false);
+    }
+
+    /**
+     * Moves a queued task to the front of its kind, does nothing if it already started.
+     */
+    public void promoteRunnable(Runnable task) {
+        enqueue(task, false, true);
+    }
+
+    private void enqueue(Runnable task, boolean thumb, boolean onlyQueued) {
+        Entry entry = new Entry();
+        entry.task = task;
+        entry.enqueueTime = System.nanoTime();
+        synchronized (sync) {
+            Entry oldEntry = entries.get(task);
+            if (oldEntry != null) {
+                executor.remove(oldEntry);
+                entry.thumb = oldEntry.thumb;
+                entry.enqueueTime = oldEntry.enqueueTime;
+            } else if (onlyQueued) {
+                return;
+            } else {
+                entry.thumb = thumb;
+            }
+            entry.sequence = ++lastSequence;
+            entries.put(task, entry);
+        }
+        executor.execute(entry);
+    }
+
+    public void cancelRunnable(Runnable task) {
+        Entry entry;
+        synchronized (sync) {
+            entry = entries.remove(task);
+        }
+        if (entry != null && executor.remove(entry)) {
+            cancelledCount.incrementAndGet();
+        }
+    }
+
+    public String getStatistics() {
+        long decoded = decodedCount.get();
+        long avgQueueTime = decoded != 0 ? totalQueueTime.get() / decoded / 1000000 : 0;
+        long avgDecodeTime = decoded != 0 ? totalDecodeTime.get() / decoded / 1000000 : 0;
+        return String.format(Locale.US, "%s: threads=%d queued=%d decoded=%d cancelled=%d queueAvg=%dms queueMax=%dms decodeAvg=%dms",
+                name, executor.getPoolSize(), executor.getQueue().size(), decoded, cancelledCount.get(), avgQueueTime, maxQueueTime.get() / 1000000, avgDecodeTime);
+    }
+}
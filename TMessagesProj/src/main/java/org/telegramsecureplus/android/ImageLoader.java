@@ -31,6 +31,7 @@ import org.telegramsecureplus.messenger.FileLoader;
 import org.telegramsecureplus.messenger.FileLog;
 import org.telegramsecureplus.messenger.TLObject;
 import org.telegramsecureplus.messenger.TLRPC;
+import org.telegramsecureplus.messenger.TransferScheduler;
 import org.telegramsecureplus.messenger.UserConfig;
 import org.telegramsecureplus.messenger.Utilities;
 import org.telegramsecureplus.messenger.ApplicationLoader;
@@ -64,16 +65,13 @@ public class ImageLoader {
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private HashMap<Integer, String> waitingForQualityThumbByTag = new HashMap<>();
     private LinkedList<HttpImageTask> httpTasks = new LinkedList<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
+    private ImageDecodeQueue cacheOutQueue = new ImageDecodeQueue("cacheOutQueue", ImageDecodeQueue.getDefaultThreadsCount());
+    private BitmapPool bitmapPool;
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
-    private static byte[] bytes;
-    private static byte[] bytesThumb;
-    private static byte[] header = new byte[12];
-    private static byte[] headerThumb = new byte[12];
+    private static ThreadLocal<byte[]> decodeBuffers = new ThreadLocal<>();
     private int currentHttpTasksCount = 0;
 
     private LinkedList<HttpFileTask> httpFileLoadTasks = new LinkedList<>();
@@ -86,7 +84,6 @@ public class ImageLoader {
 
     private volatile long lastCacheOutTime = 0;
     private int lastImageNum = 0;
-    private long lastProgressUpdateTime = 0;
 
     private File telegramPath = null;
 
@@ -240,12 +237,7 @@ public class ImageLoader {
                     @Override
                     public void run() {
                         fileProgresses.put(cacheImage.url, progress);
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileLoadProgressChanged, cacheImage.url, progress);
-                            }
-                        });
+                        NotificationCenter.getInstance().postNotificationNameCoalesced(NotificationCenter.FileLoadProgressChanged, cacheImage.url, cacheImage.url, progress);
                     }
                 });
             }
@@ -547,12 +539,7 @@ public class ImageLoader {
                 RandomAccessFile randomAccessFile = null;
                 try {
                     randomAccessFile = new RandomAccessFile(cacheFileFinal, "r");
-                    byte[] bytes;
-                    if (cacheImage.thumb) {
-                        bytes = headerThumb;
-                    } else {
-                        bytes = header;
-                    }
+                    byte[] bytes = new byte[12];
                     randomAccessFile.readFully(bytes, 0, bytes.length);
                     String str = new String(bytes);
                     if (str != null) {
@@ -611,10 +598,7 @@ public class ImageLoader {
                         if (opts.inPurgeable) {
                             RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                             int len = (int) f.length();
-                            byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-                            if (data == null) {
-                                bytesThumb = data = new byte[len];
-                            }
+                            byte[] data = getDecodeBuffer(len);
                             f.readFully(data, 0, len);
                             image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                         } else {
@@ -743,6 +727,14 @@ public class ImageLoader {
                     }
 
                     opts.inDither = false;
+                    Bitmap reuseBitmap = null;
+                    if (bitmapPool != null && mediaId == null && !useNativeWebpLoaded && !opts.inPurgeable && opts.outWidth > 0 && opts.outHeight > 0) {
+                        int sampleSize = Integer.highestOneBit(Math.max(opts.inSampleSize, 1));
+                        int byteCount = ((opts.outWidth + sampleSize - 1) / sampleSize) * ((opts.outHeight + sampleSize - 1) / sampleSize) * (opts.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4);
+                        reuseBitmap = bitmapPool.get(byteCount);
+                        opts.inMutable = true;
+                        opts.inBitmap = reuseBitmap;
+                    }
                     if (mediaId != null) {
                         if (mediaIsVideo) {
                             image = MediaStore.Video.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Video.Thumbnails.MINI_KIND, opts);
@@ -760,19 +752,29 @@ public class ImageLoader {
                             if (opts.inPurgeable) {
                                 RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                 int len = (int) f.length();
-                                byte[] data = bytes != null && bytes.length >= len ? bytes : null;
-                                if (data == null) {
-                                    bytes = data = new byte[len];
-                                }
+                                byte[] data = getDecodeBuffer(len);
                                 f.readFully(data, 0, len);
                                 image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                             } else {
                                 FileInputStream is = new FileInputStream(cacheFileFinal);
-                                image = BitmapFactory.decodeStream(is, null, opts);
+                                try {
+                                    image = BitmapFactory.decodeStream(is, null, opts);
+                                } catch (IllegalArgumentException e) {
+                                    if (reuseBitmap == null) {
+                                        throw e;
+                                    }
+                                    is.close();
+                                    opts.inBitmap = null;
+                                    is = new FileInputStream(cacheFileFinal);
+                                    image = BitmapFactory.decodeStream(is, null, opts);
+                                }
                                 is.close();
                             }
                         }
                     }
+                    if (reuseBitmap != null && image != reuseBitmap && !bitmapPool.put(reuseBitmap)) {
+                        reuseBitmap.recycle();
+                    }
                     if (image == null) {
                         if (canDeleteFile && (cacheFileFinal.length() == 0 || cacheImage.filter == null)) {
                             cacheFileFinal.delete();
@@ -806,7 +808,10 @@ public class ImageLoader {
                     //don't promt
                 }
             }
-            Thread.interrupted();
+            synchronized (sync) {
+                runningThread = null;
+                Thread.interrupted();
+            }
             onPostExecute(image != null ? new BitmapDrawable(image) : null);
         }
 
@@ -929,6 +934,9 @@ public class ImageLoader {
                 imageReceiverArray.add(imageReceiver);
                 imageLoadingByTag.put(imageReceiver.getTag(thumb), this);
             }
+            if (cacheTask != null) {
+                cacheOutQueue.promoteRunnable(cacheTask);
+            }
         }
 
         public void removeImageReceiver(ImageReceiver imageReceiver) {
@@ -955,11 +963,7 @@ public class ImageLoader {
                     }
                 }
                 if (cacheTask != null) {
-                    if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    cacheOutQueue.cancelRunnable(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
                 }
@@ -1024,6 +1028,9 @@ public class ImageLoader {
             runtimeHack = new VMRuntimeHack();
             cacheSize = 1024 * 1024 * 3;
         }
+        if (BitmapPool.isSupported()) {
+            bitmapPool = new BitmapPool(cacheSize / 8);
+        }
         memCache = new LruCache(cacheSize) {
             @Override
             protected int sizeOf(String key, BitmapDrawable bitmap) {
@@ -1046,7 +1053,7 @@ public class ImageLoader {
                     if (runtimeHack != null) {
                         runtimeHack.trackAlloc(b.getRowBytes() * b.getHeight());
                     }
-                    if (!b.isRecycled()) {
+                    if (!b.isRecycled() && (bitmapPool == null || !bitmapPool.put(b))) {
                         b.recycle();
                     }
                 }
@@ -1057,21 +1064,12 @@ public class ImageLoader {
             @Override
             public void fileUploadProgressChanged(final String location, final float progress, final boolean isEncrypted) {
                 fileProgresses.put(location, progress);
-                long currentTime = System.currentTimeMillis();
-                if (lastProgressUpdateTime == 0 || lastProgressUpdateTime < currentTime - 500) {
-                    lastProgressUpdateTime = currentTime;
-
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileUploadProgressChanged, location, progress, isEncrypted);
-                        }
-                    });
-                }
+                NotificationCenter.getInstance().postNotificationNameCoalesced(NotificationCenter.FileUploadProgressChanged, location, location, progress, isEncrypted);
             }
 
             @Override
             public void fileDidUploaded(final String location, final TLRPC.InputFile inputFile, final TLRPC.InputEncryptedFile inputEncryptedFile, final byte[] key, final byte[] iv) {
+                NotificationCenter.getInstance().cancelCoalescedNotification(NotificationCenter.FileUploadProgressChanged, location);
                 Utilities.stageQueue.postRunnable(new Runnable() {
                     @Override
                     public void run() {
@@ -1088,6 +1086,7 @@ public class ImageLoader {
 
             @Override
             public void fileDidFailedUpload(final String location, final boolean isEncrypted) {
+                NotificationCenter.getInstance().cancelCoalescedNotification(NotificationCenter.FileUploadProgressChanged, location);
                 Utilities.stageQueue.postRunnable(new Runnable() {
                     @Override
                     public void run() {
@@ -1105,6 +1104,7 @@ public class ImageLoader {
             @Override
             public void fileDidLoaded(final String location, final File finalFile, final int type) {
                 fileProgresses.remove(location);
+                NotificationCenter.getInstance().cancelCoalescedNotification(NotificationCenter.FileLoadProgressChanged, location);
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -1124,6 +1124,7 @@ public class ImageLoader {
             @Override
             public void fileDidFailedLoad(final String location, final int canceled) {
                 fileProgresses.remove(location);
+                NotificationCenter.getInstance().cancelCoalescedNotification(NotificationCenter.FileLoadProgressChanged, location);
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -1136,16 +1137,7 @@ public class ImageLoader {
             @Override
             public void fileLoadProgressChanged(final String location, final float progress) {
                 fileProgresses.put(location, progress);
-                long currentTime = System.currentTimeMillis();
-                if (lastProgressUpdateTime == 0 || lastProgressUpdateTime < currentTime - 500) {
-                    lastProgressUpdateTime = currentTime;
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileLoadProgressChanged, location, progress);
-                        }
-                    });
-                }
+                NotificationCenter.getInstance().postNotificationNameCoalesced(NotificationCenter.FileLoadProgressChanged, location, location, progress);
             }
         });
 
@@ -1337,6 +1329,23 @@ public class ImageLoader {
 
     public void clearMemory() {
         memCache.evictAll();
+        if (bitmapPool != null) {
+            bitmapPool.clear();
+        }
+    }
+
+    public void dumpStatistics() {
+        FileLog.d("tmessages", cacheOutQueue.getStatistics());
+        FileLog.d("tmessages", memCache.getStatistics());
+    }
+
+    private static byte[] getDecodeBuffer(int length) {
+        byte[] buffer = decodeBuffers.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+            decodeBuffers.set(buffer);
+        }
+        return buffer;
     }
 
     private void removeFromWaitingForThumb(Integer TAG) {
@@ -1462,6 +1471,7 @@ public class ImageLoader {
         final boolean finalIsNeedsQualityThumb = imageReceiver.isNeedsQualityThumb();
         final MessageObject parentMessageObject = imageReceiver.getParentMessageObject();
         final boolean shouldGenerateQualityThumb = imageReceiver.isShouldGenerateQualityThumb();
+        final int priority = imageReceiver.isAttachedToWindow() ? TransferScheduler.PRIORITY_VISIBLE : TransferScheduler.PRIORITY_PREFETCH;
         imageLoadQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -1472,6 +1482,9 @@ public class ImageLoader {
                     CacheImage alreadyLoadingImage = imageLoadingByTag.get(finalTag);
                     if (alreadyLoadingImage != null) {
                         if (alreadyLoadingImage == alreadyLoadingUrl || alreadyLoadingImage == alreadyLoadingCache) {
+                            if (alreadyLoadingImage.cacheTask != null) {
+                                cacheOutQueue.promoteRunnable(alreadyLoadingImage.cacheTask);
+                            }
                             added = true;
                         } else {
                             alreadyLoadingImage.removeImageReceiver(imageReceiver);
@@ -1567,11 +1580,7 @@ public class ImageLoader {
                             img.finalFilePath = cacheFile;
                             img.cacheTask = new CacheOutTask(img);
                             imageLoadingByKeys.put(key, img);
-                            if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
-                            } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
-                            }
+                            cacheOutQueue.postRunnable(img.cacheTask, thumb != 0);
                         } else {
                             img.url = url;
                             img.location = imageLocation;
@@ -1579,9 +1588,9 @@ public class ImageLoader {
                             if (httpLocation == null) {
                                 if (imageLocation instanceof TLRPC.FileLocation) {
                                     TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
-                                    FileLoader.getInstance().loadFile(location, ext, size, size == 0 || location.key != null || cacheOnly);
+                                    FileLoader.getInstance().loadFile(location, ext, size, size == 0 || location.key != null || cacheOnly, priority);
                                 } else if (imageLocation instanceof TLRPC.Document) {
-                                    FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, true, true);
+                                    FileLoader.getInstance().loadFile((TLRPC.Document) imageLocation, priority, true);
                                 }
                             } else {
                                 String file = Utilities.MD5(httpLocation);
@@ -1749,11 +1758,7 @@ public class ImageLoader {
                     cacheImage.addImageReceiver(imageReceiver);
                 }
                 if (task != null) {
-                    if (img.thumb) {
-                        cacheThumbOutQueue.postRunnable(task);
-                    } else {
-                        cacheOutQueue.postRunnable(task);
-                    }
+                    cacheOutQueue.postRunnable(task, img.thumb);
                 }
             }
         });
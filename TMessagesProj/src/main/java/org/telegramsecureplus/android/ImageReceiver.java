@@ -51,6 +51,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
     private Integer thumbTag;
     private MessageObject parentMessageObject;
     private boolean canceledLoading;
+    private boolean attachedToWindow = true;
 
     private SetImageBackup setImageBackup;
 
@@ -320,6 +321,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
     }
 
     public void onDetachedFromWindow() {
+        attachedToWindow = false;
         if (currentImageLocation != null || currentHttpUrl != null || currentThumbLocation != null || staticThumb != null) {
             if (setImageBackup == null) {
                 setImageBackup = new SetImageBackup();
@@ -339,6 +341,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
     }
 
     public boolean onAttachedToWindow() {
+        attachedToWindow = true;
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
         if (setImageBackup != null && (setImageBackup.fileLocation != null || setImageBackup.httpUrl != null || setImageBackup.thumbLocation != null || setImageBackup.thumb != null)) {
             setImage(setImageBackup.fileLocation, setImageBackup.httpUrl, setImageBackup.filter, setImageBackup.thumb, setImageBackup.thumbLocation, setImageBackup.thumbFilter, setImageBackup.size, setImageBackup.ext, setImageBackup.cacheOnly);
@@ -709,6 +712,10 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         return currentCacheOnly;
     }
 
+    public boolean isAttachedToWindow() {
+        return attachedToWindow;
+    }
+
     public void setForcePreview(boolean value) {
         forcePreview = value;
     }
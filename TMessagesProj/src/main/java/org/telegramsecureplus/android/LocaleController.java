@@ -829,7 +829,7 @@ public class LocaleController {
         }
     }
 
-    public String getTranslitString(String src) {
+    public synchronized String getTranslitString(String src) {
         if (translitChars == null) {
             translitChars = new HashMap<>(520);
             translitChars.put("ȼ", "c");
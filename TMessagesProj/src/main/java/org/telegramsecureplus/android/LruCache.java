@@ -10,25 +10,92 @@ package org.telegramsecureplus.android;
 
 import android.graphics.drawable.BitmapDrawable;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Locale;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Memory cache for decoded images. New entries go to a small window segment; entries leaving
+ * the window are admitted to the main segment only if they were used at least as often as the entry
+ * they would evict, so scrolling once through a gallery can't flush avatars and thumbs that are
+ * used all the time. The main segment is split into a probation part and a protected part for
+ * entries that were hit again after admission.
  */
 public class LruCache {
-    private final LinkedHashMap<String, BitmapDrawable> map;
+
+    private static final int WINDOW_PERCENT = 20;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final LinkedHashMap<String, BitmapDrawable> window;
+    private final LinkedHashMap<String, BitmapDrawable> probation;
+    private final LinkedHashMap<String, BitmapDrawable> protectedMap;
     private final LinkedHashMap<String, ArrayList<String>> mapFilters;
+    private final FrequencySketch sketch = new FrequencySketch();
 
     /** Size of this cache in units. Not necessarily the number of elements. */
     private int size;
+    private int windowSize;
+    private int protectedSize;
     private int maxSize;
+    private int maxWindowSize;
+    private int maxProtectedSize;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+    private int rejectionCount;
+
+    /**
+     * Approximate access counts for recently seen keys, including ones no longer cached. Each key
+     * maps to one 4-bit counter in each of the two halves of the table, the estimate is the smaller
+     * of the two. All counters are halved after every ten accesses per cached entry, so old
+     * popularity fades out about as fast as the cache turns over.
+     */
+    private static class FrequencySketch {
+        private static final int TABLE_SIZE = 4096;
+        private static final int MIN_RESET_INTERVAL = 256;
+
+        private final byte[] table = new byte[TABLE_SIZE];
+        private int samples;
+
+        private static int spread(int hash) {
+            hash ^= (hash >>> 17);
+            hash *= 0xed5ad4bb;
+            hash ^= (hash >>> 11);
+            hash *= 0xac4c1b51;
+            hash ^= (hash >>> 15);
+            return hash;
+        }
+
+        public void increment(String key, int entries) {
+            int hash = spread(key.hashCode());
+            int first = hash & (TABLE_SIZE / 2 - 1);
+            int second = TABLE_SIZE / 2 + ((hash >>> 16) & (TABLE_SIZE / 2 - 1));
+            if (table[first] < 15) {
+                table[first]++;
+            }
+            if (table[second] < 15) {
+                table[second]++;
+            }
+            if (++samples >= Math.max(MIN_RESET_INTERVAL, entries * 10)) {
+                for (int a = 0; a < TABLE_SIZE; a++) {
+                    table[a] >>= 1;
+                }
+                samples = 0;
+            }
+        }
+
+        public int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int first = hash & (TABLE_SIZE / 2 - 1);
+            int second = TABLE_SIZE / 2 + ((hash >>> 16) & (TABLE_SIZE / 2 - 1));
+            return Math.min(table[first], table[second]);
+        }
+    }
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -40,15 +107,19 @@ public class LruCache {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
+        this.maxWindowSize = Math.max(1, (int) ((long) maxSize * WINDOW_PERCENT / 100));
+        this.maxProtectedSize = (int) ((long) (maxSize - maxWindowSize) * PROTECTED_PERCENT / 100);
+        this.window = new LinkedHashMap<>(0, 0.75f, true);
+        this.probation = new LinkedHashMap<>(0, 0.75f, true);
+        this.protectedMap = new LinkedHashMap<>(0, 0.75f, true);
         this.mapFilters = new LinkedHashMap<>();
     }
 
     /**
-     * Returns the value for {@code key} if it exists in the cache or can be
-     * created by {@code #create}. If a value was returned, it is moved to the
-     * head of the queue. This returns null if a value is not cached and cannot
-     * be created.
+     * Returns the value for {@code key} if it exists in the cache. If a value
+     * was returned, it is moved to the head of its segment, values found in
+     * probation are moved to the protected segment. This returns null if a
+     * value is not cached.
      */
     public final BitmapDrawable get(String key) {
         if (key == null) {
@@ -57,15 +128,29 @@ public class LruCache {
 
         BitmapDrawable mapValue;
         synchronized (this) {
-            mapValue = map.get(key);
+            sketch.increment(key, window.size() + probation.size() + protectedMap.size());
+            mapValue = window.get(key);
+            if (mapValue == null) {
+                mapValue = protectedMap.get(key);
+            }
+            if (mapValue == null) {
+                mapValue = probation.remove(key);
+                if (mapValue != null) {
+                    protectedMap.put(key, mapValue);
+                    protectedSize += safeSizeOf(key, mapValue);
+                    demoteProtected();
+                }
+            }
             if (mapValue != null) {
-                return mapValue;
+                hitCount++;
+            } else {
+                missCount++;
             }
         }
-        return null;
+        return mapValue;
     }
 
-    public ArrayList<String> getFilterKeys(String key) {
+    public synchronized ArrayList<String> getFilterKeys(String key) {
         ArrayList<String> arr = mapFilters.get(key);
         if (arr != null) {
             return new ArrayList<>(arr);
@@ -74,8 +159,8 @@ public class LruCache {
     }
 
     /**
-     * Caches {@code value} for {@code key}. The value is moved to the head of
-     * the queue.
+     * Caches {@code value} for {@code key}. New keys are placed in the window
+     * segment, existing ones are replaced in the segment they are in.
      *
      * @return the previous value mapped by {@code key}.
      */
@@ -86,66 +171,169 @@ public class LruCache {
 
         BitmapDrawable previous;
         synchronized (this) {
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+            putCount++;
+            sketch.increment(key, window.size() + probation.size() + protectedMap.size());
+            int valueSize = safeSizeOf(key, value);
+            size += valueSize;
+            if ((previous = window.get(key)) != null) {
+                window.put(key, value);
+                windowSize += valueSize - safeSizeOf(key, previous);
+            } else if ((previous = protectedMap.get(key)) != null) {
+                protectedMap.put(key, value);
+                protectedSize += valueSize - safeSizeOf(key, previous);
+            } else if ((previous = probation.get(key)) != null) {
+                probation.put(key, value);
+            } else {
+                window.put(key, value);
+                windowSize += valueSize;
+                addFilterKey(key);
+            }
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
             }
         }
 
-        String[] args = key.split("@");
-        if (args.length > 1) {
-            ArrayList<String> arr = mapFilters.get(args[0]);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                mapFilters.put(args[0], arr);
-            }
-            if (!arr.contains(args[1])) {
-                arr.add(args[1]);
-            }
-        }
-
         if (previous != null) {
             entryRemoved(false, key, previous, value);
         }
 
-        trimToSize(maxSize, key);
+        trimToSize(key);
         return previous;
     }
 
     /**
-     * @param maxSize the maximum size of the cache before returning. May be -1
-     *     to evict even 0-sized elements.
+     * Moves entries that overflow the window into the main segment, letting the
+     * more frequently used one of the candidate and the probation victim stay.
      */
-    private void trimToSize(int maxSize, String justAdded) {
+    private void trimToSize(String justAdded) {
+        ArrayList<HashMap.Entry<String, BitmapDrawable>> evicted = new ArrayList<>();
         synchronized (this) {
-            Iterator<HashMap.Entry<String, BitmapDrawable>> iterator = map.entrySet().iterator();
-            while (iterator.hasNext()) {
-                if (size <= maxSize || map.isEmpty()) {
-                    break;
-                }
+            Iterator<HashMap.Entry<String, BitmapDrawable>> iterator = window.entrySet().iterator();
+            while (windowSize > maxWindowSize && iterator.hasNext()) {
                 HashMap.Entry<String, BitmapDrawable> entry = iterator.next();
-
                 String key = entry.getKey();
                 if (justAdded != null && justAdded.equals(key)) {
-                    continue;
+                    break;
                 }
                 BitmapDrawable value = entry.getValue();
-                size -= safeSizeOf(key, value);
                 iterator.remove();
-
-                String[] args = key.split("@");
-                if (args.length > 1) {
-                    ArrayList<String> arr = mapFilters.get(args[0]);
-                    if (arr != null) {
-                        arr.remove(args[1]);
-                        if (arr.isEmpty()) {
-                            mapFilters.remove(args[0]);
-                        }
-                    }
+                windowSize -= safeSizeOf(key, value);
+                admit(key, value, evicted);
+            }
+            while (size > maxSize) {
+                HashMap.Entry<String, BitmapDrawable> victim = eldest();
+                if (victim == null || justAdded != null && justAdded.equals(victim.getKey())) {
+                    break;
                 }
+                removeEntry(victim.getKey(), evicted);
+            }
+        }
+        notifyEvicted(evicted);
+    }
 
-                entryRemoved(true, key, value, null);
+    private void notifyEvicted(ArrayList<HashMap.Entry<String, BitmapDrawable>> evicted) {
+        for (int a = 0; a < evicted.size(); a++) {
+            HashMap.Entry<String, BitmapDrawable> entry = evicted.get(a);
+            entryRemoved(true, entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    private void admit(String key, BitmapDrawable value, ArrayList<HashMap.Entry<String, BitmapDrawable>> evicted) {
+        int valueSize = safeSizeOf(key, value);
+        int candidateFrequency = sketch.frequency(key);
+        while (size > maxSize) {
+            HashMap.Entry<String, BitmapDrawable> victim = eldestMain();
+            if (victim == null) {
+                break;
+            }
+            if (candidateFrequency < sketch.frequency(victim.getKey())) {
+                rejectionCount++;
+                size -= valueSize;
+                removeFilterKey(key);
+                evictionCount++;
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+                return;
+            }
+            removeEntry(victim.getKey(), evicted);
+        }
+        probation.put(key, value);
+    }
+
+    private void demoteProtected() {
+        Iterator<HashMap.Entry<String, BitmapDrawable>> iterator = protectedMap.entrySet().iterator();
+        while (protectedSize > maxProtectedSize && iterator.hasNext()) {
+            HashMap.Entry<String, BitmapDrawable> entry = iterator.next();
+            iterator.remove();
+            protectedSize -= safeSizeOf(entry.getKey(), entry.getValue());
+            probation.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private HashMap.Entry<String, BitmapDrawable> eldestMain() {
+        if (!probation.isEmpty()) {
+            return probation.entrySet().iterator().next();
+        }
+        if (!protectedMap.isEmpty()) {
+            return protectedMap.entrySet().iterator().next();
+        }
+        return null;
+    }
+
+    private HashMap.Entry<String, BitmapDrawable> eldest() {
+        HashMap.Entry<String, BitmapDrawable> entry = eldestMain();
+        if (entry == null && !window.isEmpty()) {
+            entry = window.entrySet().iterator().next();
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the entry from whichever segment holds it. Evicted entries are added to the
+     * list, so entryRemoved can be called for them after the lock is released.
+     */
+    private BitmapDrawable removeEntry(String key, ArrayList<HashMap.Entry<String, BitmapDrawable>> evicted) {
+        BitmapDrawable previous = window.remove(key);
+        if (previous != null) {
+            windowSize -= safeSizeOf(key, previous);
+        } else if ((previous = protectedMap.remove(key)) != null) {
+            protectedSize -= safeSizeOf(key, previous);
+        } else {
+            previous = probation.remove(key);
+        }
+        if (previous != null) {
+            size -= safeSizeOf(key, previous);
+            removeFilterKey(key);
+            if (evicted != null) {
+                evictionCount++;
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(key, previous));
+            }
+        }
+        return previous;
+    }
+
+    private void addFilterKey(String key) {
+        String[] args = key.split("@");
+        if (args.length > 1) {
+            ArrayList<String> arr = mapFilters.get(args[0]);
+            if (arr == null) {
+                arr = new ArrayList<>();
+                mapFilters.put(args[0], arr);
+            }
+            if (!arr.contains(args[1])) {
+                arr.add(args[1]);
+            }
+        }
+    }
+
+    private void removeFilterKey(String key) {
+        String[] args = key.split("@");
+        if (args.length > 1) {
+            ArrayList<String> arr = mapFilters.get(args[0]);
+            if (arr != null) {
+                arr.remove(args[1]);
+                if (arr.isEmpty()) {
+                    mapFilters.remove(args[0]);
+                }
             }
         }
     }
@@ -162,32 +350,25 @@ public class LruCache {
 
         BitmapDrawable previous;
         synchronized (this) {
-            previous = map.remove(key);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
-            }
+            previous = removeEntry(key, null);
         }
 
         if (previous != null) {
-            String[] args = key.split("@");
-            if (args.length > 1) {
-                ArrayList<String> arr = mapFilters.get(args[0]);
-                if (arr != null) {
-                    arr.remove(args[1]);
-                    if (arr.isEmpty()) {
-                        mapFilters.remove(args[0]);
-                    }
-                }
-            }
-
             entryRemoved(false, key, previous, null);
         }
 
         return previous;
     }
-    
-    public boolean contains(String key){
-    	return map.containsKey(key);
+
+    public synchronized boolean contains(String key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedMap.containsKey(key);
+    }
+
+    public synchronized String getStatistics() {
+        int requests = hitCount + missCount;
+        return String.format(Locale.US, "memCache: size=%d/%d window=%d protected=%d entries=%d hits=%d misses=%d hitRatio=%.2f puts=%d evictions=%d rejected=%d",
+                size, maxSize, windowSize, protectedSize, window.size() + probation.size() + protectedMap.size(), hitCount, missCount,
+                requests != 0 ? (float) hitCount / requests : 0, putCount, evictionCount, rejectionCount);
     }
 
     /**
@@ -230,7 +411,14 @@ public class LruCache {
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
     public final void evictAll() {
-        trimToSize(-1, null); // -1 will evict 0-sized elements
+        ArrayList<HashMap.Entry<String, BitmapDrawable>> evicted = new ArrayList<>();
+        synchronized (this) {
+            HashMap.Entry<String, BitmapDrawable> entry;
+            while ((entry = eldest()) != null) {
+                removeEntry(entry.getKey(), evicted);
+            }
+        }
+        notifyEvicted(evicted);
     }
 
     /**
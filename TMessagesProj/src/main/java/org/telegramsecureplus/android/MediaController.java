@@ -56,6 +56,7 @@ import org.telegramsecureplus.messenger.FileLoader;
 import org.telegramsecureplus.messenger.FileLog;
 import org.telegramsecureplus.messenger.R;
 import org.telegramsecureplus.messenger.TLRPC;
+import org.telegramsecureplus.messenger.TransferScheduler;
 import org.telegramsecureplus.messenger.UserConfig;
 import org.telegramsecureplus.messenger.Utilities;
 import org.telegramsecureplus.messenger.ApplicationLoader;
@@ -321,12 +322,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                         });
                     }
                     recordQueue.postRunnable(recordRunnable);
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.recordProgressChanged, System.currentTimeMillis() - recordStartTime);
-                        }
-                    });
+                    NotificationCenter.getInstance().postNotificationNameCoalesced(NotificationCenter.recordProgressChanged, null, System.currentTimeMillis() - recordStartTime);
                 } else {
                     recordBuffers.add(buffer);
                     stopRecordingInternal(sendAfterDone);
@@ -742,13 +738,13 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
 
             boolean added = true;
             if (downloadObject.object instanceof TLRPC.Audio) {
-                FileLoader.getInstance().loadFile((TLRPC.Audio)downloadObject.object, false);
+                FileLoader.getInstance().loadFile((TLRPC.Audio)downloadObject.object, TransferScheduler.PRIORITY_PREFETCH);
             } else if (downloadObject.object instanceof TLRPC.PhotoSize) {
-                FileLoader.getInstance().loadFile((TLRPC.PhotoSize)downloadObject.object, null, false);
+                FileLoader.getInstance().loadFile((TLRPC.PhotoSize)downloadObject.object, null, false, TransferScheduler.PRIORITY_PREFETCH);
             } else if (downloadObject.object instanceof TLRPC.Video) {
-                FileLoader.getInstance().loadFile((TLRPC.Video)downloadObject.object, false);
+                FileLoader.getInstance().loadFile((TLRPC.Video)downloadObject.object, TransferScheduler.PRIORITY_BACKGROUND);
             } else if (downloadObject.object instanceof TLRPC.Document) {
-                FileLoader.getInstance().loadFile((TLRPC.Document)downloadObject.object, false, false);
+                FileLoader.getInstance().loadFile((TLRPC.Document)downloadObject.object, TransferScheduler.PRIORITY_BACKGROUND, false);
             } else {
                 added = false;
             }
@@ -18,6 +18,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.util.Base64;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.widget.Toast;
 
 import org.telegramsecureplus.android.query.BotQuery;
@@ -41,9 +42,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 public class MessagesController implements NotificationCenter.NotificationCenterDelegate {
 
@@ -69,9 +70,37 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     public boolean loadingBlockedUsers = false;
     public ArrayList<Integer> blockedUsers = new ArrayList<>();
 
-    private ArrayList<TLRPC.Updates> updatesQueueSeq = new ArrayList<>();
-    private ArrayList<TLRPC.Updates> updatesQueuePts = new ArrayList<>();
-    private ArrayList<TLRPC.Updates> updatesQueueQts = new ArrayList<>();
+    private static final Comparator<TLRPC.Updates> updatesSeqComparator = new Comparator<TLRPC.Updates>() {
+        @Override
+        public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
+            return AndroidUtilities.compare(getUpdateSeq(updates), getUpdateSeq(updates2));
+        }
+    };
+    private static final Comparator<TLRPC.Updates> updatesPtsComparator = new Comparator<TLRPC.Updates>() {
+        @Override
+        public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
+            return AndroidUtilities.compare(updates.pts, updates2.pts);
+        }
+    };
+    private static final Comparator<TLRPC.Update> updateTypeComparator = new Comparator<TLRPC.Update>() {
+        @Override
+        public int compare(TLRPC.Update lhs, TLRPC.Update rhs) {
+            int ltype = getUpdateType(lhs);
+            int rtype = getUpdateType(rhs);
+            if (ltype != rtype) {
+                return AndroidUtilities.compare(ltype, rtype);
+            } else if (ltype == 0) {
+                return AndroidUtilities.compare(lhs.pts, rhs.pts);
+            } else if (ltype == 1) {
+                return AndroidUtilities.compare(lhs.qts, rhs.qts);
+            }
+            return 0;
+        }
+    };
+    private PriorityQueue<TLRPC.Updates> updatesQueueSeq = new PriorityQueue<>(11, updatesSeqComparator);
+    private PriorityQueue<TLRPC.Updates> updatesQueuePts = new PriorityQueue<>(11, updatesPtsComparator);
+    private PriorityQueue<TLRPC.Updates> updatesQueueQts = new PriorityQueue<>(11, updatesPtsComparator);
+    private UpdatesBatch updatesBatch;
     private long updatesStartWaitTimeSeq = 0;
     private long updatesStartWaitTimePts = 0;
     private long updatesStartWaitTimeQts = 0;
@@ -117,6 +146,37 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
     }
 
+    private static class UpdatesBatch {
+        private HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
+        private HashMap<Long, TLRPC.WebPage> webPages = new HashMap<>();
+        private ArrayList<MessageObject> pushMessages = new ArrayList<>();
+        private ArrayList<TLRPC.Message> messagesArr = new ArrayList<>();
+        private HashMap<Integer, Integer> markAsReadMessagesInbox = new HashMap<>();
+        private HashMap<Integer, Integer> markAsReadMessagesOutbox = new HashMap<>();
+        private ArrayList<Integer> markAsReadMessages = new ArrayList<>();
+        private HashMap<Integer, Integer> markAsReadEncrypted = new HashMap<>();
+        private ArrayList<Integer> deletedMessages = new ArrayList<>();
+        private ArrayList<TLRPC.ChatParticipants> chatInfoToUpdate = new ArrayList<>();
+        private ArrayList<TLRPC.Update> updatesOnMainThread = new ArrayList<>();
+        private SparseIntArray userStatusPositions = new SparseIntArray();
+        private ArrayList<TLRPC.TL_updateEncryptedMessagesRead> tasks = new ArrayList<>();
+        private ArrayList<TLRPC.User> users = new ArrayList<>();
+        private ArrayList<TLRPC.Chat> chats = new ArrayList<>();
+        private boolean printChanged;
+        private int interfaceUpdateMask;
+        private boolean needSaveDiffParams;
+
+        private void addUserStatus(TLRPC.Update update) {
+            int position = userStatusPositions.get(update.user_id, -1);
+            if (position != -1) {
+                updatesOnMainThread.set(position, update);
+            } else {
+                userStatusPositions.put(update.user_id, updatesOnMainThread.size());
+                updatesOnMainThread.add(update);
+            }
+        }
+    }
+
     public static final int UPDATE_MASK_NAME = 1;
     public static final int UPDATE_MASK_AVATAR = 2;
     public static final int UPDATE_MASK_STATUS = 4;
@@ -724,7 +784,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             if (MessagesStorage.lastPtsValue + pts_count == pts) {
                 FileLog.e("tmessages", "APPLY PTS");
                 MessagesStorage.lastPtsValue = pts;
-                MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+                saveDiffParams();
             } else if (MessagesStorage.lastPtsValue != pts) {
                 if (gettingDifference || updatesStartWaitTimePts == 0 || updatesStartWaitTimePts + 1500 > System.currentTimeMillis()) {
                     FileLog.e("tmessages", "ADD UPDATE TO QUEUE pts = " + pts + " pts_count = " + pts_count);
@@ -747,7 +807,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (date != -1) {
                     MessagesStorage.lastDateValue = date;
                 }
-                MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+                saveDiffParams();
             } else if (MessagesStorage.lastSeqValue != seq) {
                 if (gettingDifference || updatesStartWaitTimeSeq == 0 || updatesStartWaitTimeSeq + 1500 > System.currentTimeMillis()) {
                     FileLog.e("tmessages", "ADD UPDATE TO QUEUE seq = " + seq);
@@ -1665,82 +1725,46 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void deleteDialogHistory(long did) {
-
         int lower_part = (int) did;
         int high_id = (int) (did >> 32);
-
-        if (high_id == 1) {
+        if (high_id == 1 || lower_part <= 0) {
             return;
         }
-
-        final Semaphore semaphore = new Semaphore(0);
-        if (lower_part != 0) {
-            TLRPC.TL_messages_deleteHistory req = new TLRPC.TL_messages_deleteHistory();
-            req.peer = new TLRPC.TL_inputPeerContact();
-            req.peer.user_id = lower_part;
-            ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
-                @Override
-                public void run(TLObject response, TLRPC.TL_error error) {
-                    if (error == null) {
-                        TLRPC.TL_messages_affectedHistory res = (TLRPC.TL_messages_affectedHistory) response;
-                    }
-                    semaphore.release();
-                }
-            });
-        }
-
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
-    }
-
-    public void deleteMesaages() {
-        TLRPC.TL_messages_getDialogs req = new TLRPC.TL_messages_getDialogs();
-        req.offset = 0;
-        req.limit = 100;
-
-        final ArrayList<Integer> usersToLoad = new ArrayList<>();
-        final Semaphore semaphore = new Semaphore(0);
-
+        TLRPC.TL_messages_deleteHistory req = new TLRPC.TL_messages_deleteHistory();
+        req.peer = new TLRPC.TL_inputPeerContact();
+        req.peer.user_id = lower_part;
         ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
             @Override
             public void run(TLObject response, TLRPC.TL_error error) {
                 if (error == null) {
-                    final TLRPC.messages_Dialogs dialogsRes = (TLRPC.messages_Dialogs) response;
-                    for (int a = 0; a < dialogsRes.dialogs.size(); a++) {
-                        TLRPC.TL_dialog dialog = dialogsRes.dialogs.get(a);
-                        if (dialog.peer.chat_id > 0 && dialog.unread_count == 0) {
-                            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
-                            boolean deleteHistoryChat = preferences.getBoolean("delete_history_chat", false);
-                            if (deleteHistoryChat) {
-                                MessagesController.getInstance().deleteUserFromChat(dialog.peer.chat_id, MessagesController.getInstance().getUser(UserConfig.getClientUserId()), null);
-                            }
-                            else {
-                                MessagesController.getInstance().deleteDialog(-dialog.peer.chat_id, 0, true);
-                            }
-                        } else {
-                            if (dialog.peer.user_id != 0 && dialog.unread_count == 0) {
-                                MessagesStorage.getInstance().deleteSyncDialog(dialog.peer.user_id, false);
-                                usersToLoad.add(dialog.peer.user_id);
-                            }
-                        }
-                    }
+                    TLRPC.TL_messages_affectedHistory res = (TLRPC.TL_messages_affectedHistory) response;
+                    processNewDifferenceParams(-1, res.pts, -1, res.pts_count);
                 }
-                semaphore.release();
-
             }
         });
+    }
 
-        try {
-            semaphore.tryAcquire(2, TimeUnit.SECONDS);;
-        } catch (Exception e) {
-            //FileLog.e("tmessages", e);
-        }
+    public void deleteMesaages() {
+        MessagesStorage.getInstance().purgeReadDialogs();
+    }
 
-        for (Integer did : usersToLoad) {
-            deleteDialogHistory(did);
+    public void processPurgedDialogs(ArrayList<Long> dids) {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        boolean deleteHistoryChat = preferences.getBoolean("delete_history_chat", false);
+        for (int a = 0; a < dids.size(); a++) {
+            long did = dids.get(a);
+            int lower_part = (int) did;
+            if (lower_part < 0) {
+                if (deleteHistoryChat) {
+                    deleteUserFromChat(-lower_part, getUser(UserConfig.getClientUserId()), null);
+                } else {
+                    deleteDialog(did, 0, true);
+                }
+            } else if (getUser(lower_part) != null) {
+                deleteDialog(did, 0, false);
+            } else {
+                deleteDialogHistory(did);
+            }
         }
     }
 
@@ -2617,7 +2641,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     for (int a = 0; a < 3; a++) {
                         processUpdatesQueue(a, 2);
                     }
-                    MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+                    saveDiffParams();
                 } else {
                     if (error.code != 401) {
                         loadCurrentState();
@@ -2627,7 +2651,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
-    private int getUpdateSeq(TLRPC.Updates updates) {
+    private static int getUpdateSeq(TLRPC.Updates updates) {
         if (updates instanceof TLRPC.TL_updatesCombined) {
             return updates.seq_start;
         } else {
@@ -2687,36 +2711,18 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     private boolean processUpdatesQueue(int type, int state) {
-        ArrayList<TLRPC.Updates> updatesQueue = null;
+        PriorityQueue<TLRPC.Updates> updatesQueue = null;
         if (type == 0) {
             updatesQueue = updatesQueueSeq;
-            Collections.sort(updatesQueue, new Comparator<TLRPC.Updates>() {
-                @Override
-                public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
-                    return AndroidUtilities.compare(getUpdateSeq(updates), getUpdateSeq(updates2));
-                }
-            });
         } else if (type == 1) {
             updatesQueue = updatesQueuePts;
-            Collections.sort(updatesQueue, new Comparator<TLRPC.Updates>() {
-                @Override
-                public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
-                    return AndroidUtilities.compare(updates.pts, updates2.pts);
-                }
-            });
         } else if (type == 2) {
             updatesQueue = updatesQueueQts;
-            Collections.sort(updatesQueue, new Comparator<TLRPC.Updates>() {
-                @Override
-                public int compare(TLRPC.Updates updates, TLRPC.Updates updates2) {
-                    return AndroidUtilities.compare(updates.pts, updates2.pts);
-                }
-            });
         }
         if (updatesQueue != null && !updatesQueue.isEmpty()) {
             boolean anyProceed = false;
             if (state == 2) {
-                TLRPC.Updates updates = updatesQueue.get(0);
+                TLRPC.Updates updates = updatesQueue.peek();
                 if (type == 0) {
                     MessagesStorage.lastSeqValue = getUpdateSeq(updates);
                 } else if (type == 1) {
@@ -2725,14 +2731,13 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     MessagesStorage.lastQtsValue = updates.pts;
                 }
             }
-            for (int a = 0; a < updatesQueue.size(); a++) {
-                TLRPC.Updates updates = updatesQueue.get(a);
+            while (!updatesQueue.isEmpty()) {
+                TLRPC.Updates updates = updatesQueue.peek();
                 int updateState = isValidUpdate(updates, type);
                 if (updateState == 0) {
+                    updatesQueue.poll();
                     processUpdates(updates, true);
                     anyProceed = true;
-                    updatesQueue.remove(a);
-                    a--;
                 } else if (updateState == 1) {
                     if (getUpdatesStartTime(type) != 0 && (anyProceed || getUpdatesStartTime(type) + 1500 > System.currentTimeMillis())) {
                         FileLog.e("tmessages", "HOLE IN UPDATES QUEUE - will wait more time");
@@ -2748,11 +2753,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         return false;
                     }
                 } else {
-                    updatesQueue.remove(a);
-                    a--;
+                    updatesQueue.poll();
                 }
             }
-            updatesQueue.clear();
             FileLog.e("tmessages", "UPDATES QUEUE PROCEED - OK");
         }
         setUpdatesStartTime(type, 0);
@@ -2989,7 +2992,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                             });
                                         }
                                     }
-                                    MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+                                    saveDiffParams();
                                     FileLog.e("tmessages", "received difference with date = " + MessagesStorage.lastDateValue + " pts = " + MessagesStorage.lastPtsValue + " seq = " + MessagesStorage.lastSeqValue);
                                     FileLog.e("tmessages", "messages = " + res.new_messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
                                 }
@@ -3011,7 +3014,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
-    private int getUpdateType(TLRPC.Update update) {
+    private static int getUpdateType(TLRPC.Update update) {
         if (update instanceof TLRPC.TL_updateNewMessage || update instanceof TLRPC.TL_updateReadMessagesContents || update instanceof TLRPC.TL_updateReadHistoryInbox ||
                 update instanceof TLRPC.TL_updateReadHistoryOutbox || update instanceof TLRPC.TL_updateDeleteMessages) {
             return 0;
@@ -3095,58 +3098,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     message.reply_to_msg_id = updates.reply_to_msg_id;
                     message.media = new TLRPC.TL_messageMediaEmpty();
                     MessagesStorage.lastPtsValue = updates.pts;
-                    final MessageObject obj = new MessageObject(message, null, true);
-                    final ArrayList<MessageObject> objArr = new ArrayList<>();
-                    objArr.add(obj);
-                    ArrayList<TLRPC.Message> arr = new ArrayList<>();
-                    arr.add(message);
-                    if (updates instanceof TLRPC.TL_updateShortMessage) {
-                        final boolean printUpdate = (updates.flags & TLRPC.MESSAGE_FLAG_OUT) == 0 && updatePrintingUsersWithNewMessages(updates.user_id, objArr);
-                        if (printUpdate) {
-                            updatePrintingStrings();
-                        }
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (printUpdate) {
-                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_USER_PRINT);
-                                }
-                                updateInterfaceWithMessages(user_id, objArr);
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                            }
-                        });
-                    } else {
-                        final boolean printUpdate = updatePrintingUsersWithNewMessages(-updates.chat_id, objArr);
-                        if (printUpdate) {
-                            updatePrintingStrings();
-                        }
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (printUpdate) {
-                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_USER_PRINT);
-                                }
-
-                                updateInterfaceWithMessages(-updates.chat_id, objArr);
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                            }
-                        });
-                    }
-
-                    MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                        @Override
-                        public void run() {
-                            AndroidUtilities.runOnUIThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (!obj.isOut()) {
-                                        NotificationsController.getInstance().processNewMessages(objArr, true);
-                                    }
-                                }
-                            });
-                        }
-                    });
-                    MessagesStorage.getInstance().putMessages(arr, false, true, false, 0);
+                    TLRPC.TL_updateNewMessage update = new TLRPC.TL_updateNewMessage();
+                    update.message = message;
+                    ArrayList<TLRPC.Update> arr = new ArrayList<>();
+                    arr.add(update);
+                    processUpdateArray(arr, null, null);
                 } else if (MessagesStorage.lastPtsValue != updates.pts) {
                     FileLog.e("tmessages", "need get diff short message, pts: " + MessagesStorage.lastPtsValue + " " + updates.pts + " count = " + updates.pts_count);
                     if (gettingDifference || updatesStartWaitTimePts == 0 || updatesStartWaitTimePts + 1500 > System.currentTimeMillis()) {
@@ -3162,21 +3118,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         } else if (updates instanceof TLRPC.TL_updatesCombined || updates instanceof TLRPC.TL_updates) {
             MessagesStorage.getInstance().putUsersAndChats(updates.users, updates.chats, true, true);
-            Collections.sort(updates.updates, new Comparator<TLRPC.Update>() {
-                @Override
-                public int compare(TLRPC.Update lhs, TLRPC.Update rhs) {
-                    int ltype = getUpdateType(lhs);
-                    int rtype = getUpdateType(rhs);
-                    if (ltype != rtype) {
-                        return AndroidUtilities.compare(ltype, rtype);
-                    } else if (ltype == 0) {
-                        return AndroidUtilities.compare(lhs.pts, rhs.pts);
-                    } else if (ltype == 1) {
-                        return AndroidUtilities.compare(lhs.qts, rhs.qts);
-                    }
-                    return 0;
-                }
-            });
+            Collections.sort(updates.updates, updateTypeComparator);
             for (int a = 0; a < updates.updates.size(); a++) {
                 TLRPC.Update update = updates.updates.get(a);
                 if (getUpdateType(update) == 0) {
@@ -3298,7 +3240,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 getDifference();
             } else {
                 for (int a = 0; a < 3; a++) {
-                    ArrayList<TLRPC.Updates> updatesQueue = null;
+                    PriorityQueue<TLRPC.Updates> updatesQueue = null;
                     if (a == 0) {
                         updatesQueue = updatesQueueSeq;
                     } else if (a == 1) {
@@ -3330,7 +3272,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 }
             });
         }
-        MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+        saveDiffParams();
     }
 
     public boolean processUpdateArray(ArrayList<TLRPC.Update> updates, final ArrayList<TLRPC.User> usersArr, final ArrayList<TLRPC.Chat> chatsArr) {
@@ -3339,21 +3281,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
         long currentTime = System.currentTimeMillis();
 
-        final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
-        final HashMap<Long, TLRPC.WebPage> webPages = new HashMap<>();
-        final ArrayList<MessageObject> pushMessages = new ArrayList<>();
-        final ArrayList<TLRPC.Message> messagesArr = new ArrayList<>();
-        final HashMap<Integer, Integer> markAsReadMessagesInbox = new HashMap<>();
-        final HashMap<Integer, Integer> markAsReadMessagesOutbox = new HashMap<>();
-        final ArrayList<Integer> markAsReadMessages = new ArrayList<>();
-        final HashMap<Integer, Integer> markAsReadEncrypted = new HashMap<>();
-        final ArrayList<Integer> deletedMessages = new ArrayList<>();
-        boolean printChanged = false;
-        final ArrayList<TLRPC.ChatParticipants> chatInfoToUpdate = new ArrayList<>();
-        final ArrayList<TLRPC.Update> updatesOnMainThread = new ArrayList<>();
-        final ArrayList<TLRPC.TL_updateEncryptedMessagesRead> tasks = new ArrayList<>();
-        final ArrayList<Integer> contactsIds = new ArrayList<>();
-
         boolean checkForUsers = true;
         ConcurrentHashMap<Integer, TLRPC.User> usersDict;
         ConcurrentHashMap<Integer, TLRPC.Chat> chatsDict;
@@ -3376,16 +3303,52 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             chatsDict = chats;
         }
 
-        if (usersArr != null || chatsArr != null) {
-            AndroidUtilities.runOnUIThread(new Runnable() {
-                @Override
-                public void run() {
-                    putUsers(usersArr, false);
-                    putChats(chatsArr, false);
+        if (checkForUsers) {
+            for (TLRPC.Update update : updates) {
+                if (update instanceof TLRPC.TL_updateNewMessage) {
+                    TLRPC.Message message = ((TLRPC.TL_updateNewMessage) update).message;
+                    if (usersDict.get(message.from_id) == null && getUser(message.from_id) == null || message.to_id.chat_id != 0 && chatsDict.get(message.to_id.chat_id) == null && getChat(message.to_id.chat_id) == null) {
+                        return false;
+                    }
                 }
-            });
+            }
+        }
+
+        boolean deferred = Thread.currentThread() == Utilities.stageQueue;
+        UpdatesBatch batch;
+        if (deferred) {
+            if (updatesBatch == null) {
+                updatesBatch = new UpdatesBatch();
+                Utilities.stageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        UpdatesBatch batch = updatesBatch;
+                        updatesBatch = null;
+                        flushUpdatesBatch(batch);
+                    }
+                });
+            }
+            batch = updatesBatch;
+        } else {
+            batch = new UpdatesBatch();
+        }
+        if (usersArr != null) {
+            batch.users.addAll(usersArr);
+        }
+        if (chatsArr != null) {
+            batch.chats.addAll(chatsArr);
         }
 
+        final HashMap<Long, ArrayList<MessageObject>> messages = batch.messages;
+        final HashMap<Long, TLRPC.WebPage> webPages = batch.webPages;
+        final ArrayList<MessageObject> pushMessages = batch.pushMessages;
+        final ArrayList<TLRPC.Message> messagesArr = batch.messagesArr;
+        final ArrayList<Integer> markAsReadMessages = batch.markAsReadMessages;
+        final ArrayList<Integer> deletedMessages = batch.deletedMessages;
+        final ArrayList<TLRPC.ChatParticipants> chatInfoToUpdate = batch.chatInfoToUpdate;
+        final ArrayList<TLRPC.TL_updateEncryptedMessagesRead> tasks = batch.tasks;
+        final ArrayList<Integer> contactsIds = new ArrayList<>();
+        boolean printChanged = false;
         int interfaceUpdateMask = 0;
 
         for (TLRPC.Update update : updates) {
@@ -3393,15 +3356,17 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 TLRPC.TL_updateNewMessage upd = (TLRPC.TL_updateNewMessage) update;
                 if (checkForUsers) {
                     TLRPC.User user = getUser(upd.message.from_id);
-                    if (usersDict.get(upd.message.from_id) == null && user == null || upd.message.to_id.chat_id != 0 && chatsDict.get(upd.message.to_id.chat_id) == null && getChat(upd.message.to_id.chat_id) == null) {
-                        return false;
-                    }
-
                     if (user != null && user.status != null && user.status.expires <= 0) {
                         onlinePrivacy.put(upd.message.from_id, ConnectionsManager.getInstance().getCurrentTime());
                         interfaceUpdateMask |= UPDATE_MASK_STATUS;
                     }
                 }
+                if (upd.message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
+                    TLRPC.User user = usersDict.get(upd.message.action.user_id);
+                    if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
+                        upd.message.reply_markup = new TLRPC.TL_replyKeyboardHide();
+                    }
+                }
                 messagesArr.add(upd.message);
                 ImageLoader.saveMessageThumbs(upd.message);
                 MessageObject obj = new MessageObject(upd.message, usersDict, true);
@@ -3433,16 +3398,16 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             } else if (update instanceof TLRPC.TL_updateReadHistoryInbox) {
                 TLRPC.Peer peer = ((TLRPC.TL_updateReadHistoryInbox) update).peer;
                 if (peer.chat_id != 0) {
-                    markAsReadMessagesInbox.put(-peer.chat_id, update.max_id);
+                    putMaxValue(batch.markAsReadMessagesInbox, -peer.chat_id, update.max_id);
                 } else {
-                    markAsReadMessagesInbox.put(peer.user_id, update.max_id);
+                    putMaxValue(batch.markAsReadMessagesInbox, peer.user_id, update.max_id);
                 }
             } else if (update instanceof TLRPC.TL_updateReadHistoryOutbox) {
                 TLRPC.Peer peer = ((TLRPC.TL_updateReadHistoryOutbox) update).peer;
                 if (peer.chat_id != 0) {
-                    markAsReadMessagesOutbox.put(-peer.chat_id, update.max_id);
+                    putMaxValue(batch.markAsReadMessagesOutbox, -peer.chat_id, update.max_id);
                 } else {
-                    markAsReadMessagesOutbox.put(peer.user_id, update.max_id);
+                    putMaxValue(batch.markAsReadMessagesOutbox, peer.user_id, update.max_id);
                 }
             } else if (update instanceof TLRPC.TL_updateDeleteMessages) {
                 deletedMessages.addAll(update.messages);
@@ -3500,17 +3465,17 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 chatInfoToUpdate.add(update.participants);
             } else if (update instanceof TLRPC.TL_updateUserStatus) {
                 interfaceUpdateMask |= UPDATE_MASK_STATUS;
-                updatesOnMainThread.add(update);
+                batch.addUserStatus(update);
             } else if (update instanceof TLRPC.TL_updateUserName) {
                 interfaceUpdateMask |= UPDATE_MASK_NAME;
-                updatesOnMainThread.add(update);
+                batch.updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateUserPhoto) {
                 interfaceUpdateMask |= UPDATE_MASK_AVATAR;
                 MessagesStorage.getInstance().clearUserPhotos(update.user_id);
-                updatesOnMainThread.add(update);
+                batch.updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateUserPhone) {
                 interfaceUpdateMask |= UPDATE_MASK_PHONE;
-                updatesOnMainThread.add(update);
+                batch.updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateContactRegistered) {
                 if (enableJoined && usersDict.containsKey(update.user_id)) {
                     TLRPC.TL_messageService newMessage = new TLRPC.TL_messageService();
@@ -3631,7 +3596,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     onlinePrivacy.put(update.user_id, ConnectionsManager.getInstance().getCurrentTime());
                 }
             } else if (update instanceof TLRPC.TL_updateEncryptedMessagesRead) {
-                markAsReadEncrypted.put(update.chat_id, Math.max(update.max_date, update.date));
+                putMaxValue(batch.markAsReadEncrypted, update.chat_id, Math.max(update.max_date, update.date));
                 tasks.add((TLRPC.TL_updateEncryptedMessagesRead) update);
             } else if (update instanceof TLRPC.TL_updateChatParticipantAdd) {
                 MessagesStorage.getInstance().updateChatInfo(update.chat_id, update.user_id, false, update.inviter_id, update.version);
@@ -3669,7 +3634,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     }
                 });
             } else if (update instanceof TLRPC.TL_updateNotifySettings) {
-                updatesOnMainThread.add(update);
+                batch.updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateServiceNotification) {
                 TLRPC.TL_message newMessage = new TLRPC.TL_message();
                 newMessage.local_id = newMessage.id = UserConfig.getNewMessageId();
@@ -3693,11 +3658,63 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 arr.add(obj);
                 pushMessages.add(obj);
             } else if (update instanceof TLRPC.TL_updatePrivacy) {
-                updatesOnMainThread.add(update);
+                batch.updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateWebPage) {
                 webPages.put(update.webpage.id, update.webpage);
             }
         }
+        if (!contactsIds.isEmpty()) {
+            ContactsController.getInstance().processContactsUpdates(contactsIds, usersDict);
+            interfaceUpdateMask |= UPDATE_MASK_NAME | UPDATE_MASK_USER_PHONE;
+        }
+        batch.interfaceUpdateMask |= interfaceUpdateMask;
+        batch.printChanged |= printChanged;
+        if (!deferred) {
+            flushUpdatesBatch(batch);
+        }
+        return true;
+    }
+
+    private void putMaxValue(HashMap<Integer, Integer> map, int key, int value) {
+        Integer current = map.get(key);
+        if (current == null || current < value) {
+            map.put(key, value);
+        }
+    }
+
+    private void saveDiffParams() {
+        if (updatesBatch != null && Thread.currentThread() == Utilities.stageQueue) {
+            updatesBatch.needSaveDiffParams = true;
+        } else {
+            MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+        }
+    }
+
+    private void flushUpdatesBatch(final UpdatesBatch batch) {
+        final HashMap<Long, ArrayList<MessageObject>> messages = batch.messages;
+        final HashMap<Long, TLRPC.WebPage> webPages = batch.webPages;
+        final ArrayList<MessageObject> pushMessages = batch.pushMessages;
+        final ArrayList<TLRPC.Message> messagesArr = batch.messagesArr;
+        final HashMap<Integer, Integer> markAsReadMessagesInbox = batch.markAsReadMessagesInbox;
+        final HashMap<Integer, Integer> markAsReadMessagesOutbox = batch.markAsReadMessagesOutbox;
+        final ArrayList<Integer> markAsReadMessages = batch.markAsReadMessages;
+        final HashMap<Integer, Integer> markAsReadEncrypted = batch.markAsReadEncrypted;
+        final ArrayList<Integer> deletedMessages = batch.deletedMessages;
+        final ArrayList<TLRPC.ChatParticipants> chatInfoToUpdate = batch.chatInfoToUpdate;
+        final ArrayList<TLRPC.Update> updatesOnMainThread = batch.updatesOnMainThread;
+        final ArrayList<TLRPC.TL_updateEncryptedMessagesRead> tasks = batch.tasks;
+        boolean printChanged = batch.printChanged;
+
+        if (!batch.users.isEmpty() || !batch.chats.isEmpty()) {
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    putUsers(batch.users, false);
+                    putChats(batch.chats, false);
+                }
+            });
+        }
+
         if (!messages.isEmpty()) {
             for (HashMap.Entry<Long, ArrayList<MessageObject>> pair : messages.entrySet()) {
                 Long key = pair.getKey();
@@ -3712,37 +3729,24 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             updatePrintingStrings();
         }
 
-        final int interfaceUpdateMaskFinal = interfaceUpdateMask;
+        final int interfaceUpdateMaskFinal = batch.interfaceUpdateMask;
         final boolean printChangedArg = printChanged;
 
-        if (!contactsIds.isEmpty()) {
-            ContactsController.getInstance().processContactsUpdates(contactsIds, usersDict);
-        }
-
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!pushMessages.isEmpty()) {
+        if (!pushMessages.isEmpty()) {
+            MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
                             NotificationsController.getInstance().processNewMessages(pushMessages, true);
                         }
-                    }
-                });
-            }
-        });
+                    });
+                }
+            });
+        }
 
         if (!messagesArr.isEmpty()) {
-            for (int a = 0; a < messagesArr.size(); a++) {
-                TLRPC.Message message = messagesArr.get(a);
-                if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
-                    TLRPC.User user = usersDict.get(message.action.user_id);
-                    if (user != null && (user.flags & TLRPC.USER_FLAG_BOT) != 0) {
-                        message.reply_markup = new TLRPC.TL_replyKeyboardHide();
-                    }
-                }
-            }
             MessagesStorage.getInstance().putMessages(messagesArr, true, true, false, MediaController.getInstance().getAutodownloadMask());
         }
 
@@ -3895,10 +3899,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (printChangedArg) {
                     updateMask |= UPDATE_MASK_USER_PRINT;
                 }
-                if (!contactsIds.isEmpty()) {
-                    updateMask |= UPDATE_MASK_NAME;
-                    updateMask |= UPDATE_MASK_USER_PHONE;
-                }
                 if (!chatInfoToUpdate.isEmpty()) {
                     for (TLRPC.ChatParticipants info : chatInfoToUpdate) {
                         MessagesStorage.getInstance().updateChatInfo(info.chat_id, info, true);
@@ -3911,70 +3911,72 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         });
 
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        int updateMask = 0;
-                        if (!markAsReadMessagesInbox.isEmpty() || !markAsReadMessagesOutbox.isEmpty()) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesRead, markAsReadMessagesInbox, markAsReadMessagesOutbox);
-                            NotificationsController.getInstance().processReadMessages(markAsReadMessagesInbox, 0, 0, 0, false);
-                            for (HashMap.Entry<Integer, Integer> entry : markAsReadMessagesInbox.entrySet()) {
-                                TLRPC.TL_dialog dialog = dialogs_dict.get((long) entry.getKey());
-                                if (dialog != null && dialog.top_message <= entry.getValue()) {
-                                    MessageObject obj = dialogMessage.get(dialog.top_message);
-                                    if (obj != null) {
-                                        obj.setIsRead();
-                                        updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+        if (!markAsReadMessagesInbox.isEmpty() || !markAsReadMessagesOutbox.isEmpty() || !markAsReadEncrypted.isEmpty() || !markAsReadMessages.isEmpty() || !deletedMessages.isEmpty()) {
+            MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            int updateMask = 0;
+                            if (!markAsReadMessagesInbox.isEmpty() || !markAsReadMessagesOutbox.isEmpty()) {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesRead, markAsReadMessagesInbox, markAsReadMessagesOutbox);
+                                NotificationsController.getInstance().processReadMessages(markAsReadMessagesInbox, 0, 0, 0, false);
+                                for (HashMap.Entry<Integer, Integer> entry : markAsReadMessagesInbox.entrySet()) {
+                                    TLRPC.TL_dialog dialog = dialogs_dict.get((long) entry.getKey());
+                                    if (dialog != null && dialog.top_message <= entry.getValue()) {
+                                        MessageObject obj = dialogMessage.get(dialog.top_message);
+                                        if (obj != null) {
+                                            obj.setIsRead();
+                                            updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+                                        }
                                     }
                                 }
-                            }
-                            for (HashMap.Entry<Integer, Integer> entry : markAsReadMessagesOutbox.entrySet()) {
-                                TLRPC.TL_dialog dialog = dialogs_dict.get((long) entry.getKey());
-                                if (dialog != null && dialog.top_message <= entry.getValue()) {
-                                    MessageObject obj = dialogMessage.get(dialog.top_message);
-                                    if (obj != null) {
-                                        obj.setIsRead();
-                                        updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+                                for (HashMap.Entry<Integer, Integer> entry : markAsReadMessagesOutbox.entrySet()) {
+                                    TLRPC.TL_dialog dialog = dialogs_dict.get((long) entry.getKey());
+                                    if (dialog != null && dialog.top_message <= entry.getValue()) {
+                                        MessageObject obj = dialogMessage.get(dialog.top_message);
+                                        if (obj != null) {
+                                            obj.setIsRead();
+                                            updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+                                        }
                                     }
                                 }
                             }
-                        }
-                        if (!markAsReadEncrypted.isEmpty()) {
-                            for (HashMap.Entry<Integer, Integer> entry : markAsReadEncrypted.entrySet()) {
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesReadEncrypted, entry.getKey(), entry.getValue());
-                                long dialog_id = (long) (entry.getKey()) << 32;
-                                TLRPC.TL_dialog dialog = dialogs_dict.get(dialog_id);
-                                if (dialog != null) {
-                                    MessageObject message = dialogMessage.get(dialog.top_message);
-                                    if (message != null && message.messageOwner.date <= entry.getValue()) {
-                                        message.setIsRead();
-                                        updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+                            if (!markAsReadEncrypted.isEmpty()) {
+                                for (HashMap.Entry<Integer, Integer> entry : markAsReadEncrypted.entrySet()) {
+                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesReadEncrypted, entry.getKey(), entry.getValue());
+                                    long dialog_id = (long) (entry.getKey()) << 32;
+                                    TLRPC.TL_dialog dialog = dialogs_dict.get(dialog_id);
+                                    if (dialog != null) {
+                                        MessageObject message = dialogMessage.get(dialog.top_message);
+                                        if (message != null && message.messageOwner.date <= entry.getValue()) {
+                                            message.setIsRead();
+                                            updateMask |= UPDATE_MASK_READ_DIALOG_MESSAGE;
+                                        }
                                     }
                                 }
                             }
-                        }
-                        if (!markAsReadMessages.isEmpty()) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesReadContent, markAsReadMessages);
-                        }
-                        if (!deletedMessages.isEmpty()) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDeleted, deletedMessages);
-                            for (Integer id : deletedMessages) {
-                                MessageObject obj = dialogMessage.get(id);
-                                if (obj != null) {
-                                    obj.deleted = true;
+                            if (!markAsReadMessages.isEmpty()) {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesReadContent, markAsReadMessages);
+                            }
+                            if (!deletedMessages.isEmpty()) {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDeleted, deletedMessages);
+                                for (Integer id : deletedMessages) {
+                                    MessageObject obj = dialogMessage.get(id);
+                                    if (obj != null) {
+                                        obj.deleted = true;
+                                    }
                                 }
                             }
+                            if (updateMask != 0) {
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, updateMask);
+                            }
                         }
-                        if (updateMask != 0) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, updateMask);
-                        }
-                    }
-                });
-            }
-        });
+                    });
+                }
+            });
+        }
 
         if (!webPages.isEmpty()) {
             MessagesStorage.getInstance().putWebPages(webPages);
@@ -3997,8 +3999,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 MessagesStorage.getInstance().createTaskForSecretChat(update.chat_id, update.max_date, update.date, 1, null);
             }
         }
-
-        return true;
+        if (batch.needSaveDiffParams) {
+            MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+        }
     }
 
     private boolean isNotifySettingsMuted(TLRPC.PeerNotifySettings settings) {
@@ -16,8 +16,10 @@ import android.util.SparseArray;
 import org.telegramsecureplus.PhoneFormat.PhoneFormat;
 import org.telegramsecureplus.SQLite.SQLiteCursor;
 import org.telegramsecureplus.SQLite.SQLiteDatabase;
+import org.telegramsecureplus.SQLite.SQLiteReadPool;
 import org.telegramsecureplus.SQLite.SQLitePreparedStatement;
 import org.telegramsecureplus.android.query.BotQuery;
+import org.telegramsecureplus.android.query.MessagesSearchQuery;
 import org.telegramsecureplus.android.query.SharedMediaQuery;
 import org.telegramsecureplus.messenger.BuffersStorage;
 import org.telegramsecureplus.messenger.ByteBufferDesc;
@@ -45,7 +47,7 @@ public class MessagesStorage {
     private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
     private SQLiteDatabase database;
     private File cacheFile;
-    private BuffersStorage buffersStorage = new BuffersStorage(false);
+    private BuffersStorage buffersStorage = new BuffersStorage("storage");
     public static int lastDateValue = 0;
     public static int lastPtsValue = 0;
     public static int lastQtsValue = 0;
@@ -54,6 +56,17 @@ public class MessagesStorage {
     public static byte[] secretPBytes = null;
     public static int secretG = 0;
 
+    private final static int maxWriteBatchSize = 64;
+    private final static int readConnectionsCount = 2;
+    private final static int walAutoCheckpointPages = 1000;
+    private final static int busyTimeout = 2000;
+    private final static int purgeDialogsBatchSize = 50;
+    private final static int searchBackfillBatchSize = 200;
+    private SQLiteReadPool readPool = new SQLiteReadPool("storageReadQueue", readConnectionsCount);
+    private final Object writeBatchSync = new Object();
+    private ArrayList<BatchedWrite> writeBatch;
+    private long writeBatchPostId;
+
     private int lastSavedSeq = 0;
     private int lastSavedPts = 0;
     private int lastSavedDate = 0;
@@ -86,10 +99,119 @@ public class MessagesStorage {
         return storageQueue;
     }
 
+    /**
+     * Runs a read-only task on one of the reader connections. The task is handed to the
+     * readers from storageQueue, so it starts after every write posted before it has been
+     * committed, but it doesn't keep storageQueue busy while it runs.
+     */
+    public void postReadRunnable(final Runnable runnable) {
+        if (readPool.isOpen()) {
+            storageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    readPool.postRead(runnable, storageQueue);
+                }
+            });
+        } else {
+            storageQueue.postRunnable(runnable);
+        }
+    }
+
+    /**
+     * Returns the connection for reads made from postReadRunnable tasks: the reader owned by
+     * the calling thread, or the writer when the task ended up on storageQueue.
+     */
+    public SQLiteDatabase getReadDatabase() {
+        SQLiteDatabase reader = readPool.getDatabase();
+        if (reader != null) {
+            return reader;
+        }
+        if (Thread.currentThread().getId() != storageQueue.getId()) {
+            throw new RuntimeException("wrong db thread");
+        }
+        return database;
+    }
+
     public BuffersStorage getBuffersStorage() {
         return buffersStorage;
     }
 
+    /**
+     * A write that shares one transaction with the others posted next to it. It runs inside
+     * a savepoint, so a write that throws is rolled back alone, the returned runnable (may be
+     * null) is run only after the whole batch is committed.
+     */
+    private interface BatchedWrite {
+        Runnable run() throws Exception;
+    }
+
+    private void postBatchedWrite(BatchedWrite write) {
+        synchronized (writeBatchSync) {
+            if (writeBatch != null && writeBatch.size() < maxWriteBatchSize && storageQueue.getLastPostId() == writeBatchPostId) {
+                writeBatch.add(write);
+                return;
+            }
+            final ArrayList<BatchedWrite> batch = new ArrayList<>();
+            batch.add(write);
+            writeBatch = batch;
+            writeBatchPostId = storageQueue.postRunnableWithId(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (writeBatchSync) {
+                        if (writeBatch == batch) {
+                            writeBatch = null;
+                        }
+                    }
+                    runWriteBatch(batch);
+                }
+            });
+        }
+    }
+
+    private void runWriteBatch(ArrayList<BatchedWrite> batch) {
+        boolean transaction = false;
+        try {
+            database.beginTransaction();
+            transaction = true;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        ArrayList<Runnable> onCommit = new ArrayList<>(batch.size());
+        for (int a = 0; a < batch.size(); a++) {
+            try {
+                database.executeFast("SAVEPOINT batched_write").stepThis().dispose();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                continue;
+            }
+            try {
+                Runnable runnable = batch.get(a).run();
+                database.executeFast("RELEASE batched_write").stepThis().dispose();
+                if (runnable != null) {
+                    onCommit.add(runnable);
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                try {
+                    database.executeFast("ROLLBACK TO batched_write").stepThis().dispose();
+                    database.executeFast("RELEASE batched_write").stepThis().dispose();
+                } catch (Exception e2) {
+                    FileLog.e("tmessages", e2);
+                }
+            }
+        }
+        if (transaction) {
+            database.commitTransaction();
+        }
+        for (int a = 0; a < onCommit.size(); a++) {
+            try {
+                onCommit.get(a).run();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+    }
+
     public void openDatabase() {
         cacheFile = new File(ApplicationLoader.applicationContext.getFilesDir(), "cache4.db");
 
@@ -102,6 +224,10 @@ public class MessagesStorage {
             database = new SQLiteDatabase(cacheFile.getPath());
             database.executeFast("PRAGMA secure_delete = ON").stepThis().dispose();
             database.executeFast("PRAGMA temp_store = 1").stepThis().dispose();
+            database.setBusyTimeout(busyTimeout);
+            if (database.enableWriteAheadLogging(walAutoCheckpointPages)) {
+                readPool.open(cacheFile.getPath(), busyTimeout);
+            }
             if (createTable) {
                 database.executeFast("CREATE TABLE users(uid INTEGER PRIMARY KEY, name TEXT, status INTEGER, data BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE messages(mid INTEGER PRIMARY KEY, uid INTEGER, read_state INTEGER, send_state INTEGER, date INTEGER, data BLOB, out INTEGER, ttl INTEGER, media INTEGER, replydata BLOB)").stepThis().dispose();
@@ -161,6 +287,11 @@ public class MessagesStorage {
                 database.executeFast("CREATE INDEX IF NOT EXISTS uid_mid_type_date_idx_media ON media_v2(uid, mid, type, date);").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS mid_idx_media ON media_v2(mid);").stepThis().dispose();
 
+                //search
+                database.executeFast("CREATE TABLE messages_search(token TEXT, uid INTEGER, mid INTEGER)").stepThis().dispose();
+                database.executeFast("CREATE INDEX IF NOT EXISTS token_uid_idx_messages_search ON messages_search(token, uid);").stepThis().dispose();
+                database.executeFast("CREATE INDEX IF NOT EXISTS mid_idx_messages_search ON messages_search(mid);").stepThis().dispose();
+
                 //kev-value
                 database.executeFast("CREATE TABLE keyvalue(id TEXT PRIMARY KEY, value TEXT)").stepThis().dispose();
 
@@ -170,7 +301,7 @@ public class MessagesStorage {
                 database.executeFast("CREATE INDEX IF NOT EXISTS bot_keyboard_idx_mid ON bot_keyboard(mid);").stepThis().dispose();
 
                 //version
-                database.executeFast("PRAGMA user_version = 20").stepThis().dispose();
+                database.executeFast("PRAGMA user_version = 21").stepThis().dispose();
             } else {
                 try {
                     SQLiteCursor cursor = database.queryFinalized("SELECT seq, pts, date, qts, lsv, sg, pbytes FROM params WHERE id = 1");
@@ -201,13 +332,19 @@ public class MessagesStorage {
                     }
                 }
                 int version = database.executeInt("PRAGMA user_version");
-                if (version < 20) {
+                if (version < 21) {
                     updateDbToLastVersion(version);
                 }
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                backfillSearchIndex();
+            }
+        });
         loadUnreadMessages();
     }
 
@@ -271,7 +408,7 @@ public class MessagesStorage {
                                 }
                                 try {
                                     database.beginTransaction();
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO dialog_settings VALUES(?, ?)");
+                                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO dialog_settings VALUES(?, ?)");
                                     for (Integer id : ids) {
                                         state.requery();
                                         state.bindLong(1, id);
@@ -293,7 +430,7 @@ public class MessagesStorage {
                         database.executeFast("CREATE INDEX IF NOT EXISTS date_idx_enc_tasks_v2 ON enc_tasks_v2(date);").stepThis().dispose();
                         database.beginTransaction();
                         SQLiteCursor cursor = database.queryFinalized("SELECT date, data FROM enc_tasks WHERE 1");
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO enc_tasks_v2 VALUES(?, ?)");
+                        SQLitePreparedStatement state = database.executeCached("REPLACE INTO enc_tasks_v2 VALUES(?, ?)");
                         if (cursor.next()) {
                             int date = cursor.intValue(0);
                             int length;
@@ -410,7 +547,14 @@ public class MessagesStorage {
                         database.executeFast("CREATE TABLE IF NOT EXISTS bot_keyboard(uid INTEGER PRIMARY KEY, mid INTEGER, info BLOB)").stepThis().dispose();
                         database.executeFast("CREATE INDEX IF NOT EXISTS bot_keyboard_idx_mid ON bot_keyboard(mid);").stepThis().dispose();
                         database.executeFast("PRAGMA user_version = 20").stepThis().dispose();
-                        //version = 20;
+                        version = 20;
+                    }
+                    if (version == 20) {
+                        database.executeFast("CREATE TABLE IF NOT EXISTS messages_search(token TEXT, uid INTEGER, mid INTEGER)").stepThis().dispose();
+                        database.executeFast("CREATE INDEX IF NOT EXISTS token_uid_idx_messages_search ON messages_search(token, uid);").stepThis().dispose();
+                        database.executeFast("CREATE INDEX IF NOT EXISTS mid_idx_messages_search ON messages_search(mid);").stepThis().dispose();
+                        database.executeFast("PRAGMA user_version = 21").stepThis().dispose();
+                        //version = 21;
                     }
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -437,12 +581,15 @@ public class MessagesStorage {
 
                 secretPBytes = null;
                 secretG = 0;
+                readPool.close();
                 if (database != null) {
                     database.close();
                     database = null;
                 }
                 if (cacheFile != null) {
                     cacheFile.delete();
+                    new File(cacheFile.getPath() + "-wal").delete();
+                    new File(cacheFile.getPath() + "-shm").delete();
                     cacheFile = null;
                 }
                 openDatabase();
@@ -458,12 +605,99 @@ public class MessagesStorage {
         });
     }
 
+    /**
+     * Indexes the messages cached before messages_search existed, a batch at a time so other
+     * writes are not held up. The last indexed id is kept in keyvalue, an interrupted backfill
+     * goes on from there on the next start.
+     */
+    private void backfillSearchIndex() {
+        long lastMid = Long.MAX_VALUE;
+        SQLiteCursor cursor = null;
+        try {
+            cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = 'search_backfill'");
+            if (cursor.next()) {
+                String value = cursor.stringValue(0);
+                if ("done".equals(value)) {
+                    return;
+                }
+                lastMid = Long.parseLong(value);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.dispose();
+                cursor = null;
+            }
+        }
+
+        int count = 0;
+        try {
+            database.beginTransaction();
+            SQLitePreparedStatement deleteState = database.executeCached("DELETE FROM messages_search WHERE mid = ?");
+            SQLitePreparedStatement insertState = database.executeCached("INSERT INTO messages_search VALUES(?, ?, ?)");
+            cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, uid, data FROM messages WHERE mid < %d AND data IS NOT NULL ORDER BY mid DESC LIMIT %d", lastMid, searchBackfillBatchSize));
+            while (cursor.next()) {
+                int mid = cursor.intValue(0);
+                ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(2));
+                if (data != null && cursor.byteBufferValue(2, data.buffer) != 0) {
+                    TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                    if (message != null) {
+                        putMessageToSearchIndex(deleteState, insertState, mid, cursor.longValue(1), message);
+                    }
+                }
+                buffersStorage.reuseFreeBuffer(data);
+                lastMid = mid;
+                count++;
+            }
+            cursor.dispose();
+            cursor = null;
+            deleteState.dispose();
+            insertState.dispose();
+            SQLitePreparedStatement state = database.executeFast("REPLACE INTO keyvalue VALUES('search_backfill', ?)");
+            state.bindString(1, count < searchBackfillBatchSize ? "done" : String.valueOf(lastMid));
+            state.step();
+            state.dispose();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            count = 0;
+        } finally {
+            if (cursor != null) {
+                cursor.dispose();
+            }
+            database.commitTransaction();
+        }
+        if (count == searchBackfillBatchSize) {
+            storageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    backfillSearchIndex();
+                }
+            });
+        }
+    }
+
+    private void putMessageToSearchIndex(SQLitePreparedStatement deleteState, SQLitePreparedStatement insertState, int mid, long dialog_id, TLRPC.Message message) throws Exception {
+        deleteState.requery();
+        deleteState.bindInteger(1, mid);
+        deleteState.step();
+        ArrayList<String> tokens = MessagesSearchQuery.getSearchTokens(message);
+        for (int a = 0; a < tokens.size(); a++) {
+            insertState.requery();
+            insertState.bindString(1, tokens.get(a));
+            insertState.bindLong(2, dialog_id);
+            insertState.bindInteger(3, mid);
+            insertState.step();
+        }
+    }
+
     public void saveSecretParams(final int lsv, final int sg, final byte[] pbytes) {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 try {
-                    SQLitePreparedStatement state = database.executeFast("UPDATE params SET lsv = ?, sg = ?, pbytes = ? WHERE id = 1");
+                    SQLitePreparedStatement state = database.executeCached("UPDATE params SET lsv = ?, sg = ?, pbytes = ? WHERE id = 1");
                     state.bindInteger(1, lsv);
                     state.bindInteger(2, sg);
                     ByteBufferDesc data = buffersStorage.getFreeBuffer(pbytes != null ? pbytes.length : 1);
@@ -489,7 +723,7 @@ public class MessagesStorage {
                     if (lastSavedSeq == seq && lastSavedPts == pts && lastSavedDate == date && lastQtsValue == qts) {
                         return;
                     }
-                    SQLitePreparedStatement state = database.executeFast("UPDATE params SET seq = ?, pts = ?, date = ?, qts = ? WHERE id = 1");
+                    SQLitePreparedStatement state = database.executeCached("UPDATE params SET seq = ?, pts = ?, date = ?, qts = ? WHERE id = 1");
                     state.bindInteger(1, seq);
                     state.bindInteger(2, pts);
                     state.bindInteger(3, date);
@@ -641,7 +875,7 @@ public class MessagesStorage {
                     int num = 0;
                     database.executeFast("DELETE FROM wallpapers WHERE 1").stepThis().dispose();
                     database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO wallpapers VALUES(?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO wallpapers VALUES(?, ?)");
                     for (TLRPC.WallPaper wallPaper : wallPapers) {
                         state.requery();
                         ByteBufferDesc data = buffersStorage.getFreeBuffer(wallPaper.getObjectSize());
@@ -742,7 +976,7 @@ public class MessagesStorage {
             public void run() {
                 try {
                     database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO web_recent_v3 VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO web_recent_v3 VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
                     for (int a = 0; a < arrayList.size(); a++) {
                         if (a == 100) {
                             break;
@@ -864,7 +1098,7 @@ public class MessagesStorage {
                         database.executeFast("DELETE FROM blocked_users WHERE 1").stepThis().dispose();
                     }
                     database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO blocked_users VALUES(?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO blocked_users VALUES(?)");
                     for (Integer id : ids) {
                         state.requery();
                         state.bindInteger(1, id);
@@ -887,6 +1121,7 @@ public class MessagesStorage {
                     database.executeFast("DELETE FROM dialogs WHERE 1").stepThis().dispose();
                     database.executeFast("DELETE FROM chat_settings WHERE 1").stepThis().dispose();
                     database.executeFast("DELETE FROM messages WHERE 1").stepThis().dispose();
+                    database.executeFast("DELETE FROM messages_search WHERE 1").stepThis().dispose();
                     database.executeFast("DELETE FROM chats WHERE 1").stepThis().dispose();
                     database.executeFast("DELETE FROM enc_chats WHERE 1").stepThis().dispose();
                     database.executeFast("DELETE FROM messages_seq WHERE 1").stepThis().dispose();
@@ -897,87 +1132,200 @@ public class MessagesStorage {
             });
     }
 
-    public void deleteSyncDialog(final long did, final boolean messagesOnly) {
+    /**
+     * Deletes the cached history of every read dialog, in chunks on the storage queue. The
+     * position is kept in keyvalue so an interrupted run resumes where it stopped, and each
+     * chunk is handed to MessagesController to clear the history on the server as well.
+     * A chunk that fails is rolled back and skipped, it is retried by the next run.
+     */
+    public void purgeReadDialogs() {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                purgeReadDialogsInternal();
+            }
+        });
+    }
+
+    private void purgeReadDialogsInternal() {
+        long lastDid = Long.MIN_VALUE;
+        SQLiteCursor cursor = null;
         try {
-            if (!messagesOnly) {
-                database.executeFast("DELETE FROM dialogs WHERE did = " + did).stepThis().dispose();
-                database.executeFast("DELETE FROM chat_settings WHERE uid = " + did).stepThis().dispose();
-                int lower_id = (int)did;
-                int high_id = (int)(did >> 32);
-                if (lower_id != 0) {
-                    if (high_id == 1) {
-                        database.executeFast("DELETE FROM chats WHERE uid = " + lower_id).stepThis().dispose();
-                    } else if (lower_id < 0) {
-                        database.executeFast("DELETE FROM chats WHERE uid = " + (-lower_id)).stepThis().dispose();
-                    }
-                } else {
-                    database.executeFast("DELETE FROM enc_chats WHERE uid = " + high_id).stepThis().dispose();
-                    //database.executeFast("DELETE FROM secret_holes WHERE uid = " + high_id).stepThis().dispose();
+            cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = 'purge_dialogs'");
+            if (cursor.next()) {
+                lastDid = Long.parseLong(cursor.stringValue(0));
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            if (cursor != null) {
+                cursor.dispose();
+                cursor = null;
+            }
+        }
+
+        int count = 0;
+        final ArrayList<Long> dids = new ArrayList<>();
+        ArrayList<File> filesToDelete = new ArrayList<>();
+        try {
+            cursor = database.queryFinalized(String.format(Locale.US, "SELECT did FROM dialogs WHERE unread_count = 0 AND did > %d ORDER BY did LIMIT %d", lastDid, purgeDialogsBatchSize));
+            while (cursor.next()) {
+                long did = cursor.longValue(0);
+                lastDid = did;
+                count++;
+                int lower_id = (int) did;
+                int high_id = (int) (did >> 32);
+                if (lower_id != 0 && high_id != 1) {
+                    dids.add(did);
                 }
             }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.dispose();
+                cursor = null;
+            }
+        }
 
-            if ((int) did == 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT data FROM messages WHERE uid = " + did);
-                ArrayList<File> filesToDelete = new ArrayList<>();
+        try {
+            database.beginTransaction();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return;
+        }
+        if (!dids.isEmpty()) {
+            try {
+                database.executeFast("SAVEPOINT purge_dialogs").stepThis().dispose();
                 try {
+                    StringBuilder ids = new StringBuilder();
+                    StringBuilder userIds = new StringBuilder();
+                    for (int a = 0; a < dids.size(); a++) {
+                        long did = dids.get(a);
+                        if (ids.length() != 0) {
+                            ids.append(",");
+                        }
+                        ids.append(did);
+                        if (did > 0) {
+                            if (userIds.length() != 0) {
+                                userIds.append(",");
+                            }
+                            userIds.append(did);
+                        }
+                    }
+
+                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM media_v2 WHERE uid IN(%s)", ids));
                     while (cursor.next()) {
                         ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
-                            if (message == null || message.media == null) {
-                                continue;
-                            }
-                            if (message.media instanceof TLRPC.TL_messageMediaAudio) {
-                                File file = FileLoader.getPathToAttach(message.media.audio);
-                                if (file != null && file.toString().length() > 0) {
-                                    filesToDelete.add(file);
-                                }
-                            } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
-                                for (TLRPC.PhotoSize photoSize : message.media.photo.sizes) {
-                                    File file = FileLoader.getPathToAttach(photoSize);
-                                    if (file != null && file.toString().length() > 0) {
-                                        filesToDelete.add(file);
-                                    }
-                                }
-                            } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
-                                File file = FileLoader.getPathToAttach(message.media.video);
-                                if (file != null && file.toString().length() > 0) {
-                                    filesToDelete.add(file);
-                                }
-                                file = FileLoader.getPathToAttach(message.media.video.thumb);
-                                if (file != null && file.toString().length() > 0) {
-                                    filesToDelete.add(file);
-                                }
-                            } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
-                                File file = FileLoader.getPathToAttach(message.media.document);
-                                if (file != null && file.toString().length() > 0) {
-                                    filesToDelete.add(file);
-                                }
-                                file = FileLoader.getPathToAttach(message.media.document.thumb);
-                                if (file != null && file.toString().length() > 0) {
-                                    filesToDelete.add(file);
-                                }
+                            if (message != null) {
+                                addFilesToDelete(message, filesToDelete);
                             }
                         }
                         buffersStorage.reuseFreeBuffer(data);
                     }
+                    cursor.dispose();
+                    cursor = null;
+
+                    if (userIds.length() != 0) {
+                        database.executeFast(String.format(Locale.US, "DELETE FROM dialogs WHERE did IN(%s)", userIds)).stepThis().dispose();
+                        database.executeFast(String.format(Locale.US, "DELETE FROM chat_settings WHERE uid IN(%s)", userIds)).stepThis().dispose();
+                    }
+                    database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "DELETE FROM messages_search WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "DELETE FROM bot_keyboard WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "DELETE FROM media_counts_v2 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    database.executeFast("RELEASE purge_dialogs").stepThis().dispose();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
+                    if (cursor != null) {
+                        cursor.dispose();
+                        cursor = null;
+                    }
+                    database.executeFast("ROLLBACK TO purge_dialogs").stepThis().dispose();
+                    database.executeFast("RELEASE purge_dialogs").stepThis().dispose();
+                    FileLog.e("tmessages", "skipped " + dids.size() + " read dialogs up to " + lastDid + ", they are retried on the next purge");
+                    dids.clear();
+                    filesToDelete.clear();
                 }
-                cursor.dispose();
-                FileLoader.getInstance().deleteFiles(filesToDelete);
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                dids.clear();
+                filesToDelete.clear();
+            }
+        }
+        try {
+            if (count < purgeDialogsBatchSize) {
+                database.executeFast("DELETE FROM keyvalue WHERE id = 'purge_dialogs'").stepThis().dispose();
+            } else {
+                SQLitePreparedStatement state = database.executeFast("REPLACE INTO keyvalue VALUES('purge_dialogs', ?)");
+                state.bindString(1, String.valueOf(lastDid));
+                state.step();
+                state.dispose();
             }
-
-            database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = " + did).stepThis().dispose();
-            database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
-            database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
-            database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
-            database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
-            BotQuery.clearBotKeyboard(did, null);
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
+        database.commitTransaction();
+        FileLog.d("tmessages", "purged " + dids.size() + " read dialogs up to " + lastDid);
 
+        FileLoader.getInstance().deleteFiles(filesToDelete);
+        if (!dids.isEmpty()) {
+            for (int a = 0; a < dids.size(); a++) {
+                BotQuery.clearBotKeyboard(dids.get(a), null);
+            }
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    MessagesController.getInstance().processPurgedDialogs(dids);
+                }
+            });
+        }
+        if (count == purgeDialogsBatchSize) {
+            storageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    purgeReadDialogsInternal();
+                }
+            });
+        }
+    }
+
+    private void addFilesToDelete(TLRPC.Message message, ArrayList<File> filesToDelete) {
+        if (message.media instanceof TLRPC.TL_messageMediaAudio) {
+            File file = FileLoader.getPathToAttach(message.media.audio);
+            if (file != null && file.toString().length() > 0) {
+                filesToDelete.add(file);
+            }
+        } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
+            for (TLRPC.PhotoSize photoSize : message.media.photo.sizes) {
+                File file = FileLoader.getPathToAttach(photoSize);
+                if (file != null && file.toString().length() > 0) {
+                    filesToDelete.add(file);
+                }
+            }
+        } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
+            File file = FileLoader.getPathToAttach(message.media.video);
+            if (file != null && file.toString().length() > 0) {
+                filesToDelete.add(file);
+            }
+            file = FileLoader.getPathToAttach(message.media.video.thumb);
+            if (file != null && file.toString().length() > 0) {
+                filesToDelete.add(file);
+            }
+        } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
+            File file = FileLoader.getPathToAttach(message.media.document);
+            if (file != null && file.toString().length() > 0) {
+                filesToDelete.add(file);
+            }
+            file = FileLoader.getPathToAttach(message.media.document.thumb);
+            if (file != null && file.toString().length() > 0) {
+                filesToDelete.add(file);
+            }
+        }
     }
 
     public void deleteDialog(final long did, final boolean messagesOnly) {
@@ -1056,6 +1404,7 @@ public class MessagesStorage {
 
                     database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
+                    database.executeFast("DELETE FROM messages_search WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
@@ -1139,7 +1488,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_photos VALUES(?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO user_photos VALUES(?, ?, ?)");
                     for (TLRPC.Photo photo : photos.photos) {
                         if (photo instanceof TLRPC.TL_photoEmpty) {
                             continue;
@@ -1227,7 +1576,7 @@ public class MessagesStorage {
                     cursor.dispose();
                     if (messages.size() != 0) {
                         database.beginTransaction();
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO enc_tasks_v2 VALUES(?, ?)");
+                        SQLitePreparedStatement state = database.executeCached("REPLACE INTO enc_tasks_v2 VALUES(?, ?)");
                         for (int a = 0; a < messages.size(); a++) {
                             int key = messages.keyAt(a);
                             ArrayList<Integer> arr = messages.get(key);
@@ -1313,7 +1662,7 @@ public class MessagesStorage {
                 cursor.dispose();
 
                 database.beginTransaction();
-                SQLitePreparedStatement state = database.executeFast("UPDATE dialogs SET unread_count = ? WHERE did = ?");
+                SQLitePreparedStatement state = database.executeCached("UPDATE dialogs SET unread_count = ? WHERE did = ?");
                 for (HashMap.Entry<Long, Integer> entry : dialogsToUpdate.entrySet()) {
                     state.requery();
                     state.bindInteger(1, entry.getValue());
@@ -1364,7 +1713,7 @@ public class MessagesStorage {
                             return;
                         }
                     }
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO chat_settings VALUES(?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO chat_settings VALUES(?, ?)");
                     ByteBufferDesc data = buffersStorage.getFreeBuffer(info.getObjectSize());
                     info.serializeToStream(data);
                     state.bindInteger(1, chat_id);
@@ -1426,7 +1775,7 @@ public class MessagesStorage {
                             }
                         });
 
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO chat_settings VALUES(?, ?)");
+                        SQLitePreparedStatement state = database.executeCached("REPLACE INTO chat_settings VALUES(?, ?)");
                         ByteBufferDesc data = buffersStorage.getFreeBuffer(info.getObjectSize());
                         info.serializeToStream(data);
                         state.bindInteger(1, chat_id);
@@ -1508,7 +1857,7 @@ public class MessagesStorage {
                         //database.executeFast("DELETE FROM pending_read WHERE uid = " + dialog_id).stepThis().dispose();
                     } else {
                         database.beginTransaction();
-                        SQLitePreparedStatement state;/* = database.executeFast("REPLACE INTO pending_read VALUES(?, ?)");
+                        SQLitePreparedStatement state;/* = database.executeCached("REPLACE INTO pending_read VALUES(?, ?)");
                         state.requery();
                         state.bindLong(1, dialog_id);
                         state.bindInteger(2, max_id);
@@ -1518,14 +1867,14 @@ public class MessagesStorage {
                         int lower_id = (int)dialog_id;
 
                         if (lower_id != 0) {
-                            state = database.executeFast("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND mid <= ? AND read_state IN(0,2) AND out = 0");
+                            state = database.executeCached("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND mid <= ? AND read_state IN(0,2) AND out = 0");
                             state.requery();
                             state.bindLong(1, dialog_id);
                             state.bindInteger(2, max_id);
                             state.step();
                             state.dispose();
                         } else {
-                            state = database.executeFast("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND date <= ? AND read_state IN(0,2) AND out = 0");
+                            state = database.executeCached("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND date <= ? AND read_state IN(0,2) AND out = 0");
                             state.requery();
                             state.bindLong(1, dialog_id);
                             state.bindInteger(2, max_date);
@@ -1533,7 +1882,7 @@ public class MessagesStorage {
                             state.dispose();
                         }
 
-                        state = database.executeFast("UPDATE dialogs SET unread_count = 0 WHERE did = ?");
+                        state = database.executeCached("UPDATE dialogs SET unread_count = 0 WHERE did = ?");
                         state.requery();
                         state.bindLong(1, dialog_id);
                         state.step();
@@ -1560,7 +1909,7 @@ public class MessagesStorage {
                         database.executeFast("DELETE FROM contacts WHERE 1").stepThis().dispose();
                     }
                     database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO contacts VALUES(?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO contacts VALUES(?, ?)");
                     for (TLRPC.TL_contact contact : contacts) {
                         state.requery();
                         state.bindInteger(1, contact.user_id);
@@ -1620,8 +1969,8 @@ public class MessagesStorage {
             public void run() {
                 try {
                     database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_contacts_v6 VALUES(?, ?, ?)");
-                    SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO user_phones_v6 VALUES(?, ?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO user_contacts_v6 VALUES(?, ?, ?)");
+                    SQLitePreparedStatement state2 = database.executeCached("REPLACE INTO user_phones_v6 VALUES(?, ?, ?, ?)");
                     for (HashMap.Entry<Integer, ContactsController.Contact> entry : contactHashMap.entrySet()) {
                         ContactsController.Contact contact = entry.getValue();
                         if (contact.phones.isEmpty() || contact.shortPhones.isEmpty()) {
@@ -1873,9 +2222,10 @@ public class MessagesStorage {
     }*/
 
     public void getMessages(final long dialog_id, final int count, final int max_id, final int minDate, final int classGuid, final int load_type) {
-        storageQueue.postRunnable(new Runnable() {
+        postReadRunnable(new Runnable() {
             @Override
             public void run() {
+                SQLiteDatabase readDatabase = getReadDatabase();
                 TLRPC.TL_messages_messages res = new TLRPC.TL_messages_messages();
                 int count_unread = 0;
                 int count_query = count;
@@ -1897,7 +2247,7 @@ public class MessagesStorage {
 
                     if (lower_id != 0) {
                         if (load_type == 3) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid), min(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT max(mid), min(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
                             if (cursor.next()) {
                                 last_message_id = cursor.intValue(0);
                                 first_message_id = cursor.intValue(1);
@@ -1905,42 +2255,42 @@ public class MessagesStorage {
                             cursor.dispose();
 
                             boolean containMessage = false;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM messages WHERE mid = %d", max_id));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT mid FROM messages WHERE mid = %d", max_id));
                             if (cursor.next()) {
                                 containMessage = true;
                             }
                             cursor.dispose();
 
                             if (containMessage) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d) UNION " +
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d) UNION " +
                                         "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.date ASC, m.mid ASC LIMIT %d)", dialog_id, max_id, count_query / 2, dialog_id, max_id, count_query / 2 - 1));
                             } else {
                                 cursor = null;
                             }
                         } else if (load_type == 1) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, max_id, count_query));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, max_id, count_query));
                         } else if (minDate != 0) {
                             if (max_id != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, max_id, count_query));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, max_id, count_query));
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid > 0", dialog_id));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT min(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid > 0", dialog_id));
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                    cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -1959,33 +2309,33 @@ public class MessagesStorage {
                                 offset_query = count_unread - count_query;
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, offset_query, count_query));
                         }
                     } else {
                         if (load_type == 1) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid < %d ORDER BY m.mid DESC LIMIT %d", dialog_id, max_id, count_query));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid < %d ORDER BY m.mid DESC LIMIT %d", dialog_id, max_id, count_query));
                         } else if (minDate != 0) {
                             if (max_id != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d", dialog_id, max_id, count_query));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d", dialog_id, max_id, count_query));
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
                             }
                         } else {
                             if (load_type == 2) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid < 0", dialog_id));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid < 0", dialog_id));
                                 if (cursor.next()) {
                                     last_message_id = cursor.intValue(0);
                                 }
                                 cursor.dispose();
 
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid < 0", dialog_id));
+                                cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT max(mid), max(date) FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid < 0", dialog_id));
                                 if (cursor.next()) {
                                     min_unread_id = cursor.intValue(0);
                                     max_unread_date = cursor.intValue(1);
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                    cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
                                     if (cursor.next()) {
                                         count_unread = cursor.intValue(0);
                                     }
@@ -2004,7 +2354,7 @@ public class MessagesStorage {
                                 offset_query = count_unread - count_query;
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                            cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, offset_query, count_query));
                         }
                     }
                     if (cursor != null) {
@@ -2076,7 +2426,7 @@ public class MessagesStorage {
                                 }
                                 if ((int) dialog_id == 0 && message.media != null && message.media.photo != null) {
                                     try {
-                                        SQLiteCursor cursor2 = database.queryFinalized(String.format(Locale.US, "SELECT date FROM enc_tasks_v2 WHERE mid = %d", message.id));
+                                        SQLiteCursor cursor2 = readDatabase.queryFinalized(String.format(Locale.US, "SELECT date FROM enc_tasks_v2 WHERE mid = %d", message.id));
                                         if (cursor2.next()) {
                                             message.destroyTime = cursor2.intValue(0);
                                         }
@@ -2118,7 +2468,7 @@ public class MessagesStorage {
                     });
 
                     if (!replyMessages.isEmpty()) {
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", TextUtils.join(",", replyMessages)));
+                        cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", TextUtils.join(",", replyMessages)));
                         while (cursor.next()) {
                             ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data.buffer) != 0) {
@@ -2261,7 +2611,7 @@ public class MessagesStorage {
                 try {
                     String id = Utilities.MD5(path);
                     if (id != null) {
-                        state = database.executeFast("REPLACE INTO sent_files_v2 VALUES(?, ?, ?)");
+                        state = database.executeCached("REPLACE INTO sent_files_v2 VALUES(?, ?, ?)");
                         state.requery();
                         ByteBufferDesc data = buffersStorage.getFreeBuffer(file.getObjectSize());
                         file.serializeToStream(data);
@@ -2291,7 +2641,7 @@ public class MessagesStorage {
             public void run() {
                 SQLitePreparedStatement state = null;
                 try {
-                    state = database.executeFast("UPDATE enc_chats SET seq_in = ?, seq_out = ?, use_count = ? WHERE uid = ?");
+                    state = database.executeCached("UPDATE enc_chats SET seq_in = ?, seq_out = ?, use_count = ? WHERE uid = ?");
                     state.bindInteger(1, chat.seq_in);
                     state.bindInteger(2, chat.seq_out);
                     state.bindInteger(3, (int)chat.key_use_count_in << 16 | chat.key_use_count_out);
@@ -2317,7 +2667,7 @@ public class MessagesStorage {
             public void run() {
                 SQLitePreparedStatement state = null;
                 try {
-                    state = database.executeFast("UPDATE enc_chats SET ttl = ? WHERE uid = ?");
+                    state = database.executeCached("UPDATE enc_chats SET ttl = ? WHERE uid = ?");
                     state.bindInteger(1, chat.ttl);
                     state.bindInteger(2, chat.id);
                     state.step();
@@ -2341,7 +2691,7 @@ public class MessagesStorage {
             public void run() {
                 SQLitePreparedStatement state = null;
                 try {
-                    state = database.executeFast("UPDATE enc_chats SET layer = ? WHERE uid = ?");
+                    state = database.executeCached("UPDATE enc_chats SET layer = ? WHERE uid = ?");
                     state.bindInteger(1, chat.layer);
                     state.bindInteger(2, chat.id);
                     state.step();
@@ -2371,7 +2721,7 @@ public class MessagesStorage {
                         System.arraycopy(sha1, 0, chat.key_hash, 0, chat.key_hash.length);
                     }
 
-                    state = database.executeFast("UPDATE enc_chats SET data = ?, g = ?, authkey = ?, ttl = ?, layer = ?, seq_in = ?, seq_out = ?, use_count = ?, exchange_id = ?, key_date = ?, fprint = ?, fauthkey = ?, khash = ? WHERE uid = ?");
+                    state = database.executeCached("UPDATE enc_chats SET data = ?, g = ?, authkey = ?, ttl = ?, layer = ?, seq_in = ?, seq_out = ?, use_count = ?, exchange_id = ?, key_date = ?, fprint = ?, fauthkey = ?, khash = ? WHERE uid = ?");
                     ByteBufferDesc data = buffersStorage.getFreeBuffer(chat.getObjectSize());
                     ByteBufferDesc data2 = buffersStorage.getFreeBuffer(chat.a_or_b != null ? chat.a_or_b.length : 1);
                     ByteBufferDesc data3 = buffersStorage.getFreeBuffer(chat.auth_key != null ? chat.auth_key.length : 1);
@@ -2463,7 +2813,7 @@ public class MessagesStorage {
                         chat.key_hash = new byte[16];
                         System.arraycopy(sha1, 0, chat.key_hash, 0, chat.key_hash.length);
                     }
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO enc_chats VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO enc_chats VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
                     ByteBufferDesc data = buffersStorage.getFreeBuffer(chat.getObjectSize());
                     ByteBufferDesc data2 = buffersStorage.getFreeBuffer(chat.a_or_b != null ? chat.a_or_b.length : 1);
                     ByteBufferDesc data3 = buffersStorage.getFreeBuffer(chat.auth_key != null ? chat.auth_key.length : 1);
@@ -2509,7 +2859,7 @@ public class MessagesStorage {
                     buffersStorage.reuseFreeBuffer(data5);
 
                     if (dialog != null) {
-                        state = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
+                        state = database.executeCached("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
                         state.bindLong(1, dialog.id);
                         state.bindInteger(2, dialog.last_message_date);
                         state.bindInteger(3, dialog.unread_count);
@@ -2548,7 +2898,7 @@ public class MessagesStorage {
         if (users == null || users.isEmpty()) {
             return;
         }
-        SQLitePreparedStatement state = database.executeFast("REPLACE INTO users VALUES(?, ?, ?, ?)");
+        SQLitePreparedStatement state = database.executeCached("REPLACE INTO users VALUES(?, ?, ?, ?)");
         for (TLRPC.User user : users) {
             state.requery();
             ByteBufferDesc data = buffersStorage.getFreeBuffer(user.getObjectSize());
@@ -2578,7 +2928,7 @@ public class MessagesStorage {
         if (chats == null || chats.isEmpty()) {
             return;
         }
-        SQLitePreparedStatement state = database.executeFast("REPLACE INTO chats VALUES(?, ?, ?)");
+        SQLitePreparedStatement state = database.executeCached("REPLACE INTO chats VALUES(?, ?, ?)");
         for (TLRPC.Chat chat : chats) {
             state.requery();
             ByteBufferDesc data = buffersStorage.getFreeBuffer(chat.getObjectSize());
@@ -2601,7 +2951,7 @@ public class MessagesStorage {
         if (usersToLoad == null || usersToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2626,7 +2976,7 @@ public class MessagesStorage {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2648,7 +2998,7 @@ public class MessagesStorage {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
+        SQLiteCursor cursor = getReadDatabase().queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
         while (cursor.next()) {
             try {
                 ByteBufferDesc data = buffersStorage.getFreeBuffer(cursor.byteArrayLength(0));
@@ -2704,10 +3054,12 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postBatchedWrite(new BatchedWrite() {
                 @Override
-                public void run() {
-                    putUsersAndChatsInternal(users, chats, withTransaction);
+                public Runnable run() throws Exception {
+                    putUsersInternal(users);
+                    putChatsInternal(chats);
+                    return null;
                 }
             });
         } else {
@@ -2846,7 +3198,7 @@ public class MessagesStorage {
 
                     database.beginTransaction();
 
-                    SQLitePreparedStatement state = database.executeFast("UPDATE messages SET data = ? WHERE mid = ?");
+                    SQLitePreparedStatement state = database.executeCached("UPDATE messages SET data = ? WHERE mid = ?");
                     for (TLRPC.Message message : messages) {
                         ByteBufferDesc data = buffersStorage.getFreeBuffer(message.getObjectSize());
                         message.serializeToStream(data);
@@ -2880,312 +3232,335 @@ public class MessagesStorage {
             if (withTransaction) {
                 database.beginTransaction();
             }
-            HashMap<Long, TLRPC.Message> messagesMap = new HashMap<>();
-            HashMap<Long, Integer> messagesCounts = new HashMap<>();
-            HashMap<Integer, HashMap<Long, Integer>> mediaCounts = new HashMap<>();
-            HashMap<Integer, Integer> mediaTypes = new HashMap<>();
-            HashMap<Integer, Long> messagesIdsMap = new HashMap<>();
-            HashMap<Integer, Long> messagesMediaIdsMap = new HashMap<>();
-            HashMap<Long, TLRPC.Message> botKeyboards = new HashMap<>();
-            StringBuilder messageIds = new StringBuilder();
-            StringBuilder messageMediaIds = new StringBuilder();
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
-            SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
-            SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO randoms VALUES(?, ?)");
-            SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
-            SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO webpage_pending VALUES(?, ?)");
-
-            for (TLRPC.Message message : messages) {
-                long dialog_id = message.dialog_id;
-                if (dialog_id == 0) {
-                    if (message.to_id.chat_id != 0) {
-                        dialog_id = -message.to_id.chat_id;
-                    } else if (message.to_id.user_id != 0) {
-                        dialog_id = message.to_id.user_id;
-                    }
-                }
+            Runnable onCommit = putMessagesQueries(messages, isBroadcast, downloadMask);
+            if (withTransaction) {
+                database.commitTransaction();
+            }
+            onCommit.run();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
 
-                if (MessageObject.isUnread(message) && !MessageObject.isOut(message)) {
-                    if (messageIds.length() > 0) {
-                        messageIds.append(",");
-                    }
-                    messageIds.append(message.id);
-                    messagesIdsMap.put(message.id, dialog_id);
+    /**
+     * Writes the messages without managing the transaction, the returned runnable notifies
+     * about the changes and must only be run once they are committed.
+     */
+    private Runnable putMessagesQueries(final ArrayList<TLRPC.Message> messages, final boolean isBroadcast, final int downloadMask) throws Exception {
+        HashMap<Long, TLRPC.Message> messagesMap = new HashMap<>();
+        HashMap<Long, Integer> messagesCounts = new HashMap<>();
+        HashMap<Integer, HashMap<Long, Integer>> mediaCounts = new HashMap<>();
+        HashMap<Integer, Integer> mediaTypes = new HashMap<>();
+        HashMap<Integer, Long> messagesIdsMap = new HashMap<>();
+        HashMap<Integer, Long> messagesMediaIdsMap = new HashMap<>();
+        HashMap<Long, TLRPC.Message> botKeyboards = new HashMap<>();
+        StringBuilder messageIds = new StringBuilder();
+        StringBuilder messageMediaIds = new StringBuilder();
+        SQLitePreparedStatement state = database.executeCached("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
+        SQLitePreparedStatement state2 = database.executeCached("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
+        SQLitePreparedStatement state3 = database.executeCached("REPLACE INTO randoms VALUES(?, ?)");
+        SQLitePreparedStatement state4 = database.executeCached("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
+        SQLitePreparedStatement state5 = database.executeCached("REPLACE INTO webpage_pending VALUES(?, ?)");
+        SQLitePreparedStatement state6 = database.executeCached("DELETE FROM messages_search WHERE mid = ?");
+        SQLitePreparedStatement state7 = database.executeCached("INSERT INTO messages_search VALUES(?, ?, ?)");
+
+        for (TLRPC.Message message : messages) {
+            long dialog_id = message.dialog_id;
+            if (dialog_id == 0) {
+                if (message.to_id.chat_id != 0) {
+                    dialog_id = -message.to_id.chat_id;
+                } else if (message.to_id.user_id != 0) {
+                    dialog_id = message.to_id.user_id;
                 }
+            }
 
-                if (SharedMediaQuery.canAddMessageToMedia(message)) {
-                    if (messageMediaIds.length() > 0) {
-                        messageMediaIds.append(",");
-                    }
-                    messageMediaIds.append(message.id);
-                    messagesMediaIdsMap.put(message.id, dialog_id);
-                    mediaTypes.put(message.id, SharedMediaQuery.getMediaType(message));
+            if (MessageObject.isUnread(message) && !MessageObject.isOut(message)) {
+                if (messageIds.length() > 0) {
+                    messageIds.append(",");
                 }
+                messageIds.append(message.id);
+                messagesIdsMap.put(message.id, dialog_id);
+            }
 
-                if (message.reply_markup != null && ((message.reply_markup.flags & 4) == 0 || (message.flags & 16) != 0)) {
-                    TLRPC.Message oldMessage = botKeyboards.get(dialog_id);
-                    if (oldMessage == null || oldMessage.id < message.id) {
-                        botKeyboards.put(dialog_id, message);
-                    }
+            if (SharedMediaQuery.canAddMessageToMedia(message)) {
+                if (messageMediaIds.length() > 0) {
+                    messageMediaIds.append(",");
                 }
+                messageMediaIds.append(message.id);
+                messagesMediaIdsMap.put(message.id, dialog_id);
+                mediaTypes.put(message.id, SharedMediaQuery.getMediaType(message));
             }
 
-            for (HashMap.Entry<Long, TLRPC.Message> entry : botKeyboards.entrySet()) {
-                BotQuery.putBotKeyboard(entry.getKey(), entry.getValue());
+            if (message.reply_markup != null && ((message.reply_markup.flags & 4) == 0 || (message.flags & 16) != 0)) {
+                TLRPC.Message oldMessage = botKeyboards.get(dialog_id);
+                if (oldMessage == null || oldMessage.id < message.id) {
+                    botKeyboards.put(dialog_id, message);
+                }
             }
+        }
 
-            if (messageMediaIds.length() > 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM media_v2 WHERE mid IN(" + messageMediaIds.toString() + ")");
-                while (cursor.next()) {
-                    int mid = cursor.intValue(0);
-                    messagesMediaIdsMap.remove(mid);
+        for (HashMap.Entry<Long, TLRPC.Message> entry : botKeyboards.entrySet()) {
+            BotQuery.putBotKeyboard(entry.getKey(), entry.getValue());
+        }
+
+        if (messageMediaIds.length() > 0) {
+            SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM media_v2 WHERE mid IN(" + messageMediaIds.toString() + ")");
+            while (cursor.next()) {
+                int mid = cursor.intValue(0);
+                messagesMediaIdsMap.remove(mid);
+            }
+            cursor.dispose();
+            for (HashMap.Entry<Integer, Long> entry : messagesMediaIdsMap.entrySet()) {
+                Integer type = mediaTypes.get(entry.getKey());
+                HashMap<Long, Integer> counts = mediaCounts.get(type);
+                Integer count;
+                if (counts == null) {
+                    counts = new HashMap<>();
+                    count = 0;
+                    mediaCounts.put(type, counts);
+                } else {
+                    count = counts.get(entry.getValue());
                 }
-                cursor.dispose();
-                for (HashMap.Entry<Integer, Long> entry : messagesMediaIdsMap.entrySet()) {
-                    Integer type = mediaTypes.get(entry.getKey());
-                    HashMap<Long, Integer> counts = mediaCounts.get(type);
-                    Integer count;
-                    if (counts == null) {
-                        counts = new HashMap<>();
-                        count = 0;
-                        mediaCounts.put(type, counts);
-                    } else {
-                        count = counts.get(entry.getValue());
-                    }
-                    if (count == null) {
-                        count = 0;
-                    }
-                    count++;
-                    counts.put(entry.getValue(), count);
+                if (count == null) {
+                    count = 0;
                 }
+                count++;
+                counts.put(entry.getValue(), count);
             }
+        }
 
-            if (messageIds.length() > 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM messages WHERE mid IN(" + messageIds.toString() + ")");
-                while (cursor.next()) {
-                    int mid = cursor.intValue(0);
-                    messagesIdsMap.remove(mid);
-                }
-                cursor.dispose();
-                for (Long dialog_id : messagesIdsMap.values()) {
-                    Integer count = messagesCounts.get(dialog_id);
-                    if (count == null) {
-                        count = 0;
-                    }
-                    count++;
-                    messagesCounts.put(dialog_id, count);
+        if (messageIds.length() > 0) {
+            SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM messages WHERE mid IN(" + messageIds.toString() + ")");
+            while (cursor.next()) {
+                int mid = cursor.intValue(0);
+                messagesIdsMap.remove(mid);
+            }
+            cursor.dispose();
+            for (Long dialog_id : messagesIdsMap.values()) {
+                Integer count = messagesCounts.get(dialog_id);
+                if (count == null) {
+                    count = 0;
                 }
+                count++;
+                messagesCounts.put(dialog_id, count);
             }
+        }
 
-            int downloadMediaMask = 0;
-            for (int a = 0; a < messages.size(); a++) {
-                TLRPC.Message message = messages.get(a);
-                fixUnsupportedMedia(message);
-
-                long dialog_id = message.dialog_id;
-                if (dialog_id == 0) {
-                    if (message.to_id.chat_id != 0) {
-                        dialog_id = -message.to_id.chat_id;
-                    } else if (message.to_id.user_id != 0) {
-                        dialog_id = message.to_id.user_id;
-                    }
+        int downloadMediaMask = 0;
+        for (int a = 0; a < messages.size(); a++) {
+            TLRPC.Message message = messages.get(a);
+            fixUnsupportedMedia(message);
+
+            long dialog_id = message.dialog_id;
+            if (dialog_id == 0) {
+                if (message.to_id.chat_id != 0) {
+                    dialog_id = -message.to_id.chat_id;
+                } else if (message.to_id.user_id != 0) {
+                    dialog_id = message.to_id.user_id;
                 }
+            }
 
-                state.requery();
-                int messageId = message.id;
-                if (message.local_id != 0) {
-                    messageId = message.local_id;
-                }
+            state.requery();
+            int messageId = message.id;
+            if (message.local_id != 0) {
+                messageId = message.local_id;
+            }
 
-                ByteBufferDesc data = buffersStorage.getFreeBuffer(message.getObjectSize());
-                message.serializeToStream(data);
+            ByteBufferDesc data = buffersStorage.getFreeBuffer(message.getObjectSize());
+            message.serializeToStream(data);
 
-                boolean updateDialog = true;
-                if (message.action != null && message.action instanceof TLRPC.TL_messageEncryptedAction && !(message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionSetMessageTTL || message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionScreenshotMessages)) {
-                    updateDialog = false;
-                }
+            boolean updateDialog = true;
+            if (message.action != null && message.action instanceof TLRPC.TL_messageEncryptedAction && !(message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionSetMessageTTL || message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionScreenshotMessages)) {
+                updateDialog = false;
+            }
 
-                if (updateDialog) {
-                    TLRPC.Message lastMessage = messagesMap.get(dialog_id);
-                    if (lastMessage == null || message.date > lastMessage.date) {
-                        messagesMap.put(dialog_id, message);
-                    }
+            if (updateDialog) {
+                TLRPC.Message lastMessage = messagesMap.get(dialog_id);
+                if (lastMessage == null || message.date > lastMessage.date) {
+                    messagesMap.put(dialog_id, message);
                 }
+            }
 
-                state.bindInteger(1, messageId);
-                state.bindLong(2, dialog_id);
-                state.bindInteger(3, MessageObject.getUnreadFlags(message));
-                state.bindInteger(4, message.send_state);
-                state.bindInteger(5, message.date);
-                if (message instanceof TLRPC.TL_message_secret) {
-                    state.bindByteBuffer(6, data.buffer);
-                }
-                state.bindInteger(7, (MessageObject.isOut(message) ? 1 : 0));
-                state.bindInteger(8, message.ttl);
-                state.bindInteger(9, getMessageMediaType(message));
-                state.step();
+            state.bindInteger(1, messageId);
+            state.bindLong(2, dialog_id);
+            state.bindInteger(3, MessageObject.getUnreadFlags(message));
+            state.bindInteger(4, message.send_state);
+            state.bindInteger(5, message.date);
+            if (message instanceof TLRPC.TL_message_secret) {
+                state.bindByteBuffer(6, data.buffer);
+            }
+            state.bindInteger(7, (MessageObject.isOut(message) ? 1 : 0));
+            state.bindInteger(8, message.ttl);
+            state.bindInteger(9, getMessageMediaType(message));
+            state.step();
 
-                if (message.random_id != 0) {
-                    state3.requery();
-                    state3.bindLong(1, message.random_id);
-                    state3.bindInteger(2, messageId);
-                    state3.step();
-                }
+            if (message instanceof TLRPC.TL_message_secret) {
+                putMessageToSearchIndex(state6, state7, messageId, dialog_id, message);
+            }
 
-                if (SharedMediaQuery.canAddMessageToMedia(message)) {
-                    state2.requery();
-                    state2.bindInteger(1, messageId);
-                    state2.bindLong(2, dialog_id);
-                    state2.bindInteger(3, message.date);
-                    state2.bindInteger(4, SharedMediaQuery.getMediaType(message));
-                    state2.bindByteBuffer(5, data.buffer);
-                    state2.step();
-                }
+            if (message.random_id != 0) {
+                state3.requery();
+                state3.bindLong(1, message.random_id);
+                state3.bindInteger(2, messageId);
+                state3.step();
+            }
 
-                if (message.media instanceof TLRPC.TL_messageMediaWebPage && message.media.webpage instanceof TLRPC.TL_webPagePending) {
-                    state5.requery();
-                    state5.bindLong(1, message.media.webpage.id);
-                    state5.bindInteger(2, message.id);
-                    state5.step();
-                }
+            if (SharedMediaQuery.canAddMessageToMedia(message)) {
+                state2.requery();
+                state2.bindInteger(1, messageId);
+                state2.bindLong(2, dialog_id);
+                state2.bindInteger(3, message.date);
+                state2.bindInteger(4, SharedMediaQuery.getMediaType(message));
+                state2.bindByteBuffer(5, data.buffer);
+                state2.step();
+            }
 
-                buffersStorage.reuseFreeBuffer(data);
+            if (message.media instanceof TLRPC.TL_messageMediaWebPage && message.media.webpage instanceof TLRPC.TL_webPagePending) {
+                state5.requery();
+                state5.bindLong(1, message.media.webpage.id);
+                state5.bindInteger(2, message.id);
+                state5.step();
+            }
 
-                if (message.date >= ConnectionsManager.getInstance().getCurrentTime() - 60 * 60 * 24 && downloadMask != 0) {
-                    if (message.media instanceof TLRPC.TL_messageMediaAudio || message.media instanceof TLRPC.TL_messageMediaPhoto || message.media instanceof TLRPC.TL_messageMediaVideo || message.media instanceof TLRPC.TL_messageMediaDocument) {
-                        int type = 0;
-                        long id = 0;
-                        TLObject object = null;
-                        if (message.media instanceof TLRPC.TL_messageMediaAudio) {
-                            if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_AUDIO) != 0 && message.media.audio.size < 1024 * 1024 * 5) {
-                                id = message.media.audio.id;
-                                type = MediaController.AUTODOWNLOAD_MASK_AUDIO;
-                                object = message.media.audio;
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
-                            if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_PHOTO) != 0) {
-                                TLRPC.PhotoSize photoSize = FileLoader.getClosestPhotoSizeWithSize(message.media.photo.sizes, AndroidUtilities.getPhotoSize());
-                                if (photoSize != null) {
-                                    id = message.media.photo.id;
-                                    type = MediaController.AUTODOWNLOAD_MASK_PHOTO;
-                                    object = photoSize;
-                                }
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
-                            if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_VIDEO) != 0) {
-                                id = message.media.video.id;
-                                type = MediaController.AUTODOWNLOAD_MASK_VIDEO;
-                                object = message.media.video;
-                            }
-                        } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
-                            if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_DOCUMENT) != 0) {
-                                id = message.media.document.id;
-                                type = MediaController.AUTODOWNLOAD_MASK_DOCUMENT;
-                                object = message.media.document;
+            buffersStorage.reuseFreeBuffer(data);
+
+            if (message.date >= ConnectionsManager.getInstance().getCurrentTime() - 60 * 60 * 24 && downloadMask != 0) {
+                if (message.media instanceof TLRPC.TL_messageMediaAudio || message.media instanceof TLRPC.TL_messageMediaPhoto || message.media instanceof TLRPC.TL_messageMediaVideo || message.media instanceof TLRPC.TL_messageMediaDocument) {
+                    int type = 0;
+                    long id = 0;
+                    TLObject object = null;
+                    if (message.media instanceof TLRPC.TL_messageMediaAudio) {
+                        if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_AUDIO) != 0 && message.media.audio.size < 1024 * 1024 * 5) {
+                            id = message.media.audio.id;
+                            type = MediaController.AUTODOWNLOAD_MASK_AUDIO;
+                            object = message.media.audio;
+                        }
+                    } else if (message.media instanceof TLRPC.TL_messageMediaPhoto) {
+                        if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_PHOTO) != 0) {
+                            TLRPC.PhotoSize photoSize = FileLoader.getClosestPhotoSizeWithSize(message.media.photo.sizes, AndroidUtilities.getPhotoSize());
+                            if (photoSize != null) {
+                                id = message.media.photo.id;
+                                type = MediaController.AUTODOWNLOAD_MASK_PHOTO;
+                                object = photoSize;
                             }
                         }
-                        if (object != null) {
-                            downloadMediaMask |= type;
-                            state4.requery();
-                            data = buffersStorage.getFreeBuffer(object.getObjectSize());
-                            object.serializeToStream(data);
-                            state4.bindLong(1, id);
-                            state4.bindInteger(2, type);
-                            state4.bindInteger(3, message.date);
-                            state4.bindByteBuffer(4, data.buffer);
-                            state4.step();
-                            buffersStorage.reuseFreeBuffer(data);
+                    } else if (message.media instanceof TLRPC.TL_messageMediaVideo) {
+                        if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_VIDEO) != 0) {
+                            id = message.media.video.id;
+                            type = MediaController.AUTODOWNLOAD_MASK_VIDEO;
+                            object = message.media.video;
+                        }
+                    } else if (message.media instanceof TLRPC.TL_messageMediaDocument) {
+                        if ((downloadMask & MediaController.AUTODOWNLOAD_MASK_DOCUMENT) != 0) {
+                            id = message.media.document.id;
+                            type = MediaController.AUTODOWNLOAD_MASK_DOCUMENT;
+                            object = message.media.document;
                         }
                     }
+                    if (object != null) {
+                        downloadMediaMask |= type;
+                        state4.requery();
+                        data = buffersStorage.getFreeBuffer(object.getObjectSize());
+                        object.serializeToStream(data);
+                        state4.bindLong(1, id);
+                        state4.bindInteger(2, type);
+                        state4.bindInteger(3, message.date);
+                        state4.bindByteBuffer(4, data.buffer);
+                        state4.step();
+                        buffersStorage.reuseFreeBuffer(data);
+                    }
                 }
             }
-            state.dispose();
-            state2.dispose();
-            state3.dispose();
-            state4.dispose();
-            state5.dispose();
-
-            state = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
-            for (HashMap.Entry<Long, TLRPC.Message> pair : messagesMap.entrySet()) {
-                Long key = pair.getKey();
-
-                int dialog_date = 0;
-                int old_unread_count = 0;
-                SQLiteCursor cursor = database.queryFinalized("SELECT date, unread_count FROM dialogs WHERE did = " + key);
-                if (cursor.next()) {
-                    dialog_date = cursor.intValue(0);
-                    old_unread_count = cursor.intValue(1);
-                }
-                cursor.dispose();
-
-                state.requery();
-                TLRPC.Message value = pair.getValue();
-                Integer unread_count = messagesCounts.get(key);
-                if (unread_count == null) {
-                    unread_count = 0;
-                } else {
-                    messagesCounts.put(key, unread_count + old_unread_count);
-                }
-                int messageId = value.id;
-                if (value.local_id != 0) {
-                    messageId = value.local_id;
-                }
-                state.bindLong(1, key);
-                if (!isBroadcast) {
-                    state.bindInteger(2, value.date);
-                } else {
-                    state.bindInteger(2, dialog_date != 0 ? dialog_date : value.date);
-                }
-                state.bindInteger(3, old_unread_count + unread_count);
-                state.bindInteger(4, messageId);
-                state.bindInteger(5, 0);
-                state.bindInteger(6, 0);
-                state.step();
+        }
+        state.dispose();
+        state2.dispose();
+        state3.dispose();
+        state4.dispose();
+        state5.dispose();
+        state6.dispose();
+        state7.dispose();
+
+        state = database.executeCached("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
+        for (HashMap.Entry<Long, TLRPC.Message> pair : messagesMap.entrySet()) {
+            Long key = pair.getKey();
+
+            int dialog_date = 0;
+            int old_unread_count = 0;
+            SQLiteCursor cursor = database.queryFinalized("SELECT date, unread_count FROM dialogs WHERE did = " + key);
+            if (cursor.next()) {
+                dialog_date = cursor.intValue(0);
+                old_unread_count = cursor.intValue(1);
             }
-            state.dispose();
+            cursor.dispose();
 
-            if (!mediaCounts.isEmpty()) {
-                state = database.executeFast("REPLACE INTO media_counts_v2 VALUES(?, ?, ?)");
-                for (HashMap.Entry<Integer, HashMap<Long, Integer>> counts : mediaCounts.entrySet()) {
-                    Integer type = counts.getKey();
-                    for (HashMap.Entry<Long, Integer> pair : counts.getValue().entrySet()) {
-                        long uid = pair.getKey();
-                        int lower_part = (int) uid;
-                        int count = -1;
-                        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT count FROM media_counts_v2 WHERE uid = %d AND type = %d LIMIT 1", uid, type));
-                        if (cursor.next()) {
-                            count = cursor.intValue(0);
-                        }
-                        cursor.dispose();
-                        if (count != -1) {
-                            state.requery();
-                            count += pair.getValue();
-                            state.bindLong(1, uid);
-                            state.bindInteger(2, type);
-                            state.bindInteger(3, count);
-                            state.step();
-                        }
-                    }
-                }
-                state.dispose();
+            state.requery();
+            TLRPC.Message value = pair.getValue();
+            Integer unread_count = messagesCounts.get(key);
+            if (unread_count == null) {
+                unread_count = 0;
+            } else {
+                messagesCounts.put(key, unread_count + old_unread_count);
             }
-            if (withTransaction) {
-                database.commitTransaction();
+            int messageId = value.id;
+            if (value.local_id != 0) {
+                messageId = value.local_id;
             }
-            MessagesController.getInstance().processDialogsUpdateRead(messagesCounts);
+            state.bindLong(1, key);
+            if (!isBroadcast) {
+                state.bindInteger(2, value.date);
+            } else {
+                state.bindInteger(2, dialog_date != 0 ? dialog_date : value.date);
+            }
+            state.bindInteger(3, old_unread_count + unread_count);
+            state.bindInteger(4, messageId);
+            state.bindInteger(5, 0);
+            state.bindInteger(6, 0);
+            state.step();
+        }
+        state.dispose();
 
-            if (downloadMediaMask != 0) {
-                final int downloadMediaMaskFinal = downloadMediaMask;
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        MediaController.getInstance().newDownloadObjectsAvailable(downloadMediaMaskFinal);
+        if (!mediaCounts.isEmpty()) {
+            state = database.executeCached("REPLACE INTO media_counts_v2 VALUES(?, ?, ?)");
+            for (HashMap.Entry<Integer, HashMap<Long, Integer>> counts : mediaCounts.entrySet()) {
+                Integer type = counts.getKey();
+                for (HashMap.Entry<Long, Integer> pair : counts.getValue().entrySet()) {
+                    long uid = pair.getKey();
+                    int lower_part = (int) uid;
+                    int count = -1;
+                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT count FROM media_counts_v2 WHERE uid = %d AND type = %d LIMIT 1", uid, type));
+                    if (cursor.next()) {
+                        count = cursor.intValue(0);
                     }
-                });
+                    cursor.dispose();
+                    if (count != -1) {
+                        state.requery();
+                        count += pair.getValue();
+                        state.bindLong(1, uid);
+                        state.bindInteger(2, type);
+                        state.bindInteger(3, count);
+                        state.step();
+                    }
+                }
             }
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
+            state.dispose();
         }
+        final HashMap<Long, Integer> messagesCountsFinal = messagesCounts;
+        final int downloadMediaMaskFinal = downloadMediaMask;
+        return new Runnable() {
+            @Override
+            public void run() {
+                MessagesController.getInstance().processDialogsUpdateRead(messagesCountsFinal);
+
+                if (downloadMediaMaskFinal != 0) {
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            MediaController.getInstance().newDownloadObjectsAvailable(downloadMediaMaskFinal);
+                        }
+                    });
+                }
+            }
+        };
     }
 
     public void putMessages(final ArrayList<TLRPC.Message> messages, final boolean withTransaction, boolean useQueue, final boolean isBroadcast, final int downloadMask) {
@@ -3193,10 +3568,10 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postBatchedWrite(new BatchedWrite() {
                 @Override
-                public void run() {
-                    putMessagesInternal(messages, withTransaction, isBroadcast, downloadMask);
+                public Runnable run() throws Exception {
+                    return putMessagesQueries(messages, isBroadcast, downloadMask);
                 }
             });
         } else {
@@ -3251,7 +3626,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO secret_holes VALUES(?, ?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO secret_holes VALUES(?, ?, ?, ?)");
 
                     state.requery();
                     ByteBufferDesc data = buffersStorage.getFreeBuffer(message.getObjectSize());
@@ -3276,7 +3651,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages_seq VALUES(?, ?, ?)");
+                    SQLitePreparedStatement state = database.executeCached("REPLACE INTO messages_seq VALUES(?, ?, ?)");
                     state.requery();
                     state.bindInteger(1, mid);
                     state.bindInteger(2, seq_in);
@@ -3294,7 +3669,7 @@ public class MessagesStorage {
         if (_oldId != null && _oldId == newId && date != 0) {
             SQLitePreparedStatement state = null;
             try {
-                state = database.executeFast("UPDATE messages SET send_state = 0, date = ? WHERE mid = ?");
+                state = database.executeCached("UPDATE messages SET send_state = 0, date = ? WHERE mid = ?");
                 state.bindInteger(1, date);
                 state.bindInteger(2, newId);
                 state.step();
@@ -3337,13 +3712,14 @@ public class MessagesStorage {
 
             SQLitePreparedStatement state = null;
             try {
-                state = database.executeFast("UPDATE messages SET mid = ?, send_state = 0 WHERE mid = ?");
+                state = database.executeCached("UPDATE messages SET mid = ?, send_state = 0 WHERE mid = ?");
                 state.bindInteger(1, newId);
                 state.bindInteger(2, oldId);
                 state.step();
             } catch (Exception e) {
                 try {
                     database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE mid = %d", oldId)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "DELETE FROM messages_search WHERE mid = %d", oldId)).stepThis().dispose();
                     database.executeFast(String.format(Locale.US, "DELETE FROM messages_seq WHERE mid = %d", oldId)).stepThis().dispose();
                 } catch (Exception e2) {
                     FileLog.e("tmessages", e2);
@@ -3357,7 +3733,14 @@ public class MessagesStorage {
             }
 
             try {
-                state = database.executeFast("UPDATE media_v2 SET mid = ? WHERE mid = ?");
+                database.executeFast(String.format(Locale.US, "DELETE FROM messages_search WHERE mid = %d", newId)).stepThis().dispose();
+                database.executeFast(String.format(Locale.US, "UPDATE messages_search SET mid = %d WHERE mid = %d", newId, oldId)).stepThis().dispose();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+
+            try {
+                state = database.executeCached("UPDATE media_v2 SET mid = ? WHERE mid = ?");
                 state.bindInteger(1, newId);
                 state.bindInteger(2, oldId);
                 state.step();
@@ -3376,7 +3759,7 @@ public class MessagesStorage {
             }
 
             try {
-                state = database.executeFast("UPDATE dialogs SET last_mid = ? WHERE last_mid = ?");
+                state = database.executeCached("UPDATE dialogs SET last_mid = ? WHERE last_mid = ?");
                 state.bindInteger(1, newId);
                 state.bindLong(2, oldId);
                 state.step();
@@ -3407,70 +3790,67 @@ public class MessagesStorage {
     }
 
     private void updateUsersInternal(final ArrayList<TLRPC.User> users, final boolean onlyStatus, final boolean withTransaction) {
+        try {
+            if (withTransaction) {
+                database.beginTransaction();
+            }
+            updateUsersQueries(users, onlyStatus);
+            if (withTransaction) {
+                database.commitTransaction();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void updateUsersQueries(final ArrayList<TLRPC.User> users, final boolean onlyStatus) throws Exception {
         if (Thread.currentThread().getId() != storageQueue.getId()) {
             throw new RuntimeException("wrong db thread");
         }
-        try {
-            if (onlyStatus) {
-                if (withTransaction) {
-                    database.beginTransaction();
-                }
-                SQLitePreparedStatement state = database.executeFast("UPDATE users SET status = ? WHERE uid = ?");
-                for (TLRPC.User user : users) {
-                    state.requery();
-                    if (user.status != null) {
-                        state.bindInteger(1, user.status.expires);
-                    } else {
-                        state.bindInteger(1, 0);
-                    }
-                    state.bindInteger(2, user.id);
-                    state.step();
-                }
-                state.dispose();
-                if (withTransaction) {
-                    database.commitTransaction();
+        if (onlyStatus) {
+            SQLitePreparedStatement state = database.executeCached("UPDATE users SET status = ? WHERE uid = ?");
+            for (TLRPC.User user : users) {
+                state.requery();
+                if (user.status != null) {
+                    state.bindInteger(1, user.status.expires);
+                } else {
+                    state.bindInteger(1, 0);
                 }
-            } else {
-                StringBuilder ids = new StringBuilder();
-                HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
-                for (TLRPC.User user : users) {
-                    if (ids.length() != 0) {
-                        ids.append(",");
-                    }
-                    ids.append(user.id);
-                    usersDict.put(user.id, user);
+                state.bindInteger(2, user.id);
+                state.step();
+            }
+            state.dispose();
+        } else {
+            StringBuilder ids = new StringBuilder();
+            HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
+            for (TLRPC.User user : users) {
+                if (ids.length() != 0) {
+                    ids.append(",");
                 }
-                ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
-                getUsersInternal(ids.toString(), loadedUsers);
-                for (TLRPC.User user : loadedUsers) {
-                    TLRPC.User updateUser = usersDict.get(user.id);
-                    if (updateUser != null) {
-                        if (updateUser.first_name != null && updateUser.last_name != null) {
-                            if (!UserObject.isContact(user)) {
-                                user.first_name = updateUser.first_name;
-                                user.last_name = updateUser.last_name;
-                            }
-                            user.username = updateUser.username;
-                        } else if (updateUser.photo != null) {
-                            user.photo = updateUser.photo;
-                        } else if (updateUser.phone != null) {
-                            user.phone = updateUser.phone;
+                ids.append(user.id);
+                usersDict.put(user.id, user);
+            }
+            ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
+            getUsersInternal(ids.toString(), loadedUsers);
+            for (TLRPC.User user : loadedUsers) {
+                TLRPC.User updateUser = usersDict.get(user.id);
+                if (updateUser != null) {
+                    if (updateUser.first_name != null && updateUser.last_name != null) {
+                        if (!UserObject.isContact(user)) {
+                            user.first_name = updateUser.first_name;
+                            user.last_name = updateUser.last_name;
                         }
-                    }
-                }
-
-                if (!loadedUsers.isEmpty()) {
-                    if (withTransaction) {
-                        database.beginTransaction();
-                    }
-                    putUsersInternal(loadedUsers);
-                    if (withTransaction) {
-                        database.commitTransaction();
+                        user.username = updateUser.username;
+                    } else if (updateUser.photo != null) {
+                        user.photo = updateUser.photo;
+                    } else if (updateUser.phone != null) {
+                        user.phone = updateUser.phone;
                     }
                 }
             }
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
+            if (!loadedUsers.isEmpty()) {
+                putUsersInternal(loadedUsers);
+            }
         }
     }
 
@@ -3479,10 +3859,11 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postBatchedWrite(new BatchedWrite() {
                 @Override
-                public void run() {
-                    updateUsersInternal(users, onlyStatus, withTransaction);
+                public Runnable run() throws Exception {
+                    updateUsersQueries(users, onlyStatus);
+                    return null;
                 }
             });
         } else {
@@ -3506,7 +3887,7 @@ public class MessagesStorage {
                 for (HashMap.Entry<Integer, Integer> entry : encryptedMessages.entrySet()) {
                     long dialog_id = ((long)entry.getKey()) << 32;
                     int max_date = entry.getValue();
-                    SQLitePreparedStatement state = database.executeFast("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND date <= ? AND read_state IN(0,2) AND out = 1");
+                    SQLitePreparedStatement state = database.executeCached("UPDATE messages SET read_state = read_state | 1 WHERE uid = ? AND date <= ? AND read_state IN(0,2) AND out = 1");
                     state.requery();
                     state.bindLong(1, dialog_id);
                     state.bindInteger(2, max_date);
@@ -3644,6 +4025,7 @@ public class MessagesStorage {
             cursor.dispose();
             FileLoader.getInstance().deleteFiles(filesToDelete);
             database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE mid IN(%s)", ids)).stepThis().dispose();
+            database.executeFast(String.format(Locale.US, "DELETE FROM messages_search WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM bot_keyboard WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM messages_seq WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE mid IN(%s)", ids)).stepThis().dispose();
@@ -3667,7 +4049,7 @@ public class MessagesStorage {
             }
             cursor.dispose();
             database.beginTransaction();
-            SQLitePreparedStatement state = database.executeFast("UPDATE dialogs SET unread_count = 0, last_mid = (SELECT mid FROM messages WHERE uid = ? AND date = (SELECT MAX(date) FROM messages WHERE uid = ? )) WHERE did = ?");
+            SQLitePreparedStatement state = database.executeCached("UPDATE dialogs SET unread_count = 0, last_mid = (SELECT mid FROM messages WHERE uid = ? AND date = (SELECT MAX(date) FROM messages WHERE uid = ? )) WHERE did = ?");
             for (long did : dialogsToUpdate) {
                 state.requery();
                 state.bindLong(1, did);
@@ -3827,8 +4209,8 @@ public class MessagesStorage {
                 try {
                     database.beginTransaction();
                     if (!messages.messages.isEmpty()) {
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
-                        SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
+                        SQLitePreparedStatement state = database.executeCached("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
+                        SQLitePreparedStatement state2 = database.executeCached("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
                         TLRPC.Message botKeyboard = null;
                         for (int a = 0; a < messages.messages.size(); a++) {
                             TLRPC.Message message = messages.messages.get(a);
@@ -3984,9 +4366,10 @@ public class MessagesStorage {
 
 
     public void getDialogs(final int offset, final int serverOffset, final int count) {
-        storageQueue.postRunnable(new Runnable() {
+        postReadRunnable(new Runnable() {
             @Override
             public void run() {
+                SQLiteDatabase readDatabase = getReadDatabase();
                 TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
                 ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
                 try {
@@ -3994,7 +4377,7 @@ public class MessagesStorage {
                     usersToLoad.add(UserConfig.getClientUserId());
                     ArrayList<Integer> chatsToLoad = new ArrayList<>();
                     ArrayList<Integer> encryptedToLoad = new ArrayList<>();
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.date DESC LIMIT %d,%d", offset, count));
+                    SQLiteCursor cursor = readDatabase.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.date DESC LIMIT %d,%d", offset, count));
                     while (cursor.next()) {
                         TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
                         dialog.id = cursor.longValue(0);
@@ -4113,10 +4496,10 @@ public class MessagesStorage {
                     }
 
                     if (!dialogs.dialogs.isEmpty()) {
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
-                        SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
-                        SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
-                        SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO dialog_settings VALUES(?, ?)");
+                        SQLitePreparedStatement state = database.executeCached("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL)");
+                        SQLitePreparedStatement state2 = database.executeCached("REPLACE INTO dialogs(did, date, unread_count, last_mid, inbox_max, outbox_max) VALUES(?, ?, ?, ?, ?, ?)");
+                        SQLitePreparedStatement state3 = database.executeCached("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
+                        SQLitePreparedStatement state4 = database.executeCached("REPLACE INTO dialog_settings VALUES(?, ?)");
 
                         for (int a = 0; a < dialogs.dialogs.size(); a++) {
                             TLRPC.TL_dialog dialog = dialogs.dialogs.get(a);
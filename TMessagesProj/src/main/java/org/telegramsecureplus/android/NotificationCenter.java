@@ -14,6 +14,7 @@ import org.telegramsecureplus.messenger.FileLog;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 public class NotificationCenter {
 
@@ -99,11 +100,26 @@ public class NotificationCenter {
     public static final int audioDidStarted = totalEvents++;
     public static final int audioRouteChanged = totalEvents++;
 
-    private HashMap<Integer, ArrayList<Object>> observers = new HashMap<>();
-    private HashMap<Integer, Object> removeAfterBroadcast = new HashMap<>();
-    private HashMap<Integer, Object> addAfterBroadcast = new HashMap<>();
+    private static final int COALESCE_DELAY = 16;
+
+    private ArrayList<Object>[] observers;
+    private ArrayList<PendingObserver> pendingObservers = new ArrayList<>();
     private ArrayList<DelayedPost> delayedPosts = new ArrayList<>(10);
 
+    private final Object coalescedSync = new Object();
+    private HashMap<Object, Object[]>[] coalescedPosts;
+    private HashMap<Object, Object[]>[] coalescedPostsFlushing;
+    private boolean coalescedFlushScheduled;
+    private Runnable flushCoalescedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushCoalescedPosts();
+        }
+    };
+
+    private long[] dispatchCounts;
+    private long[] dispatchTimes;
+
     private int broadcasting = 0;
     private boolean animationInProgress;
 
@@ -122,6 +138,28 @@ public class NotificationCenter {
         private Object[] args;
     }
 
+    private class PendingObserver {
+
+        private PendingObserver(int id, Object observer, boolean add) {
+            this.id = id;
+            this.observer = observer;
+            this.add = add;
+        }
+
+        private int id;
+        private Object observer;
+        private boolean add;
+    }
+
+    @SuppressWarnings("unchecked")
+    public NotificationCenter() {
+        observers = new ArrayList[totalEvents];
+        coalescedPosts = new HashMap[totalEvents];
+        coalescedPostsFlushing = new HashMap[totalEvents];
+        dispatchCounts = new long[totalEvents];
+        dispatchTimes = new long[totalEvents];
+    }
+
     private static volatile NotificationCenter Instance = null;
 
     public static NotificationCenter getInstance() {
@@ -169,30 +207,94 @@ public class NotificationCenter {
             }
             return;
         }
+        ArrayList<Object> objects = observers[id];
+        if (objects == null) {
+            dispatchCounts[id]++;
+            return;
+        }
+        long startTime = System.nanoTime();
         broadcasting++;
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null) {
-            for (Object obj : objects) {
-                ((NotificationCenterDelegate) obj).didReceivedNotification(id, args);
-            }
+        for (int a = 0; a < objects.size(); a++) {
+            ((NotificationCenterDelegate) objects.get(a)).didReceivedNotification(id, args);
         }
         broadcasting--;
-        if (broadcasting == 0) {
-            if (!removeAfterBroadcast.isEmpty()) {
-                for (HashMap.Entry<Integer, Object> entry : removeAfterBroadcast.entrySet()) {
-                    removeObserver(entry.getValue(), entry.getKey());
+        dispatchCounts[id]++;
+        dispatchTimes[id] += System.nanoTime() - startTime;
+        if (broadcasting == 0 && !pendingObservers.isEmpty()) {
+            for (int a = 0; a < pendingObservers.size(); a++) {
+                PendingObserver pendingObserver = pendingObservers.get(a);
+                if (pendingObserver.add) {
+                    addObserver(pendingObserver.observer, pendingObserver.id);
+                } else {
+                    removeObserver(pendingObserver.observer, pendingObserver.id);
                 }
-                removeAfterBroadcast.clear();
             }
-            if (!addAfterBroadcast.isEmpty()) {
-                for (HashMap.Entry<Integer, Object> entry : addAfterBroadcast.entrySet()) {
-                    addObserver(entry.getValue(), entry.getKey());
-                }
-                addAfterBroadcast.clear();
+            pendingObservers.clear();
+        }
+    }
+
+    /**
+     * Posts a notification that only matters in its latest state, such as a progress update.
+     * May be called from any thread; posts with the same id and key made within one frame
+     * replace each other and only the last one is delivered on the main thread.
+     */
+    public void postNotificationNameCoalesced(int id, Object key, Object... args) {
+        synchronized (coalescedSync) {
+            HashMap<Object, Object[]> posts = coalescedPosts[id];
+            if (posts == null) {
+                coalescedPosts[id] = posts = new HashMap<>();
+            }
+            posts.put(key, args);
+            if (coalescedFlushScheduled) {
+                return;
+            }
+            coalescedFlushScheduled = true;
+        }
+        AndroidUtilities.runOnUIThread(flushCoalescedRunnable, COALESCE_DELAY);
+    }
+
+    public void cancelCoalescedNotification(int id, Object key) {
+        synchronized (coalescedSync) {
+            HashMap<Object, Object[]> posts = coalescedPosts[id];
+            if (posts != null) {
+                posts.remove(key);
             }
         }
     }
 
+    private void flushCoalescedPosts() {
+        synchronized (coalescedSync) {
+            HashMap<Object, Object[]>[] posts = coalescedPosts;
+            coalescedPosts = coalescedPostsFlushing;
+            coalescedPostsFlushing = posts;
+            coalescedFlushScheduled = false;
+        }
+        for (int id = 0; id < coalescedPostsFlushing.length; id++) {
+            HashMap<Object, Object[]> posts = coalescedPostsFlushing[id];
+            if (posts == null || posts.isEmpty()) {
+                continue;
+            }
+            for (Object[] args : posts.values()) {
+                postNotificationName(id, args);
+            }
+            posts.clear();
+        }
+    }
+
+    public void dumpStatistics() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("notifications:\n");
+        for (int a = 1; a < totalEvents; a++) {
+            if (dispatchCounts[a] == 0) {
+                continue;
+            }
+            ArrayList<Object> objects = observers[a];
+            builder.append(String.format(Locale.US, "%d: posts=%d observers=%d time=%dus avg=%dus\n", a, dispatchCounts[a],
+                    objects != null ? objects.size() : 0, dispatchTimes[a] / 1000, dispatchTimes[a] / dispatchCounts[a] / 1000));
+        }
+        FileLog.d("tmessages", builder.toString());
+    }
+
     public void addObserver(Object observer, int id) {
         if (BuildVars.DEBUG_VERSION) {
             if (Thread.currentThread() != ApplicationLoader.applicationHandler.getLooper().getThread()) {
@@ -200,12 +302,12 @@ public class NotificationCenter {
             }
         }
         if (broadcasting != 0) {
-            addAfterBroadcast.put(id, observer);
+            pendingObservers.add(new PendingObserver(id, observer, true));
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
+        ArrayList<Object> objects = observers[id];
         if (objects == null) {
-            observers.put(id, (objects = new ArrayList<>()));
+            observers[id] = objects = new ArrayList<>();
         }
         if (objects.contains(observer)) {
             return;
@@ -220,15 +322,12 @@ public class NotificationCenter {
             }
         }
         if (broadcasting != 0) {
-            removeAfterBroadcast.put(id, observer);
+            pendingObservers.add(new PendingObserver(id, observer, false));
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
+        ArrayList<Object> objects = observers[id];
         if (objects != null) {
             objects.remove(observer);
-            if (objects.size() == 0) {
-                observers.remove(id);
-            }
         }
     }
 }
@@ -711,7 +711,11 @@ public class SecretChatHelper {
                 byte[] messageKey = new byte[16];
                 System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
 
-                MessageKeyData keyData = MessageKeyData.generateMessageKeyData(chat.auth_key, messageKey, false);
+                MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+                if (!keyData.generate(chat.auth_key, messageKey, false)) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(toEncrypt);
+                    return;
+                }
 
                 len = toEncrypt.length();
                 int extraLen = len % 16 != 0 ? 16 - len % 16 : 0;
@@ -725,7 +729,7 @@ public class SecretChatHelper {
                 }
                 BuffersStorage.getInstance().reuseFreeBuffer(toEncrypt);
 
-                Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, false, 0, dataForEncryption.limit());
+                Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, true, 0, dataForEncryption.limit());
 
                 ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(8 + messageKey.length + dataForEncryption.length());
                 dataForEncryption.position(0);
@@ -1318,9 +1322,13 @@ public class SecretChatHelper {
 
         if (keyToDecrypt != null) {
             byte[] messageKey = is.readData(16, false);
-            MessageKeyData keyData = MessageKeyData.generateMessageKeyData(keyToDecrypt, messageKey, false);
+            MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+            if (!keyData.generate(keyToDecrypt, messageKey, false)) {
+                BuffersStorage.getInstance().reuseFreeBuffer(is);
+                return null;
+            }
 
-            Utilities.aesIgeEncryption(is.buffer, keyData.aesKey, keyData.aesIv, false, false, 24, is.limit() - 24);
+            Utilities.aesIgeEncryption(is.buffer, keyData.aesKey, keyData.aesIv, false, true, 24, is.limit() - 24);
 
             int len = is.readInt32(false);
             if (len < 0 || len > is.limit() - 28) {
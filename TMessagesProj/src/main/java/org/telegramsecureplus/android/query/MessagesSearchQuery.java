@@ -8,17 +8,22 @@
 
 package org.telegramsecureplus.android.query;
 
+import org.telegramsecureplus.SQLite.SQLiteCursor;
 import org.telegramsecureplus.android.AndroidUtilities;
+import org.telegramsecureplus.android.LocaleController;
 import org.telegramsecureplus.android.MessageObject;
 import org.telegramsecureplus.android.MessagesController;
 import org.telegramsecureplus.android.MessagesStorage;
 import org.telegramsecureplus.android.NotificationCenter;
+import org.telegramsecureplus.messenger.ByteBufferDesc;
 import org.telegramsecureplus.messenger.ConnectionsManager;
+import org.telegramsecureplus.messenger.FileLog;
 import org.telegramsecureplus.messenger.RPCRequest;
 import org.telegramsecureplus.messenger.TLObject;
 import org.telegramsecureplus.messenger.TLRPC;
 
 import java.util.ArrayList;
+import java.util.Locale;
 
 public class MessagesSearchQuery {
 
@@ -28,6 +33,7 @@ public class MessagesSearchQuery {
     private static ArrayList<MessageObject> searchResultMessages = new ArrayList<>();
     private static String lastSearchQuery;
     private static int lastReturnedNum;
+    private final static int maxSearchWords = 8;
 
     private static int getMask() {
         int mask = 0;
@@ -46,6 +52,7 @@ public class MessagesSearchQuery {
             reqId = 0;
         }
         int max_id = 0;
+        int max_date = 0;
         if (query == null || query.length() == 0) {
             if (direction == 1) {
                 lastReturnedNum++;
@@ -58,7 +65,9 @@ public class MessagesSearchQuery {
                         return;
                     }
                     query = lastSearchQuery;
-                    max_id = searchResultMessages.get(searchResultMessages.size() - 1).getId();
+                    MessageObject lastResult = searchResultMessages.get(searchResultMessages.size() - 1);
+                    max_id = lastResult.getId();
+                    max_date = lastResult.messageOwner.date;
                 }
             } else if (direction == 2) {
                 lastReturnedNum--;
@@ -72,9 +81,14 @@ public class MessagesSearchQuery {
                 return;
             }
         }
+        int lower_part = (int) dialog_id;
+        if (lower_part == 0) {
+            lastSearchQuery = query;
+            searchLocalMessages(query, dialog_id, max_date, max_id, guid, ++lastReqId);
+            return;
+        }
         final TLRPC.TL_messages_search req = new TLRPC.TL_messages_search();
         req.limit = 21;
-        int lower_part = (int) dialog_id;
         if (lower_part < 0) {
             req.peer = new TLRPC.TL_inputPeerChat();
             req.peer.chat_id = -lower_part;
@@ -108,24 +122,7 @@ public class MessagesSearchQuery {
                                 MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, true, true);
                                 MessagesController.getInstance().putUsers(res.users, false);
                                 MessagesController.getInstance().putChats(res.chats, false);
-                                if (req.max_id == 0) {
-                                    lastReturnedNum = 0;
-                                    searchResultMessages.clear();
-                                }
-                                boolean added = false;
-                                for (int a = 0; a < Math.min(res.messages.size(), 20); a++) {
-                                    TLRPC.Message message = res.messages.get(a);
-                                    added = true;
-                                    searchResultMessages.add(new MessageObject(message, null, false));
-                                }
-                                messagesSearchEndReached = res.messages.size() != 21;
-                                if (searchResultMessages.isEmpty()) {
-                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, 0, getMask());
-                                } else {
-                                    if (added) {
-                                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, searchResultMessages.get(lastReturnedNum).getId(), getMask());
-                                    }
-                                }
+                                processSearchResult(res.messages, req.max_id == 0, guid);
                             }
                         }
                         reqId = 0;
@@ -134,4 +131,177 @@ public class MessagesSearchQuery {
             }
         }, true, RPCRequest.RPCRequestClassGeneric | RPCRequest.RPCRequestClassFailOnServerErrors);
     }
+
+    private static void processSearchResult(ArrayList<TLRPC.Message> messages, boolean firstPage, int guid) {
+        if (firstPage) {
+            lastReturnedNum = 0;
+            searchResultMessages.clear();
+        }
+        boolean added = false;
+        for (int a = 0; a < Math.min(messages.size(), 20); a++) {
+            TLRPC.Message message = messages.get(a);
+            added = true;
+            searchResultMessages.add(new MessageObject(message, null, false));
+        }
+        messagesSearchEndReached = messages.size() != 21;
+        if (searchResultMessages.isEmpty()) {
+            NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, 0, getMask());
+        } else {
+            if (added) {
+                NotificationCenter.getInstance().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, searchResultMessages.get(lastReturnedNum).getId(), getMask());
+            }
+        }
+    }
+
+    /**
+     * Adds the lowercased words of the text, a word being a run of letters and digits. A word
+     * that is already in the list is not added again.
+     */
+    static void addSearchWords(String text, ArrayList<String> words) {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        text = text.toLowerCase();
+        int start = -1;
+        for (int a = 0; a <= text.length(); ) {
+            int codePoint = a < text.length() ? text.codePointAt(a) : -1;
+            if (codePoint != -1 && Character.isLetterOrDigit(codePoint)) {
+                if (start == -1) {
+                    start = a;
+                }
+            } else if (start != -1) {
+                String word = text.substring(start, a);
+                if (!words.contains(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+            a += codePoint != -1 ? Character.charCount(codePoint) : 1;
+        }
+    }
+
+    /**
+     * The tokens a cached message is found by in messages_search: the words of its text and
+     * caption and the transliteration of every word that has one.
+     */
+    public static ArrayList<String> getSearchTokens(TLRPC.Message message) {
+        ArrayList<String> tokens = new ArrayList<>();
+        addSearchWords(message.message, tokens);
+        if (message.media != null) {
+            addSearchWords(message.media.caption, tokens);
+        }
+        for (int a = 0, count = tokens.size(); a < count; a++) {
+            String translit = LocaleController.getInstance().getTranslitString(tokens.get(a));
+            if (translit.length() != 0 && !tokens.contains(translit)) {
+                tokens.add(translit);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * The smallest string greater than every string starting with the prefix, so that
+     * token >= prefix AND token < end selects the tokens starting with it.
+     */
+    static String getPrefixEnd(String prefix) {
+        int last = prefix.codePointBefore(prefix.length());
+        return prefix.substring(0, prefix.length() - Character.charCount(last)) + new String(Character.toChars(last + 1));
+    }
+
+    /**
+     * Every term is a query word with its alternatives, a message matches when for each term
+     * it has a token starting with one of the alternatives. Results come newest first, 21 at
+     * most, and a later page starts right after the last returned message.
+     */
+    static String getLocalSearchSql(long dialog_id, ArrayList<String[]> terms, int max_date, int max_id) {
+        StringBuilder sql = new StringBuilder(String.format(Locale.US, "SELECT read_state, data, send_state, mid, date FROM messages WHERE uid = %d", dialog_id));
+        if (max_date != 0 || max_id != 0) {
+            sql.append(String.format(Locale.US, " AND (date < %d OR (date = %d AND mid < %d))", max_date, max_date, max_id));
+        }
+        for (int a = 0; a < terms.size(); a++) {
+            sql.append(String.format(Locale.US, " AND mid IN(SELECT mid FROM messages_search WHERE uid = %d AND (", dialog_id));
+            String[] alternatives = terms.get(a);
+            for (int b = 0; b < alternatives.length; b++) {
+                if (b != 0) {
+                    sql.append(" OR ");
+                }
+                sql.append("token >= ? AND token < ?");
+            }
+            sql.append("))");
+        }
+        sql.append(" ORDER BY date DESC, mid DESC LIMIT 21");
+        return sql.toString();
+    }
+
+    static Object[] getLocalSearchArgs(ArrayList<String[]> terms) {
+        ArrayList<Object> args = new ArrayList<>();
+        for (int a = 0; a < terms.size(); a++) {
+            for (String alternative : terms.get(a)) {
+                args.add(alternative);
+                args.add(getPrefixEnd(alternative));
+            }
+        }
+        return args.toArray();
+    }
+
+    /**
+     * Secret chats can't be searched on the server, so their cached messages are looked up
+     * in the messages_search token table, which is kept next to the messages it points to.
+     */
+    private static void searchLocalMessages(final String query, final long dialog_id, final int max_date, final int max_id, final int guid, final int currentReqId) {
+        ArrayList<String> words = new ArrayList<>();
+        addSearchWords(query, words);
+        if (words.isEmpty()) {
+            return;
+        }
+        final ArrayList<String[]> terms = new ArrayList<>();
+        for (int a = 0; a < Math.min(words.size(), maxSearchWords); a++) {
+            String word = words.get(a);
+            String translit = LocaleController.getInstance().getTranslitString(word);
+            if (translit.length() == 0 || translit.equals(word)) {
+                terms.add(new String[]{word});
+            } else {
+                terms.add(new String[]{word, translit});
+            }
+        }
+        MessagesStorage.getInstance().postReadRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<TLRPC.Message> messages = new ArrayList<>();
+                SQLiteCursor cursor = null;
+                try {
+                    cursor = MessagesStorage.getInstance().getReadDatabase().queryFinalized(getLocalSearchSql(dialog_id, terms, max_date, max_id), getLocalSearchArgs(terms));
+                    while (cursor.next()) {
+                        ByteBufferDesc data = MessagesStorage.getInstance().getBuffersStorage().getFreeBuffer(cursor.byteArrayLength(1));
+                        if (data != null && cursor.byteBufferValue(1, data.buffer) != 0) {
+                            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                            if (message != null) {
+                                MessageObject.setUnreadFlags(message, cursor.intValue(0));
+                                message.id = cursor.intValue(3);
+                                message.date = cursor.intValue(4);
+                                message.dialog_id = dialog_id;
+                                message.send_state = cursor.intValue(2);
+                                messages.add(message);
+                            }
+                        }
+                        MessagesStorage.getInstance().getBuffersStorage().reuseFreeBuffer(data);
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.dispose();
+                    }
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (currentReqId == lastReqId) {
+                            processSearchResult(messages, max_id == 0 && max_date == 0, guid);
+                        }
+                    }
+                });
+            }
+        });
+    }
 }
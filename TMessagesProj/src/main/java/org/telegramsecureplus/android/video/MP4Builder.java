@@ -44,6 +44,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -60,7 +61,7 @@ public class MP4Builder {
     private long writedSinceLastMdat = 0;
     private boolean writeNewMdat = true;
     private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
-    private ByteBuffer sizeBuffer = null;
+    private ByteBuffer chunkBuffer = null;
 
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
         currentMp4Movie = mp4Movie;
@@ -75,26 +76,46 @@ public class MP4Builder {
 
         mdat = new InterleaveChunkMdat();
 
-        sizeBuffer = ByteBuffer.allocateDirect(4);
+        chunkBuffer = ByteBuffer.allocateDirect(256 * 1024);
 
         return this;
     }
 
     private void flushCurrentMdat() throws Exception {
-        long oldPosition = fc.position();
-        fc.position(mdat.getOffset());
-        mdat.getBox(fc);
-        fc.position(oldPosition);
+        int position = chunkBuffer.position();
+        chunkBuffer.position(0);
+        mdat.writeHeader(chunkBuffer);
+        chunkBuffer.position(0);
+        chunkBuffer.limit(position);
+        while (chunkBuffer.hasRemaining()) {
+            fc.write(chunkBuffer);
+        }
+        chunkBuffer.clear();
         mdat.setDataOffset(0);
         mdat.setContentSize(0);
         fos.flush();
     }
 
+    private void ensureChunkCapacity(int size) {
+        if (chunkBuffer.remaining() >= size) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(chunkBuffer.capacity() * 2, chunkBuffer.position() + size));
+        chunkBuffer.flip();
+        buffer.put(chunkBuffer);
+        chunkBuffer = buffer;
+    }
+
+    /**
+     * Samples are collected in memory until the current mdat chunk passes 32 KB. The chunk is
+     * then written with its final header in one call, so every byte reported through the return
+     * value is already final and can be uploaded while the conversion goes on.
+     */
     public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean isAudio) throws Exception {
         if (writeNewMdat) {
             mdat.setContentSize(0);
-            mdat.getBox(fc);
             mdat.setDataOffset(dataOffset);
+            chunkBuffer.position(16);
             dataOffset += 16;
             writedSinceLastMdat += 16;
             writeNewMdat = false;
@@ -103,30 +124,23 @@ public class MP4Builder {
         mdat.setContentSize(mdat.getContentSize() + bufferInfo.size);
         writedSinceLastMdat += bufferInfo.size;
 
-        boolean flush = false;
-        if (writedSinceLastMdat >= 32 * 1024) {
-            flushCurrentMdat();
-            writeNewMdat = true;
-            flush = true;
-            writedSinceLastMdat -= 32 * 1024;
-        }
-
         currentMp4Movie.addSample(trackIndex, dataOffset, bufferInfo);
         byteBuf.position(bufferInfo.offset + (isAudio ? 0 : 4));
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
 
+        ensureChunkCapacity(bufferInfo.size);
         if (!isAudio) {
-            sizeBuffer.position(0);
-            sizeBuffer.putInt(bufferInfo.size - 4);
-            sizeBuffer.position(0);
-            fc.write(sizeBuffer);
+            chunkBuffer.putInt(bufferInfo.size - 4);
         }
-
-        fc.write(byteBuf);
+        chunkBuffer.put(byteBuf);
         dataOffset += bufferInfo.size;
 
-        if (flush) {
-            fos.flush();
+        boolean flush = false;
+        if (writedSinceLastMdat >= 32 * 1024) {
+            flushCurrentMdat();
+            writeNewMdat = true;
+            flush = true;
+            writedSinceLastMdat -= 32 * 1024;
         }
         return flush;
     }
@@ -141,10 +155,10 @@ public class MP4Builder {
         }
 
         for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
+            int[] sampleSizes = track.getSampleSizes();
+            long[] sizes = new long[track.getSamplesCount()];
             for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
+                sizes[i] = sampleSizes[i];
             }
             track2SampleSizes.put(track, sizes);
         }
@@ -212,6 +226,12 @@ public class MP4Builder {
 
         public void getBox(WritableByteChannel writableByteChannel) throws IOException {
             ByteBuffer bb = ByteBuffer.allocate(16);
+            writeHeader(bb);
+            bb.rewind();
+            writableByteChannel.write(bb);
+        }
+
+        public void writeHeader(ByteBuffer bb) {
             long size = getSize();
             if (isSmallBox(size)) {
                 IsoTypeWriter.writeUInt32(bb, size);
@@ -224,8 +244,6 @@ public class MP4Builder {
             } else {
                 IsoTypeWriter.writeUInt64(bb, size);
             }
-            bb.rewind();
-            writableByteChannel.write(bb);
         }
     }
 
@@ -384,19 +402,19 @@ public class MP4Builder {
 
         int previousWritedChunkCount = -1;
 
-        int samplesCount = track.getSamples().size();
+        int samplesCount = track.getSamplesCount();
+        long[] sampleOffsets = track.getSampleOffsets();
+        int[] sampleSizes = track.getSampleSizes();
         for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
+            long offset = sampleOffsets[a];
+            long size = sampleSizes[a];
 
             lastOffset = offset + size;
             lastSampleCount++;
 
             boolean write = false;
             if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
+                if (lastOffset != sampleOffsets[a + 1]) {
                     write = true;
                 }
             } else {
@@ -421,22 +439,23 @@ public class MP4Builder {
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
+        int samplesCount = track.getSamplesCount();
+        long[] sampleOffsets = track.getSampleOffsets();
+        int[] sampleSizes = track.getSampleSizes();
+        long[] chunkOffsets = new long[samplesCount];
+        int chunksCount = 0;
         long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
+        for (int a = 0; a < samplesCount; a++) {
+            long offset = sampleOffsets[a];
             if (lastOffset != -1 && lastOffset != offset) {
                 lastOffset = -1;
             }
             if (lastOffset == -1) {
-                chunksOffsets.add(offset);
+                chunkOffsets[chunksCount++] = offset;
             }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
+            lastOffset = offset + sampleSizes[a];
         }
+        long[] chunkOffsetsLong = Arrays.copyOf(chunkOffsets, chunksCount);
 
         StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
         stco.setChunkOffsets(chunkOffsetsLong);
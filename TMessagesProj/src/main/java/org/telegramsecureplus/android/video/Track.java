@@ -27,26 +27,31 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
 
 @TargetApi(16)
 public class Track {
     private long trackId = 0;
-    private ArrayList<Sample> samples = new ArrayList<Sample>();
+    private long[] sampleOffsets = new long[256];
+    private int[] sampleSizes = new int[256];
+    private int samplesCount = 0;
     private long duration = 0;
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
+    private int[] syncSamples = null;
+    private int syncSamplesCount = 0;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
-    private ArrayList<Long> sampleDurations = new ArrayList<Long>();
+    private long[] sampleDurations = new long[256];
+    private int sampleDurationsCount = 0;
+    private long lastSampleDuration;
     private boolean isAudio = false;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<Integer, Integer>();
     private long lastPresentationTimeUs = 0;
@@ -70,12 +75,12 @@ public class Track {
     public Track(int id, MediaFormat format, boolean isAudio) throws Exception {
         trackId = id;
         if (!isAudio) {
-            sampleDurations.add((long)3015);
+            lastSampleDuration = 3015;
             duration = 3015;
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<Integer>();
+            syncSamples = new int[16];
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
@@ -136,7 +141,7 @@ public class Track {
                 sampleDescriptionBox.addBox(visualSampleEntry);
             }
         } else {
-            sampleDurations.add((long)1024);
+            lastSampleDuration = 1024;
             duration = 1024;
             isAudio = true;
             volume = 1;
@@ -187,23 +192,43 @@ public class Track {
 
     public void addSample(long offset, MediaCodec.BufferInfo bufferInfo) {
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
+        if (samplesCount == sampleOffsets.length) {
+            sampleOffsets = Arrays.copyOf(sampleOffsets, samplesCount * 2);
+            sampleSizes = Arrays.copyOf(sampleSizes, samplesCount * 2);
+        }
+        sampleOffsets[samplesCount] = offset;
+        sampleSizes[samplesCount] = bufferInfo.size;
+        samplesCount++;
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            if (syncSamplesCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSamplesCount * 2);
+            }
+            syncSamples[syncSamplesCount++] = samplesCount;
         }
 
         long delta = bufferInfo.presentationTimeUs - lastPresentationTimeUs;
         lastPresentationTimeUs = bufferInfo.presentationTimeUs;
         delta = (delta * timeScale + 500000L) / 1000000L;
         if (!first) {
-            sampleDurations.add(sampleDurations.size() - 1, delta);
+            if (sampleDurationsCount == sampleDurations.length) {
+                sampleDurations = Arrays.copyOf(sampleDurations, sampleDurationsCount * 2);
+            }
+            sampleDurations[sampleDurationsCount++] = delta;
             duration += delta;
         }
         first = false;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    public int getSamplesCount() {
+        return samplesCount;
+    }
+
+    public long[] getSampleOffsets() {
+        return sampleOffsets;
+    }
+
+    public int[] getSampleSizes() {
+        return sampleSizes;
     }
 
     public long getDuration() {
@@ -223,12 +248,12 @@ public class Track {
     }
 
     public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
+        if (syncSamples == null || syncSamplesCount == 0) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
+        long[] returns = new long[syncSamplesCount];
+        for (int i = 0; i < syncSamplesCount; i++) {
+            returns[i] = syncSamples[i];
         }
         return returns;
     }
@@ -253,8 +278,10 @@ public class Track {
         return volume;
     }
 
-    public ArrayList<Long> getSampleDurations() {
-        return sampleDurations;
+    public long[] getSampleDurations() {
+        long[] durations = Arrays.copyOf(sampleDurations, sampleDurationsCount + 1);
+        durations[sampleDurationsCount] = lastSampleDuration;
+        return durations;
     }
 
     public boolean isAudio() {
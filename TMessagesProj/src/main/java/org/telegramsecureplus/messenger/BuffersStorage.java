@@ -8,18 +8,87 @@
 
 package org.telegramsecureplus.messenger;
 
-import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class BuffersStorage {
 
-    private final ArrayList<ByteBufferDesc> freeBuffers128;
-    private final ArrayList<ByteBufferDesc> freeBuffers1024;
-    private final ArrayList<ByteBufferDesc> freeBuffers4096;
-    private final ArrayList<ByteBufferDesc> freeBuffers16384;
-    private final ArrayList<ByteBufferDesc> freeBuffers32768;
-    private final ArrayList<ByteBufferDesc> freeBuffersBig;
-    private boolean isThreadSafe;
-    private final static Object sync = new Object();
+    private static final int[] sizeClasses = new int[] {128, 1024 + 200, 4096 + 200, 16384 + 200, 40000, 280000, 524288 + 2048};
+    private static final int[] initialRetained = new int[] {5, 10, 10, 10, 10, 10, 2};
+    private static final int[] maxRetained = new int[] {64, 64, 32, 32, 16, 8, 2};
+    private static final int MAGAZINE_SIZE = 4;
+    private static final int MAGAZINE_MAX_BUFFER_SIZE = 40000;
+
+    private final String name;
+    private final SizeClass[] classes;
+    private final ThreadLocal<ByteBufferDesc[][]> magazines = new ThreadLocal<>();
+    private final AtomicLong oversizedAllocations = new AtomicLong();
+
+    private static class SizeClass {
+        final int byteCount;
+        final int hardLimit;
+        final AtomicReferenceArray<ByteBufferDesc> slots;
+        final AtomicInteger pooled = new AtomicInteger();
+        final AtomicInteger cached = new AtomicInteger();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger highWaterMark = new AtomicInteger();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        volatile int retainLimit;
+
+        SizeClass(int byteCount, int initial, int hardLimit) {
+            this.byteCount = byteCount;
+            this.hardLimit = hardLimit;
+            slots = new AtomicReferenceArray<>(hardLimit);
+            retainLimit = initial;
+        }
+
+        ByteBufferDesc pop() {
+            if (pooled.get() <= 0) {
+                return null;
+            }
+            for (int a = 0; a < hardLimit; a++) {
+                if (slots.get(a) != null) {
+                    ByteBufferDesc buffer = slots.getAndSet(a, null);
+                    if (buffer != null) {
+                        pooled.decrementAndGet();
+                        return buffer;
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean push(ByteBufferDesc buffer) {
+            if (pooled.incrementAndGet() > retainLimit) {
+                pooled.decrementAndGet();
+                return false;
+            }
+            for (int a = 0; a < hardLimit; a++) {
+                if (slots.get(a) == null && slots.compareAndSet(a, null, buffer)) {
+                    return true;
+                }
+            }
+            pooled.decrementAndGet();
+            return false;
+        }
+
+        void onAcquire() {
+            int current = outstanding.incrementAndGet();
+            int max;
+            while (current > (max = highWaterMark.get())) {
+                if (highWaterMark.compareAndSet(max, current)) {
+                    if (current > retainLimit) {
+                        retainLimit = Math.min(current, hardLimit);
+                    }
+                    break;
+                }
+            }
+        }
+    }
 
     private static volatile BuffersStorage Instance = null;
     public static BuffersStorage getInstance() {
@@ -28,75 +97,93 @@ public class BuffersStorage {
             synchronized (BuffersStorage.class) {
                 localInstance = Instance;
                 if (localInstance == null) {
-                    Instance = localInstance = new BuffersStorage(true);
+                    Instance = localInstance = new BuffersStorage("network");
                 }
             }
         }
         return localInstance;
     }
 
-    public BuffersStorage(boolean threadSafe) {
-        isThreadSafe = threadSafe;
-        freeBuffers128 = new ArrayList<>();
-        freeBuffers1024 = new ArrayList<>();
-        freeBuffers4096 = new ArrayList<>();
-        freeBuffers16384 = new ArrayList<>();
-        freeBuffers32768 = new ArrayList<>();
-        freeBuffersBig = new ArrayList<>();
+    public BuffersStorage(String storageName) {
+        name = storageName;
+        classes = new SizeClass[sizeClasses.length];
+        for (int a = 0; a < sizeClasses.length; a++) {
+            classes[a] = new SizeClass(sizeClasses[a], initialRetained[a], maxRetained[a]);
+        }
 
         for (int a = 0; a < 5; a++) {
-            freeBuffers128.add(new ByteBufferDesc(128));
+            classes[0].push(new ByteBufferDesc(128));
+        }
+    }
+
+    private static int sizeClassForSize(int size) {
+        for (int a = 0; a < sizeClasses.length; a++) {
+            if (size <= sizeClasses[a]) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    private static int sizeClassForCapacity(int capacity) {
+        for (int a = 0; a < sizeClasses.length; a++) {
+            if (capacity == sizeClasses[a]) {
+                return a;
+            }
         }
+        return -1;
+    }
+
+    private ByteBufferDesc[] getMagazine(int sizeClass) {
+        if (sizeClasses[sizeClass] > MAGAZINE_MAX_BUFFER_SIZE || !(Thread.currentThread() instanceof DispatchQueue)) {
+            return null;
+        }
+        ByteBufferDesc[][] threadMagazines = magazines.get();
+        if (threadMagazines == null) {
+            threadMagazines = new ByteBufferDesc[sizeClasses.length][];
+            magazines.set(threadMagazines);
+        }
+        ByteBufferDesc[] magazine = threadMagazines[sizeClass];
+        if (magazine == null) {
+            magazine = threadMagazines[sizeClass] = new ByteBufferDesc[MAGAZINE_SIZE];
+        }
+        return magazine;
     }
 
     public ByteBufferDesc getFreeBuffer(int size) {
         if (size <= 0) {
             return null;
         }
-        int byteCount = 0;
-        ArrayList<ByteBufferDesc> arrayToGetFrom = null;
         ByteBufferDesc buffer = null;
-        if (size <= 128) {
-            arrayToGetFrom = freeBuffers128;
-            byteCount = 128;
-        } else if (size <= 1024 + 200) {
-            arrayToGetFrom = freeBuffers1024;
-            byteCount = 1024 + 200;
-        } else if (size <= 4096 + 200) {
-            arrayToGetFrom = freeBuffers4096;
-            byteCount = 4096 + 200;
-        } else if (size <= 16384 + 200) {
-            arrayToGetFrom = freeBuffers16384;
-            byteCount = 16384 + 200;
-        } else if (size <= 40000) {
-            arrayToGetFrom = freeBuffers32768;
-            byteCount = 40000;
-        } else if (size <= 280000) {
-            arrayToGetFrom = freeBuffersBig;
-            byteCount = 280000;
-        } else {
+        int index = sizeClassForSize(size);
+        if (index == -1) {
+            oversizedAllocations.incrementAndGet();
             buffer = new ByteBufferDesc(size);
-        }
-
-        if (arrayToGetFrom != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToGetFrom.size() > 0) {
-                        buffer = arrayToGetFrom.get(0);
-                        arrayToGetFrom.remove(0);
+        } else {
+            SizeClass sizeClass = classes[index];
+            ByteBufferDesc[] magazine = getMagazine(index);
+            if (magazine != null) {
+                for (int a = MAGAZINE_SIZE - 1; a >= 0; a--) {
+                    if (magazine[a] != null) {
+                        buffer = magazine[a];
+                        magazine[a] = null;
+                        sizeClass.cached.decrementAndGet();
+                        break;
                     }
                 }
-            } else {
-                if (arrayToGetFrom.size() > 0) {
-                    buffer = arrayToGetFrom.get(0);
-                    arrayToGetFrom.remove(0);
-                }
             }
-
             if (buffer == null) {
-                buffer = new ByteBufferDesc(byteCount);
-                FileLog.e("tmessages", "create new " + byteCount + " buffer");
+                buffer = sizeClass.pop();
+            }
+            if (buffer != null) {
+                sizeClass.hits.incrementAndGet();
+            } else {
+                sizeClass.misses.incrementAndGet();
+                buffer = new ByteBufferDesc(sizeClass.byteCount);
+                FileLog.d(name, "create new %d buffer", sizeClass.byteCount);
             }
+            sizeClass.onAcquire();
+            buffer.owner = this;
         }
 
         buffer.buffer.limit(size).rewind();
@@ -107,36 +194,54 @@ public class BuffersStorage {
         if (buffer == null) {
             return;
         }
-        int maxCount = 10;
-        ArrayList<ByteBufferDesc> arrayToReuse = null;
-        if (buffer.buffer.capacity() == 128) {
-            arrayToReuse = freeBuffers128;
-        } else if (buffer.buffer.capacity() == 1024 + 200) {
-            arrayToReuse = freeBuffers1024;
-        } if (buffer.buffer.capacity() == 4096 + 200) {
-            arrayToReuse = freeBuffers4096;
-        } else if (buffer.buffer.capacity() == 16384 + 200) {
-            arrayToReuse = freeBuffers16384;
-        } else if (buffer.buffer.capacity() == 40000) {
-            arrayToReuse = freeBuffers32768;
-        } else if (buffer.buffer.capacity() == 280000) {
-            arrayToReuse = freeBuffersBig;
-            maxCount = 10;
-        }
-        if (arrayToReuse != null) {
-            if (isThreadSafe) {
-                synchronized (sync) {
-                    if (arrayToReuse.size() < maxCount) {
-                        arrayToReuse.add(buffer);
-                    } else {
-                        FileLog.e("tmessages", "too more");
-                    }
-                }
-            } else {
-                if (arrayToReuse.size() < maxCount) {
-                    arrayToReuse.add(buffer);
+        int index = sizeClassForCapacity(buffer.buffer.capacity());
+        if (index == -1) {
+            return;
+        }
+        SizeClass sizeClass = classes[index];
+        if (buffer.owner == this) {
+            buffer.owner = null;
+            sizeClass.outstanding.decrementAndGet();
+        }
+        ByteBufferDesc[] magazine = getMagazine(index);
+        if (magazine != null) {
+            for (int a = 0; a < MAGAZINE_SIZE; a++) {
+                if (magazine[a] == null) {
+                    magazine[a] = buffer;
+                    sizeClass.cached.incrementAndGet();
+                    return;
                 }
             }
         }
+        if (!sizeClass.push(buffer)) {
+            sizeClass.dropped.incrementAndGet();
+        }
+    }
+
+    long getRetainedBytes() {
+        long retainedBytes = 0;
+        for (SizeClass sizeClass : classes) {
+            retainedBytes += (long) (sizeClass.pooled.get() + sizeClass.cached.get()) * sizeClass.byteCount;
+        }
+        return retainedBytes;
+    }
+
+    public String getStatistics() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("buffers ").append(name).append(":\n");
+        for (int a = 0; a < classes.length; a++) {
+            SizeClass sizeClass = classes[a];
+            int pooled = sizeClass.pooled.get();
+            int cached = sizeClass.cached.get();
+            builder.append(String.format(Locale.US, "%d: hits=%d misses=%d dropped=%d inUse=%d highWater=%d pooled=%d/%d cached=%d retained=%d\n",
+                    sizeClass.byteCount, sizeClass.hits.get(), sizeClass.misses.get(), sizeClass.dropped.get(), sizeClass.outstanding.get(),
+                    sizeClass.highWaterMark.get(), pooled, sizeClass.retainLimit, cached, (long) (pooled + cached) * sizeClass.byteCount));
+        }
+        builder.append(String.format(Locale.US, "oversized=%d retainedBytes=%d", oversizedAllocations.get(), getRetainedBytes()));
+        return builder.toString();
+    }
+
+    public void dumpStatistics() {
+        FileLog.d("tmessages", getStatistics());
     }
 }
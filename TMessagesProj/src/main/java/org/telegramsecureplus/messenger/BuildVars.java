@@ -10,6 +10,7 @@ package org.telegramsecureplus.messenger;
 
 public class BuildVars {
     public static boolean DEBUG_VERSION = false;
+    public static boolean LOGS_ENABLED = false;
     public static int BUILD_VERSION = 572;
     public static int APP_ID = 34112; //obtain your own APP_ID at https://core.telegram.org/api/obtaining_api_id
     public static String APP_HASH = "e4cab2862b5dd28f315bdc9e305ffa37"; //obtain your own APP_HASH at https://core.telegram.org/api/obtaining_api_id
@@ -15,6 +15,7 @@ public class ByteBufferDesc extends AbsSerializedData {
     public ByteBuffer buffer;
     private boolean justCalc = false;
     private int len = 0;
+    BuffersStorage owner;
 
     public ByteBufferDesc(int size) {
         buffer = ByteBuffer.allocateDirect(size);
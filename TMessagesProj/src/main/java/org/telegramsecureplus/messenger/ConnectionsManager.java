@@ -53,6 +53,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
     private ArrayList<RPCRequest> requestQueue = new ArrayList<>();
     private ArrayList<RPCRequest> runningRequests = new ArrayList<>();
+    private RequestIndex requestIndex = new RequestIndex();
     private ArrayList<Action> actionQueue = new ArrayList<>();
 
     private ArrayList<Integer> unknownDatacenterIds = new ArrayList<>();
@@ -67,6 +68,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     protected int movingToDatacenterId;
     private long lastOutgoingMessageId = 0;
     private int isTestBackend = 0;
+    private static final int SESSION_VERSION = 1;
+    private SessionStore sessionStore;
+    private boolean hasLegacySession;
     private int timeDifference = 0;
     private int currentPingTime;
     private int lastDestroySessionRequestTime;
@@ -135,6 +139,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 if (!dontSleep) {
                     for (int a = 0; a < runningRequests.size(); a++) {
                         RPCRequest request = runningRequests.get(a);
+                        if (!request.running) {
+                            continue;
+                        }
                         if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                             dontSleep = true;
                         } else if (request.retryCount < 10 && (request.runningStartTime + 60 > (int) (currentTime / 1000)) && ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0)) {
@@ -146,6 +153,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 if (!dontSleep) {
                     for (int a = 0; a < requestQueue.size(); a++) {
                         RPCRequest request = requestQueue.get(a);
+                        if (request.cancelled) {
+                            continue;
+                        }
                         if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                             dontSleep = true;
                         } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
@@ -159,6 +169,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         FileLog.e("tmessages", "pausing network and timers by sleep time = " + nextSleepTimeout);
                         for (Datacenter datacenter : datacenters.values()) {
                             datacenter.suspendConnections();
+                            datacenter.releaseIdleConnections();
                         }
                     }
                     try {
@@ -358,8 +369,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
+                sessionStore = new SessionStore(ApplicationLoader.applicationContext.getFilesDir(), "session.dat");
                 File configFile = new File(ApplicationLoader.applicationContext.getFilesDir(), "config.dat");
-                if (configFile.exists()) {
+                SerializedData sessionData = sessionStore.read();
+                if (sessionData != null && readSession(sessionData)) {
+                    hasLegacySession = configFile.exists();
+                } else if (configFile.exists()) {
+                    hasLegacySession = true;
                     try {
                         SerializedData data = new SerializedData(configFile);
                         isTestBackend = data.readInt32(false);
@@ -382,6 +398,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 } else {
                     SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("dataconfig", Context.MODE_PRIVATE);
+                    hasLegacySession = preferences.contains("datacenterSetId");
                     isTestBackend = preferences.getInt("datacenterSetId", 0);
                     currentDatacenterId = preferences.getInt("currentDatacenterId", 0);
                     timeDifference = preferences.getInt("timeDifference", 0);
@@ -436,7 +453,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
                 fillDatacenters();
 
-                if (datacenters.size() != 0 && currentDatacenterId == 0 || pushSessionId == 0) {
+                if (datacenters.size() != 0 && currentDatacenterId == 0 || pushSessionId == 0 || hasLegacySession) {
                     if (pushSessionId == 0) {
                         pushSessionId = Utilities.random.nextLong();
                     }
@@ -450,6 +467,60 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         });
     }
 
+    private boolean readSession(SerializedData data) {
+        try {
+            int version = data.readInt32(false);
+            if (version != SESSION_VERSION) {
+                return false;
+            }
+            isTestBackend = data.readInt32(false);
+            currentDatacenterId = data.readInt32(false);
+            timeDifference = data.readInt32(false);
+            lastDcUpdateTime = data.readInt32(false);
+            pushSessionId = data.readInt64(false);
+            sessionsToDestroy.clear();
+            int count = data.readInt32(false);
+            for (int a = 0; a < count; a++) {
+                sessionsToDestroy.add(data.readInt64(false));
+            }
+            count = data.readInt32(false);
+            for (int a = 0; a < count; a++) {
+                Datacenter datacenter = new Datacenter(data, 1);
+                datacenters.put(datacenter.datacenterId, datacenter);
+            }
+            return true;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            isTestBackend = 0;
+            currentDatacenterId = 0;
+            timeDifference = 0;
+            lastDcUpdateTime = 0;
+            pushSessionId = 0;
+            sessionsToDestroy.clear();
+            datacenters.clear();
+        } finally {
+            data.cleanup();
+        }
+        return false;
+    }
+
+    private void removeLegacySession() {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("dataconfig", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.remove("datacenterSetId");
+        editor.remove("currentDatacenterId");
+        editor.remove("timeDifference");
+        editor.remove("lastDcUpdateTime");
+        editor.remove("pushSessionId");
+        editor.remove("sessionsToDestroy");
+        editor.remove("datacenters");
+        editor.commit();
+        File configFile = new File(ApplicationLoader.applicationContext.getFilesDir(), "config.dat");
+        if (configFile.exists()) {
+            configFile.delete();
+        }
+    }
+
     private void fillDatacenters() {
         if (datacenters.size() == 0) {
             if (isTestBackend == 0) {
@@ -604,53 +675,47 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             @Override
             public void run() {
                 try {
-                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("dataconfig", Context.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putInt("datacenterSetId", isTestBackend);
+                    SerializedData data = new SerializedData();
+                    data.writeInt32(SESSION_VERSION);
+                    data.writeInt32(isTestBackend);
                     Datacenter currentDatacenter = datacenterWithId(currentDatacenterId);
                     if (currentDatacenter != null) {
-                        editor.putInt("currentDatacenterId", currentDatacenterId);
-                        editor.putInt("timeDifference", timeDifference);
-                        editor.putInt("lastDcUpdateTime", lastDcUpdateTime);
-                        editor.putLong("pushSessionId", pushSessionId);
+                        data.writeInt32(currentDatacenterId);
+                        data.writeInt32(timeDifference);
+                        data.writeInt32(lastDcUpdateTime);
+                        data.writeInt64(pushSessionId);
 
                         ArrayList<Long> sessions = new ArrayList<>();
                         currentDatacenter.getSessions(sessions);
-
-                        if (!sessions.isEmpty()) {
-                            SerializedData data = new SerializedData(sessions.size() * 8 + 4);
-                            data.writeInt32(sessions.size());
-                            for (int a = 0; a < sessions.size(); a++) {
-                                data.writeInt64(sessions.get(a));
-                            }
-                            editor.putString("sessionsToDestroy", Base64.encodeToString(data.toByteArray(), Base64.DEFAULT));
-                            data.cleanup();
-                        } else {
-                            editor.remove("sessionsToDestroy");
+                        data.writeInt32(sessions.size());
+                        for (int a = 0; a < sessions.size(); a++) {
+                            data.writeInt64(sessions.get(a));
                         }
 
-                        if (!datacenters.isEmpty()) {
-                            SerializedData data = new SerializedData();
-                            data.writeInt32(datacenters.size());
-                            for (Datacenter datacenter : datacenters.values()) {
-                                datacenter.SerializeToStream(data);
-                            }
-                            editor.putString("datacenters", Base64.encodeToString(data.toByteArray(), Base64.DEFAULT));
-                            data.cleanup();
-                        } else {
-                            editor.remove("datacenters");
+                        data.writeInt32(datacenters.size());
+                        for (Datacenter datacenter : datacenters.values()) {
+                            datacenter.SerializeToStream(data);
                         }
                     } else {
-                        editor.remove("datacenters");
-                        editor.remove("sessionsToDestroy");
-                        editor.remove("currentDatacenterId");
-                        editor.remove("timeDifference");
-                    }
-                    editor.commit();
-                    File configFile = new File(ApplicationLoader.applicationContext.getFilesDir(), "config.dat");
-                    if (configFile.exists()) {
-                        configFile.delete();
+                        data.writeInt32(0);
+                        data.writeInt32(0);
+                        data.writeInt32(lastDcUpdateTime);
+                        data.writeInt64(pushSessionId);
+                        data.writeInt32(0);
+                        data.writeInt32(0);
+                    }
+                    Runnable onWritten = null;
+                    if (hasLegacySession) {
+                        hasLegacySession = false;
+                        onWritten = new Runnable() {
+                            @Override
+                            public void run() {
+                                removeLegacySession();
+                            }
+                        };
                     }
+                    sessionStore.write(data.toByteArray(), onWritten);
+                    data.cleanup();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
                 }
@@ -661,9 +726,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     void clearRequestsForRequestClass(int requestClass, Datacenter datacenter) {
         for (int a = 0; a < runningRequests.size(); a++) {
             RPCRequest request = runningRequests.get(a);
+            if (!request.running) {
+                continue;
+            }
             Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
             if ((request.flags & requestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                request.runningMessageId = 0;
+                setRunningMessageId(request, 0);
                 request.runningMessageSeqNo = 0;
                 request.runningStartTime = 0;
                 request.runningMinStartTime = 0;
@@ -678,31 +746,40 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             public void run() {
                 for (int a = 0; a < requestQueue.size(); a++) {
                     RPCRequest request = requestQueue.get(a);
-                    if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0) {
+                    if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0 && !request.cancelled) {
                         continue;
                     }
                     requestQueue.remove(a);
+                    a--;
+                    if (request.cancelled) {
+                        continue;
+                    }
+                    forgetRequest(request);
                     if (request.completionBlock != null) {
                         TLRPC.TL_error implicitError = new TLRPC.TL_error();
                         implicitError.code = -1000;
                         implicitError.text = "";
                         request.completionBlock.run(null, implicitError);
                     }
-                    a--;
                 }
                 for (int a = 0; a < runningRequests.size(); a++) {
                     RPCRequest request = runningRequests.get(a);
-                    if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0) {
+                    if ((request.flags & RPCRequest.RPCRequestClassWithoutLogin) != 0 && request.running) {
                         continue;
                     }
                     runningRequests.remove(a);
+                    a--;
+                    if (!request.running) {
+                        continue;
+                    }
+                    unregisterRunningRequest(request);
+                    forgetRequest(request);
                     if (request.completionBlock != null) {
                         TLRPC.TL_error implicitError = new TLRPC.TL_error();
                         implicitError.code = -1000;
                         implicitError.text = "";
                         request.completionBlock.run(null, implicitError);
                     }
-                    a--;
                 }
                 pingIdToDate.clear();
                 quickAckIdToRequestIds.clear();
@@ -773,7 +850,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         AndroidUtilities.runOnUIThread(new Runnable() {
             @Override
             public void run() {
-                Integer guid = requestsByClass.get(request);
+                Integer guid = requestsByClass.remove(request);
                 if (guid != null) {
                     ArrayList<Long> requests = requestsByGuids.get(guid);
                     if (requests != null) {
@@ -784,6 +861,68 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         });
     }
 
+    private void addRunningRequest(RPCRequest request) {
+        runningRequests.add(request);
+        requestIndex.addRunningRequest(request);
+    }
+
+    /**
+     * Drops a running request from the indexes. Callers inside a runningRequests loop remove
+     * it from the list right away, everyone else leaves it to the next processRequestQueue pass.
+     */
+    private void unregisterRunningRequest(RPCRequest request) {
+        if (request.running) {
+            unbindRequestConnection(request);
+            requestIndex.removeRunningRequest(request);
+        }
+    }
+
+    private void setRunningMessageId(RPCRequest request, long messageId) {
+        requestIndex.setRunningMessageId(request, messageId);
+    }
+
+    private TcpConnection getRequestConnection(Datacenter datacenter, RPCRequest request) {
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            return datacenter.getGenericConnection(this);
+        }
+        TcpConnection connection = request.runningConnection;
+        if (connection != null && connection.channelToken != 0 && connection.getDatacenterId() == datacenter.datacenterId && datacenter.hasMediaConnection(connection)) {
+            return connection;
+        }
+        if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            return datacenter.getDownloadConnection(this);
+        } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+            return datacenter.getUploadConnection(this);
+        }
+        return null;
+    }
+
+    private void bindRequestConnection(RPCRequest request, TcpConnection connection) {
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 || request.runningConnection == connection) {
+            return;
+        }
+        unbindRequestConnection(request);
+        request.runningConnection = connection;
+        connection.requestsInFlight++;
+        connection.bytesInFlight += request.requestBytes;
+    }
+
+    private void unbindRequestConnection(RPCRequest request) {
+        if (request.runningConnection != null) {
+            request.runningConnection.requestsInFlight--;
+            request.runningConnection.bytesInFlight -= request.requestBytes;
+            request.runningConnection = null;
+        }
+    }
+
+    private RPCRequest getRunningRequest(long messageId) {
+        return requestIndex.getRunningRequest(messageId);
+    }
+
+    private void forgetRequest(RPCRequest request) {
+        requestIndex.forgetRequest(request);
+    }
+
     public void applyDcPushUpdate(final int dc, final String ip_address, final int port) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -993,6 +1132,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 request.requiresCompletion = requiresCompletion;
 
                 requestQueue.add(request);
+                requestIndex.putRequest(request);
 
                 if (runQueue) {
                     processRequestQueue(0, 0);
@@ -1014,43 +1154,27 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                boolean found = false;
-
-                for (int i = 0; i < requestQueue.size(); i++) {
-                    RPCRequest request = requestQueue.get(i);
-                    if (request.token == token) {
-                        found = true;
-                        request.cancelled = true;
-                        FileLog.d("tmessages", "===== Cancelled queued rpc request " + request.rawRequest);
-                        requestQueue.remove(i);
-                        break;
-                    }
-                }
-
-                if (!ifNotSent) {
-                    for (int i = 0; i < runningRequests.size(); i++) {
-                        RPCRequest request = runningRequests.get(i);
-                        if (request.token == token) {
-                            found = true;
-
-                            FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
-
-                            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                                if (notifyServer) {
-                                    TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
-                                    dropAnswer.req_msg_id = request.runningMessageId;
-                                    performRpc(dropAnswer, null, false, request.flags);
-                                }
+                RPCRequest request = requestIndex.getRequest(token);
+                if (request != null && !request.running) {
+                    requestIndex.cancelRequest(request);
+                    FileLog.d("tmessages", "===== Cancelled queued rpc request " + request.rawRequest);
+                } else if (!ifNotSent) {
+                    if (request != null) {
+                        FileLog.d("tmessages", "===== Cancelled running rpc request " + request.rawRequest);
+
+                        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+                            if (notifyServer) {
+                                TLRPC.TL_rpc_drop_answer dropAnswer = new TLRPC.TL_rpc_drop_answer();
+                                dropAnswer.req_msg_id = request.runningMessageId;
+                                performRpc(dropAnswer, null, false, request.flags);
                             }
-
-                            request.cancelled = true;
-                            request.rawRequest.freeResources();
-                            request.rpcRequest.freeResources();
-                            runningRequests.remove(i);
-                            break;
                         }
-                    }
-                    if (!found) {
+
+                        request.rawRequest.freeResources();
+                        request.rpcRequest.freeResources();
+                        unbindRequestConnection(request);
+                        requestIndex.cancelRequest(request);
+                    } else {
                         FileLog.d("tmessages", "***** Warning: cancelling unknown request");
                     }
                 }
@@ -1134,6 +1258,11 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         int currentTime = (int) (System.currentTimeMillis() / 1000);
         for (int i = 0; i < runningRequests.size(); i++) {
             RPCRequest request = runningRequests.get(i);
+            if (!request.running) {
+                runningRequests.remove(i);
+                i--;
+                continue;
+            }
 
             int datacenterId = request.runningDatacenterId;
             if (datacenterId == DEFAULT_DATACENTER_ID) {
@@ -1152,6 +1281,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 }
                 if (requestStartTime != 0 && requestStartTime < currentTime - timeout) {
                     FileLog.e("tmessages", "move " + request.rawRequest + " to requestQueue");
+                    unregisterRunningRequest(request);
                     requestQueue.add(request);
                     runningRequests.remove(i);
                     i--;
@@ -1186,14 +1316,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
             float maxTimeout = 8.0f;
 
-            TcpConnection connection = null;
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                connection = requestDatacenter.getGenericConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                connection = requestDatacenter.getUploadConnection(this);
-            }
+            TcpConnection connection = getRequestConnection(requestDatacenter, request);
 
             if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
                 if (connection.channelToken == 0) {
@@ -1212,7 +1335,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 if (request.runningMessageId != 0) {
                     request.addRespondMessageId(request.runningMessageId);
                 }
-                request.runningMessageId = 0;
+                setRunningMessageId(request, 0);
                 request.runningMessageSeqNo = 0;
                 request.transportChannelToken = 0;
                 forceThisRequest = false;
@@ -1251,6 +1374,8 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         TLRPC.TL_error error = new TLRPC.TL_error();
                         error.code = -123;
                         error.text = "RETRY_LIMIT";
+                        unregisterRunningRequest(request);
+                        forgetRequest(request);
                         if (request.completionBlock != null) {
                             request.completionBlock.run(null, error);
                         }
@@ -1260,12 +1385,18 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                 }
 
+                if (request.runningConnection != null && request.runningConnection != connection) {
+                    setRunningMessageId(request, 0);
+                    request.runningMessageSeqNo = 0;
+                }
+                bindRequestConnection(request, connection);
+
                 NetworkMessage networkMessage = new NetworkMessage();
                 networkMessage.protoMessage = new TLRPC.TL_protoMessage();
 
                 if (request.runningMessageSeqNo == 0) {
                     request.runningMessageSeqNo = connection.generateMessageSeqNo(true);
-                    request.runningMessageId = generateMessageId();
+                    setRunningMessageId(request, generateMessageId());
                 }
                 networkMessage.protoMessage.msg_id = request.runningMessageId;
                 networkMessage.protoMessage.seqno = request.runningMessageSeqNo;
@@ -1275,6 +1406,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 networkMessage.requestId = request.token;
 
                 request.runningStartTime = currentTime;
+                request.sendTime = System.currentTimeMillis();
 
                 if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
                     request.transportChannelToken = connection.channelToken;
@@ -1316,20 +1448,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
         }
 
-        int genericRunningRequestCount = 0;
-        int uploadRunningRequestCount = 0;
-        int downloadRunningRequestCount = 0;
-
-        for (int a = 0; a < runningRequests.size(); a++) {
-            RPCRequest request = runningRequests.get(a);
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                genericRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                uploadRunningRequestCount++;
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                downloadRunningRequestCount++;
-            }
-        }
+        int genericRunningRequestCount = requestIndex.getRunningRequestsCount(RPCRequest.RPCRequestClassGeneric);
+        int uploadRunningRequestCount = requestIndex.getRunningRequestsCount(RPCRequest.RPCRequestClassUploadMedia);
+        int downloadRunningRequestCount = requestIndex.getRunningRequestsCount(RPCRequest.RPCRequestClassDownloadMedia);
 
         for (int i = 0; i < requestQueue.size(); i++) {
             RPCRequest request = requestQueue.get(i);
@@ -1392,14 +1513,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 continue;
             }
 
-            TcpConnection connection = null;
-            if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
-                connection = requestDatacenter.getGenericConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                connection = requestDatacenter.getDownloadConnection(this);
-            } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                connection = requestDatacenter.getUploadConnection(this);
-            }
+            TcpConnection connection = getRequestConnection(requestDatacenter, request);
 
             if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && connection.channelToken == 0) {
                 continue;
@@ -1412,12 +1526,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     }
                     genericRunningRequestCount++;
                 } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                    if (!haveNetwork || uploadRunningRequestCount >= 5) {
+                    if (!haveNetwork || uploadRunningRequestCount >= 5 * requestDatacenter.getUploadConnectionsCount()) {
                         continue;
                     }
                     uploadRunningRequestCount++;
                 } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
-                    if (!haveNetwork || downloadRunningRequestCount >= 5) {
+                    if (!haveNetwork || downloadRunningRequestCount >= 5 * requestDatacenter.getDownloadConnectionsCount()) {
                         continue;
                     }
                     downloadRunningRequestCount++;
@@ -1464,9 +1578,18 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 request.runningMessageSeqNo = networkMessage.protoMessage.seqno;
                 request.serializedLength = requestLength;
                 request.runningStartTime = (int) (System.currentTimeMillis() / 1000);
+                request.sendTime = System.currentTimeMillis();
                 request.transportChannelToken = connection.channelToken;
+                if (request.rawRequest instanceof TLRPC.TL_upload_getFile) {
+                    request.requestBytes = ((TLRPC.TL_upload_getFile) request.rawRequest).limit;
+                } else {
+                    request.requestBytes = requestLength;
+                }
                 if (request.requiresCompletion) {
-                    runningRequests.add(request);
+                    addRunningRequest(request);
+                    bindRequestConnection(request, connection);
+                } else {
+                    forgetRequest(request);
                 }
 
                 if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
@@ -1478,6 +1601,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 }
             } else {
                 FileLog.e("tmessages", "***** Couldn't serialize " + request.rawRequest);
+                forgetRequest(request);
             }
 
             requestQueue.remove(i);
@@ -1540,6 +1664,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                             long maxRequestId = 0;
                             for (int a = 0; a < runningRequests.size(); a++) {
                                 RPCRequest request = runningRequests.get(a);
+                                if (!request.running) {
+                                    continue;
+                                }
                                 if (request.rawRequest instanceof TLRPC.TL_messages_sendMessage ||
                                         request.rawRequest instanceof TLRPC.TL_messages_sendMedia ||
                                         request.rawRequest instanceof TLRPC.TL_messages_forwardMessages ||
@@ -1719,7 +1846,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                         }
                     }
 
-                    connection.sendData(transportData, true, reportAck);
+                    connection.sendFrame(transportData, reportAck);
                 } else {
                     FileLog.e("tmessages", "***** Transport data is nil");
                 }
@@ -1739,6 +1866,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         long messageId;
         TLObject messageBody;
         int messageSeqNo;
+        int messageLength;
 
         if (messages.size() == 1) {
             NetworkMessage networkMessage = messages.get(0);
@@ -1771,20 +1899,24 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                 messageId = generateMessageId();
                 messageBody = messageContainer;
                 messageSeqNo = connection.generateMessageSeqNo(false);
+                messageLength = 4 + 4 + 8 + 4 + 4 + message.bytes;
             } else {
                 messageId = message.msg_id;
                 messageBody = message.body;
                 messageSeqNo = message.seqno;
+                messageLength = message.bytes;
             }
         } else {
             TLRPC.TL_msg_container messageContainer = new TLRPC.TL_msg_container();
 
             ArrayList<TLRPC.TL_protoMessage> containerMessages = new ArrayList<>(messages.size());
+            messageLength = 4 + 4;
 
             for (int a = 0; a < messages.size(); a++) {
                 NetworkMessage networkMessage = messages.get(a);
                 TLRPC.TL_protoMessage message = networkMessage.protoMessage;
                 containerMessages.add(message);
+                messageLength += 8 + 4 + 4 + message.bytes;
                 if (BuildVars.DEBUG_VERSION) {
                     if (message.body instanceof TLRPC.invokeWithLayer) {
                         FileLog.d("tmessages", connection.getSissionId() + ":DC" + datacenter.datacenterId + "> Send message (" + message.seqno + ", " + message.msg_id + "): " + ((TLRPC.invokeWithLayer) message.body).query);
@@ -1808,57 +1940,57 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             messageSeqNo = connection.generateMessageSeqNo(false);
         }
 
-        ByteBufferDesc sizeBuffer = new ByteBufferDesc(true);
-        messageBody.serializeToStream(sizeBuffer);
+        int innerLength = 8 + 8 + 8 + 4 + 4 + messageLength;
+        int zeroCount = 0;
+        if (innerLength % 16 != 0) {
+            zeroCount = 16 - innerLength % 16;
+        }
+        int innerOffset = TcpConnection.FRAME_HEADER_RESERVE + 8 + 16;
 
-        ByteBufferDesc innerOs = BuffersStorage.getInstance().getFreeBuffer(8 + 8 + 8 + 4 + 4 + sizeBuffer.length());
+        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(innerOffset + innerLength + zeroCount);
+        data.position(innerOffset);
 
         long serverSalt = datacenter.selectServerSalt(getCurrentTime());
         if (serverSalt == 0) {
-            innerOs.writeInt64(0);
+            data.writeInt64(0);
         } else {
-            innerOs.writeInt64(serverSalt);
+            data.writeInt64(serverSalt);
         }
-        innerOs.writeInt64(connection.getSissionId());
-        innerOs.writeInt64(messageId);
-        innerOs.writeInt32(messageSeqNo);
-        innerOs.writeInt32(sizeBuffer.length());
-        messageBody.serializeToStream(innerOs);
-
-        byte[] messageKeyFull = Utilities.computeSHA1(innerOs.buffer, 0, innerOs.limit());
-        byte[] messageKey = new byte[16];
-        System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
+        data.writeInt64(connection.getSissionId());
+        data.writeInt64(messageId);
+        data.writeInt32(messageSeqNo);
+        data.writeInt32(messageLength);
+        messageBody.serializeToStream(data);
 
-        if (quickAckId != null) {
-            SerializedData data = new SerializedData(messageKeyFull);
-            quickAckId.add(data.readInt32(false) & 0x7fffffff);
-            data.cleanup();
+        if (data.position() != innerOffset + innerLength) {
+            FileLog.e("tmessages", "***** Wrong serialized length " + (data.position() - innerOffset) + " expected " + innerLength + " for " + messageBody);
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            return null;
         }
 
-        MessageKeyData keyData = MessageKeyData.generateMessageKeyData(datacenter.authKey, messageKey, false);
-
-        int zeroCount = 0;
-        if (innerOs.limit() % 16 != 0) {
-            zeroCount = 16 - innerOs.limit() % 16;
+        for (int a = 0; a < zeroCount; a++) {
+            data.writeByte((byte) Utilities.random.nextInt());
         }
 
-        ByteBufferDesc dataForEncryption = BuffersStorage.getInstance().getFreeBuffer(innerOs.limit() + zeroCount);
-        dataForEncryption.writeRaw(innerOs);
-        BuffersStorage.getInstance().reuseFreeBuffer(innerOs);
+        byte[] messageKeyFull = Utilities.computeSHA1(data.buffer, innerOffset, innerOffset + innerLength);
+        byte[] messageKey = new byte[16];
+        System.arraycopy(messageKeyFull, messageKeyFull.length - 16, messageKey, 0, 16);
 
-        if (zeroCount != 0) {
-            byte[] b = new byte[zeroCount];
-            Utilities.random.nextBytes(b);
-            dataForEncryption.writeRaw(b);
+        if (quickAckId != null) {
+            quickAckId.add(((messageKeyFull[0] & 0xff) | ((messageKeyFull[1] & 0xff) << 8) | ((messageKeyFull[2] & 0xff) << 16) | ((messageKeyFull[3] & 0xff) << 24)) & 0x7fffffff);
         }
 
-        Utilities.aesIgeEncryption(dataForEncryption.buffer, keyData.aesKey, keyData.aesIv, true, false, 0, dataForEncryption.limit());
+        MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+        if (!keyData.generate(datacenter.authKey, messageKey, false)) {
+            BuffersStorage.getInstance().reuseFreeBuffer(data);
+            return null;
+        }
+        Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, true, true, innerOffset, innerLength + zeroCount);
 
-        ByteBufferDesc data = BuffersStorage.getInstance().getFreeBuffer(8 + messageKey.length + dataForEncryption.limit());
+        data.position(TcpConnection.FRAME_HEADER_RESERVE);
         data.writeInt64(datacenter.authKeyId);
         data.writeRaw(messageKey);
-        data.writeRaw(dataForEncryption);
-        BuffersStorage.getInstance().reuseFreeBuffer(dataForEncryption);
+        data.position(TcpConnection.FRAME_HEADER_RESERVE);
 
         return data;
     }
@@ -1869,7 +2001,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             public void run() {
                 for (int a = 0; a < requestQueue.size(); a++) {
                     RPCRequest request = requestQueue.get(a);
-                    if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
+                    if (!request.cancelled && request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                         Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
                         if (requestDatacenter.datacenterId == datacenter.datacenterId) {
                             return;
@@ -1879,7 +2011,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
                 for (int a = 0; a < runningRequests.size(); a++) {
                     RPCRequest request = runningRequests.get(a);
-                    if (request.rawRequest instanceof TLRPC.TL_get_future_salts) {
+                    if (request.running && request.rawRequest instanceof TLRPC.TL_get_future_salts) {
                         Datacenter requestDatacenter = datacenterWithId(request.runningDatacenterId);
                         if (requestDatacenter.datacenterId == datacenter.datacenterId) {
                             return;
@@ -1909,11 +2041,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (int a = 0; a < runningRequests.size(); a++) {
-                    RPCRequest request = runningRequests.get(a);
-                    if (requestMsgId == request.runningMessageId) {
-                        request.confirmed = true;
-                    }
+                RPCRequest request = getRunningRequest(requestMsgId);
+                if (request != null && requestMsgId == request.runningMessageId) {
+                    request.confirmed = true;
                 }
             }
         });
@@ -1923,15 +2053,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                for (int i = 0; i < runningRequests.size(); i++) {
-                    RPCRequest request = runningRequests.get(i);
+                RPCRequest request = getRunningRequest(requestMsgId);
+                if (request != null) {
                     removeRequestInClass(request.token);
-                    if (request.respondsToMessageId(requestMsgId)) {
-                        request.rawRequest.freeResources();
-                        request.rpcRequest.freeResources();
-                        runningRequests.remove(i);
-                        i--;
-                    }
+                    request.rawRequest.freeResources();
+                    request.rpcRequest.freeResources();
+                    unregisterRunningRequest(request);
+                    forgetRequest(request);
                 }
             }
         });
@@ -2008,9 +2136,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
             if (!connection.isSessionProcessed(newSession.unique_id)) {
                 FileLog.d("tmessages", "New session:");
-                FileLog.d("tmessages", String.format("    first message id: %d", newSession.first_msg_id));
-                FileLog.d("tmessages", String.format("    server salt: %d", newSession.server_salt));
-                FileLog.d("tmessages", String.format("    unique id: %d", newSession.unique_id));
+                FileLog.d("tmessages", "    first message id: %d", newSession.first_msg_id);
+                FileLog.d("tmessages", "    server salt: %d", newSession.server_salt);
+                FileLog.d("tmessages", "    unique id: %d", newSession.unique_id);
 
                 long serverSalt = newSession.server_salt;
 
@@ -2022,9 +2150,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
 
                 for (int a = 0; a < runningRequests.size(); a++) {
                     RPCRequest request = runningRequests.get(a);
+                    if (!request.running) {
+                        continue;
+                    }
                     Datacenter dcenter = datacenterWithId(request.runningDatacenterId);
-                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
-                        request.runningMessageId = 0;
+                    if (request.runningMessageId < newSession.first_msg_id && (request.flags & connection.transportRequestClass) != 0 && (request.runningConnection == null || request.runningConnection == connection) && dcenter != null && dcenter.datacenterId == datacenter.datacenterId) {
+                        setRunningMessageId(request, 0);
                         request.runningMessageSeqNo = 0;
                         request.runningStartTime = 0;
                         request.runningMinStartTime = 0;
@@ -2101,21 +2232,17 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
         } else if (message instanceof TLRPC.TL_futuresalts) {
             TLRPC.TL_futuresalts futureSalts = (TLRPC.TL_futuresalts) message;
             long requestMid = futureSalts.req_msg_id;
-            for (int a = 0; a < runningRequests.size(); a++) {
-                RPCRequest request = runningRequests.get(a);
-                if (request.respondsToMessageId(requestMid)) {
-                    if (request.completionBlock != null) {
-                        request.completionBlock.run(futureSalts, null);
-                    }
-
-                    futureSalts.freeResources();
+            RPCRequest request = getRunningRequest(requestMid);
+            if (request != null) {
+                if (request.completionBlock != null) {
+                    request.completionBlock.run(futureSalts, null);
+                }
 
-                    messagesConfirmed(requestMid);
-                    request.completed = true;
-                    rpcCompleted(requestMid);
+                futureSalts.freeResources();
 
-                    break;
-                }
+                messagesConfirmed(requestMid);
+                request.completed = true;
+                rpcCompleted(requestMid);
             }
         } else if (message instanceof TLRPC.DestroySessionRes) {
             TLRPC.DestroySessionRes res = (TLRPC.DestroySessionRes) message;
@@ -2186,153 +2313,153 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             if (!ignoreResult) {
                 boolean found = false;
 
-                for (int a = 0; a < runningRequests.size(); a++) {
-                    RPCRequest request = runningRequests.get(a);
-                    if (request.respondsToMessageId(resultMid)) {
-                        found = true;
-
-                        boolean discardResponse = false;
-                        boolean isError = false;
-                        boolean allowInitConnection = true;
+                RPCRequest request = getRunningRequest(resultMid);
+                if (request != null) {
+                    found = true;
+                    if (request.runningConnection != null && request.sendTime != 0) {
+                        request.runningConnection.updateRtt((int) (System.currentTimeMillis() - request.sendTime));
+                    }
 
-                        if (request.completionBlock != null) {
-                            TLRPC.TL_error implicitError = null;
-                            if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
-                                TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed) resultContainer.result;
-                                resultContainer.result = Utilities.decompress(packet.packed_data, request.rawRequest, true);
-                            }
-                            if (resultContainer.result instanceof TLRPC.RpcError) {
-                                allowInitConnection = false;
-                                String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
-                                FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
+                    boolean discardResponse = false;
+                    boolean isError = false;
+                    boolean allowInitConnection = true;
 
-                                int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
+                    if (request.completionBlock != null) {
+                        TLRPC.TL_error implicitError = null;
+                        if (resultContainer.result instanceof TLRPC.TL_gzip_packed) {
+                            TLRPC.TL_gzip_packed packet = (TLRPC.TL_gzip_packed) resultContainer.result;
+                            resultContainer.result = Utilities.decompress(packet.packed_data, request.rawRequest, true);
+                        }
+                        if (resultContainer.result instanceof TLRPC.RpcError) {
+                            allowInitConnection = false;
+                            String errorMessage = ((TLRPC.RpcError) resultContainer.result).error_message;
+                            FileLog.e("tmessages", String.format("***** RPC error %d: %s", ((TLRPC.RpcError) resultContainer.result).error_code, errorMessage));
 
-                                if (errorCode == 500 || errorCode < 0) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
-                                        discardResponse = true;
-                                        int delay = Math.min(1, request.serverFailureCount * 2);
-                                        request.runningMinStartTime = request.runningStartTime + delay;
-                                        request.confirmed = false;
-                                    }
+                            int errorCode = ((TLRPC.RpcError) resultContainer.result).error_code;
 
-                                    request.serverFailureCount++;
-                                } else if (errorCode == 420) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
-                                        double waitTime = 2.0;
+                            if (errorCode == 500 || errorCode < 0) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
+                                    discardResponse = true;
+                                    int delay = Math.min(1, request.serverFailureCount * 2);
+                                    request.runningMinStartTime = request.runningStartTime + delay;
+                                    request.confirmed = false;
+                                }
 
-                                        if (errorMessage.contains("FLOOD_WAIT_")) {
-                                            String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
+                                request.serverFailureCount++;
+                            } else if (errorCode == 420) {
+                                if ((request.flags & RPCRequest.RPCRequestClassFailOnServerErrors) == 0) {
+                                    double waitTime = 2.0;
 
-                                            Pattern pattern = Pattern.compile("[0-9]+");
-                                            Matcher matcher = pattern.matcher(errorMsg);
-                                            if (matcher.find()) {
-                                                errorMsg = matcher.group(0);
-                                            }
+                                    if (errorMessage.contains("FLOOD_WAIT_")) {
+                                        String errorMsg = errorMessage.replace("FLOOD_WAIT_", "");
 
-                                            Integer val;
-                                            try {
-                                                val = Integer.parseInt(errorMsg);
-                                            } catch (Exception e) {
-                                                val = null;
-                                            }
-                                            if (val != null) {
-                                                waitTime = val;
-                                            }
+                                        Pattern pattern = Pattern.compile("[0-9]+");
+                                        Matcher matcher = pattern.matcher(errorMsg);
+                                        if (matcher.find()) {
+                                            errorMsg = matcher.group(0);
                                         }
 
-                                        waitTime = Math.min(30, waitTime);
-
-                                        discardResponse = true;
-                                        request.wait = true;
-                                        request.runningMinStartTime = (int) (System.currentTimeMillis() / 1000 + waitTime);
-                                        request.confirmed = false;
+                                        Integer val;
+                                        try {
+                                            val = Integer.parseInt(errorMsg);
+                                        } catch (Exception e) {
+                                            val = null;
+                                        }
+                                        if (val != null) {
+                                            waitTime = val;
+                                        }
                                     }
-                                }
 
-                                implicitError = new TLRPC.TL_error();
-                                implicitError.code = ((TLRPC.RpcError) resultContainer.result).error_code;
-                                implicitError.text = ((TLRPC.RpcError) resultContainer.result).error_message;
-                            } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
-                                if (request.rawRequest == null || resultContainer.result == null) {
-                                    allowInitConnection = false;
-                                    if (request.rawRequest == null) {
-                                        FileLog.e("tmessages", "rawRequest is null");
-                                    } else {
-                                        FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (for request " + request.rawRequest + ")");
-                                    }
-                                    implicitError = new TLRPC.TL_error();
-                                    implicitError.code = -1000;
-                                    implicitError.text = "";
+                                    waitTime = Math.min(30, waitTime);
+
+                                    discardResponse = true;
+                                    request.wait = true;
+                                    request.runningMinStartTime = (int) (System.currentTimeMillis() / 1000 + waitTime);
+                                    request.confirmed = false;
                                 }
                             }
 
-                            if (!discardResponse) {
-                                if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
-                                    isError = true;
-                                    request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
+                            implicitError = new TLRPC.TL_error();
+                            implicitError.code = ((TLRPC.RpcError) resultContainer.result).error_code;
+                            implicitError.text = ((TLRPC.RpcError) resultContainer.result).error_message;
+                        } else if (!(resultContainer.result instanceof TLRPC.TL_error)) {
+                            if (request.rawRequest == null || resultContainer.result == null) {
+                                allowInitConnection = false;
+                                if (request.rawRequest == null) {
+                                    FileLog.e("tmessages", "rawRequest is null");
                                 } else {
-                                    request.completionBlock.run(resultContainer.result, null);
-                                    if (resultContainer.result instanceof TLRPC.updates_Difference) {
-                                        pushMessagesReceived = true;
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                if (wakeLock.isHeld()) {
-                                                    FileLog.e("tmessages", "release wakelock");
-                                                    wakeLock.release();
-                                                }
-                                            }
-                                        });
-                                    }
+                                    FileLog.e("tmessages", "***** RPC error: invalid response class " + resultContainer.result + " (for request " + request.rawRequest + ")");
                                 }
+                                implicitError = new TLRPC.TL_error();
+                                implicitError.code = -1000;
+                                implicitError.text = "";
                             }
+                        }
 
-                            if (implicitError != null && implicitError.code == 401) {
-                                allowInitConnection = false;
+                        if (!discardResponse) {
+                            if (implicitError != null || resultContainer.result instanceof TLRPC.TL_error) {
                                 isError = true;
-                                if (implicitError.text != null && implicitError.text.contains("SESSION_PASSWORD_NEEDED")) {
-                                    //ignore this error
-                                } else if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
-                                    if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && UserConfig.isClientActivated()) {
-                                        UserConfig.clearConfig();
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                MessagesController.getInstance().performLogout(false);
+                                request.completionBlock.run(null, implicitError != null ? implicitError : (TLRPC.TL_error) resultContainer.result);
+                            } else {
+                                request.completionBlock.run(resultContainer.result, null);
+                                if (resultContainer.result instanceof TLRPC.updates_Difference) {
+                                    pushMessagesReceived = true;
+                                    AndroidUtilities.runOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (wakeLock.isHeld()) {
+                                                FileLog.e("tmessages", "release wakelock");
+                                                wakeLock.release();
                                             }
-                                        });
-                                    }
-                                } else {
-                                    datacenter.authorized = false;
-                                    saveSession();
-                                    discardResponse = true;
-                                    if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
-                                        retryRequestsFromDatacenter = datacenter.datacenterId;
-                                        retryRequestsClass = request.flags;
-                                    }
+                                        }
+                                    });
                                 }
                             }
                         }
 
-                        if (!discardResponse) {
-                            if (allowInitConnection && request.initRequest && !isError) {
-                                if (datacenter.lastInitVersion != BuildVars.BUILD_VERSION) {
-                                    datacenter.lastInitVersion = BuildVars.BUILD_VERSION;
-                                    saveSession();
-                                    FileLog.e("tmessages", "init connection completed");
-                                } else {
-                                    FileLog.e("tmessages", "rpc is init, but init connection already completed");
+                        if (implicitError != null && implicitError.code == 401) {
+                            allowInitConnection = false;
+                            isError = true;
+                            if (implicitError.text != null && implicitError.text.contains("SESSION_PASSWORD_NEEDED")) {
+                                //ignore this error
+                            } else if (datacenter.datacenterId == currentDatacenterId || datacenter.datacenterId == movingToDatacenterId) {
+                                if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0 && UserConfig.isClientActivated()) {
+                                    UserConfig.clearConfig();
+                                    AndroidUtilities.runOnUIThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            MessagesController.getInstance().performLogout(false);
+                                        }
+                                    });
+                                }
+                            } else {
+                                datacenter.authorized = false;
+                                saveSession();
+                                discardResponse = true;
+                                if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0 || (request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+                                    retryRequestsFromDatacenter = datacenter.datacenterId;
+                                    retryRequestsClass = request.flags;
                                 }
                             }
-                            request.completed = true;
-                            rpcCompleted(resultMid);
-                        } else {
-                            request.runningMessageId = 0;
-                            request.runningMessageSeqNo = 0;
-                            request.transportChannelToken = 0;
                         }
-                        break;
+                    }
+
+                    if (!discardResponse) {
+                        if (allowInitConnection && request.initRequest && !isError) {
+                            if (datacenter.lastInitVersion != BuildVars.BUILD_VERSION) {
+                                datacenter.lastInitVersion = BuildVars.BUILD_VERSION;
+                                saveSession();
+                                FileLog.e("tmessages", "init connection completed");
+                            } else {
+                                FileLog.e("tmessages", "rpc is init, but init connection already completed");
+                            }
+                        }
+                        request.completed = true;
+                        rpcCompleted(resultMid);
+                    } else {
+                        setRunningMessageId(request, 0);
+                        request.runningMessageSeqNo = 0;
+                        request.transportChannelToken = 0;
                     }
                 }
 
@@ -2391,16 +2518,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
             long resultMid = ((TLRPC.TL_bad_server_salt) message).bad_msg_id;
             if (resultMid != 0) {
-                for (int a = 0; a < runningRequests.size(); a++) {
-                    RPCRequest request = runningRequests.get(a);
-                    if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) == 0) {
-                        continue;
-                    }
-                    if (request.respondsToMessageId(resultMid)) {
-                        request.retryCount = 0;
-                        request.salt = true;
-                        break;
-                    }
+                RPCRequest request = getRunningRequest(resultMid);
+                if (request != null && (request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+                    request.retryCount = 0;
+                    request.salt = true;
                 }
             }
 
@@ -2425,19 +2546,13 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             boolean confirm = true;
 
             if (detailedInfo instanceof TLRPC.TL_msg_detailed_info) {
-                for (int a = 0; a < runningRequests.size(); a++) {
-                    RPCRequest request = runningRequests.get(a);
-                    if (request.respondsToMessageId(detailedInfo.msg_id)) {
-                        if (request.completed) {
-                            break;
-                        }
-                        if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int) (System.currentTimeMillis() / 1000)) {
-                            request.lastResendTime = (int) (System.currentTimeMillis() / 1000);
-                            requestResend = true;
-                        } else {
-                            confirm = false;
-                        }
-                        break;
+                RPCRequest request = getRunningRequest(detailedInfo.msg_id);
+                if (request != null && !request.completed) {
+                    if (request.lastResendTime == 0 || request.lastResendTime + 60 < (int) (System.currentTimeMillis() / 1000)) {
+                        request.lastResendTime = (int) (System.currentTimeMillis() / 1000);
+                        requestResend = true;
+                    } else {
+                        confirm = false;
                     }
                 }
             } else {
@@ -2551,7 +2666,7 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     FileLog.e("tmessages", "send push ping");
                     sendingPushPing = true;
                 }
-                connection.sendData(transportData, true, false);
+                connection.sendFrame(transportData, false);
             }
         }
     }
@@ -2621,6 +2736,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     @Override
     public void tcpConnectionConnected(TcpConnection connection) {
         Datacenter datacenter = datacenterWithId(connection.getDatacenterId());
+        if (datacenter.checkEndpointsChanged()) {
+            saveSession();
+        }
         if (datacenter.authKey != null) {
             if ((connection.transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
                 sendingPushPing = false;
@@ -2633,7 +2751,18 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
                     lastPauseTime = System.currentTimeMillis();
                     nextSleepTimeout = 30000;
                 }
-                processRequestQueue(connection.transportRequestClass, connection.getDatacenterId());
+                if ((connection.transportRequestClass & RPCRequest.RPCRequestClassGeneric) != 0) {
+                    processRequestQueue(connection.transportRequestClass, connection.getDatacenterId());
+                } else {
+                    for (int a = 0; a < runningRequests.size(); a++) {
+                        RPCRequest request = runningRequests.get(a);
+                        if (request.running && request.runningConnection == connection) {
+                            request.runningStartTime = 0;
+                            request.runningMinStartTime = 0;
+                        }
+                    }
+                    processRequestQueue(0, 0);
+                }
             }
         }
     }
@@ -2642,12 +2771,10 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     public void tcpConnectionQuiackAckReceived(TcpConnection connection, int ack) {
         ArrayList<Long> arr = quickAckIdToRequestIds.get(ack);
         if (arr != null) {
-            for (int a = 0; a < runningRequests.size(); a++) {
-                RPCRequest request = runningRequests.get(a);
-                if (arr.contains(request.token)) {
-                    if (request.quickAckBlock != null) {
-                        request.quickAckBlock.quickAck();
-                    }
+            for (int a = 0; a < arr.size(); a++) {
+                RPCRequest request = requestIndex.getRequest(arr.get(a));
+                if (request != null && request.running && request.quickAckBlock != null) {
+                    request.quickAckBlock.quickAck();
                 }
             }
             quickAckIdToRequestIds.remove(ack);
@@ -2718,9 +2845,12 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
             }
 
             byte[] messageKey = data.readData(16, false);
-            MessageKeyData keyData = MessageKeyData.generateMessageKeyData(datacenter.authKey, messageKey, true);
+            MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+            if (!keyData.generate(datacenter.authKey, messageKey, true)) {
+                return;
+            }
 
-            Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, false, false, data.position(), length - 24);
+            Utilities.aesIgeEncryption(data.buffer, keyData.aesKey, keyData.aesIv, false, true, data.position(), length - 24);
 
             long messageServerSalt = data.readInt64(false);
             long messageSessionId = data.readInt64(false);
@@ -2814,11 +2944,9 @@ public class ConnectionsManager implements Action.ActionDelegate, TcpConnection.
     }
 
     public TLObject getRequestWithMessageId(long msgId) {
-        for (int a = 0; a < runningRequests.size(); a++) {
-            RPCRequest request = runningRequests.get(a);
-            if (msgId == request.runningMessageId) {
-                return request.rawRequest;
-            }
+        RPCRequest request = getRunningRequest(msgId);
+        if (request != null && msgId == request.runningMessageId) {
+            return request.rawRequest;
         }
         return null;
     }
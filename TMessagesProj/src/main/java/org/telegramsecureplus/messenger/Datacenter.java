@@ -12,12 +12,18 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 
 public class Datacenter {
-    private static final int DATA_VERSION = 5;
+    private static final int DATA_VERSION = 6;
+    private static final int DEFAULT_DOWNLOAD_CONNECTIONS_COUNT = 3;
+    private static final int DEFAULT_UPLOAD_CONNECTIONS_COUNT = 3;
+    private static final int DEFAULT_RTT = 300;
+    private static final int DEFAULT_CONNECT_TIME = 1000;
+    private static final int ENDPOINT_HISTORY_LIMIT = 32;
 
     public int datacenterId;
     public ArrayList<String> addressesIpv4 = new ArrayList<>();
@@ -43,11 +49,31 @@ public class Datacenter {
     private volatile int currentAddressNumIpv6Download = 0;
 
     public TcpConnection connection;
-    private TcpConnection downloadConnection;
-    private TcpConnection uploadConnection;
+    private TcpConnection[] downloadConnections = new TcpConnection[DEFAULT_DOWNLOAD_CONNECTIONS_COUNT];
+    private TcpConnection[] uploadConnections = new TcpConnection[DEFAULT_UPLOAD_CONNECTIONS_COUNT];
     public TcpConnection pushConnection;
 
     private ArrayList<ServerSalt> authServerSaltSet = new ArrayList<>();
+    private final HashMap<String, Endpoint> endpoints = new HashMap<>();
+    private boolean endpointsChanged;
+
+    static class Endpoint {
+        String address;
+        int port;
+        int successCount;
+        int failureCount;
+        int connectTime;
+
+        Endpoint(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        long getCost() {
+            int time = connectTime != 0 ? connectTime : DEFAULT_CONNECT_TIME;
+            return (long) time * (successCount + failureCount + 2) / (successCount + 1);
+        }
+    }
 
     public Datacenter() {
         authServerSaltSet = new ArrayList<>();
@@ -82,7 +108,7 @@ public class Datacenter {
             }
         } else if (version == 1) {
             int currentVersion = data.readInt32(false);
-            if (currentVersion >= 2 && currentVersion <= 5) {
+            if (currentVersion >= 2 && currentVersion <= 6) {
                 datacenterId = data.readInt32(false);
                 if (currentVersion >= 3) {
                     lastInitVersion = data.readInt32(false);
@@ -138,6 +164,16 @@ public class Datacenter {
                     }
                     authServerSaltSet.add(salt);
                 }
+                if (currentVersion >= 6) {
+                    len = data.readInt32(false);
+                    for (int a = 0; a < len; a++) {
+                        Endpoint endpoint = new Endpoint(data.readString(false), data.readInt32(false));
+                        endpoint.successCount = data.readInt32(false);
+                        endpoint.failureCount = data.readInt32(false);
+                        endpoint.connectTime = data.readInt32(false);
+                        endpoints.put(endpoint.address + ":" + endpoint.port, endpoint);
+                    }
+                }
             }
         } else if (version == 2) {
 
@@ -348,6 +384,146 @@ public class Datacenter {
         }
     }
 
+    /**
+     * Returns every address and port pair to try for the given flags, cheapest first by
+     * recorded success rate and connect time. With ipv6 both families are interleaved so
+     * a broken one costs a single stagger step.
+     */
+    ArrayList<Endpoint> getConnectEndpoints(int flags, boolean ipv6) {
+        ArrayList<Endpoint> ipv4Endpoints = getFamilyEndpoints(flags);
+        if (!ipv6) {
+            return ipv4Endpoints;
+        }
+        ArrayList<Endpoint> ipv6Endpoints = getFamilyEndpoints(flags | 1);
+        ArrayList<Endpoint> first = ipv6Endpoints;
+        ArrayList<Endpoint> second = ipv4Endpoints;
+        synchronized (endpoints) {
+            if (!ipv4Endpoints.isEmpty() && !ipv6Endpoints.isEmpty() && ipv4Endpoints.get(0).getCost() < ipv6Endpoints.get(0).getCost()) {
+                first = ipv4Endpoints;
+                second = ipv6Endpoints;
+            }
+        }
+        ArrayList<Endpoint> result = new ArrayList<>(first.size() + second.size());
+        for (int a = 0; a < Math.max(first.size(), second.size()); a++) {
+            if (a < first.size()) {
+                result.add(first.get(a));
+            }
+            if (a < second.size()) {
+                result.add(second.get(a));
+            }
+        }
+        return result;
+    }
+
+    private ArrayList<Endpoint> getFamilyEndpoints(int flags) {
+        ArrayList<Endpoint> result = new ArrayList<>();
+        ArrayList<String> addresses;
+        int currentAddressNum;
+        int currentPortNum;
+        if ((flags & 2) != 0) {
+            if ((flags & 1) != 0) {
+                addresses = addressesIpv6Download;
+                currentAddressNum = currentAddressNumIpv6Download;
+                currentPortNum = currentPortNumIpv6Download;
+            } else {
+                addresses = addressesIpv4Download;
+                currentAddressNum = currentAddressNumIpv4Download;
+                currentPortNum = currentPortNumIpv4Download;
+            }
+        } else {
+            if ((flags & 1) != 0) {
+                addresses = addressesIpv6;
+                currentAddressNum = currentAddressNumIpv6;
+                currentPortNum = currentPortNumIpv6;
+            } else {
+                addresses = addressesIpv4;
+                currentAddressNum = currentAddressNumIpv4;
+                currentPortNum = currentPortNumIpv4;
+            }
+        }
+        if (addresses.isEmpty()) {
+            return result;
+        }
+        int[] portsArray = overridePort == 8888 ? defaultPorts8888 : defaultPorts;
+        synchronized (endpoints) {
+            for (int a = 0; a < addresses.size(); a++) {
+                String address = addresses.get((currentAddressNum + a) % addresses.size());
+                for (int b = 0; b < portsArray.length; b++) {
+                    int port = portsArray[(currentPortNum + b) % portsArray.length];
+                    if (port == -1) {
+                        if (overridePort != -1) {
+                            port = overridePort;
+                        } else {
+                            Integer addressPort = ports.get(address);
+                            port = addressPort != null ? addressPort : 443;
+                        }
+                    }
+                    String key = address + ":" + port;
+                    Endpoint endpoint = endpoints.get(key);
+                    if (endpoint == null) {
+                        endpoint = new Endpoint(address, port);
+                        endpoints.put(key, endpoint);
+                    }
+                    if (!result.contains(endpoint)) {
+                        result.add(endpoint);
+                    }
+                }
+            }
+            Collections.sort(result, new Comparator<Endpoint>() {
+                @Override
+                public int compare(Endpoint lhs, Endpoint rhs) {
+                    long lhsCost = lhs.getCost();
+                    long rhsCost = rhs.getCost();
+                    if (lhsCost < rhsCost) {
+                        return -1;
+                    } else if (lhsCost > rhsCost) {
+                        return 1;
+                    }
+                    return 0;
+                }
+            });
+        }
+        return result;
+    }
+
+    void onEndpointConnected(Endpoint endpoint, int connectTime) {
+        synchronized (endpoints) {
+            if (endpoint.successCount == 0 || endpoint.failureCount != 0) {
+                endpointsChanged = true;
+            }
+            endpoint.successCount++;
+            if (endpoint.connectTime == 0) {
+                endpoint.connectTime = connectTime;
+            } else {
+                endpoint.connectTime = (endpoint.connectTime * 3 + connectTime) / 4;
+            }
+            trimEndpointHistory(endpoint);
+        }
+    }
+
+    void onEndpointFailed(Endpoint endpoint) {
+        synchronized (endpoints) {
+            endpoint.failureCount++;
+            endpointsChanged = true;
+            trimEndpointHistory(endpoint);
+        }
+    }
+
+    private void trimEndpointHistory(Endpoint endpoint) {
+        if (endpoint.successCount + endpoint.failureCount > ENDPOINT_HISTORY_LIMIT) {
+            endpoint.successCount /= 2;
+            endpoint.failureCount /= 2;
+        }
+    }
+
+    boolean checkEndpointsChanged() {
+        synchronized (endpoints) {
+            boolean changed = endpointsChanged;
+            endpointsChanged = false;
+            return changed;
+        }
+    }
+
     public void storeCurrentAddressAndPortNum() {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -451,6 +627,22 @@ public class Datacenter {
             stream.writeInt32(salt.validUntil);
             stream.writeInt64(salt.value);
         }
+        synchronized (endpoints) {
+            ArrayList<Endpoint> known = new ArrayList<>();
+            for (Endpoint endpoint : endpoints.values()) {
+                if (ports.containsKey(endpoint.address) && endpoint.successCount + endpoint.failureCount != 0) {
+                    known.add(endpoint);
+                }
+            }
+            stream.writeInt32(known.size());
+            for (Endpoint endpoint : known) {
+                stream.writeString(endpoint.address);
+                stream.writeInt32(endpoint.port);
+                stream.writeInt32(endpoint.successCount);
+                stream.writeInt32(endpoint.failureCount);
+                stream.writeInt32(endpoint.connectTime);
+            }
+        }
     }
 
     public void clear() {
@@ -551,15 +743,68 @@ public class Datacenter {
         return false;
     }
 
+    /**
+     * Sets how many download and upload connections the pools of this datacenter may open, at
+     * least one each. Connections beyond a smaller size are suspended. Only call on the stage queue.
+     */
+    public void setMediaConnectionsCount(int downloadCount, int uploadCount) {
+        downloadConnections = resizeConnections(downloadConnections, downloadCount);
+        uploadConnections = resizeConnections(uploadConnections, uploadCount);
+    }
+
+    private static TcpConnection[] resizeConnections(TcpConnection[] connections, int count) {
+        count = Math.max(1, count);
+        if (count == connections.length) {
+            return connections;
+        }
+        for (int a = count; a < connections.length; a++) {
+            if (connections[a] != null) {
+                connections[a].suspendConnection(true);
+            }
+        }
+        return Arrays.copyOf(connections, count);
+    }
+
+    public int getDownloadConnectionsCount() {
+        return downloadConnections.length;
+    }
+
+    public int getUploadConnectionsCount() {
+        return uploadConnections.length;
+    }
+
     public void suspendConnections() {
         if (connection != null) {
             connection.suspendConnection(true);
         }
-        if (uploadConnection != null) {
-            uploadConnection.suspendConnection(true);
+        for (int a = 0; a < uploadConnections.length; a++) {
+            if (uploadConnections[a] != null) {
+                uploadConnections[a].suspendConnection(true);
+            }
+        }
+        for (int a = 0; a < downloadConnections.length; a++) {
+            if (downloadConnections[a] != null) {
+                downloadConnections[a].suspendConnection(true);
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.suspendConnection(true);
+    }
+
+    /**
+     * Drops the extra media connections that have nothing in flight, the first
+     * download and upload connection of the pool are always kept.
+     */
+    public void releaseIdleConnections() {
+        releaseIdleConnections(downloadConnections);
+        releaseIdleConnections(uploadConnections);
+    }
+
+    private void releaseIdleConnections(TcpConnection[] connections) {
+        for (int a = 1; a < connections.length; a++) {
+            TcpConnection connection = connections[a];
+            if (connection != null && connection.requestsInFlight == 0) {
+                connection.suspendConnection(true);
+                connections[a] = null;
+            }
         }
     }
 
@@ -567,11 +812,15 @@ public class Datacenter {
         if (connection != null) {
             sessions.add(connection.getSissionId());
         }
-        if (uploadConnection != null) {
-            sessions.add(uploadConnection.getSissionId());
+        for (int a = 0; a < uploadConnections.length; a++) {
+            if (uploadConnections[a] != null) {
+                sessions.add(uploadConnections[a].getSissionId());
+            }
         }
-        if (downloadConnection != null) {
-            sessions.add(downloadConnection.getSissionId());
+        for (int a = 0; a < downloadConnections.length; a++) {
+            if (downloadConnections[a] != null) {
+                sessions.add(downloadConnections[a].getSissionId());
+            }
         }
     }
 
@@ -579,36 +828,79 @@ public class Datacenter {
         if (connection != null) {
             connection.recreateSession();
         }
-        if (uploadConnection != null) {
-            uploadConnection.recreateSession();
+        for (int a = 0; a < uploadConnections.length; a++) {
+            if (uploadConnections[a] != null) {
+                uploadConnections[a].recreateSession();
+            }
         }
-        if (downloadConnection != null) {
-            downloadConnection.recreateSession();
+        for (int a = 0; a < downloadConnections.length; a++) {
+            if (downloadConnections[a] != null) {
+                downloadConnections[a].recreateSession();
+            }
         }
     }
 
-    public TcpConnection getDownloadConnection(TcpConnection.TcpConnectionDelegate delegate) {
-        if (authKey != null) {
-            if (downloadConnection == null) {
-                downloadConnection = new TcpConnection(datacenterId);
-                downloadConnection.delegate = delegate;
-                downloadConnection.transportRequestClass = RPCRequest.RPCRequestClassDownloadMedia;
+    public boolean hasMediaConnection(TcpConnection connection) {
+        TcpConnection[] connections = connection.transportRequestClass == RPCRequest.RPCRequestClassDownloadMedia ? downloadConnections : uploadConnections;
+        for (int a = 0; a < connections.length; a++) {
+            if (connections[a] == connection) {
+                return true;
             }
-            downloadConnection.connect();
         }
-        return downloadConnection;
+        return false;
     }
 
-    public TcpConnection getUploadConnection(TcpConnection.TcpConnectionDelegate delegate) {
-        if (authKey != null) {
-            if (uploadConnection == null) {
-                uploadConnection = new TcpConnection(datacenterId);
-                uploadConnection.delegate = delegate;
-                uploadConnection.transportRequestClass = RPCRequest.RPCRequestClassUploadMedia;
+    /**
+     * Picks the connected media connection with the least bytes in flight weighted by its
+     * measured round trip time. Another connection of the pool is opened once every
+     * connected one is busy, it takes requests after it reports being connected.
+     */
+    private TcpConnection getBalancedConnection(TcpConnection[] connections, int requestClass, TcpConnection.TcpConnectionDelegate delegate) {
+        if (authKey == null) {
+            return connections[0];
+        }
+        TcpConnection bestConnection = null;
+        TcpConnection pendingConnection = null;
+        long bestScore = 0;
+        int freeSlot = -1;
+        for (int a = 0; a < connections.length; a++) {
+            TcpConnection connection = connections[a];
+            if (connection == null) {
+                if (freeSlot == -1) {
+                    freeSlot = a;
+                }
+                continue;
             }
-            uploadConnection.connect();
+            connection.connect();
+            if (connection.channelToken == 0) {
+                if (pendingConnection == null) {
+                    pendingConnection = connection;
+                }
+                continue;
+            }
+            long score = (connection.bytesInFlight + 1) * (connection.averageRtt != 0 ? connection.averageRtt : DEFAULT_RTT);
+            if (bestConnection == null || score < bestScore) {
+                bestConnection = connection;
+                bestScore = score;
+            }
+        }
+        if (freeSlot != -1 && pendingConnection == null && (bestConnection == null || bestConnection.requestsInFlight != 0)) {
+            TcpConnection connection = new TcpConnection(datacenterId);
+            connection.delegate = delegate;
+            connection.transportRequestClass = requestClass;
+            connections[freeSlot] = connection;
+            connection.connect();
+            pendingConnection = connection;
         }
-        return uploadConnection;
+        return bestConnection != null ? bestConnection : pendingConnection;
+    }
+
+    public TcpConnection getDownloadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+        return getBalancedConnection(downloadConnections, RPCRequest.RPCRequestClassDownloadMedia, delegate);
+    }
+
+    public TcpConnection getUploadConnection(TcpConnection.TcpConnectionDelegate delegate) {
+        return getBalancedConnection(uploadConnections, RPCRequest.RPCRequestClassUploadMedia, delegate);
     }
 
     public TcpConnection getGenericConnection(TcpConnection.TcpConnectionDelegate delegate) {
@@ -15,6 +15,8 @@ import android.os.Message;
 public class DispatchQueue extends Thread {
     public volatile Handler handler = null;
     private final Object handlerSyncObject = new Object();
+    private final Object postSyncObject = new Object();
+    private long lastPostId = 0;
 
     public DispatchQueue(final String threadName) {
         setName(threadName);
@@ -64,6 +66,24 @@ public class DispatchQueue extends Thread {
     }
 
     public void postRunnable(Runnable runnable, long delay) {
+        enqueueRunnable(runnable, delay);
+    }
+
+    /**
+     * Posts the runnable and returns its id in the order of immediate posts. While
+     * getLastPostId() still returns that id, nothing has been queued behind it.
+     */
+    public long postRunnableWithId(Runnable runnable) {
+        return enqueueRunnable(runnable, 0);
+    }
+
+    public long getLastPostId() {
+        synchronized (postSyncObject) {
+            return lastPostId;
+        }
+    }
+
+    private long enqueueRunnable(Runnable runnable, long delay) {
         if (handler == null) {
             synchronized (handlerSyncObject) {
                 if (handler == null) {
@@ -78,11 +98,15 @@ public class DispatchQueue extends Thread {
 
         if (handler != null) {
             if (delay <= 0) {
-                handler.post(runnable);
+                synchronized (postSyncObject) {
+                    handler.post(runnable);
+                    return ++lastPostId;
+                }
             } else {
                 handler.postDelayed(runnable, delay);
             }
         }
+        return 0;
     }
 
     public void cleanupQueue() {
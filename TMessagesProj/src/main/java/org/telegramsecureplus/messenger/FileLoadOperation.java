@@ -19,6 +19,8 @@ public class FileLoadOperation {
     private static class RequestInfo {
         private long requestToken = 0;
         private int offset = 0;
+        private int size = 0;
+        private long sendTime = 0;
         private TLRPC.TL_upload_file response = null;
     }
 
@@ -27,8 +29,15 @@ public class FileLoadOperation {
     private final static int stateFailed = 2;
     private final static int stateFinished = 3;
 
-    private final static int downloadChunkSize = 1024 * 32;
-    private final static int maxDownloadRequests = 3;
+    private final static int minDownloadChunkSize = 1024 * 32;
+    private final static int maxDownloadChunkSize = 1024 * 512;
+    private final static int minDownloadRequests = 2;
+    private final static int maxDownloadRequests = 16;
+    private final static int maxEncryptedDownloadRequests = 4;
+    private final static int maxBytesInFlight = 1024 * 1024 * 4;
+    private final static int checkpointInterval = 1024 * 1024;
+
+    private static volatile long lastMeasuredRtt = 0;
 
     private int datacenter_id;
     private TLRPC.InputFileLocation location;
@@ -40,16 +49,24 @@ public class FileLoadOperation {
     private byte[] iv;
 
     private int nextDownloadOffset = 0;
+    private int downloadChunkSize = minDownloadChunkSize;
+    private int requestWindow = minDownloadRequests;
+    private int maxRequestWindow = minDownloadRequests;
+    private long minRtt = Long.MAX_VALUE;
+    private int receivedBytes;
+    private int finalOffset = -1;
+    private int lastCheckpointOffset;
+    private boolean preallocated;
     private ArrayList<RequestInfo> requestInfos = new ArrayList<>(maxDownloadRequests);
-    private ArrayList<RequestInfo> delayedRequestInfos = new ArrayList<>(maxDownloadRequests - 1);
+    private ArrayList<RequestInfo> delayedRequestInfos = new ArrayList<>(maxDownloadRequests);
 
     private File cacheFileTemp;
     private File cacheFileFinal;
-    private File cacheIvTemp;
+    private File cacheCheckpointTemp;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
-    private RandomAccessFile fiv;
+    private RandomAccessFile fcheckpoint;
     private File storePath = null;
     private File tempPath = null;
     private boolean isForceRequest = false;
@@ -58,6 +75,7 @@ public class FileLoadOperation {
         void didFinishLoadingFile(FileLoadOperation operation, File finalFile);
         void didFailedLoadingFile(FileLoadOperation operation, int state);
         void didChangedLoadProgress(FileLoadOperation operation, float progress);
+        void didChangedDatacenter(FileLoadOperation operation, int datacenterId);
     }
 
     public FileLoadOperation(TLRPC.FileLocation photoLocation, String extension, int size) {
@@ -156,6 +174,10 @@ public class FileLoadOperation {
         return isForceRequest;
     }
 
+    public int getDatacenterId() {
+        return datacenter_id;
+    }
+
     public void setPaths(File store, File temp) {
         storePath = store;
         tempPath = temp;
@@ -178,13 +200,11 @@ public class FileLoadOperation {
         Long mediaId = null;
         String fileNameFinal;
         String fileNameTemp;
-        String fileNameIv = null;
+        String fileNameCheckpoint;
         if (location.volume_id != 0 && location.local_id != 0) {
             fileNameTemp = location.volume_id + "_" + location.local_id + "_temp." + ext;
             fileNameFinal = location.volume_id + "_" + location.local_id + "." + ext;
-            if (key != null) {
-                fileNameIv = location.volume_id + "_" + location.local_id + ".iv";
-            }
+            fileNameCheckpoint = location.volume_id + "_" + location.local_id + ".pt";
             if (datacenter_id == Integer.MIN_VALUE || location.volume_id == Integer.MIN_VALUE || datacenter_id == 0) {
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
@@ -198,9 +218,7 @@ public class FileLoadOperation {
         } else {
             fileNameTemp = datacenter_id + "_" + location.id + "_temp" + ext;
             fileNameFinal = datacenter_id + "_" + location.id + ext;
-            if (key != null) {
-                fileNameIv = datacenter_id + "_" + location.id + ".iv";
-            }
+            fileNameCheckpoint = datacenter_id + "_" + location.id + ".pt";
             if (datacenter_id == 0 || location.id == 0) {
                 cleanup();
                 Utilities.stageQueue.postRunnable(new Runnable() {
@@ -220,30 +238,43 @@ public class FileLoadOperation {
         }
 
         if (!cacheFileFinal.exists()) {
+            selectDownloadParams();
             cacheFileTemp = new File(tempPath, fileNameTemp);
-            if (cacheFileTemp.exists()) {
-                downloadedBytes = (int)cacheFileTemp.length();
-                nextDownloadOffset = downloadedBytes = downloadedBytes / 1024 * 1024;
-            }
-            if (fileNameIv != null) {
-                cacheIvTemp = new File(tempPath, fileNameIv);
-                try {
-                    fiv = new RandomAccessFile(cacheIvTemp, "rws");
-                    long len = cacheIvTemp.length();
-                    if (len > 0 && len % 32 == 0) {
-                        fiv.read(iv, 0, 32);
-                    } else {
-                        downloadedBytes = 0;
+            cacheCheckpointTemp = new File(tempPath, fileNameCheckpoint);
+            try {
+                boolean hasCheckpoint = cacheCheckpointTemp.exists();
+                fcheckpoint = new RandomAccessFile(cacheCheckpointTemp, "rw");
+                if (hasCheckpoint && cacheFileTemp.exists()) {
+                    if (fcheckpoint.length() >= 4 + (iv != null ? iv.length : 0)) {
+                        downloadedBytes = fcheckpoint.readInt();
+                        if (iv != null) {
+                            fcheckpoint.readFully(iv);
+                        }
                     }
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                    downloadedBytes = 0;
+                } else if (cacheFileTemp.exists() && key == null) {
+                    downloadedBytes = (int) cacheFileTemp.length() / 1024 * 1024;
                 }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                downloadedBytes = 0;
             }
+            if (downloadedBytes < 0 || totalBytesCount > 0 && downloadedBytes > totalBytesCount) {
+                downloadedBytes = 0;
+            }
+            while (downloadedBytes % downloadChunkSize != 0 && downloadChunkSize > minDownloadChunkSize) {
+                downloadChunkSize /= 2;
+            }
+            if (downloadedBytes % downloadChunkSize != 0) {
+                downloadedBytes = key != null ? 0 : downloadedBytes / downloadChunkSize * downloadChunkSize;
+            }
+            nextDownloadOffset = receivedBytes = lastCheckpointOffset = downloadedBytes;
             try {
-                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
-                if (downloadedBytes != 0) {
-                    fileOutputStream.seek(downloadedBytes);
+                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rw");
+                if (key == null && totalBytesCount > 0) {
+                    if (fileOutputStream.length() < totalBytesCount) {
+                        fileOutputStream.setLength(totalBytesCount);
+                    }
+                    preallocated = true;
                 }
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
@@ -300,7 +331,33 @@ public class FileLoadOperation {
         });
     }
 
+    public void pause(final Runnable onPaused) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (state != stateDownloading) {
+                    return;
+                }
+                for (RequestInfo requestInfo : requestInfos) {
+                    if (requestInfo.requestToken != 0) {
+                        ConnectionsManager.getInstance().cancelRpc(requestInfo.requestToken, true, true);
+                    }
+                }
+                requestInfos.clear();
+                cleanup();
+                downloadedBytes = receivedBytes = nextDownloadOffset = 0;
+                finalOffset = -1;
+                preallocated = false;
+                state = stateIdle;
+                onPaused.run();
+            }
+        });
+    }
+
     private void cleanup() {
+        if (state != stateFinished) {
+            saveCheckpoint();
+        }
         try {
             if (fileOutputStream != null) {
                 fileOutputStream.close();
@@ -311,9 +368,9 @@ public class FileLoadOperation {
         }
 
         try {
-            if (fiv != null) {
-                fiv.close();
-                fiv = null;
+            if (fcheckpoint != null) {
+                fcheckpoint.close();
+                fcheckpoint = null;
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -332,9 +389,18 @@ public class FileLoadOperation {
             return;
         }
         state = stateFinished;
+        for (RequestInfo requestInfo : requestInfos) {
+            if (requestInfo.requestToken != 0) {
+                ConnectionsManager.getInstance().cancelRpc(requestInfo.requestToken, true, true);
+            }
+        }
+        requestInfos.clear();
+        if (preallocated && fileOutputStream != null && downloadedBytes < totalBytesCount) {
+            fileOutputStream.getChannel().truncate(downloadedBytes);
+        }
         cleanup();
-        if (cacheIvTemp != null) {
-            cacheIvTemp.delete();
+        if (cacheCheckpointTemp != null) {
+            cacheCheckpointTemp.delete();
         }
         if (cacheFileTemp != null) {
             if (!cacheFileTemp.renameTo(cacheFileFinal)) {
@@ -344,58 +410,140 @@ public class FileLoadOperation {
         delegate.didFinishLoadingFile(FileLoadOperation.this, cacheFileFinal);
     }
 
+    private void selectDownloadParams() {
+        if (totalBytesCount <= 0 || totalBytesCount < 1024 * 256) {
+            downloadChunkSize = minDownloadChunkSize;
+        } else if (totalBytesCount < 1024 * 1024 * 4) {
+            downloadChunkSize = 1024 * 128;
+        } else {
+            downloadChunkSize = maxDownloadChunkSize;
+        }
+        if (lastMeasuredRtt > 400 && downloadChunkSize < maxDownloadChunkSize && totalBytesCount >= 1024 * 1024) {
+            downloadChunkSize *= 2;
+        }
+        if (key != null) {
+            maxRequestWindow = maxEncryptedDownloadRequests;
+        } else {
+            maxRequestWindow = Math.max(minDownloadRequests, Math.min(maxDownloadRequests, maxBytesInFlight / downloadChunkSize));
+        }
+        requestWindow = minDownloadRequests;
+    }
+
+    private void updateRequestWindow(RequestInfo requestInfo) {
+        long rtt = System.currentTimeMillis() - requestInfo.sendTime;
+        lastMeasuredRtt = rtt;
+        if (rtt < minRtt) {
+            minRtt = rtt;
+        }
+        if (rtt <= minRtt * 2 + 50) {
+            if (requestWindow < maxRequestWindow) {
+                requestWindow++;
+            }
+        } else if (requestWindow > minDownloadRequests) {
+            requestWindow--;
+        }
+    }
+
+    private void saveCheckpoint() {
+        if (fcheckpoint == null || fileOutputStream == null || lastCheckpointOffset == downloadedBytes) {
+            return;
+        }
+        try {
+            fileOutputStream.getChannel().force(false);
+            fcheckpoint.seek(0);
+            fcheckpoint.writeInt(downloadedBytes);
+            if (iv != null) {
+                fcheckpoint.write(iv);
+            }
+            lastCheckpointOffset = downloadedBytes;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void writePart(ByteBufferDesc bytes, int offset) throws Exception {
+        if (key != null) {
+            Utilities.aesIgeEncryption(bytes.buffer, key, iv, false, true, 0, bytes.limit());
+        }
+        FileChannel channel = fileOutputStream.getChannel();
+        bytes.buffer.position(0);
+        long position = offset;
+        while (bytes.buffer.hasRemaining()) {
+            position += channel.write(bytes.buffer, position);
+        }
+    }
+
+    private RequestInfo findDelayedPart(int offset) {
+        for (int a = 0; a < delayedRequestInfos.size(); a++) {
+            RequestInfo delayedRequestInfo = delayedRequestInfos.get(a);
+            if (delayedRequestInfo.offset == offset) {
+                delayedRequestInfos.remove(a);
+                return delayedRequestInfo;
+            }
+        }
+        return null;
+    }
+
     private void processRequestResult(RequestInfo requestInfo, TLRPC.TL_error error) {
         requestInfos.remove(requestInfo);
+        if (state != stateDownloading) {
+            return;
+        }
         if (error == null) {
             try {
+                updateRequestWindow(requestInfo);
+                int currentBytesSize = requestInfo.response.bytes == null ? 0 : requestInfo.response.bytes.limit();
+                requestInfo.size = currentBytesSize;
+                if (currentBytesSize < downloadChunkSize && (finalOffset == -1 || requestInfo.offset + currentBytesSize < finalOffset)) {
+                    finalOffset = requestInfo.offset + currentBytesSize;
+                }
+
                 if (downloadedBytes != requestInfo.offset) {
-                    if (state == stateDownloading) {
+                    if (key != null) {
                         delayedRequestInfos.add(requestInfo);
                         requestInfo.response.disableFree = true;
+                    } else {
+                        if (currentBytesSize != 0) {
+                            writePart(requestInfo.response.bytes, requestInfo.offset);
+                        }
+                        requestInfo.response = null;
+                        delayedRequestInfos.add(requestInfo);
+                        receivedBytes += currentBytesSize;
+                    }
+                } else {
+                    if (currentBytesSize != 0) {
+                        writePart(requestInfo.response.bytes, requestInfo.offset);
+                    }
+                    downloadedBytes += currentBytesSize;
+                    receivedBytes += currentBytesSize;
+
+                    RequestInfo delayedRequestInfo;
+                    while (currentBytesSize == downloadChunkSize && (delayedRequestInfo = findDelayedPart(downloadedBytes)) != null) {
+                        currentBytesSize = delayedRequestInfo.size;
+                        if (delayedRequestInfo.response != null) {
+                            if (currentBytesSize != 0) {
+                                writePart(delayedRequestInfo.response.bytes, delayedRequestInfo.offset);
+                            }
+                            receivedBytes += currentBytesSize;
+                            delayedRequestInfo.response.disableFree = false;
+                            delayedRequestInfo.response.freeResources();
+                            delayedRequestInfo.response = null;
+                        }
+                        downloadedBytes += currentBytesSize;
                     }
-                    return;
                 }
 
-                if (requestInfo.response.bytes == null || requestInfo.response.bytes.limit() == 0) {
-                    onFinishLoadingFile();
-                    return;
+                if (downloadedBytes - lastCheckpointOffset >= checkpointInterval) {
+                    saveCheckpoint();
                 }
-                if (key != null) {
-                    Utilities.aesIgeEncryption(requestInfo.response.bytes.buffer, key, iv, false, true, 0, requestInfo.response.bytes.limit());
-                }
-                if (fileOutputStream != null) {
-                    FileChannel channel = fileOutputStream.getChannel();
-                    channel.write(requestInfo.response.bytes.buffer);
-                }
-                if (fiv != null) {
-                    fiv.seek(0);
-                    fiv.write(iv);
-                }
-                int currentBytesSize = requestInfo.response.bytes.limit();
-                downloadedBytes += currentBytesSize;
-                if (totalBytesCount > 0 && state == stateDownloading) {
-                    delegate.didChangedLoadProgress(FileLoadOperation.this,  Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
-                }
-
-                for (int a = 0; a < delayedRequestInfos.size(); a++) {
-                    RequestInfo delayedRequestInfo = delayedRequestInfos.get(a);
-                    if (downloadedBytes == delayedRequestInfo.offset) {
-                        delayedRequestInfos.remove(a);
-                        processRequestResult(delayedRequestInfo, null);
-                        delayedRequestInfo.response.disableFree = false;
-                        delayedRequestInfo.response.freeResources();
-                        break;
-                    }
+                if (totalBytesCount > 0) {
+                    delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) receivedBytes / (float) totalBytesCount));
                 }
 
-                if (currentBytesSize != downloadChunkSize) {
+                if (finalOffset != -1 && downloadedBytes >= finalOffset || totalBytesCount > 0 && downloadedBytes >= totalBytesCount) {
                     onFinishLoadingFile();
                 } else {
-                    if (totalBytesCount != downloadedBytes && downloadedBytes % downloadChunkSize == 0 || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
-                        startDownloadRequest();
-                    } else {
-                        onFinishLoadingFile();
-                    }
+                    startDownloadRequest();
                 }
             } catch (Exception e) {
                 cleanup();
@@ -418,7 +566,22 @@ public class FileLoadOperation {
                     delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
                 } else {
                     datacenter_id = val;
-                    nextDownloadOffset = 0;
+                    delegate.didChangedDatacenter(FileLoadOperation.this, datacenter_id);
+                    for (RequestInfo info : requestInfos) {
+                        if (info.requestToken != 0) {
+                            ConnectionsManager.getInstance().cancelRpc(info.requestToken, true, true);
+                        }
+                    }
+                    requestInfos.clear();
+                    for (RequestInfo info : delayedRequestInfos) {
+                        if (info.response != null) {
+                            info.response.disableFree = false;
+                            info.response.freeResources();
+                        }
+                    }
+                    delayedRequestInfos.clear();
+                    nextDownloadOffset = receivedBytes = downloadedBytes;
+                    finalOffset = -1;
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
@@ -448,12 +611,22 @@ public class FileLoadOperation {
     }
 
     private void startDownloadRequest() {
-        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= maxDownloadRequests) {
+        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || finalOffset != -1 && nextDownloadOffset >= finalOffset) {
             return;
         }
-        int count = 1;
+        int count;
         if (totalBytesCount > 0) {
-            count = Math.max(0, maxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
+            count = requestWindow - requestInfos.size() - delayedRequestInfos.size();
+            int delayedBytes = 0;
+            for (int a = 0; a < delayedRequestInfos.size(); a++) {
+                RequestInfo delayedRequestInfo = delayedRequestInfos.get(a);
+                if (delayedRequestInfo.response != null) {
+                    delayedBytes += delayedRequestInfo.size;
+                }
+            }
+            count = Math.min(count, (maxBytesInFlight - delayedBytes) / downloadChunkSize - requestInfos.size());
+        } else {
+            count = 1 - requestInfos.size() - delayedRequestInfos.size();
         }
 
         for (int a = 0; a < count; a++) {
@@ -470,6 +643,7 @@ public class FileLoadOperation {
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = req.offset;
+            requestInfo.sendTime = System.currentTimeMillis();
             requestInfo.requestToken = ConnectionsManager.getInstance().performRpc(req, new RPCRequest.RPCRequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
@@ -13,7 +13,6 @@ import org.telegramsecureplus.android.AndroidUtilities;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 
@@ -42,11 +41,9 @@ public class FileLoader {
     private HashMap<Integer, File> mediaDirs = null;
     private volatile DispatchQueue fileLoaderQueue = new DispatchQueue("fileUploadQueue");
 
-    private LinkedList<FileUploadOperation> uploadOperationQueue = new LinkedList<>();
-    private LinkedList<FileUploadOperation> uploadSmallOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> loadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> audioLoadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> photoLoadOperationQueue = new LinkedList<>();
+    private TransferScheduler transferScheduler = new TransferScheduler();
+    private HashMap<String, TransferScheduler.Task> loadTasks = new HashMap<>();
+    private HashMap<String, TransferScheduler.Task> uploadTasks = new HashMap<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPaths = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPathsEnc = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileLoadOperation> loadOperationPaths = new ConcurrentHashMap<>();
@@ -54,12 +51,6 @@ public class FileLoader {
 
     private FileLoaderDelegate delegate = null;
 
-    private int currentLoadOperationsCount = 0;
-    private int currentAudioLoadOperationsCount = 0;
-    private int currentPhotoLoadOperationsCount = 0;
-    private int currentUploadOperationsCount = 0;
-    private int currentUploadSmallOperationsCount = 0;
-
     private static volatile FileLoader Instance = null;
 
     public static FileLoader getInstance() {
@@ -106,8 +97,7 @@ public class FileLoader {
                 }
                 uploadSizes.remove(location);
                 if (operation != null) {
-                    uploadOperationQueue.remove(operation);
-                    uploadSmallOperationQueue.remove(operation);
+                    finishUploadTask(location, enc);
                     operation.cancel();
                 }
             }
@@ -178,25 +168,7 @@ public class FileLoader {
                                 } else {
                                     uploadOperationPaths.remove(location);
                                 }
-                                if (small) {
-                                    currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadSmallOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadSmallOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                } else {
-                                    currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                }
+                                finishUploadTask(location, encrypted);
                                 if (delegate != null) {
                                     delegate.fileDidUploaded(location, inputFile, inputEncryptedFile, key, iv);
                                 }
@@ -217,25 +189,7 @@ public class FileLoader {
                                 if (delegate != null) {
                                     delegate.fileDidFailedUpload(location, encrypted);
                                 }
-                                if (small) {
-                                    currentUploadSmallOperationsCount--;
-                                    if (currentUploadSmallOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadSmallOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadSmallOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                } else {
-                                    currentUploadOperationsCount--;
-                                    if (currentUploadOperationsCount < 1) {
-                                        FileUploadOperation operation = uploadOperationQueue.poll();
-                                        if (operation != null) {
-                                            currentUploadOperationsCount++;
-                                            operation.start();
-                                        }
-                                    }
-                                }
+                                finishUploadTask(location, encrypted);
                             }
                         });
                     }
@@ -247,21 +201,15 @@ public class FileLoader {
                         }
                     }
                 };
-                if (small) {
-                    if (currentUploadSmallOperationsCount < 1) {
-                        currentUploadSmallOperationsCount++;
-                        operation.start();
-                    } else {
-                        uploadSmallOperationQueue.add(operation);
-                    }
-                } else {
-                    if (currentUploadOperationsCount < 1) {
-                        currentUploadOperationsCount++;
-                        operation.start();
-                    } else {
-                        uploadOperationQueue.add(operation);
+                final FileUploadOperation finalOperation = operation;
+                TransferScheduler.Task task = new TransferScheduler.Task(small ? TransferScheduler.TYPE_UPLOAD_SMALL : TransferScheduler.TYPE_UPLOAD, ConnectionsManager.DEFAULT_DATACENTER_ID, TransferScheduler.PRIORITY_USER) {
+                    @Override
+                    protected void onStart() {
+                        finalOperation.start();
                     }
-                }
+                };
+                uploadTasks.put(getUploadTaskKey(location, encrypted), task);
+                transferScheduler.add(task);
             }
         });
     }
@@ -309,13 +257,7 @@ public class FileLoader {
                 FileLoadOperation operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
                     loadOperationPaths.remove(fileName);
-                    if (audio != null) {
-                        audioLoadOperationQueue.remove(operation);
-                    } else if (location != null) {
-                        photoLoadOperationQueue.remove(operation);
-                    } else {
-                        loadOperationQueue.remove(operation);
-                    }
+                    finishLoadTask(fileName);
                     operation.cancel();
                 }
             }
@@ -341,26 +283,46 @@ public class FileLoader {
     }
 
     public void loadFile(TLRPC.Video video, boolean force) {
-        loadFile(video, null, null, null, null, 0, force, video != null && video.key != null);
+        loadFile(video, force ? TransferScheduler.PRIORITY_USER : TransferScheduler.PRIORITY_BACKGROUND);
+    }
+
+    public void loadFile(TLRPC.Video video, int priority) {
+        loadFile(video, null, null, null, null, 0, priority, video != null && video.key != null);
     }
 
     public void loadFile(TLRPC.PhotoSize photo, String ext, boolean cacheOnly) {
-        loadFile(null, null, null, photo.location, ext, photo.size, false, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
+        loadFile(photo, ext, cacheOnly, TransferScheduler.PRIORITY_BACKGROUND);
+    }
+
+    public void loadFile(TLRPC.PhotoSize photo, String ext, boolean cacheOnly, int priority) {
+        loadFile(null, null, null, photo.location, ext, photo.size, priority, cacheOnly || (photo != null && photo.size == 0 || photo.location.key != null));
     }
 
     public void loadFile(TLRPC.Document document, boolean force, boolean cacheOnly) {
-        loadFile(null, document, null, null, null, 0, force, cacheOnly || document != null && document.key != null);
+        loadFile(document, force ? TransferScheduler.PRIORITY_USER : TransferScheduler.PRIORITY_BACKGROUND, cacheOnly);
+    }
+
+    public void loadFile(TLRPC.Document document, int priority, boolean cacheOnly) {
+        loadFile(null, document, null, null, null, 0, priority, cacheOnly || document != null && document.key != null);
     }
 
     public void loadFile(TLRPC.Audio audio, boolean force) {
-        loadFile(null, null, audio, null, null, 0, false, audio != null && audio.key != null);
+        loadFile(audio, TransferScheduler.PRIORITY_BACKGROUND);
+    }
+
+    public void loadFile(TLRPC.Audio audio, int priority) {
+        loadFile(null, null, audio, null, null, 0, priority, audio != null && audio.key != null);
     }
 
     public void loadFile(TLRPC.FileLocation location, String ext, int size, boolean cacheOnly) {
-        loadFile(null, null, null, location, ext, size, true, cacheOnly || size == 0 || (location != null && location.key != null));
+        loadFile(location, ext, size, cacheOnly, TransferScheduler.PRIORITY_VISIBLE);
     }
 
-    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final String locationExt, final int locationSize, final boolean force, final boolean cacheOnly) {
+    public void loadFile(TLRPC.FileLocation location, String ext, int size, boolean cacheOnly, int priority) {
+        loadFile(null, null, null, location, ext, size, priority, cacheOnly || size == 0 || (location != null && location.key != null));
+    }
+
+    private void loadFile(final TLRPC.Video video, final TLRPC.Document document, final TLRPC.Audio audio, final TLRPC.FileLocation location, final String locationExt, final int locationSize, final int priority, final boolean cacheOnly) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -381,22 +343,11 @@ public class FileLoader {
                 FileLoadOperation operation;
                 operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
-                    if (force) {
-                        LinkedList<FileLoadOperation> downloadQueue;
-                        if (audio != null) {
-                            downloadQueue = audioLoadOperationQueue;
-                        } else if (location != null) {
-                            downloadQueue = photoLoadOperationQueue;
-                        } else {
-                            downloadQueue = loadOperationQueue;
-                        }
-                        if (downloadQueue != null) {
-                            int index = downloadQueue.indexOf(operation);
-                            if (index != -1) {
-                                downloadQueue.remove(index);
-                                downloadQueue.add(0, operation);
-                                operation.setForceRequest(true);
-                            }
+                    TransferScheduler.Task task = loadTasks.get(fileName);
+                    if (task != null && priority > task.getPriority()) {
+                        transferScheduler.setPriority(task, priority);
+                        if (priority >= TransferScheduler.PRIORITY_VISIBLE) {
+                            operation.setForceRequest(true);
                         }
                     }
                     return;
@@ -433,12 +384,12 @@ public class FileLoader {
                         if (delegate != null) {
                             delegate.fileDidLoaded(finalFileName, finalFile, finalType);
                         }
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, finalFileName);
                     }
 
                     @Override
                     public void didFailedLoadingFile(FileLoadOperation operation, int canceled) {
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, finalFileName);
                         if (delegate != null) {
                             delegate.fileDidFailedLoad(finalFileName, canceled);
                         }
@@ -450,96 +401,97 @@ public class FileLoader {
                             delegate.fileLoadProgressChanged(finalFileName, progress);
                         }
                     }
+
+                    @Override
+                    public void didChangedDatacenter(final FileLoadOperation operation, final int datacenterId) {
+                        fileLoaderQueue.postRunnable(new Runnable() {
+                            @Override
+                            public void run() {
+                                TransferScheduler.Task task = loadTasks.get(finalFileName);
+                                if (task != null && loadOperationPaths.get(finalFileName) == operation) {
+                                    transferScheduler.setDatacenterId(task, datacenterId);
+                                }
+                            }
+                        });
+                    }
                 });
-                int maxCount = force ? 3 : 1;
+                int transferType;
                 if (audio != null) {
-                    if (currentAudioLoadOperationsCount < maxCount) {
-                        currentAudioLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            audioLoadOperationQueue.add(0, operation);
-                        } else {
-                            audioLoadOperationQueue.add(operation);
-                        }
-                    }
+                    transferType = TransferScheduler.TYPE_DOWNLOAD_AUDIO;
                 } else if (location != null) {
-                    if (currentPhotoLoadOperationsCount < maxCount) {
-                        currentPhotoLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            photoLoadOperationQueue.add(0, operation);
-                        } else {
-                            photoLoadOperationQueue.add(operation);
-                        }
-                    }
+                    transferType = TransferScheduler.TYPE_DOWNLOAD_PHOTO;
                 } else {
-                    if (currentLoadOperationsCount < maxCount) {
-                        currentLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            loadOperationQueue.add(0, operation);
-                        } else {
-                            loadOperationQueue.add(operation);
-                        }
-                    }
+                    transferType = TransferScheduler.TYPE_DOWNLOAD_FILE;
                 }
+                final FileLoadOperation finalOperation = operation;
+                TransferScheduler.Task task = new TransferScheduler.Task(transferType, operation.getDatacenterId(), priority) {
+                    @Override
+                    protected void onStart() {
+                        finalOperation.start();
+                    }
+
+                    @Override
+                    protected boolean onPreempt() {
+                        final TransferScheduler.Task task = this;
+                        finalOperation.pause(new Runnable() {
+                            @Override
+                            public void run() {
+                                fileLoaderQueue.postRunnable(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        transferScheduler.onTaskPaused(task);
+                                    }
+                                });
+                            }
+                        });
+                        return true;
+                    }
+                };
+                loadTasks.put(fileName, task);
+                transferScheduler.add(task);
             }
         });
     }
 
-    private void checkDownloadQueue(final TLRPC.Audio audio, final TLRPC.FileLocation location, final String arg1) {
+    private void checkDownloadQueue(final FileLoadOperation operation, final String fileName) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                loadOperationPaths.remove(arg1);
-                FileLoadOperation operation;
-                if (audio != null) {
-                    currentAudioLoadOperationsCount--;
-                    if (!audioLoadOperationQueue.isEmpty()) {
-                        operation = audioLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentAudioLoadOperationsCount < maxCount) {
-                            operation = audioLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentAudioLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else if (location != null) {
-                    currentPhotoLoadOperationsCount--;
-                    if (!photoLoadOperationQueue.isEmpty()) {
-                        operation = photoLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentPhotoLoadOperationsCount < maxCount) {
-                            operation = photoLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentPhotoLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else {
-                    currentLoadOperationsCount--;
-                    if (!loadOperationQueue.isEmpty()) {
-                        operation = loadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentLoadOperationsCount < maxCount) {
-                            operation = loadOperationQueue.poll();
-                            if (operation != null) {
-                                currentLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
+                if (loadOperationPaths.get(fileName) == operation) {
+                    loadOperationPaths.remove(fileName);
+                    finishLoadTask(fileName);
                 }
             }
         });
     }
 
+    private void finishLoadTask(String fileName) {
+        TransferScheduler.Task task = loadTasks.remove(fileName);
+        if (task != null) {
+            transferScheduler.remove(task);
+        }
+    }
+
+    private static String getUploadTaskKey(String location, boolean encrypted) {
+        return encrypted ? "enc_" + location : location;
+    }
+
+    private void finishUploadTask(String location, boolean encrypted) {
+        TransferScheduler.Task task = uploadTasks.remove(getUploadTaskKey(location, encrypted));
+        if (task != null) {
+            transferScheduler.remove(task);
+        }
+    }
+
+    public void dumpStatistics() {
+        fileLoaderQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                FileLog.d("tmessages", transferScheduler.getStatistics());
+            }
+        });
+    }
+
     public void setDelegate(FileLoaderDelegate delegate) {
         this.delegate = delegate;
     }
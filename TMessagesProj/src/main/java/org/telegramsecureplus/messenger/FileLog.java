@@ -10,18 +10,90 @@ package org.telegramsecureplus.messenger;
 
 import android.util.Log;
 
-import org.telegramsecureplus.android.time.FastDateFormat;
-
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Callers only claim a slot of a preallocated ring and store the raw values there, message
+ * formatting, stack traces and file writes happen later on the log queue. Records are written
+ * in binary form to memory mapped files that rotate, FileLogDecoder turns them into text.
+ * Messages of the numeric overloads are formats with %d or %x placeholders that are only
+ * filled in by the decoder.
+ */
 public class FileLog {
-    private OutputStreamWriter streamWriter = null;
-    private FastDateFormat dateFormat = null;
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_WARNING = 1;
+    public static final int LEVEL_ERROR = 2;
+
+    static final int FILE_MAGIC = 0x544c4f47;
+    static final int FILE_VERSION = 1;
+    static final int RECORD_END = 0;
+    static final int RECORD_TAG = 1;
+    static final int RECORD_ENTRY = 2;
+    static final int RECORD_DROPPED = 3;
+
+    private static final int RING_SIZE = 4096;
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final int FILE_SIZE = 512 * 1024;
+    private static final int FILES_COUNT = 4;
+    private static final int DRAIN_DELAY = 500;
+    private static final int FLUSH_TIMEOUT = 1000;
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024;
+
+    private static class LogTag {
+        private int id;
+        private String name;
+        private volatile int sampleRate = 1;
+        private final AtomicInteger counter = new AtomicInteger();
+    }
+
+    private final AtomicLong writeIndex = new AtomicLong();
+    private volatile long readIndex;
+    private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+    private final long[] times = new long[RING_SIZE];
+    private final long[] threadIds = new long[RING_SIZE];
+    private final long[] args = new long[RING_SIZE * 2];
+    private final int[] levels = new int[RING_SIZE];
+    private final int[] tagIds = new int[RING_SIZE];
+    private final int[] argsCounts = new int[RING_SIZE];
+    private final Object[] messages = new Object[RING_SIZE];
+
+    private final ConcurrentHashMap<String, LogTag> tags = new ConcurrentHashMap<>();
+    private final AtomicInteger lastTagId = new AtomicInteger();
+    private volatile LogTag[] tagsById = new LogTag[16];
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+    private long writtenCount;
+    private long reportedDroppedCount;
+
     private DispatchQueue logQueue = null;
+    private File logsDir = null;
     private File currentFile = null;
+    private MappedByteBuffer currentBuffer = null;
+    private boolean[] writtenTags = new boolean[16];
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            drain();
+        }
+    };
 
     private static volatile FileLog Instance = null;
     public static FileLog getInstance() {
@@ -38,138 +110,326 @@ public class FileLog {
     }
 
     public FileLog() {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        dateFormat = FastDateFormat.getInstance("dd_MM_yyyy_HH_mm_ss", Locale.US);
         try {
             File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
             if (sdCard == null) {
                 return;
             }
-            File dir = new File(sdCard.getAbsolutePath() + "/logs");
-            dir.mkdirs();
-            currentFile = new File(dir, dateFormat.format(System.currentTimeMillis()) + ".txt");
+            logsDir = new File(sdCard.getAbsolutePath() + "/logs");
+            logsDir.mkdirs();
+            logQueue = new DispatchQueue("logQueue");
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    private static boolean isEnabled() {
+        return BuildVars.DEBUG_VERSION || BuildVars.LOGS_ENABLED;
+    }
+
+    /**
+     * Keeps one of every rate debug records of the tag, warnings and errors are never sampled.
+     */
+    public static void setSampleRate(String tag, int rate) {
+        getInstance().getTag(tag).sampleRate = Math.max(1, rate);
+    }
+
+    private LogTag getTag(String name) {
+        LogTag tag = tags.get(name);
+        if (tag != null) {
+            return tag;
+        }
+        synchronized (tags) {
+            tag = tags.get(name);
+            if (tag == null) {
+                tag = new LogTag();
+                tag.name = name;
+                tag.id = lastTagId.incrementAndGet();
+                LogTag[] array = tagsById;
+                if (tag.id >= array.length) {
+                    array = Arrays.copyOf(array, array.length * 2);
+                }
+                array[tag.id] = tag;
+                tagsById = array;
+                tags.put(name, tag);
+            }
+        }
+        return tag;
+    }
+
+    private void add(int level, String tagName, Object message, int argsCount, long arg0, long arg1) {
+        if (logQueue == null) {
+            return;
+        }
+        LogTag tag = getTag(tagName);
+        if (level == LEVEL_DEBUG && tag.sampleRate > 1 && tag.counter.getAndIncrement() % tag.sampleRate != 0) {
+            sampledOutCount.incrementAndGet();
+            return;
+        }
+        long index;
+        do {
+            index = writeIndex.get();
+            if (index - readIndex >= RING_SIZE) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+        } while (!writeIndex.compareAndSet(index, index + 1));
+        int slot = (int) (index & RING_MASK);
+        times[slot] = System.currentTimeMillis();
+        threadIds[slot] = Thread.currentThread().getId();
+        levels[slot] = level;
+        tagIds[slot] = tag.id;
+        argsCounts[slot] = argsCount;
+        args[slot * 2] = arg0;
+        args[slot * 2 + 1] = arg1;
+        messages[slot] = message;
+        sequences.set(slot, index + 1);
+
+        if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            logQueue.postRunnable(drainRunnable, level == LEVEL_ERROR ? 0 : DRAIN_DELAY);
+        }
+    }
+
+    private void drain() {
+        long index = readIndex;
+        while (true) {
+            int slot = (int) (index & RING_MASK);
+            if (sequences.get(slot) != index + 1) {
+                break;
+            }
+            Object message = messages[slot];
+            messages[slot] = null;
+            try {
+                writeEntry(slot, message);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            index++;
+            readIndex = index;
+        }
+        long dropped = droppedCount.get();
+        if (dropped != reportedDroppedCount) {
+            try {
+                if (prepareBuffer(9)) {
+                    currentBuffer.put((byte) RECORD_DROPPED);
+                    currentBuffer.putLong(dropped - reportedDroppedCount);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            reportedDroppedCount = dropped;
+        }
+    }
+
+    /**
+     * Writes the records still waiting in the ring to the current file and waits until that is
+     * done, at most FLUSH_TIMEOUT ms, so the files can be attached right after.
+     */
+    public static void flush() {
+        final FileLog fileLog = getInstance();
+        if (fileLog.logQueue == null) {
+            return;
+        }
+        if (Thread.currentThread() == fileLog.logQueue) {
+            fileLog.drainAndSync();
+            return;
+        }
+        final Semaphore semaphore = new Semaphore(0);
+        fileLog.logQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                fileLog.drainAndSync();
+                semaphore.release();
+            }
+        });
         try {
-            logQueue = new DispatchQueue("logQueue");
-            currentFile.createNewFile();
-            FileOutputStream stream = new FileOutputStream(currentFile);
-            streamWriter = new OutputStreamWriter(stream);
-            streamWriter.write("-----start log " + dateFormat.format(System.currentTimeMillis()) + "-----\n");
-            streamWriter.flush();
+            semaphore.tryAcquire(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void drainAndSync() {
+        drain();
+        if (currentBuffer != null) {
+            try {
+                currentBuffer.force();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeEntry(int slot, Object message) throws Exception {
+        byte[] text;
+        if (message instanceof Throwable) {
+            Throwable exception = (Throwable) message;
+            StringBuilder builder = new StringBuilder();
+            builder.append(exception);
+            for (StackTraceElement element : exception.getStackTrace()) {
+                builder.append("\n    at ").append(element);
+            }
+            text = builder.toString().getBytes("UTF-8");
+        } else {
+            text = message != null ? message.toString().getBytes("UTF-8") : new byte[0];
+        }
+        int length = Math.min(text.length, MAX_MESSAGE_LENGTH);
+        int argsCount = argsCounts[slot];
+        int tagId = tagIds[slot];
+        byte[] tagName = tagsById[tagId].name.getBytes("UTF-8");
+
+        int size = 1 + 2 + 2 + tagName.length + 1 + 1 + 2 + 8 + 8 + 1 + argsCount * 8 + 4 + length;
+        if (!prepareBuffer(size)) {
+            return;
+        }
+        if (tagId >= writtenTags.length || !writtenTags[tagId]) {
+            if (tagId >= writtenTags.length) {
+                writtenTags = Arrays.copyOf(writtenTags, Math.max(tagId + 1, writtenTags.length * 2));
+            }
+            writtenTags[tagId] = true;
+            currentBuffer.put((byte) RECORD_TAG);
+            currentBuffer.putShort((short) tagId);
+            currentBuffer.putShort((short) tagName.length);
+            currentBuffer.put(tagName);
+        }
+        currentBuffer.put((byte) RECORD_ENTRY);
+        currentBuffer.put((byte) levels[slot]);
+        currentBuffer.putShort((short) tagId);
+        currentBuffer.putLong(times[slot]);
+        currentBuffer.putLong(threadIds[slot]);
+        currentBuffer.put((byte) argsCount);
+        for (int a = 0; a < argsCount; a++) {
+            currentBuffer.putLong(args[slot * 2 + a]);
+        }
+        currentBuffer.putInt(length);
+        currentBuffer.put(text, 0, length);
+        writtenCount++;
+    }
+
+    private boolean prepareBuffer(int size) throws Exception {
+        if (currentBuffer != null && currentBuffer.remaining() >= size + 1) {
+            return true;
+        }
+        if (size + 1 > FILE_SIZE - 16 || logsDir == null) {
+            return false;
+        }
+        currentFile = new File(logsDir, System.currentTimeMillis() + ".tlog");
+        RandomAccessFile file = new RandomAccessFile(currentFile, "rw");
+        try {
+            currentBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } finally {
+            file.close();
+        }
+        currentBuffer.putInt(FILE_MAGIC);
+        currentBuffer.putInt(FILE_VERSION);
+        currentBuffer.putLong(System.currentTimeMillis());
+        Arrays.fill(writtenTags, false);
+        removeOldFiles();
+        return true;
+    }
+
+    private void removeOldFiles() {
+        File[] files = logsDir.listFiles();
+        if (files == null || files.length <= FILES_COUNT) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l > r ? 1 : 0);
+            }
+        });
+        for (int a = 0; a < files.length - FILES_COUNT; a++) {
+            if (!files[a].equals(currentFile)) {
+                files[a].delete();
+            }
+        }
+    }
+
+    public static String getStatistics() {
+        FileLog fileLog = getInstance();
+        return String.format(Locale.US, "FileLog: queued=%d written=%d dropped=%d sampledOut=%d tags=%d",
+                fileLog.writeIndex.get() - fileLog.readIndex, fileLog.writtenCount, fileLog.droppedCount.get(), fileLog.sampledOutCount.get(), fileLog.tags.size());
+    }
+
+    public static void dumpStatistics() {
+        d("tmessages", getStatistics());
+    }
+
     public static void e(final String tag, final String message, final Throwable exception) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        Log.e(tag, message, exception);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.write(exception.toString());
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        if (BuildVars.DEBUG_VERSION) {
+            Log.e(tag, message, exception);
         }
+        getInstance().add(LEVEL_ERROR, tag, message, 0, 0, 0);
+        getInstance().add(LEVEL_ERROR, tag, exception, 0, 0, 0);
     }
 
     public static void e(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        Log.e(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        if (BuildVars.DEBUG_VERSION) {
+            Log.e(tag, message);
         }
+        getInstance().add(LEVEL_ERROR, tag, message, 0, 0, 0);
     }
 
     public static void e(final String tag, final Throwable e) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        e.printStackTrace();
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + e + "\n");
-                        StackTraceElement[] stack = e.getStackTrace();
-                        for (StackTraceElement el : stack) {
-                            getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/" + tag + "﹕ " + el + "\n");
-                        }
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        } else {
+        if (BuildVars.DEBUG_VERSION) {
             e.printStackTrace();
         }
+        getInstance().add(LEVEL_ERROR, tag, e, 0, 0, 0);
     }
 
     public static void d(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        Log.d(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " D/" + tag + "﹕ " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        if (BuildVars.DEBUG_VERSION) {
+            Log.d(tag, message);
+        }
+        getInstance().add(LEVEL_DEBUG, tag, message, 0, 0, 0);
+    }
+
+    public static void d(final String tag, final String format, final long arg0) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            Log.d(tag, FileLogDecoder.formatMessage(format, new long[]{arg0}));
         }
+        getInstance().add(LEVEL_DEBUG, tag, format, 1, arg0, 0);
+    }
+
+    public static void d(final String tag, final String format, final long arg0, final long arg1) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            Log.d(tag, FileLogDecoder.formatMessage(format, new long[]{arg0, arg1}));
+        }
+        getInstance().add(LEVEL_DEBUG, tag, format, 2, arg0, arg1);
     }
 
     public static void w(final String tag, final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isEnabled()) {
             return;
         }
-        Log.w(tag, message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " W/" + tag + ": " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        if (BuildVars.DEBUG_VERSION) {
+            Log.w(tag, message);
         }
+        getInstance().add(LEVEL_WARNING, tag, message, 0, 0, 0);
     }
 
     public static void cleanupLogs() {
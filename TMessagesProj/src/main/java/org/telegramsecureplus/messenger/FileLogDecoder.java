@@ -0,0 +1,123 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Turns the binary files written by FileLog into text, doesn't depend on android classes so
+ * it can be run on a desktop: java org.telegramsecureplus.messenger.FileLogDecoder file...
+ */
+public class FileLogDecoder {
+
+    private static final char[] levelNames = new char[]{'D', 'W', 'E'};
+
+    public static void main(String[] args) throws IOException {
+        Writer writer = new OutputStreamWriter(System.out, "UTF-8");
+        for (String path : args) {
+            decode(new File(path), writer);
+        }
+        writer.flush();
+    }
+
+    public static void decode(File file, Writer writer) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (stream.readInt() != FileLog.FILE_MAGIC) {
+                throw new IOException("not a log file " + file);
+            }
+            int version = stream.readInt();
+            if (version != FileLog.FILE_VERSION) {
+                throw new IOException("unsupported log version " + version);
+            }
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss.SSS", Locale.US);
+            writer.write("-----start log " + dateFormat.format(new Date(stream.readLong())) + "-----\n");
+
+            HashMap<Integer, String> tags = new HashMap<>();
+            while (true) {
+                int type;
+                try {
+                    type = stream.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == FileLog.RECORD_TAG) {
+                    int id = stream.readUnsignedShort();
+                    byte[] name = new byte[stream.readUnsignedShort()];
+                    stream.readFully(name);
+                    tags.put(id, new String(name, "UTF-8"));
+                } else if (type == FileLog.RECORD_ENTRY) {
+                    int level = stream.readUnsignedByte();
+                    int tagId = stream.readUnsignedShort();
+                    long time = stream.readLong();
+                    long threadId = stream.readLong();
+                    long[] values = new long[stream.readUnsignedByte()];
+                    for (int a = 0; a < values.length; a++) {
+                        values[a] = stream.readLong();
+                    }
+                    byte[] text = new byte[stream.readInt()];
+                    stream.readFully(text);
+
+                    String message = new String(text, "UTF-8");
+                    if (values.length != 0) {
+                        message = formatMessage(message, values);
+                    }
+                    String tag = tags.get(tagId);
+                    writer.write(dateFormat.format(new Date(time)) + " " + (level < levelNames.length ? levelNames[level] : '?') + "/" + (tag != null ? tag : "?") + " [" + threadId + "]: " + message + "\n");
+                } else if (type == FileLog.RECORD_DROPPED) {
+                    writer.write("----- " + stream.readLong() + " records dropped -----\n");
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Replaces %d and %x placeholders of the format with the values in order, values left
+     * without a placeholder are appended.
+     */
+    public static String formatMessage(String format, long[] values) {
+        StringBuilder builder = new StringBuilder(format.length() + values.length * 8);
+        int value = 0;
+        for (int a = 0; a < format.length(); a++) {
+            char c = format.charAt(a);
+            if (c == '%' && a + 1 < format.length() && value < values.length) {
+                char next = format.charAt(a + 1);
+                if (next == 'd') {
+                    builder.append(values[value++]);
+                    a++;
+                    continue;
+                } else if (next == 'x') {
+                    builder.append(Long.toHexString(values[value++]));
+                    a++;
+                    continue;
+                }
+            }
+            builder.append(c);
+        }
+        for (; value < values.length; value++) {
+            builder.append(' ').append(values[value]);
+        }
+        return builder.toString();
+    }
+}
@@ -16,22 +16,37 @@ import java.io.FileInputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class FileUploadOperation {
+
+    private static class UploadPart {
+        private int partNum;
+        private int readBytes;
+        private int totalParts;
+        private boolean isLast;
+        private long requestToken;
+        private ByteBufferDesc bytes;
+    }
+
+    private final static int maxUploadRequests = 4;
+    private final static int maxSmallUploadRequests = 2;
+    private final static int readAheadParts = 2;
+    private final static int savePartsInterval = 4;
+
+    private static DispatchQueue readQueue = new DispatchQueue("uploadReadQueue");
+    private static DispatchQueue hashQueue = new DispatchQueue("uploadHashQueue");
+
     private int uploadChunkSize = 1024 * 32;
     private String uploadingFilePath;
     public int state = 0;
     private byte[] readBuffer;
     public FileUploadOperationDelegate delegate;
-    private long requestToken = 0;
-    private int currentPartNum = 0;
     private long currentFileId;
-    private boolean isLastPart = false;
     private long totalFileSize = 0;
     private int totalPartsCount = 0;
     private long currentUploaded = 0;
-    private int saveInfoTimes = 0;
     private byte[] key;
     private byte[] iv;
     private byte[] ivChange;
@@ -44,6 +59,19 @@ public class FileUploadOperation {
     private FileInputStream stream;
     private MessageDigest mdEnc = null;
     private boolean started = false;
+    private int maxParallelParts = 0;
+
+    private int readPartNum = 0;
+    private boolean reading = false;
+    private boolean readFinished = false;
+    private boolean waitingForData = false;
+    private int partsInPipeline = 0;
+    private int lastPartNum = -1;
+    private byte[] uploadedParts = new byte[0];
+    private int uploadedPartsPrefix = 0;
+    private int partsSinceSave = 0;
+    private ArrayList<UploadPart> readyParts = new ArrayList<>();
+    private ArrayList<UploadPart> runningParts = new ArrayList<>();
 
     public interface FileUploadOperationDelegate {
         void didFinishUploadingFile(FileUploadOperation operation, TLRPC.InputFile inputFile, TLRPC.InputEncryptedFile inputEncryptedFile, byte[] key, byte[] iv);
@@ -57,6 +85,10 @@ public class FileUploadOperation {
         estimatedSize = estimated;
     }
 
+    public void setMaxParallelParts(int count) {
+        maxParallelParts = count;
+    }
+
     public void start() {
         if (state != 0) {
             return;
@@ -75,18 +107,36 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        if (requestToken != 0) {
-            ConnectionsManager.getInstance().cancelRpc(requestToken, true);
-        }
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                cancelRunningParts();
+            }
+        });
         delegate.didFailedUploadingFile(this);
         cleanup();
     }
 
+    private void cancelRunningParts() {
+        for (int a = 0; a < runningParts.size(); a++) {
+            UploadPart part = runningParts.get(a);
+            if (part.requestToken != 0) {
+                ConnectionsManager.getInstance().cancelRpc(part.requestToken, true);
+            }
+        }
+        runningParts.clear();
+        for (int a = 0; a < readyParts.size(); a++) {
+            BuffersStorage.getInstance().reuseFreeBuffer(readyParts.get(a).bytes);
+        }
+        readyParts.clear();
+    }
+
     private void cleanup() {
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
         preferences.edit().remove(fileKey + "_time").
                 remove(fileKey + "_size").
                 remove(fileKey + "_uploaded").
+                remove(fileKey + "_parts").
                 remove(fileKey + "_id").
                 remove(fileKey + "_iv").
                 remove(fileKey + "_key").
@@ -101,6 +151,16 @@ public class FileUploadOperation {
         }
     }
 
+    private void failUpload() {
+        if (state != 1) {
+            return;
+        }
+        state = 2;
+        cancelRunningParts();
+        delegate.didFailedUploadingFile(this);
+        cleanup();
+    }
+
     protected void checkNewDataAvailable(final long finalSize) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -114,8 +174,11 @@ public class FileUploadOperation {
                         storeFileUploadInfo(preferences);
                     }
                 }
-                if (requestToken == 0) {
+                if (!started) {
                     startUploadRequest();
+                } else {
+                    waitingForData = false;
+                    scheduleRead();
                 }
             }
         });
@@ -127,200 +190,239 @@ public class FileUploadOperation {
         editor.putLong(fileKey + "_size", totalFileSize);
         editor.putLong(fileKey + "_id", currentFileId);
         editor.remove(fileKey + "_uploaded");
+        editor.remove(fileKey + "_parts");
         if (isEncrypted) {
             editor.putString(fileKey + "_iv", Utilities.bytesToHex(iv));
-            editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivChange));
             editor.putString(fileKey + "_key", Utilities.bytesToHex(key));
         }
         editor.commit();
     }
 
+    private void storeUploadedParts() {
+        partsSinceSave = 0;
+        if (estimatedSize != 0) {
+            return;
+        }
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(fileKey + "_uploaded", (long) uploadedPartsPrefix * uploadChunkSize);
+        editor.putString(fileKey + "_parts", Utilities.bytesToHex(uploadedParts));
+        editor.commit();
+    }
+
+    private boolean isPartUploaded(int partNum) {
+        int index = partNum >> 3;
+        return index < uploadedParts.length && (uploadedParts[index] & (1 << (partNum & 7))) != 0;
+    }
+
+    private void markPartUploaded(int partNum) {
+        int index = partNum >> 3;
+        if (index >= uploadedParts.length) {
+            byte[] newParts = new byte[Math.max(index + 1, uploadedParts.length * 2)];
+            System.arraycopy(uploadedParts, 0, newParts, 0, uploadedParts.length);
+            uploadedParts = newParts;
+        }
+        uploadedParts[index] |= 1 << (partNum & 7);
+        while (isPartUploaded(uploadedPartsPrefix)) {
+            uploadedPartsPrefix++;
+        }
+    }
+
     private void startUploadRequest() {
         if (state != 1) {
             return;
         }
 
-        TLObject finalRequest;
-
         try {
             started = true;
-            if (stream == null) {
-                File cacheFile = new File(uploadingFilePath);
-                stream = new FileInputStream(cacheFile);
-                if (estimatedSize != 0) {
-                    totalFileSize = estimatedSize;
-                } else {
-                    totalFileSize = cacheFile.length();
-                }
-                if (totalFileSize > 10 * 1024 * 1024) {
-                    isBigFile = true;
-                } else {
-                    try {
-                        mdEnc = MessageDigest.getInstance("MD5");
-                    } catch (NoSuchAlgorithmException e) {
-                        FileLog.e("tmessages", e);
-                    }
+            File cacheFile = new File(uploadingFilePath);
+            stream = new FileInputStream(cacheFile);
+            if (estimatedSize != 0) {
+                totalFileSize = estimatedSize;
+            } else {
+                totalFileSize = cacheFile.length();
+            }
+            if (totalFileSize > 10 * 1024 * 1024) {
+                isBigFile = true;
+            } else {
+                try {
+                    mdEnc = MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    FileLog.e("tmessages", e);
                 }
+            }
+            if (maxParallelParts <= 0) {
+                maxParallelParts = isBigFile ? maxUploadRequests : maxSmallUploadRequests;
+            }
 
-                uploadChunkSize = (int) Math.max(32, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
-                if (1024 % uploadChunkSize != 0) {
-                    int chunkSize = 64;
-                    while (uploadChunkSize > chunkSize) {
-                        chunkSize *= 2;
-                    }
-                    uploadChunkSize = chunkSize;
+            uploadChunkSize = (int) Math.max(32, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
+            if (1024 % uploadChunkSize != 0) {
+                int chunkSize = 64;
+                while (uploadChunkSize > chunkSize) {
+                    chunkSize *= 2;
                 }
+                uploadChunkSize = chunkSize;
+            }
 
-                uploadChunkSize *= 1024;
-                totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
-                readBuffer = new byte[uploadChunkSize];
-
-                fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
-                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                long fileSize = preferences.getLong(fileKey + "_size", 0);
-                uploadStartTime = (int)(System.currentTimeMillis() / 1000);
-                boolean rewrite = false;
-                if (estimatedSize == 0 && fileSize == totalFileSize) {
-                    currentFileId = preferences.getLong(fileKey + "_id", 0);
-                    int date = preferences.getInt(fileKey + "_time", 0);
-                    long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
-                    if (isEncrypted) {
-                        String ivString = preferences.getString(fileKey + "_iv", null);
-                        String keyString = preferences.getString(fileKey + "_key", null);
-                        if (ivString != null && keyString != null) {
-                            key = Utilities.hexToBytes(keyString);
-                            iv = Utilities.hexToBytes(ivString);
-                            if (key != null && iv != null && key.length == 32 && iv.length == 32) {
-                                ivChange = new byte[32];
-                                System.arraycopy(iv, 0, ivChange, 0, 32);
-                            } else {
-                                rewrite = true;
-                            }
+            uploadChunkSize *= 1024;
+            totalPartsCount = (int) (totalFileSize + uploadChunkSize - 1) / uploadChunkSize;
+            readBuffer = new byte[uploadChunkSize];
+
+            fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+            long fileSize = preferences.getLong(fileKey + "_size", 0);
+            uploadStartTime = (int)(System.currentTimeMillis() / 1000);
+            boolean rewrite = false;
+            if (estimatedSize == 0 && fileSize == totalFileSize) {
+                currentFileId = preferences.getLong(fileKey + "_id", 0);
+                int date = preferences.getInt(fileKey + "_time", 0);
+                long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
+                String partsString = preferences.getString(fileKey + "_parts", null);
+                if (isEncrypted) {
+                    String ivString = preferences.getString(fileKey + "_iv", null);
+                    String keyString = preferences.getString(fileKey + "_key", null);
+                    if (ivString != null && keyString != null) {
+                        key = Utilities.hexToBytes(keyString);
+                        iv = Utilities.hexToBytes(ivString);
+                        if (key != null && iv != null && key.length == 32 && iv.length == 32) {
+                            ivChange = new byte[32];
+                            System.arraycopy(iv, 0, ivChange, 0, 32);
                         } else {
                             rewrite = true;
                         }
+                    } else {
+                        rewrite = true;
+                    }
+                }
+                if (!rewrite && date != 0) {
+                    if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
+                        date = 0;
+                    } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
+                        date = 0;
                     }
-                    if (!rewrite && date != 0) {
-                        if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
-                            date = 0;
-                        } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
-                            date = 0;
+                    if (date != 0) {
+                        if (partsString != null) {
+                            byte[] parts = Utilities.hexToBytes(partsString);
+                            if (parts != null) {
+                                uploadedParts = parts;
+                            }
                         }
-                        if (date != 0) {
-                            if (uploadedSize > 0) {
-                                currentUploaded = uploadedSize;
-                                currentPartNum = (int) (uploadedSize / uploadChunkSize);
-                                if (!isBigFile) {
-                                    for (int b = 0; b < currentUploaded / uploadChunkSize; b++) {
-                                        int read = stream.read(readBuffer);
-                                        int toAdd = 0;
-                                        if (isEncrypted && read % 16 != 0) {
-                                            toAdd += 16 - read % 16;
-                                        }
-                                        ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(read + toAdd);
-                                        if (read != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                                            isLastPart = true;
-                                        }
-                                        sendBuffer.writeRaw(readBuffer, 0, read);
-                                        if (isEncrypted) {
-                                            for (int a = 0; a < toAdd; a++) {
-                                                sendBuffer.writeByte(0);
-                                            }
-                                            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
-                                        }
-                                        sendBuffer.rewind();
-                                        mdEnc.update(sendBuffer.buffer);
-                                        BuffersStorage.getInstance().reuseFreeBuffer(sendBuffer);
-                                    }
-                                } else {
-                                    stream.skip(uploadedSize);
-                                    if (isEncrypted) {
-                                        String ivcString = preferences.getString(fileKey + "_ivc", null);
-                                        if (ivcString != null) {
-                                            ivChange = Utilities.hexToBytes(ivcString);
-                                            if (ivChange == null || ivChange.length != 32) {
-                                                rewrite = true;
-                                                currentUploaded = 0;
-                                                currentPartNum = 0;
-                                            }
-                                        } else {
-                                            rewrite = true;
-                                            currentUploaded = 0;
-                                            currentPartNum = 0;
-                                        }
-                                    }
-                                }
-                            } else {
-                                rewrite = true;
+                        int uploadedCount = (int) (uploadedSize / uploadChunkSize);
+                        for (int a = 0; a < uploadedCount; a++) {
+                            markPartUploaded(a);
+                        }
+                        while (isPartUploaded(uploadedPartsPrefix)) {
+                            uploadedPartsPrefix++;
+                        }
+                        if (uploadedPartsPrefix == 0 && uploadedParts.length == 0) {
+                            rewrite = true;
+                        } else if (isBigFile && !isEncrypted) {
+                            readPartNum = uploadedPartsPrefix;
+                            stream.skip((long) readPartNum * uploadChunkSize);
+                        }
+                        for (int a = 0; a < totalPartsCount; a++) {
+                            if (isPartUploaded(a)) {
+                                currentUploaded += Math.min(uploadChunkSize, totalFileSize - (long) a * uploadChunkSize);
                             }
                         }
-                    } else {
-                        rewrite = true;
                     }
                 } else {
                     rewrite = true;
                 }
-                if (rewrite) {
-                    if (isEncrypted) {
-                        iv = new byte[32];
-                        key = new byte[32];
-                        ivChange = new byte[32];
-                        Utilities.random.nextBytes(iv);
-                        Utilities.random.nextBytes(key);
-                        System.arraycopy(iv, 0, ivChange, 0, 32);
-                    }
-                    currentFileId = Utilities.random.nextLong();
-                    if (estimatedSize == 0) {
-                        storeFileUploadInfo(preferences);
-                    }
-                }
-
+            } else {
+                rewrite = true;
+            }
+            if (rewrite) {
                 if (isEncrypted) {
-                    try {
-                        java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-                        byte[] arr = new byte[64];
-                        System.arraycopy(key, 0, arr, 0, 32);
-                        System.arraycopy(iv, 0, arr, 32, 32);
-                        byte[] digest = md.digest(arr);
-                        for (int a = 0; a < 4; a++) {
-                            fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
-                        }
-                    } catch (Exception e) {
-                        FileLog.e("tmessages", e);
-                    }
+                    iv = new byte[32];
+                    key = new byte[32];
+                    ivChange = new byte[32];
+                    Utilities.random.nextBytes(iv);
+                    Utilities.random.nextBytes(key);
+                    System.arraycopy(iv, 0, ivChange, 0, 32);
                 }
-            } else if (estimatedSize == 0) {
-                if (saveInfoTimes >= 4) {
-                    saveInfoTimes = 0;
+                currentFileId = Utilities.random.nextLong();
+                uploadedParts = new byte[0];
+                uploadedPartsPrefix = 0;
+                readPartNum = 0;
+                currentUploaded = 0;
+                if (estimatedSize == 0) {
+                    storeFileUploadInfo(preferences);
                 }
-                if (isBigFile && currentUploaded % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
-                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putLong(fileKey + "_uploaded", currentUploaded);
-                    if (isEncrypted) {
-                        editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivChange));
+            }
+
+            if (isEncrypted) {
+                try {
+                    java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
+                    byte[] arr = new byte[64];
+                    System.arraycopy(key, 0, arr, 0, 32);
+                    System.arraycopy(iv, 0, arr, 32, 32);
+                    byte[] digest = md.digest(arr);
+                    for (int a = 0; a < 4; a++) {
+                        fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
                     }
-                    editor.commit();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
                 }
-                saveInfoTimes++;
             }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            failUpload();
+            return;
+        }
+        scheduleRead();
+    }
 
-            if (estimatedSize != 0) {
+    private void scheduleRead() {
+        if (state != 1 || reading || readFinished || waitingForData) {
+            return;
+        }
+        if (partsInPipeline + readyParts.size() + runningParts.size() >= maxParallelParts + readAheadParts) {
+            return;
+        }
+        reading = true;
+        partsInPipeline++;
+        final boolean waitForData = estimatedSize != 0;
+        final int partsCount = totalPartsCount;
+        readQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                readNextPart(waitForData, partsCount);
+            }
+        });
+    }
+
+    private void readNextPart(final boolean waitForData, final int partsCount) {
+        final UploadPart part = new UploadPart();
+        try {
+            if (state != 1 || stream == null) {
+                return;
+            }
+            if (waitForData) {
                 long size = stream.getChannel().size();
-                if (currentUploaded + uploadChunkSize > size) {
+                if ((long) readPartNum * uploadChunkSize + uploadChunkSize > size) {
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            reading = false;
+                            partsInPipeline--;
+                            if (estimatedSize != 0) {
+                                waitingForData = true;
+                            } else {
+                                scheduleRead();
+                            }
+                        }
+                    });
                     return;
                 }
             }
 
-            int read = stream.read(readBuffer);
+            int read = Math.max(0, stream.read(readBuffer));
             int toAdd = 0;
             if (isEncrypted && read % 16 != 0) {
                 toAdd += 16 - read % 16;
             }
             ByteBufferDesc sendBuffer = BuffersStorage.getInstance().getFreeBuffer(read + toAdd);
-            if (read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
-                isLastPart = true;
-            }
             sendBuffer.writeRaw(readBuffer, 0, read);
             if (isEncrypted) {
                 for (int a = 0; a < toAdd; a++) {
@@ -329,83 +431,162 @@ public class FileUploadOperation {
                 Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
             }
             sendBuffer.rewind();
-            if (!isBigFile) {
-                mdEnc.update(sendBuffer.buffer);
+
+            part.partNum = readPartNum++;
+            part.readBytes = read;
+            part.totalParts = waitForData ? -1 : partsCount;
+            part.isLast = read != uploadChunkSize || !waitForData && partsCount == part.partNum + 1;
+            part.bytes = sendBuffer;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    reading = false;
+                    partsInPipeline--;
+                    failUpload();
+                }
+            });
+            return;
+        }
+
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                reading = false;
+                if (part.isLast) {
+                    readFinished = true;
+                }
+                scheduleRead();
             }
+        });
+        if (mdEnc != null) {
+            hashQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    mdEnc.update(part.bytes.buffer);
+                    part.bytes.rewind();
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            onPartReady(part);
+                        }
+                    });
+                }
+            });
+        } else {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    onPartReady(part);
+                }
+            });
+        }
+    }
+
+    private void onPartReady(UploadPart part) {
+        partsInPipeline--;
+        if (state != 1) {
+            BuffersStorage.getInstance().reuseFreeBuffer(part.bytes);
+            return;
+        }
+        if (part.isLast) {
+            lastPartNum = part.partNum;
+        }
+        if (isPartUploaded(part.partNum)) {
+            BuffersStorage.getInstance().reuseFreeBuffer(part.bytes);
+            if (!checkUploadFinished()) {
+                scheduleRead();
+            }
+            return;
+        }
+        readyParts.add(part);
+        sendParts();
+        scheduleRead();
+    }
+
+    private void sendParts() {
+        while (state == 1 && runningParts.size() < maxParallelParts && !readyParts.isEmpty()) {
+            final UploadPart part = readyParts.remove(0);
+            TLObject finalRequest;
             if (isBigFile) {
                 TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentPartNum;
+                req.file_part = part.partNum;
                 req.file_id = currentFileId;
-                if (estimatedSize != 0) {
-                    req.file_total_parts = -1;
-                } else {
-                    req.file_total_parts = totalPartsCount;
-                }
-                req.bytes = sendBuffer;
+                req.file_total_parts = part.totalParts;
+                req.bytes = part.bytes;
                 finalRequest = req;
             } else {
                 TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentPartNum;
+                req.file_part = part.partNum;
                 req.file_id = currentFileId;
-                req.bytes = sendBuffer;
+                req.bytes = part.bytes;
                 finalRequest = req;
             }
-            currentUploaded += read;
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-            delegate.didFailedUploadingFile(this);
-            cleanup();
+            runningParts.add(part);
+            part.requestToken = ConnectionsManager.getInstance().performRpc(finalRequest, new RPCRequest.RPCRequestDelegate() {
+                @Override
+                public void run(TLObject response, TLRPC.TL_error error) {
+                    onPartResult(part, response, error);
+                }
+            }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID, readyParts.isEmpty() || runningParts.size() == maxParallelParts);
+        }
+    }
+
+    private void onPartResult(UploadPart part, TLObject response, TLRPC.TL_error error) {
+        part.requestToken = 0;
+        runningParts.remove(part);
+        if (state != 1) {
             return;
         }
-        requestToken = ConnectionsManager.getInstance().performRpc(finalRequest, new RPCRequest.RPCRequestDelegate() {
-            @Override
-            public void run(TLObject response, TLRPC.TL_error error) {
-                requestToken = 0;
-                if (error == null) {
-                    if (response instanceof TLRPC.TL_boolTrue) {
-                        currentPartNum++;
-                        delegate.didChangedUploadProgress(FileUploadOperation.this, currentUploaded / (float) totalFileSize);
-                        if (isLastPart) {
-                            state = 3;
-                            if (key == null) {
-                                TLRPC.InputFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputFileBig();
-                                } else {
-                                    result = new TLRPC.TL_inputFile();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
-                                cleanup();
-                            } else {
-                                TLRPC.InputEncryptedFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                                } else {
-                                    result = new TLRPC.TL_inputEncryptedFileUploaded();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.key_fingerprint = fingerprint;
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
-                                cleanup();
-                            }
-                        } else {
-                            startUploadRequest();
-                        }
-                    } else {
-                        delegate.didFailedUploadingFile(FileUploadOperation.this);
-                        cleanup();
-                    }
-                } else {
-                    delegate.didFailedUploadingFile(FileUploadOperation.this);
-                    cleanup();
-                }
+        if (error != null || !(response instanceof TLRPC.TL_boolTrue)) {
+            failUpload();
+            return;
+        }
+        markPartUploaded(part.partNum);
+        currentUploaded += part.readBytes;
+        delegate.didChangedUploadProgress(FileUploadOperation.this, Math.min(1.0f, currentUploaded / (float) totalFileSize));
+        if (++partsSinceSave >= savePartsInterval) {
+            storeUploadedParts();
+        }
+        if (!checkUploadFinished()) {
+            sendParts();
+            scheduleRead();
+        }
+    }
+
+    private boolean checkUploadFinished() {
+        if (lastPartNum == -1 || uploadedPartsPrefix <= lastPartNum) {
+            return false;
+        }
+        state = 3;
+        int partsCount = lastPartNum + 1;
+        if (key == null) {
+            TLRPC.InputFile result;
+            if (isBigFile) {
+                result = new TLRPC.TL_inputFileBig();
+            } else {
+                result = new TLRPC.TL_inputFile();
+                result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
             }
-        }, null, true, RPCRequest.RPCRequestClassUploadMedia, ConnectionsManager.DEFAULT_DATACENTER_ID);
+            result.parts = partsCount;
+            result.id = currentFileId;
+            result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+            delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
+        } else {
+            TLRPC.InputEncryptedFile result;
+            if (isBigFile) {
+                result = new TLRPC.TL_inputEncryptedFileBigUploaded();
+            } else {
+                result = new TLRPC.TL_inputEncryptedFileUploaded();
+                result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+            }
+            result.parts = partsCount;
+            result.id = currentFileId;
+            result.key_fingerprint = fingerprint;
+            delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
+        }
+        cleanup();
+        return true;
     }
 }
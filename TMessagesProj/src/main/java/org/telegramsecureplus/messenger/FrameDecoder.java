@@ -0,0 +1,107 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the abridged transport stream into frames, keeping its state between reads so a
+ * header or body may arrive in any number of pieces.
+ */
+class FrameDecoder {
+
+    public interface FrameDecoderDelegate {
+        void frameDecoderReceivedQuickAck(int ackId);
+        void frameDecoderReceivedFrame(ByteBufferDesc frame, int length);
+    }
+
+    public static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
+
+    private static final int FRAME_STATE_HEADER = 0;
+    private static final int FRAME_STATE_BODY = 1;
+
+    private FrameDecoderDelegate delegate;
+    private ByteBufferDesc currentFrame;
+    private int currentFrameLength;
+    private int frameState = FRAME_STATE_HEADER;
+    private final byte[] frameHeader = new byte[4];
+    private int frameHeaderLength;
+
+    public FrameDecoder(FrameDecoderDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    public void reset() {
+        if (currentFrame != null) {
+            BuffersStorage.getInstance().reuseFreeBuffer(currentFrame);
+            currentFrame = null;
+        }
+        currentFrameLength = 0;
+        frameHeaderLength = 0;
+        frameState = FRAME_STATE_HEADER;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer, returns false if a frame header has an
+     * invalid length, the stream can't be continued after that and the decoder is reset.
+     */
+    public boolean decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (frameState == FRAME_STATE_HEADER) {
+                frameHeader[frameHeaderLength++] = buffer.get();
+                byte fByte = frameHeader[0];
+
+                if ((fByte & (1 << 7)) != 0) {
+                    if (frameHeaderLength < 4) {
+                        continue;
+                    }
+                    frameHeaderLength = 0;
+                    int ackId = (((frameHeader[0] & 0xff) << 24) | ((frameHeader[1] & 0xff) << 16) | ((frameHeader[2] & 0xff) << 8) | (frameHeader[3] & 0xff)) & (~(1 << 31));
+                    delegate.frameDecoderReceivedQuickAck(ackId);
+                    continue;
+                }
+
+                if (fByte != 0x7f) {
+                    currentFrameLength = ((int) fByte) * 4;
+                } else {
+                    if (frameHeaderLength < 4) {
+                        continue;
+                    }
+                    currentFrameLength = ((frameHeader[1] & 0xff) | ((frameHeader[2] & 0xff) << 8) | ((frameHeader[3] & 0xff) << 16)) * 4;
+                }
+                frameHeaderLength = 0;
+
+                if (currentFrameLength <= 0 || currentFrameLength > MAX_FRAME_LENGTH) {
+                    reset();
+                    return false;
+                }
+
+                currentFrame = BuffersStorage.getInstance().getFreeBuffer(currentFrameLength);
+                frameState = FRAME_STATE_BODY;
+            }
+
+            int len = Math.min(buffer.remaining(), currentFrameLength - currentFrame.position());
+            int oldLimit = buffer.limit();
+            buffer.limit(buffer.position() + len);
+            currentFrame.put(buffer);
+            buffer.limit(oldLimit);
+
+            if (currentFrame.position() == currentFrameLength) {
+                ByteBufferDesc toProceed = currentFrame;
+                int length = currentFrameLength;
+                currentFrame = null;
+                currentFrameLength = 0;
+                frameState = FRAME_STATE_HEADER;
+                toProceed.rewind();
+                delegate.frameDecoderReceivedFrame(toProceed, length);
+            }
+        }
+        return true;
+    }
+}
@@ -55,6 +55,8 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
         }
         datacenter.connection.delegate = this;
 
+        HandshakeKeyExchange.precompute();
+
         processedMessageIds = new ArrayList<>();
         authNonce = null;
         authServerNonce = null;
@@ -186,6 +188,15 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
         return messageOs;
     }
 
+    private void failWithBadPrime() {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("bad prime");
+            }
+        });
+    }
+
     void processMessage(TLObject message, long messageId) {
         if (message instanceof TLRPC.TL_resPQ) {
             if (processedPQRes) {
@@ -211,7 +222,7 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                 ByteBuffer data = ByteBuffer.wrap(resPq.pq);
                 final long pqf = data.getLong();
                 final long messageIdf = messageId;
-                new Thread(new Runnable() {
+                HandshakeKeyExchange.postRunnable(new Runnable() {
                     @Override
                     public void run() {
 
@@ -290,7 +301,7 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                             }
                         });
                     }
-                }).start();
+                });
             } else {
                 FileLog.e("tmessages", "***** Error: invalid handshake nonce");
                 beginHandshake(false);
@@ -302,7 +313,7 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                 }
                 TLRPC.TL_server_DH_params_ok serverDhParams = (TLRPC.TL_server_DH_params_ok)message;
 
-                SerializedData tmpAesKey = new SerializedData();
+                final SerializedData tmpAesKey = new SerializedData();
 
                 SerializedData newNonceAndServerNonce = new SerializedData();
                 newNonceAndServerNonce.writeRaw(authNewNonce);
@@ -321,7 +332,7 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
 
                 tmpAesKey.writeRaw(serverNonceAndNewNonceHash0_12);
 
-                SerializedData tmpAesIv = new SerializedData();
+                final SerializedData tmpAesIv = new SerializedData();
 
                 byte[] serverNonceAndNewNonceHash12_8 = new byte[8];
                 System.arraycopy(serverNonceAndNewNonceHash, 12, serverNonceAndNewNonceHash12_8, 0, 8);
@@ -362,7 +373,7 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                 }
 
                 int constructor = answerWithHash.readInt32(false);
-                TLRPC.TL_server_DH_inner_data dhInnerData = TLRPC.TL_server_DH_inner_data.TLdeserialize(answerWithHash, constructor, false);
+                final TLRPC.TL_server_DH_inner_data dhInnerData = TLRPC.TL_server_DH_inner_data.TLdeserialize(answerWithHash, constructor, false);
                 BuffersStorage.getInstance().reuseFreeBuffer(answerWithHash);
 
                 if (!(dhInnerData instanceof TLRPC.TL_server_DH_inner_data)) {
@@ -371,10 +382,6 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                     return;
                 }
 
-                if (!Utilities.isGoodPrime(dhInnerData.dh_prime, dhInnerData.g)) {
-                    throw new RuntimeException("bad prime");
-                }
-
                 if (!Utilities.arraysEquals(authNonce, 0, dhInnerData.nonce, 0)) {
                     FileLog.e("tmessages", "***** Invalid DH nonce");
                     beginHandshake(false);
@@ -386,99 +393,120 @@ public class HandshakeAction extends Action implements TcpConnection.TcpConnecti
                     return;
                 }
 
-                byte[] b = new byte[256];
-                Utilities.random.nextBytes(b);
+                final byte[] handshakeNonce = authNonce;
+                final long messageIdf = messageId;
+                HandshakeKeyExchange.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!Utilities.isGoodPrime(dhInnerData.dh_prime, dhInnerData.g)) {
+                            failWithBadPrime();
+                            return;
+                        }
+
+                        BigInteger p = new BigInteger(1, dhInnerData.dh_prime);
+                        BigInteger g_a = new BigInteger(1, dhInnerData.g_a);
+                        if (!Utilities.isGoodGaAndGb(g_a, p)) {
+                            failWithBadPrime();
+                            return;
+                        }
 
-                BigInteger p = new BigInteger(1, dhInnerData.dh_prime);
-                BigInteger g_a = new BigInteger(1, dhInnerData.g_a);
-                if (!Utilities.isGoodGaAndGb(g_a, p)) {
-                    throw new RuntimeException("bad prime");
-                }
+                        HandshakeKeyExchange.KeyPair keyPair = HandshakeKeyExchange.takeKeyPair(dhInnerData.dh_prime, dhInnerData.g);
+                        final byte[] authKeyBytes = g_a.modPow(new BigInteger(1, keyPair.b), p).toByteArray();
+                        final byte[] g_b = keyPair.g_b;
 
-                BigInteger g_b = BigInteger.valueOf(dhInnerData.g);
-                g_b = g_b.modPow(new BigInteger(1, b), p);
-                g_a = g_a.modPow(new BigInteger(1, b), p);
-
-                authKey = g_a.toByteArray();
-                if (authKey.length > 256) {
-                    byte[] correctedAuth = new byte[256];
-                    System.arraycopy(authKey, 1, correctedAuth, 0, 256);
-                    authKey = correctedAuth;
-                } else if (authKey.length < 256) {
-                    byte[] correctedAuth = new byte[256];
-                    System.arraycopy(authKey, 0, correctedAuth, 256 - authKey.length, authKey.length);
-                    for (int a = 0; a < 256 - authKey.length; a++) {
-                        authKey[a] = 0;
-                    }
-                    authKey = correctedAuth;
-                }
-                byte[] authKeyHash = Utilities.computeSHA1(authKey);
-                byte[] authKeyArr = new byte[8];
-                System.arraycopy(authKeyHash, authKeyHash.length - 8, authKeyArr, 0, 8);
-                ByteBuffer buffer = ByteBuffer.wrap(authKeyArr);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                authKeyId = buffer.getLong();
-
-                SerializedData serverSaltData = new SerializedData();
-                for (int i = 7; i >= 0; i--) {
-                    byte a_ = authNewNonce[i];
-                    byte b_ = authServerNonce[i];
-                    byte x = (byte)(a_ ^ b_);
-                    serverSaltData.writeByte(x);
-                }
-                ByteBuffer saltBuffer = ByteBuffer.wrap(serverSaltData.toByteArray());
-                serverSaltData.cleanup();
-
-                timeDifference = dhInnerData.server_time - (int)(System.currentTimeMillis() / 1000);
-
-                serverSalt = new ServerSalt();
-                serverSalt.validSince = (int)(System.currentTimeMillis() / 1000) + timeDifference;
-                serverSalt.validUntil = (int)(System.currentTimeMillis() / 1000) + timeDifference + 30 * 60;
-                serverSalt.value = saltBuffer.getLong();
-
-                FileLog.d("tmessages", String.format(Locale.US, "===== Time difference: %d", timeDifference));
-
-                TLRPC.TL_client_DH_inner_data clientInnerData = new TLRPC.TL_client_DH_inner_data();
-                clientInnerData.nonce = authNonce;
-                clientInnerData.server_nonce = authServerNonce;
-                clientInnerData.g_b = g_b.toByteArray();
-                clientInnerData.retry_id = 0;
-
-                ByteBufferDesc os = BuffersStorage.getInstance().getFreeBuffer(clientInnerData.getObjectSize());
-                clientInnerData.serializeToStream(os);
-
-                int len = os.length() + 20;
-                int extraLen = len % 16 != 0 ? 16 - len % 16 : 0;
-                ByteBufferDesc clientDataWithHash = BuffersStorage.getInstance().getFreeBuffer(len + extraLen);
-                clientDataWithHash.writeRaw(Utilities.computeSHA1(os.buffer));
-                os.position(0);
-                clientDataWithHash.writeRaw(os);
-                if (extraLen != 0) {
-                    byte[] bb = new byte[extraLen];
-                    Utilities.random.nextBytes(bb);
-                    clientDataWithHash.writeRaw(bb);
-                }
-                BuffersStorage.getInstance().reuseFreeBuffer(os);
+                        Utilities.stageQueue.postRunnable(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (authNonce != handshakeNonce) {
+                                    tmpAesKey.cleanup();
+                                    tmpAesIv.cleanup();
+                                    return;
+                                }
 
-                TLRPC.TL_set_client_DH_params setClientDhParams = new TLRPC.TL_set_client_DH_params();
-                setClientDhParams.nonce = authNonce;
-                setClientDhParams.server_nonce = authServerNonce;
-                Utilities.aesIgeEncryption(clientDataWithHash.buffer, tmpAesKey.toByteArray(), tmpAesIv.toByteArray(), true, false, 0, clientDataWithHash.length());
-                setClientDhParams.encrypted_data = clientDataWithHash;
+                                authKey = authKeyBytes;
+                                if (authKey.length > 256) {
+                                    byte[] correctedAuth = new byte[256];
+                                    System.arraycopy(authKey, 1, correctedAuth, 0, 256);
+                                    authKey = correctedAuth;
+                                } else if (authKey.length < 256) {
+                                    byte[] correctedAuth = new byte[256];
+                                    System.arraycopy(authKey, 0, correctedAuth, 256 - authKey.length, authKey.length);
+                                    for (int a = 0; a < 256 - authKey.length; a++) {
+                                        authKey[a] = 0;
+                                    }
+                                    authKey = correctedAuth;
+                                }
+                                byte[] authKeyHash = Utilities.computeSHA1(authKey);
+                                byte[] authKeyArr = new byte[8];
+                                System.arraycopy(authKeyHash, authKeyHash.length - 8, authKeyArr, 0, 8);
+                                ByteBuffer buffer = ByteBuffer.wrap(authKeyArr);
+                                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                                authKeyId = buffer.getLong();
+
+                                SerializedData serverSaltData = new SerializedData();
+                                for (int i = 7; i >= 0; i--) {
+                                    byte a_ = authNewNonce[i];
+                                    byte b_ = authServerNonce[i];
+                                    byte x = (byte)(a_ ^ b_);
+                                    serverSaltData.writeByte(x);
+                                }
+                                ByteBuffer saltBuffer = ByteBuffer.wrap(serverSaltData.toByteArray());
+                                serverSaltData.cleanup();
+
+                                timeDifference = dhInnerData.server_time - (int)(System.currentTimeMillis() / 1000);
+
+                                serverSalt = new ServerSalt();
+                                serverSalt.validSince = (int)(System.currentTimeMillis() / 1000) + timeDifference;
+                                serverSalt.validUntil = (int)(System.currentTimeMillis() / 1000) + timeDifference + 30 * 60;
+                                serverSalt.value = saltBuffer.getLong();
+
+                                FileLog.d("tmessages", String.format(Locale.US, "===== Time difference: %d", timeDifference));
+
+                                TLRPC.TL_client_DH_inner_data clientInnerData = new TLRPC.TL_client_DH_inner_data();
+                                clientInnerData.nonce = authNonce;
+                                clientInnerData.server_nonce = authServerNonce;
+                                clientInnerData.g_b = g_b;
+                                clientInnerData.retry_id = 0;
+
+                                ByteBufferDesc os = BuffersStorage.getInstance().getFreeBuffer(clientInnerData.getObjectSize());
+                                clientInnerData.serializeToStream(os);
+
+                                int len = os.length() + 20;
+                                int extraLen = len % 16 != 0 ? 16 - len % 16 : 0;
+                                ByteBufferDesc clientDataWithHash = BuffersStorage.getInstance().getFreeBuffer(len + extraLen);
+                                clientDataWithHash.writeRaw(Utilities.computeSHA1(os.buffer));
+                                os.position(0);
+                                clientDataWithHash.writeRaw(os);
+                                if (extraLen != 0) {
+                                    byte[] bb = new byte[extraLen];
+                                    Utilities.random.nextBytes(bb);
+                                    clientDataWithHash.writeRaw(bb);
+                                }
+                                BuffersStorage.getInstance().reuseFreeBuffer(os);
 
-                tmpAesKey.cleanup();
-                tmpAesIv.cleanup();
+                                TLRPC.TL_set_client_DH_params setClientDhParams = new TLRPC.TL_set_client_DH_params();
+                                setClientDhParams.nonce = authNonce;
+                                setClientDhParams.server_nonce = authServerNonce;
+                                Utilities.aesIgeEncryption(clientDataWithHash.buffer, tmpAesKey.toByteArray(), tmpAesIv.toByteArray(), true, false, 0, clientDataWithHash.length());
+                                setClientDhParams.encrypted_data = clientDataWithHash;
 
-                TLRPC.TL_msgs_ack msgsAck = new TLRPC.TL_msgs_ack();
-                msgsAck.msg_ids = new ArrayList<>();
-                msgsAck.msg_ids.add(messageId);
-                sendMessageData(msgsAck, generateMessageId());
+                                tmpAesKey.cleanup();
+                                tmpAesIv.cleanup();
 
-                if (reqDHMsgData != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(reqDHMsgData);
-                    reqDHMsgData = null;
-                }
-                setClientDHParamsMsgData = sendMessageData(setClientDhParams, generateMessageId());
+                                TLRPC.TL_msgs_ack msgsAck = new TLRPC.TL_msgs_ack();
+                                msgsAck.msg_ids = new ArrayList<>();
+                                msgsAck.msg_ids.add(messageIdf);
+                                sendMessageData(msgsAck, generateMessageId());
+
+                                if (reqDHMsgData != null) {
+                                    BuffersStorage.getInstance().reuseFreeBuffer(reqDHMsgData);
+                                    reqDHMsgData = null;
+                                }
+                                setClientDHParamsMsgData = sendMessageData(setClientDhParams, generateMessageId());
+                            }
+                        });
+                    }
+                });
             } else {
                 FileLog.e("tmessages", "***** Couldn't set DH params");
                 beginHandshake(false);
@@ -0,0 +1,176 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the expensive parts of auth key handshakes off the stage queue, so handshakes with
+ * several datacenters compute in parallel. Random exponents b and g^b mod p are prepared in
+ * advance for the last prime the server sent, each pair is handed out once and never stored.
+ */
+public class HandshakeKeyExchange {
+
+    public static class KeyPair {
+        public byte[] b;
+        public byte[] g_b;
+    }
+
+    private static final int PRECOMPUTED_PAIRS_COUNT = 2;
+
+    private static final ThreadPoolExecutor executor;
+    private static final HashMap<String, ArrayList<KeyPair>> keyPairs = new HashMap<>();
+    private static final HashMap<String, Integer> pendingKeyPairs = new HashMap<>();
+    private static byte[] lastPrime;
+    private static int lastG;
+
+    static {
+        int threadsCount = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()));
+        executor = new ThreadPoolExecutor(threadsCount, threadsCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNum = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "handshakeQueue-" + threadNum.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        try {
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("primes", Context.MODE_PRIVATE);
+            String prime = preferences.getString("lastPrime", null);
+            if (prime != null) {
+                lastPrime = Utilities.hexToBytes(prime);
+                lastG = preferences.getInt("lastG", 0);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public static void postRunnable(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    private static String getKey(byte[] prime, int g) {
+        return Utilities.bytesToHex(Utilities.computeSHA1(prime)) + "_" + g;
+    }
+
+    /**
+     * Starts preparing key pairs for the last known prime, called when a handshake begins so
+     * the pairs are ready by the time the server DH params arrive.
+     */
+    public static void precompute() {
+        byte[] prime;
+        int g;
+        synchronized (keyPairs) {
+            prime = lastPrime;
+            g = lastG;
+        }
+        if (prime != null && g != 0) {
+            precompute(prime, g);
+        }
+    }
+
+    private static void precompute(final byte[] prime, final int g) {
+        final String key = getKey(prime, g);
+        synchronized (keyPairs) {
+            ArrayList<KeyPair> pairs = keyPairs.get(key);
+            Integer pending = pendingKeyPairs.get(key);
+            int count = (pairs != null ? pairs.size() : 0) + (pending != null ? pending : 0);
+            if (count >= PRECOMPUTED_PAIRS_COUNT) {
+                return;
+            }
+            pendingKeyPairs.put(key, (pending != null ? pending : 0) + 1);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                KeyPair keyPair = null;
+                try {
+                    keyPair = generateKeyPair(new BigInteger(1, prime), g);
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+                synchronized (keyPairs) {
+                    Integer pending = pendingKeyPairs.get(key);
+                    if (pending != null && pending > 1) {
+                        pendingKeyPairs.put(key, pending - 1);
+                    } else {
+                        pendingKeyPairs.remove(key);
+                    }
+                    if (keyPair != null) {
+                        ArrayList<KeyPair> pairs = keyPairs.get(key);
+                        if (pairs == null) {
+                            pairs = new ArrayList<>();
+                            keyPairs.put(key, pairs);
+                        }
+                        pairs.add(keyPair);
+                    }
+                }
+            }
+        });
+    }
+
+    private static KeyPair generateKeyPair(BigInteger p, int g) {
+        KeyPair keyPair = new KeyPair();
+        keyPair.b = new byte[256];
+        Utilities.random.nextBytes(keyPair.b);
+        keyPair.g_b = BigInteger.valueOf(g).modPow(new BigInteger(1, keyPair.b), p).toByteArray();
+        return keyPair;
+    }
+
+    /**
+     * Returns a key pair for the prime that was already checked with Utilities.isGoodPrime,
+     * taking a prepared one if there is any. Should be called from postRunnable tasks.
+     */
+    public static KeyPair takeKeyPair(byte[] prime, int g) {
+        String key = getKey(prime, g);
+        KeyPair keyPair = null;
+        boolean primeChanged;
+        synchronized (keyPairs) {
+            ArrayList<KeyPair> pairs = keyPairs.get(key);
+            if (pairs != null && !pairs.isEmpty()) {
+                keyPair = pairs.remove(pairs.size() - 1);
+            }
+            primeChanged = lastPrime == null || lastG != g || !Utilities.arraysEquals(lastPrime, 0, prime, 0);
+            if (primeChanged) {
+                keyPairs.clear();
+                lastPrime = prime;
+                lastG = g;
+            }
+        }
+        if (primeChanged) {
+            try {
+                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("primes", Context.MODE_PRIVATE);
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString("lastPrime", Utilities.bytesToHex(prime));
+                editor.putInt("lastG", g);
+                editor.commit();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        if (keyPair == null) {
+            keyPair = generateKeyPair(new BigInteger(1, prime), g);
+        }
+        precompute(prime, g);
+        return keyPair;
+    }
+}
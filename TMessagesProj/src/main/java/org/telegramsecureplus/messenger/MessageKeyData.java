@@ -8,61 +8,74 @@
 
 package org.telegramsecureplus.messenger;
 
+import java.security.MessageDigest;
+
 public class MessageKeyData {
 
     public byte[] aesKey;
     public byte[] aesIv;
 
-    public static MessageKeyData generateMessageKeyData(byte[] authKey, byte[] messageKey, boolean incoming) {
-        MessageKeyData keyData = new MessageKeyData();
-        if (authKey == null || authKey.length == 0) {
-            keyData.aesIv = null;
-            keyData.aesKey = null;
+    private byte[] sha1 = new byte[20 * 4];
+
+    private static final ThreadLocal<MessageKeyData> threadKeyData = new ThreadLocal<MessageKeyData>() {
+        @Override
+        protected MessageKeyData initialValue() {
+            MessageKeyData keyData = new MessageKeyData();
+            keyData.aesKey = new byte[32];
+            keyData.aesIv = new byte[32];
             return keyData;
         }
+    };
 
-        int x = incoming ? 8 : 0;
+    /**
+     * Returns the key data of the calling thread. Its arrays are overwritten by the next
+     * {@link #generate} on the same thread, so the iv may be changed in place by the cipher.
+     */
+    public static MessageKeyData getThreadKeyData() {
+        return threadKeyData.get();
+    }
 
-        SerializedData data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, x, 32);
-        byte[] sha1_a = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
+    /**
+     * Derives the aes key and iv for the message key into this object's arrays.
+     */
+    public boolean generate(byte[] authKey, byte[] messageKey, boolean incoming) {
+        if (authKey == null || authKey.length == 0) {
+            return false;
+        }
 
-        data = new SerializedData();
-        data.writeRaw(authKey, 32 + x, 16);
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 48 + x, 16);
-        byte[] sha1_b = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
+        int x = incoming ? 8 : 0;
 
-        data = new SerializedData();
-        data.writeRaw(authKey, 64 + x, 32);
-        data.writeRaw(messageKey);
-        byte[] sha1_c = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
+        try {
+            MessageDigest md = Utilities.getSHA1Digest();
+            md.update(messageKey, 0, 16);
+            md.update(authKey, x, 32);
+            md.digest(sha1, 0, 20);
 
-        data = new SerializedData();
-        data.writeRaw(messageKey);
-        data.writeRaw(authKey, 96 + x, 32);
-        byte[] sha1_d = Utilities.computeSHA1(data.toByteArray());
-        data.cleanup();
+            md.update(authKey, 32 + x, 16);
+            md.update(messageKey, 0, 16);
+            md.update(authKey, 48 + x, 16);
+            md.digest(sha1, 20, 20);
 
-        data = new SerializedData();
-        data.writeRaw(sha1_a, 0, 8);
-        data.writeRaw(sha1_b, 8, 12);
-        data.writeRaw(sha1_c, 4, 12);
-        keyData.aesKey = data.toByteArray();
-        data.cleanup();
+            md.update(authKey, 64 + x, 32);
+            md.update(messageKey, 0, 16);
+            md.digest(sha1, 40, 20);
+
+            md.update(messageKey, 0, 16);
+            md.update(authKey, 96 + x, 32);
+            md.digest(sha1, 60, 20);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return false;
+        }
 
-        data = new SerializedData();
-        data.writeRaw(sha1_a, 8, 12);
-        data.writeRaw(sha1_b, 0, 8);
-        data.writeRaw(sha1_c, 16, 4);
-        data.writeRaw(sha1_d, 0, 8);
-        keyData.aesIv = data.toByteArray();
-        data.cleanup();
+        System.arraycopy(sha1, 0, aesKey, 0, 8);
+        System.arraycopy(sha1, 20 + 8, aesKey, 8, 12);
+        System.arraycopy(sha1, 40 + 4, aesKey, 20, 12);
 
-        return keyData;
+        System.arraycopy(sha1, 8, aesIv, 0, 12);
+        System.arraycopy(sha1, 20, aesIv, 12, 8);
+        System.arraycopy(sha1, 40 + 16, aesIv, 20, 4);
+        System.arraycopy(sha1, 60, aesIv, 24, 8);
+        return true;
     }
 }
@@ -59,7 +59,12 @@ public class RPCRequest {
     int runningStartTime;
     int runningMinStartTime;
 
+    TcpConnection runningConnection;
+    long requestBytes;
+    long sendTime;
+
     boolean confirmed;
+    boolean running;
 
     boolean initRequest = false;
 
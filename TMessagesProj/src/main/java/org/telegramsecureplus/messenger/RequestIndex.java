@@ -0,0 +1,126 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import java.util.HashMap;
+
+/**
+ * Finds queued and running requests by token and running requests by every message id
+ * they still answer to, and keeps the running counts per transport class. Only used
+ * from the stage queue.
+ */
+class RequestIndex {
+
+    private final HashMap<Long, RPCRequest> requestsByToken = new HashMap<>();
+    private final HashMap<Long, RPCRequest> runningRequestsByMessageId = new HashMap<>();
+    private int runningGenericRequestsCount = 0;
+    private int runningUploadRequestsCount = 0;
+    private int runningDownloadRequestsCount = 0;
+
+    void putRequest(RPCRequest request) {
+        requestsByToken.put(request.token, request);
+    }
+
+    RPCRequest getRequest(long token) {
+        return requestsByToken.get(token);
+    }
+
+    void forgetRequest(RPCRequest request) {
+        if (requestsByToken.get(request.token) == request) {
+            requestsByToken.remove(request.token);
+        }
+    }
+
+    void addRunningRequest(RPCRequest request) {
+        request.running = true;
+        if (request.runningMessageId != 0) {
+            runningRequestsByMessageId.put(request.runningMessageId, request);
+        }
+        for (int a = 0; a < request.respondsToMessageIds.size(); a++) {
+            runningRequestsByMessageId.put(request.respondsToMessageIds.get(a), request);
+        }
+        changeRunningRequestsCount(request, 1);
+    }
+
+    /**
+     * Drops a running request from the message id index. Returns false when it was not running.
+     */
+    boolean removeRunningRequest(RPCRequest request) {
+        if (!request.running) {
+            return false;
+        }
+        request.running = false;
+        unmapRunningMessageId(request, request.runningMessageId);
+        for (int a = 0; a < request.respondsToMessageIds.size(); a++) {
+            unmapRunningMessageId(request, request.respondsToMessageIds.get(a));
+        }
+        changeRunningRequestsCount(request, -1);
+        return true;
+    }
+
+    void setRunningMessageId(RPCRequest request, long messageId) {
+        if (request.running) {
+            if (!request.respondsToMessageIds.contains(request.runningMessageId)) {
+                unmapRunningMessageId(request, request.runningMessageId);
+            }
+            if (messageId != 0) {
+                runningRequestsByMessageId.put(messageId, request);
+            }
+        }
+        request.runningMessageId = messageId;
+    }
+
+    RPCRequest getRunningRequest(long messageId) {
+        if (messageId == 0) {
+            return null;
+        }
+        return runningRequestsByMessageId.get(messageId);
+    }
+
+    void cancelRequest(RPCRequest request) {
+        request.cancelled = true;
+        removeRunningRequest(request);
+        forgetRequest(request);
+    }
+
+    int getRunningRequestsCount(int requestClass) {
+        if (requestClass == RPCRequest.RPCRequestClassGeneric) {
+            return runningGenericRequestsCount;
+        } else if (requestClass == RPCRequest.RPCRequestClassUploadMedia) {
+            return runningUploadRequestsCount;
+        } else if (requestClass == RPCRequest.RPCRequestClassDownloadMedia) {
+            return runningDownloadRequestsCount;
+        }
+        return 0;
+    }
+
+    int getRequestsCount() {
+        return requestsByToken.size();
+    }
+
+    int getMessageIdsCount() {
+        return runningRequestsByMessageId.size();
+    }
+
+    private void unmapRunningMessageId(RPCRequest request, long messageId) {
+        if (messageId != 0 && runningRequestsByMessageId.get(messageId) == request) {
+            runningRequestsByMessageId.remove(messageId);
+        }
+    }
+
+    private void changeRunningRequestsCount(RPCRequest request, int delta) {
+        if ((request.flags & RPCRequest.RPCRequestClassGeneric) != 0) {
+            runningGenericRequestsCount += delta;
+        } else if ((request.flags & RPCRequest.RPCRequestClassUploadMedia) != 0) {
+            runningUploadRequestsCount += delta;
+        } else if ((request.flags & RPCRequest.RPCRequestClassDownloadMedia) != 0) {
+            runningDownloadRequestsCount += delta;
+        }
+    }
+}
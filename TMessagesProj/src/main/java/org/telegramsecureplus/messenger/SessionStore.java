@@ -0,0 +1,149 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Binary store for the connection session. The file is a small header (magic, format
+ * version, payload length and CRC32) followed by the payload. Writes go to a temporary
+ * file on their own queue and are renamed over the old one, so a crash leaves either
+ * the previous or the new session, and identical payloads are not written again.
+ */
+public class SessionStore {
+
+    private static final int MAGIC = 0x7e55104e;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final File file;
+    private final File tempFile;
+    private final DispatchQueue writeQueue;
+    private volatile long lastChecksum = -1;
+
+    public SessionStore(File directory, String name) {
+        file = new File(directory, name);
+        tempFile = new File(directory, name + ".tmp");
+        writeQueue = new DispatchQueue("sessionStoreQueue");
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Returns the stored payload, or null when there is no store or it fails the checks.
+     */
+    public SerializedData read() {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            long fileLength = randomAccessFile.length();
+            if (fileLength < HEADER_SIZE || fileLength > Integer.MAX_VALUE) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) fileLength];
+            randomAccessFile.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (magic != MAGIC || version != FORMAT_VERSION || length != bytes.length - HEADER_SIZE) {
+                FileLog.e("tmessages", "session store header mismatch");
+                return null;
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes, HEADER_SIZE, length);
+            if ((int) crc32.getValue() != checksum) {
+                FileLog.e("tmessages", "session store checksum mismatch");
+                return null;
+            }
+            lastChecksum = crc32.getValue();
+            byte[] payload = new byte[length];
+            System.arraycopy(bytes, HEADER_SIZE, payload, 0, length);
+            return new SerializedData(payload);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            try {
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues the payload to be written. Must be called from a single thread, onWritten
+     * runs on the write queue once the file is in place and may be null.
+     */
+    public void write(byte[] payload, final Runnable onWritten) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        final long checksum = crc32.getValue();
+        if (checksum == lastChecksum) {
+            if (onWritten != null) {
+                writeQueue.postRunnable(onWritten);
+            }
+            return;
+        }
+        lastChecksum = checksum;
+        final byte[] bytes = new byte[HEADER_SIZE + payload.length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) checksum);
+        buffer.put(payload);
+        writeQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                RandomAccessFile randomAccessFile = null;
+                try {
+                    randomAccessFile = new RandomAccessFile(tempFile, "rw");
+                    randomAccessFile.setLength(0);
+                    randomAccessFile.write(bytes);
+                    randomAccessFile.getFD().sync();
+                    randomAccessFile.close();
+                    randomAccessFile = null;
+                    if (!tempFile.renameTo(file)) {
+                        FileLog.e("tmessages", "can't move session store in place");
+                        lastChecksum = -1;
+                        return;
+                    }
+                    if (onWritten != null) {
+                        onWritten.run();
+                    }
+                } catch (Exception e) {
+                    lastChecksum = -1;
+                    FileLog.e("tmessages", e);
+                } finally {
+                    try {
+                        if (randomAccessFile != null) {
+                            randomAccessFile.close();
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+            }
+        });
+    }
+}
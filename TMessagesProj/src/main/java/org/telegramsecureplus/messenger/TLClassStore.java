@@ -8,94 +8,485 @@
 
 package org.telegramsecureplus.messenger;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class TLClassStore {
-    private HashMap<Integer, Class> classStore;
+    private static final int TABLE_SIZE = 256;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
 
-    public TLClassStore() {
-        classStore = new HashMap<>();
-
-        classStore.put(TLRPC.TL_futuresalts.constructor, TLRPC.TL_futuresalts.class);
-        classStore.put(TLRPC.TL_msg_new_detailed_info.constructor, TLRPC.TL_msg_new_detailed_info.class);
-        classStore.put(TLRPC.TL_msg_detailed_info.constructor, TLRPC.TL_msg_detailed_info.class);
-        classStore.put(TLRPC.TL_error.constructor, TLRPC.TL_error.class);
-        classStore.put(TLRPC.TL_auth_authorization.constructor, TLRPC.TL_auth_authorization.class);
-        classStore.put(TLRPC.TL_dh_gen_retry.constructor, TLRPC.TL_dh_gen_retry.class);
-        classStore.put(TLRPC.TL_dh_gen_fail.constructor, TLRPC.TL_dh_gen_fail.class);
-        classStore.put(TLRPC.TL_dh_gen_ok.constructor, TLRPC.TL_dh_gen_ok.class);
-        classStore.put(TLRPC.TL_server_DH_inner_data.constructor, TLRPC.TL_server_DH_inner_data.class);
-        classStore.put(TLRPC.TL_msgs_ack.constructor, TLRPC.TL_msgs_ack.class);
-        classStore.put(TLRPC.TL_futureSalt.constructor, TLRPC.TL_futureSalt.class);
-        classStore.put(TLRPC.TL_msg_resend_req.constructor, TLRPC.TL_msg_resend_req.class);
-        classStore.put(TLRPC.TL_rpc_error.constructor, TLRPC.TL_rpc_error.class);
-        classStore.put(TLRPC.TL_rpc_req_error.constructor, TLRPC.TL_rpc_req_error.class);
-        classStore.put(TLRPC.TL_decryptedMessageService.constructor, TLRPC.TL_decryptedMessageService.class);
-        classStore.put(TLRPC.TL_decryptedMessage.constructor, TLRPC.TL_decryptedMessage.class);
-        classStore.put(TLRPC.TL_bad_msg_notification.constructor, TLRPC.TL_bad_msg_notification.class);
-        classStore.put(TLRPC.TL_bad_server_salt.constructor, TLRPC.TL_bad_server_salt.class);
-        classStore.put(TLRPC.TL_new_session_created.constructor, TLRPC.TL_new_session_created.class);
-        classStore.put(TLRPC.TL_resPQ.constructor, TLRPC.TL_resPQ.class);
-        classStore.put(TLRPC.TL_config.constructor, TLRPC.TL_config.class);
-        classStore.put(TLRPC.TL_msg_copy.constructor, TLRPC.TL_msg_copy.class);
-        classStore.put(TLRPC.TL_pong.constructor, TLRPC.TL_pong.class);
-        classStore.put(TLRPC.TL_rpc_answer_unknown.constructor, TLRPC.TL_rpc_answer_unknown.class);
-        classStore.put(TLRPC.TL_rpc_answer_dropped.constructor, TLRPC.TL_rpc_answer_dropped.class);
-        classStore.put(TLRPC.TL_rpc_answer_dropped_running.constructor, TLRPC.TL_rpc_answer_dropped_running.class);
-        classStore.put(TLRPC.TL_rpc_result.constructor, TLRPC.TL_rpc_result.class);
-        classStore.put(TLRPC.TL_auth_exportedAuthorization.constructor, TLRPC.TL_auth_exportedAuthorization.class);
-        classStore.put(TLRPC.TL_destroy_session_ok.constructor, TLRPC.TL_destroy_session_ok.class);
-        classStore.put(TLRPC.TL_destroy_session_none.constructor, TLRPC.TL_destroy_session_none.class);
-        classStore.put(TLRPC.TL_msgs_state_req.constructor, TLRPC.TL_msgs_state_req.class);
-        classStore.put(TLRPC.TL_server_DH_params_fail.constructor, TLRPC.TL_server_DH_params_fail.class);
-        classStore.put(TLRPC.TL_server_DH_params_ok.constructor, TLRPC.TL_server_DH_params_ok.class);
-        classStore.put(TLRPC.TL_protoMessage.constructor, TLRPC.TL_protoMessage.class);
-        classStore.put(TLRPC.TL_msgs_all_info.constructor, TLRPC.TL_msgs_all_info.class);
-        classStore.put(TLRPC.TL_p_q_inner_data.constructor, TLRPC.TL_p_q_inner_data.class);
-        classStore.put(TLRPC.TL_updateShortChatMessage.constructor, TLRPC.TL_updateShortChatMessage.class);
-        classStore.put(TLRPC.TL_updates.constructor, TLRPC.TL_updates.class);
-        classStore.put(TLRPC.TL_updateShortMessage.constructor, TLRPC.TL_updateShortMessage.class);
-        classStore.put(TLRPC.TL_updateShort.constructor, TLRPC.TL_updateShort.class);
-        classStore.put(TLRPC.TL_updatesCombined.constructor, TLRPC.TL_updatesCombined.class);
-        classStore.put(TLRPC.TL_updatesTooLong.constructor, TLRPC.TL_updatesTooLong.class);
-        classStore.put(TLRPC.TL_msgs_state_info.constructor, TLRPC.TL_msgs_state_info.class);
-        classStore.put(TLRPC.TL_decryptedMessageLayer.constructor, TLRPC.TL_decryptedMessageLayer.class);
-        classStore.put(TLRPC.TL_http_wait.constructor, TLRPC.TL_http_wait.class);
-        classStore.put(TLRPC.TL_gzip_packed.constructor, TLRPC.TL_gzip_packed.class);
-        classStore.put(TLRPC.TL_decryptedMessageService_old.constructor, TLRPC.TL_decryptedMessageService_old.class);
-        classStore.put(TLRPC.TL_decryptedMessage_old.constructor, TLRPC.TL_decryptedMessage_old.class);
-        classStore.put(TLRPC.TL_message_secret.constructor, TLRPC.TL_message_secret.class);
-        classStore.put(TLRPC.TL_messageEncryptedAction.constructor, TLRPC.TL_messageEncryptedAction.class);
-        classStore.put(TLRPC.TL_decryptedMessageHolder.constructor, TLRPC.TL_decryptedMessageHolder.class);
-        classStore.put(TLRPC.TL_client_DH_inner_data.constructor, TLRPC.TL_client_DH_inner_data.class);
-        classStore.put(TLRPC.TL_null.constructor, TLRPC.TL_null.class);
-        classStore.put(TLRPC.TL_destroy_sessions_res.constructor, TLRPC.TL_destroy_sessions_res.class);
-        classStore.put(TLRPC.TL_msg_container.constructor, TLRPC.TL_msg_container.class);
-
-
-        classStore.put(TLRPC.TL_video.constructor, TLRPC.TL_video.class);
-        classStore.put(TLRPC.TL_videoEmpty.constructor, TLRPC.TL_videoEmpty.class);
-        classStore.put(TLRPC.TL_video_old2.constructor, TLRPC.TL_video_old2.class);
-        classStore.put(TLRPC.TL_video_old.constructor, TLRPC.TL_video_old.class);
-        classStore.put(TLRPC.TL_videoEncrypted.constructor, TLRPC.TL_videoEncrypted.class);
+    interface Instantiator {
+        TLObject newInstance();
+    }
 
-        classStore.put(TLRPC.TL_audio.constructor, TLRPC.TL_audio.class);
-        classStore.put(TLRPC.TL_audioEncrypted.constructor, TLRPC.TL_audioEncrypted.class);
-        classStore.put(TLRPC.TL_audioEmpty.constructor, TLRPC.TL_audioEmpty.class);
-        classStore.put(TLRPC.TL_audio_old.constructor, TLRPC.TL_audio_old.class);
+    private int[] tableKeys = new int[TABLE_SIZE];
+    private Instantiator[] tableInstantiators = new Instantiator[TABLE_SIZE];
+    private int[] constructors = new int[TABLE_SIZE];
+    private int constructorsCount;
 
-        classStore.put(TLRPC.TL_document.constructor, TLRPC.TL_document.class);
-        classStore.put(TLRPC.TL_documentEmpty.constructor, TLRPC.TL_documentEmpty.class);
-        classStore.put(TLRPC.TL_documentEncrypted_old.constructor, TLRPC.TL_documentEncrypted_old.class);
-        classStore.put(TLRPC.TL_documentEncrypted.constructor, TLRPC.TL_documentEncrypted.class);
-        classStore.put(TLRPC.TL_document_old.constructor, TLRPC.TL_document_old.class);
+    public TLClassStore() {
+        register(TLRPC.TL_futuresalts.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_futuresalts();
+            }
+        });
+        register(TLRPC.TL_msg_new_detailed_info.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msg_new_detailed_info();
+            }
+        });
+        register(TLRPC.TL_msg_detailed_info.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msg_detailed_info();
+            }
+        });
+        register(TLRPC.TL_error.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_error();
+            }
+        });
+        register(TLRPC.TL_auth_authorization.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_auth_authorization();
+            }
+        });
+        register(TLRPC.TL_dh_gen_retry.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_dh_gen_retry();
+            }
+        });
+        register(TLRPC.TL_dh_gen_fail.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_dh_gen_fail();
+            }
+        });
+        register(TLRPC.TL_dh_gen_ok.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_dh_gen_ok();
+            }
+        });
+        register(TLRPC.TL_server_DH_inner_data.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_server_DH_inner_data();
+            }
+        });
+        register(TLRPC.TL_msgs_ack.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msgs_ack();
+            }
+        });
+        register(TLRPC.TL_futureSalt.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_futureSalt();
+            }
+        });
+        register(TLRPC.TL_msg_resend_req.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msg_resend_req();
+            }
+        });
+        register(TLRPC.TL_rpc_error.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_error();
+            }
+        });
+        register(TLRPC.TL_rpc_req_error.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_req_error();
+            }
+        });
+        register(TLRPC.TL_decryptedMessageService.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessageService();
+            }
+        });
+        register(TLRPC.TL_decryptedMessage.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessage();
+            }
+        });
+        register(TLRPC.TL_bad_msg_notification.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_bad_msg_notification();
+            }
+        });
+        register(TLRPC.TL_bad_server_salt.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_bad_server_salt();
+            }
+        });
+        register(TLRPC.TL_new_session_created.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_new_session_created();
+            }
+        });
+        register(TLRPC.TL_resPQ.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_resPQ();
+            }
+        });
+        register(TLRPC.TL_config.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_config();
+            }
+        });
+        register(TLRPC.TL_msg_copy.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msg_copy();
+            }
+        });
+        register(TLRPC.TL_pong.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_pong();
+            }
+        });
+        register(TLRPC.TL_rpc_answer_unknown.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_answer_unknown();
+            }
+        });
+        register(TLRPC.TL_rpc_answer_dropped.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_answer_dropped();
+            }
+        });
+        register(TLRPC.TL_rpc_answer_dropped_running.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_answer_dropped_running();
+            }
+        });
+        register(TLRPC.TL_rpc_result.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_rpc_result();
+            }
+        });
+        register(TLRPC.TL_auth_exportedAuthorization.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_auth_exportedAuthorization();
+            }
+        });
+        register(TLRPC.TL_destroy_session_ok.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_destroy_session_ok();
+            }
+        });
+        register(TLRPC.TL_destroy_session_none.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_destroy_session_none();
+            }
+        });
+        register(TLRPC.TL_msgs_state_req.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msgs_state_req();
+            }
+        });
+        register(TLRPC.TL_server_DH_params_fail.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_server_DH_params_fail();
+            }
+        });
+        register(TLRPC.TL_server_DH_params_ok.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_server_DH_params_ok();
+            }
+        });
+        register(TLRPC.TL_protoMessage.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_protoMessage();
+            }
+        });
+        register(TLRPC.TL_msgs_all_info.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msgs_all_info();
+            }
+        });
+        register(TLRPC.TL_p_q_inner_data.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_p_q_inner_data();
+            }
+        });
+        register(TLRPC.TL_updateShortChatMessage.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updateShortChatMessage();
+            }
+        });
+        register(TLRPC.TL_updates.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updates();
+            }
+        });
+        register(TLRPC.TL_updateShortMessage.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updateShortMessage();
+            }
+        });
+        register(TLRPC.TL_updateShort.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updateShort();
+            }
+        });
+        register(TLRPC.TL_updatesCombined.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updatesCombined();
+            }
+        });
+        register(TLRPC.TL_updatesTooLong.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_updatesTooLong();
+            }
+        });
+        register(TLRPC.TL_msgs_state_info.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msgs_state_info();
+            }
+        });
+        register(TLRPC.TL_decryptedMessageLayer.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessageLayer();
+            }
+        });
+        register(TLRPC.TL_http_wait.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_http_wait();
+            }
+        });
+        register(TLRPC.TL_gzip_packed.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_gzip_packed();
+            }
+        });
+        register(TLRPC.TL_decryptedMessageService_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessageService_old();
+            }
+        });
+        register(TLRPC.TL_decryptedMessage_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessage_old();
+            }
+        });
+        register(TLRPC.TL_message_secret.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_message_secret();
+            }
+        });
+        register(TLRPC.TL_messageEncryptedAction.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_messageEncryptedAction();
+            }
+        });
+        register(TLRPC.TL_decryptedMessageHolder.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_decryptedMessageHolder();
+            }
+        });
+        register(TLRPC.TL_client_DH_inner_data.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_client_DH_inner_data();
+            }
+        });
+        register(TLRPC.TL_null.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_null();
+            }
+        });
+        register(TLRPC.TL_destroy_sessions_res.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_destroy_sessions_res();
+            }
+        });
+        register(TLRPC.TL_msg_container.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_msg_container();
+            }
+        });
+        register(TLRPC.TL_video.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_video();
+            }
+        });
+        register(TLRPC.TL_videoEmpty.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_videoEmpty();
+            }
+        });
+        register(TLRPC.TL_video_old2.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_video_old2();
+            }
+        });
+        register(TLRPC.TL_video_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_video_old();
+            }
+        });
+        register(TLRPC.TL_videoEncrypted.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_videoEncrypted();
+            }
+        });
+        register(TLRPC.TL_audio.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_audio();
+            }
+        });
+        register(TLRPC.TL_audioEncrypted.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_audioEncrypted();
+            }
+        });
+        register(TLRPC.TL_audioEmpty.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_audioEmpty();
+            }
+        });
+        register(TLRPC.TL_audio_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_audio_old();
+            }
+        });
+        register(TLRPC.TL_document.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_document();
+            }
+        });
+        register(TLRPC.TL_documentEmpty.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_documentEmpty();
+            }
+        });
+        register(TLRPC.TL_documentEncrypted_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_documentEncrypted_old();
+            }
+        });
+        register(TLRPC.TL_documentEncrypted.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_documentEncrypted();
+            }
+        });
+        register(TLRPC.TL_document_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_document_old();
+            }
+        });
+        register(TLRPC.TL_photo.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photo();
+            }
+        });
+        register(TLRPC.TL_photoEmpty.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photoEmpty();
+            }
+        });
+        register(TLRPC.TL_photoSize.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photoSize();
+            }
+        });
+        register(TLRPC.TL_photoSizeEmpty.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photoSizeEmpty();
+            }
+        });
+        register(TLRPC.TL_photoCachedSize.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photoCachedSize();
+            }
+        });
+        register(TLRPC.TL_photo_old.constructor, new Instantiator() {
+            @Override
+            public TLObject newInstance() {
+                return new TLRPC.TL_photo_old();
+            }
+        });
+    }
 
-        classStore.put(TLRPC.TL_photo.constructor, TLRPC.TL_photo.class);
-        classStore.put(TLRPC.TL_photoEmpty.constructor, TLRPC.TL_photoEmpty.class);
-        classStore.put(TLRPC.TL_photoSize.constructor, TLRPC.TL_photoSize.class);
-        classStore.put(TLRPC.TL_photoSizeEmpty.constructor, TLRPC.TL_photoSizeEmpty.class);
-        classStore.put(TLRPC.TL_photoCachedSize.constructor, TLRPC.TL_photoCachedSize.class);
-        classStore.put(TLRPC.TL_photo_old.constructor, TLRPC.TL_photo_old.class);
+    private void register(int constructor, Instantiator instantiator) {
+        int slot = hash(constructor);
+        while (tableInstantiators[slot] != null) {
+            if (tableKeys[slot] == constructor) {
+                throw new RuntimeException(String.format("duplicate constructor %x in TLClassStore", constructor));
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        tableKeys[slot] = constructor;
+        tableInstantiators[slot] = instantiator;
+        constructors[constructorsCount++] = constructor;
     }
 
     static TLClassStore store = null;
@@ -107,19 +498,31 @@ public class TLClassStore {
         return store;
     }
 
-    public TLObject TLdeserialize(AbsSerializedData stream, int constructor, boolean exception) {
-        Class objClass = classStore.get(constructor);
-        if (objClass != null) {
-            TLObject response;
-            try {
-                response = (TLObject) objClass.newInstance();
-            } catch (Throwable e) {
-                FileLog.e("tmessages", e);
-                return null;
+    private static int hash(int constructor) {
+        return (constructor ^ (constructor >>> 16)) & TABLE_MASK;
+    }
+
+    int[] getConstructors() {
+        return Arrays.copyOf(constructors, constructorsCount);
+    }
+
+    TLObject newInstance(int constructor) {
+        int slot = hash(constructor);
+        Instantiator instantiator;
+        while ((instantiator = tableInstantiators[slot]) != null) {
+            if (tableKeys[slot] == constructor) {
+                return instantiator.newInstance();
             }
-            response.readParams(stream, exception);
-            return response;
+            slot = (slot + 1) & TABLE_MASK;
         }
         return null;
     }
+
+    public TLObject TLdeserialize(AbsSerializedData stream, int constructor, boolean exception) {
+        TLObject response = newInstance(constructor);
+        if (response != null) {
+            response.readParams(stream, exception);
+        }
+        return response;
+    }
 }
@@ -13,8 +13,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jawnae.pyronet.PyroClient;
 import jawnae.pyronet.PyroSelector;
@@ -39,26 +41,57 @@ public class TcpConnection extends ConnectionContext {
         void tcpConnectionReceivedData(TcpConnection connection, ByteBufferDesc data, int length);
     }
 
+    public static final int FRAME_HEADER_RESERVE = 5;
+
+    private static final int PENDING_FRAME_BYTES_HIGH = 4 * 1024 * 1024;
+    private static final int PENDING_FRAME_BYTES_LOW = 1024 * 1024;
+    private static final int RACE_PARALLEL_COUNT = 3;
+    private static final int RACE_STAGGER_DEFAULT = 500;
+    private static final int RACE_STAGGER_MIN = 250;
+    private static final int RACE_STAGGER_MAX = 2000;
+
+    private static class ConnectAttempt {
+        Datacenter.Endpoint endpoint;
+        long startTime;
+
+        ConnectAttempt(Datacenter.Endpoint endpoint) {
+            this.endpoint = endpoint;
+            startTime = System.currentTimeMillis();
+        }
+    }
+
     private static PyroSelector selector;
+    private static final Timer raceTimer = new Timer("connect race", true);
     private PyroClient client;
     public TcpConnectionState connectionState;
     public volatile int channelToken = 0;
     private String hostAddress;
     private int hostPort;
     private int currentAddressFlag;
+    private Datacenter.Endpoint currentEndpoint;
+    private ArrayList<Datacenter.Endpoint> raceEndpoints = new ArrayList<>();
+    private int raceEndpointNum;
+    private final ArrayList<PyroClient> racingClients = new ArrayList<>();
+    private final ArrayList<ByteBufferDesc> pendingWrites = new ArrayList<>();
+    private int raceGeneration;
     private int datacenterId;
     private int failedConnectionCount;
     public TcpConnectionDelegate delegate;
-    private ByteBufferDesc restOfTheData;
+    private FrameDecoder frameDecoder;
+    private final AtomicInteger pendingFrameBytes = new AtomicInteger();
+    private volatile boolean readPaused;
     private boolean hasSomeDataSinceLastConnect = false;
     private int willRetryConnectCount = 5;
     private boolean isNextPort = false;
     private final Object timerSync = new Object();
     private boolean wasConnected;
-    private int lastPacketLength;
 
     public int transportRequestClass;
 
+    int requestsInFlight;
+    long bytesInFlight;
+    int averageRtt;
+
     private boolean firstPacket;
 
     private Timer reconnectTimer;
@@ -71,6 +104,25 @@ public class TcpConnection extends ConnectionContext {
         }
         datacenterId = did;
         connectionState = TcpConnectionState.TcpConnectionStageIdle;
+        frameDecoder = new FrameDecoder(new FrameDecoder.FrameDecoderDelegate() {
+            @Override
+            public void frameDecoderReceivedQuickAck(final int ackId) {
+                if (delegate != null) {
+                    final TcpConnectionDelegate finalDelegate = delegate;
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            finalDelegate.tcpConnectionQuiackAckReceived(TcpConnection.this, ackId);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void frameDecoderReceivedFrame(ByteBufferDesc frame, int length) {
+                dispatchFrame(frame, length);
+            }
+        });
     }
 
     static volatile Integer nextChannelToken = 1;
@@ -83,6 +135,18 @@ public class TcpConnection extends ConnectionContext {
         return datacenterId;
     }
 
+    Datacenter getDatacenter() {
+        return ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+    }
+
+    void updateRtt(int rtt) {
+        if (averageRtt == 0) {
+            averageRtt = rtt;
+        } else {
+            averageRtt = (averageRtt * 7 + rtt) / 8;
+        }
+    }
+
     public void connect() {
         if (!ConnectionsManager.isNetworkOnline()) {
             if (delegate != null) {
@@ -100,37 +164,18 @@ public class TcpConnection extends ConnectionContext {
         selector.scheduleTask(new Runnable() {
             @Override
             public void run() {
-                if ((connectionState == TcpConnectionState.TcpConnectionStageConnected || connectionState == TcpConnectionState.TcpConnectionStageConnecting) && client != null) {
+                if ((connectionState == TcpConnectionState.TcpConnectionStageConnected || connectionState == TcpConnectionState.TcpConnectionStageConnecting) && (client != null || !racingClients.isEmpty())) {
                     return;
                 }
 
                 connectionState = TcpConnectionState.TcpConnectionStageConnecting;
                 try {
-                    Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+                    Datacenter datacenter = getDatacenter();
                     boolean isIpv6 = ConnectionsManager.useIpv6Address();
-                    if (transportRequestClass == RPCRequest.RPCRequestClassDownloadMedia) {
+                    currentAddressFlag = 0;
+                    if (transportRequestClass == RPCRequest.RPCRequestClassDownloadMedia && (datacenter.getCurrentAddress(2) != null || isIpv6 && datacenter.getCurrentAddress(3) != null)) {
                         currentAddressFlag = 2;
-                        hostAddress = datacenter.getCurrentAddress(currentAddressFlag | (isIpv6 ? 1 : 0));
-                        if (hostAddress == null) {
-                            currentAddressFlag = 0;
-                            hostAddress = datacenter.getCurrentAddress(currentAddressFlag | (isIpv6 ? 1 : 0));
-                        }
-                        if (hostAddress == null && isIpv6) {
-                            currentAddressFlag = 2;
-                            hostAddress = datacenter.getCurrentAddress(currentAddressFlag);
-                            if (hostAddress == null) {
-                                currentAddressFlag = 0;
-                                hostAddress = datacenter.getCurrentAddress(currentAddressFlag);
-                            }
-                        }
-                    } else {
-                        currentAddressFlag = 0;
-                        hostAddress = datacenter.getCurrentAddress(currentAddressFlag | (isIpv6 ? 1 : 0));
-                        if (isIpv6 && hostAddress == null) {
-                            hostAddress = datacenter.getCurrentAddress(currentAddressFlag);
-                        }
                     }
-                    hostPort = datacenter.getCurrentPort(currentAddressFlag);
 
                     try {
                         synchronized (timerSync) {
@@ -143,13 +188,8 @@ public class TcpConnection extends ConnectionContext {
                         FileLog.e("tmessages", e2);
                     }
 
-                    FileLog.d("tmessages", String.format(TcpConnection.this + " Connecting (%s:%d)", hostAddress, hostPort));
                     firstPacket = true;
-                    if (restOfTheData != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                        restOfTheData = null;
-                    }
-                    lastPacketLength = 0;
+                    resetFrameDecoder();
                     wasConnected = false;
                     hasSomeDataSinceLastConnect = false;
                     if (client != null) {
@@ -157,22 +197,17 @@ public class TcpConnection extends ConnectionContext {
                         client.dropConnection();
                         client = null;
                     }
-                    client = selector.connect(new InetSocketAddress(hostAddress, hostPort));
-                    client.addListener(TcpConnection.this);
-                    if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
-                        if (isNextPort) {
-                            client.setTimeout(20000);
-                        } else {
-                            client.setTimeout(30000);
-                        }
-                    } else {
-                        if (isNextPort) {
-                            client.setTimeout(8000);
-                        } else {
-                            client.setTimeout(15000);
-                        }
+                    dropRacingClients();
+                    currentEndpoint = null;
+                    raceEndpoints = datacenter.getConnectEndpoints(currentAddressFlag, isIpv6);
+                    raceEndpointNum = 0;
+                    if (raceEndpoints.isEmpty()) {
+                        throw new IllegalStateException("no addresses for datacenter " + datacenterId);
+                    }
+                    startNextConnectAttempt();
+                    if (racingClients.isEmpty()) {
+                        throw new IllegalStateException("can't connect to datacenter " + datacenterId);
                     }
-                    selector.wakeup();
                 } catch (Exception e) {
                     handleConnectionError(e);
                 }
@@ -180,6 +215,115 @@ public class TcpConnection extends ConnectionContext {
         });
     }
 
+    /**
+     * Opens a socket to the next endpoint of the race. Attempts are staggered by the
+     * expected connect time of the previous one, the first one to connect wins and the
+     * others are dropped, and a failed attempt starts the next one right away.
+     */
+    private void startNextConnectAttempt() {
+        Datacenter datacenter = getDatacenter();
+        while (raceEndpointNum < raceEndpoints.size() && racingClients.size() < RACE_PARALLEL_COUNT) {
+            Datacenter.Endpoint endpoint = raceEndpoints.get(raceEndpointNum++);
+            try {
+                FileLog.d("tmessages", String.format(TcpConnection.this + " Connecting (%s:%d)", endpoint.address, endpoint.port));
+                PyroClient raceClient = selector.connect(new InetSocketAddress(endpoint.address, endpoint.port));
+                raceClient.attach(new ConnectAttempt(endpoint));
+                raceClient.addListener(TcpConnection.this);
+                if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
+                    if (isNextPort) {
+                        raceClient.setTimeout(20000);
+                    } else {
+                        raceClient.setTimeout(30000);
+                    }
+                } else {
+                    if (isNextPort) {
+                        raceClient.setTimeout(8000);
+                    } else {
+                        raceClient.setTimeout(15000);
+                    }
+                }
+                racingClients.add(raceClient);
+                if (raceEndpointNum < raceEndpoints.size()) {
+                    scheduleNextConnectAttempt(endpoint);
+                }
+                break;
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                if (datacenter != null) {
+                    datacenter.onEndpointFailed(endpoint);
+                }
+            }
+        }
+        selector.wakeup();
+    }
+
+    private void scheduleNextConnectAttempt(Datacenter.Endpoint endpoint) {
+        final int generation = raceGeneration;
+        int delay = endpoint.connectTime != 0 ? Math.max(RACE_STAGGER_MIN, Math.min(endpoint.connectTime * 2, RACE_STAGGER_MAX)) : RACE_STAGGER_DEFAULT;
+        raceTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                selector.scheduleTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == raceGeneration && client == null && !racingClients.isEmpty()) {
+                            startNextConnectAttempt();
+                        }
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    private void dropRacingClients() {
+        raceGeneration++;
+        for (int a = 0; a < racingClients.size(); a++) {
+            PyroClient raceClient = racingClients.get(a);
+            raceClient.removeListener(TcpConnection.this);
+            raceClient.dropConnection();
+        }
+        racingClients.clear();
+    }
+
+    private void clearPendingWrites() {
+        for (int a = 0; a < pendingWrites.size(); a++) {
+            BuffersStorage.getInstance().reuseFreeBuffer(pendingWrites.get(a));
+        }
+        pendingWrites.clear();
+    }
+
+    private void writeToClient(ByteBufferDesc buffer) {
+        if (client != null) {
+            client.write(buffer);
+        } else {
+            pendingWrites.add(buffer);
+        }
+    }
+
+    /**
+     * Returns true when the callback belongs to a losing or stale client and must not
+     * be treated as a disconnect of this connection.
+     */
+    private boolean handleConnectAttemptFailure(PyroClient failedClient) {
+        if (racingClients.remove(failedClient)) {
+            failedClient.removeListener(TcpConnection.this);
+            ConnectAttempt attempt = failedClient.attachment();
+            Datacenter datacenter = getDatacenter();
+            if (attempt != null && datacenter != null) {
+                datacenter.onEndpointFailed(attempt.endpoint);
+            }
+            if (raceEndpointNum < raceEndpoints.size()) {
+                startNextConnectAttempt();
+            }
+            if (!racingClients.isEmpty()) {
+                return true;
+            }
+            clearPendingWrites();
+            return false;
+        }
+        return failedClient != client;
+    }
+
     private void handleConnectionError(Exception e) {
         try {
             synchronized (timerSync) {
@@ -213,7 +357,7 @@ public class TcpConnection extends ConnectionContext {
         if (ConnectionsManager.isNetworkOnline()) {
             isNextPort = true;
             if (failedConnectionCount > willRetryConnectCount) {
-                Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+                Datacenter datacenter = getDatacenter();
                 datacenter.nextAddressOrPort(currentAddressFlag);
                 failedConnectionCount = 0;
             }
@@ -268,6 +412,8 @@ public class TcpConnection extends ConnectionContext {
             client.dropConnection();
             client = null;
         }
+        dropRacingClients();
+        clearPendingWrites();
         if (delegate != null) {
             final TcpConnectionDelegate finalDelegate = delegate;
             Utilities.stageQueue.postRunnable(new Runnable() {
@@ -278,11 +424,7 @@ public class TcpConnection extends ConnectionContext {
             });
         }
         firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
-        lastPacketLength = 0;
+        resetFrameDecoder();
         channelToken = 0;
         wasConnected = false;
     }
@@ -323,7 +465,7 @@ public class TcpConnection extends ConnectionContext {
                     connect();
                 }
 
-                if (client == null || client.isDisconnected()) {
+                if ((client == null || client.isDisconnected()) && racingClients.isEmpty()) {
                     if (canReuse) {
                         BuffersStorage.getInstance().reuseFreeBuffer(buff);
                     }
@@ -370,193 +512,129 @@ public class TcpConnection extends ConnectionContext {
 
                 buffer.rewind();
 
-                client.write(buffer);
+                writeToClient(buffer);
             }
         });
     }
 
-    private void readData(ByteBuffer buffer) throws Exception {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.rewind();
-
-        ByteBuffer parseLaterBuffer = null;
-        if (restOfTheData != null) {
-            if (lastPacketLength == 0) {
-                if (restOfTheData.capacity() - restOfTheData.position() >= buffer.limit()) {
-                    restOfTheData.limit(restOfTheData.position() + buffer.limit());
-                    restOfTheData.put(buffer);
-                    buffer = restOfTheData.buffer;
-                } else {
-                    ByteBufferDesc newBuffer = BuffersStorage.getInstance().getFreeBuffer(restOfTheData.limit() + buffer.limit());
-                    restOfTheData.rewind();
-                    newBuffer.put(restOfTheData.buffer);
-                    newBuffer.put(buffer);
-                    buffer = newBuffer.buffer;
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = newBuffer;
-                }
-            } else {
-                int len;
-                if (lastPacketLength - restOfTheData.position() <= buffer.limit()) {
-                    len = lastPacketLength - restOfTheData.position();
-                } else {
-                    len = buffer.limit();
+    public void sendFrame(final ByteBufferDesc frame, final boolean reportAck) {
+        if (frame == null) {
+            return;
+        }
+        selector.scheduleTask(new Runnable() {
+            @Override
+            public void run() {
+                if (connectionState == TcpConnectionState.TcpConnectionStageIdle ||
+                        connectionState == TcpConnectionState.TcpConnectionStageReconnecting ||
+                        connectionState == TcpConnectionState.TcpConnectionStageSuspended || client == null) {
+                    connect();
                 }
-                int oldLimit = buffer.limit();
-                buffer.limit(len);
-                restOfTheData.put(buffer);
-                buffer.limit(oldLimit);
-                if (restOfTheData.position() != lastPacketLength) {
-                    return;
-                } else {
-                    if (buffer.hasRemaining()) {
-                        parseLaterBuffer = buffer;
-                    } else {
-                        parseLaterBuffer = null;
+
+                if ((client == null || client.isDisconnected()) && racingClients.isEmpty()) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(frame);
+                    if (BuildConfig.DEBUG) {
+                        FileLog.e("tmessages", TcpConnection.this + " disconnected, don't send data");
                     }
-                    buffer = restOfTheData.buffer;
+                    return;
                 }
-            }
-        }
-
-        buffer.rewind();
 
-        while (buffer.hasRemaining()) {
-            if (!hasSomeDataSinceLastConnect) {
-                Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
-                datacenter.storeCurrentAddressAndPortNum();
-                isNextPort = false;
-                if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
-                    client.setTimeout(60000 * 15);
+                int packetLength = (frame.limit() - FRAME_HEADER_RESERVE) / 4;
+                int start = FRAME_HEADER_RESERVE;
+                if (packetLength < 0x7f) {
+                    start -= 1;
                 } else {
-                    client.setTimeout(25000);
+                    start -= 4;
                 }
-            }
-            hasSomeDataSinceLastConnect = true;
-
-            int currentPacketLength;
-            buffer.mark();
-            byte fByte = buffer.get();
-
-            if ((fByte & (1 << 7)) != 0) {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    ByteBufferDesc reuseLater = restOfTheData;
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                    restOfTheData.put(buffer);
-                    restOfTheData.limit(restOfTheData.position());
-                    lastPacketLength = 0;
-                    if (reuseLater != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                    }
-                    break;
-                }
-                buffer.order(ByteOrder.BIG_ENDIAN);
-                final int ackId = buffer.getInt() & (~(1 << 31));
-                if (delegate != null) {
-                    final TcpConnectionDelegate finalDelegate = delegate;
-                    Utilities.stageQueue.postRunnable(new Runnable() {
-                        @Override
-                        public void run() {
-                            finalDelegate.tcpConnectionQuiackAckReceived(TcpConnection.this, ackId);
-                        }
-                    });
+                if (firstPacket) {
+                    start -= 1;
                 }
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                continue;
-            }
 
-            if (fByte != 0x7f) {
-                currentPacketLength = ((int) fByte) * 4;
-            } else {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    if (restOfTheData == null || restOfTheData != null && restOfTheData.position() != 0) {
-                        ByteBufferDesc reuseLater = restOfTheData;
-                        restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                        restOfTheData.put(buffer);
-                        restOfTheData.limit(restOfTheData.position());
-                        lastPacketLength = 0;
-                        if (reuseLater != null) {
-                            BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                        }
-                    } else {
-                        restOfTheData.position(restOfTheData.limit());
+                frame.position(start);
+                if (firstPacket) {
+                    frame.writeByte((byte) 0xef);
+                    firstPacket = false;
+                }
+                if (packetLength < 0x7f) {
+                    if (reportAck) {
+                        packetLength |= (1 << 7);
+                    }
+                    frame.writeByte(packetLength);
+                } else {
+                    packetLength = (packetLength << 8) + 0x7f;
+                    if (reportAck) {
+                        packetLength |= (1 << 7);
                     }
-                    break;
+                    frame.writeInt32(packetLength);
                 }
-                currentPacketLength = (buffer.getInt() >> 8) * 4;
-            }
+                frame.position(start);
 
-            if (currentPacketLength % 4 != 0 || currentPacketLength > 2 * 1024 * 1024) {
-                FileLog.e("tmessages", "Invalid packet length");
-                reconnect();
-                return;
+                writeToClient(frame);
             }
+        });
+    }
 
-            if (currentPacketLength < buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " but packet larger " + buffer.remaining());
-            } else if (currentPacketLength == buffer.remaining()) {
-                FileLog.d("tmessages", TcpConnection.this + " Received message len " + currentPacketLength + " equal to packet size");
-            } else {
-                FileLog.d("tmessages", TcpConnection.this + " Received packet size less(" + buffer.remaining() + ") then message size(" + currentPacketLength + ")");
+    private void resetFrameDecoder() {
+        frameDecoder.reset();
+        readPaused = false;
+    }
 
-                ByteBufferDesc reuseLater = null;
-                int len = currentPacketLength + (fByte != 0x7f ? 1 : 4);
-                if (restOfTheData != null && restOfTheData.capacity() < len) {
-                    reuseLater = restOfTheData;
-                    restOfTheData = null;
-                }
-                if (restOfTheData == null) {
-                    buffer.reset();
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(len);
-                    restOfTheData.put(buffer);
-                } else {
-                    restOfTheData.position(restOfTheData.limit());
-                    restOfTheData.limit(len);
-                }
-                lastPacketLength = len;
-                if (reuseLater != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                }
-                return;
-            }
+    private void readData(ByteBuffer buffer) throws Exception {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.rewind();
 
-            final int length = currentPacketLength;
-            final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
-            int old = buffer.limit();
-            buffer.limit(buffer.position() + currentPacketLength);
-            toProceed.put(buffer);
-            buffer.limit(old);
-            toProceed.rewind();
+        if (!buffer.hasRemaining()) {
+            return;
+        }
 
-            if (delegate != null) {
-                final TcpConnectionDelegate finalDelegate = delegate;
-                Utilities.stageQueue.postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        finalDelegate.tcpConnectionReceivedData(TcpConnection.this, toProceed, length);
-                        BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
-                    }
-                });
+        if (!hasSomeDataSinceLastConnect) {
+            Datacenter datacenter = getDatacenter();
+            datacenter.storeCurrentAddressAndPortNum();
+            isNextPort = false;
+            if ((transportRequestClass & RPCRequest.RPCRequestClassPush) != 0) {
+                client.setTimeout(60000 * 15);
+            } else {
+                client.setTimeout(25000);
             }
+        }
+        hasSomeDataSinceLastConnect = true;
 
-            if (restOfTheData != null) {
-                if (lastPacketLength != 0 && restOfTheData.position() == lastPacketLength || lastPacketLength == 0 && !restOfTheData.hasRemaining()) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = null;
-                } else {
-                    restOfTheData.compact();
-                    restOfTheData.limit(restOfTheData.position());
-                    restOfTheData.position(0);
-                }
-            }
+        if (!frameDecoder.decode(buffer)) {
+            FileLog.e("tmessages", "Invalid packet length");
+            reconnect();
+        }
+    }
 
-            if (parseLaterBuffer != null) {
-                buffer = parseLaterBuffer;
-                parseLaterBuffer = null;
-            }
+    private void dispatchFrame(final ByteBufferDesc frame, final int length) {
+        if (delegate == null) {
+            BuffersStorage.getInstance().reuseFreeBuffer(frame);
+            return;
         }
+        if (pendingFrameBytes.addAndGet(length) > PENDING_FRAME_BYTES_HIGH && !readPaused && client != null) {
+            readPaused = true;
+            client.setReadPaused(true);
+            FileLog.d("tmessages", TcpConnection.this + " pause reading, " + pendingFrameBytes.get() + " bytes waiting for stage queue");
+        }
+        final TcpConnectionDelegate finalDelegate = delegate;
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                finalDelegate.tcpConnectionReceivedData(TcpConnection.this, frame, length);
+                BuffersStorage.getInstance().reuseFreeBuffer(frame);
+                if (pendingFrameBytes.addAndGet(-length) < PENDING_FRAME_BYTES_LOW && readPaused) {
+                    selector.scheduleTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (readPaused && pendingFrameBytes.get() < PENDING_FRAME_BYTES_LOW) {
+                                readPaused = false;
+                                if (client != null) {
+                                    client.setReadPaused(false);
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
     }
 
     public void handleDisconnect(PyroClient client, Exception e, boolean timedout) {
@@ -572,13 +650,18 @@ public class TcpConnection extends ConnectionContext {
             FileLog.d("tmessages", "Disconnected " + TcpConnection.this);
         }
         boolean switchToNextPort = wasConnected && !hasSomeDataSinceLastConnect && timedout;
-        firstPacket = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
+        if (switchToNextPort && currentEndpoint != null) {
+            Datacenter datacenter = getDatacenter();
+            if (datacenter != null) {
+                datacenter.onEndpointFailed(currentEndpoint);
+            }
         }
+        if (client == this.client) {
+            this.client = null;
+        }
+        firstPacket = true;
+        resetFrameDecoder();
         channelToken = 0;
-        lastPacketLength = 0;
         wasConnected = false;
         if (connectionState != TcpConnectionState.TcpConnectionStageSuspended && connectionState != TcpConnectionState.TcpConnectionStageIdle) {
             connectionState = TcpConnectionState.TcpConnectionStageIdle;
@@ -605,7 +688,7 @@ public class TcpConnection extends ConnectionContext {
             if (ConnectionsManager.isNetworkOnline()) {
                 isNextPort = true;
                 if (failedConnectionCount > willRetryConnectCount || switchToNextPort) {
-                    Datacenter datacenter = ConnectionsManager.getInstance().datacenterWithId(datacenterId);
+                    Datacenter datacenter = getDatacenter();
                     datacenter.nextAddressOrPort(currentAddressFlag);
                     failedConnectionCount = 0;
                 }
@@ -644,6 +727,23 @@ public class TcpConnection extends ConnectionContext {
 
     @Override
     public void connectedClient(PyroClient client) {
+        if (!racingClients.remove(client)) {
+            return;
+        }
+        ConnectAttempt attempt = client.attachment();
+        dropRacingClients();
+        this.client = client;
+        currentEndpoint = attempt.endpoint;
+        hostAddress = currentEndpoint.address;
+        hostPort = currentEndpoint.port;
+        Datacenter datacenter = getDatacenter();
+        if (datacenter != null) {
+            datacenter.onEndpointConnected(currentEndpoint, (int) (System.currentTimeMillis() - attempt.startTime));
+        }
+        for (int a = 0; a < pendingWrites.size(); a++) {
+            client.write(pendingWrites.get(a));
+        }
+        pendingWrites.clear();
         connectionState = TcpConnectionState.TcpConnectionStageConnected;
         channelToken = generateChannelToken();
         wasConnected = true;
@@ -661,17 +761,26 @@ public class TcpConnection extends ConnectionContext {
 
     @Override
     public void unconnectableClient(PyroClient client, Exception cause) {
+        if (handleConnectAttemptFailure(client)) {
+            return;
+        }
         handleDisconnect(client, cause, false);
     }
 
     @Override
     public void droppedClient(PyroClient client, IOException cause) {
         super.droppedClient(client, cause);
+        if (handleConnectAttemptFailure(client)) {
+            return;
+        }
         handleDisconnect(client, cause, (cause instanceof SocketTimeoutException));
     }
 
     @Override
     public void disconnectedClient(PyroClient client) {
+        if (handleConnectAttemptFailure(client)) {
+            return;
+        }
         handleDisconnect(client, null, false);
     }
 
@@ -0,0 +1,385 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Single scheduler for every file transfer. Queued tasks live in one indexed
+ * binary heap per transfer type, so reprioritizing or removing a task is
+ * O(log n). Not thread safe, all calls must come from fileLoaderQueue.
+ */
+public class TransferScheduler {
+
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_VISIBLE = 2;
+    public static final int PRIORITY_USER = 3;
+
+    public static final int TYPE_DOWNLOAD_FILE = 0;
+    public static final int TYPE_DOWNLOAD_AUDIO = 1;
+    public static final int TYPE_DOWNLOAD_PHOTO = 2;
+    public static final int TYPE_UPLOAD = 3;
+    public static final int TYPE_UPLOAD_SMALL = 4;
+    private static final int TYPES_COUNT = 5;
+
+    private static final int[] maxRunningDownloadsForPriority = new int[] {1, 2, 3, 3};
+    private static final int maxRunningUploads = 1;
+    private static final int maxRunningDownloads = 8;
+    private static final int maxRunningDownloadsPerDatacenter = 6;
+
+    private static final int taskStateIdle = 0;
+    private static final int taskStateQueued = 1;
+    private static final int taskStateRunning = 2;
+    private static final int taskStatePausing = 3;
+
+    public static abstract class Task {
+        private int type;
+        private int datacenterId;
+        private int priority;
+        private int state = taskStateIdle;
+        private int heapIndex = -1;
+        private long sequence;
+        private long enqueueTime;
+
+        public Task(int type, int datacenterId, int priority) {
+            this.type = type;
+            this.datacenterId = datacenterId;
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        protected abstract void onStart();
+
+        /**
+         * Asks a running task to give up its slot. Return true if the task
+         * will call {@link TransferScheduler#onTaskPaused(Task)} once it has stopped.
+         */
+        protected boolean onPreempt() {
+            return false;
+        }
+    }
+
+    private Task[][] heaps = new Task[TYPES_COUNT][16];
+    private int[] heapSizes = new int[TYPES_COUNT];
+    private int[] runningCount = new int[TYPES_COUNT];
+    private ArrayList<Task> runningTasks = new ArrayList<>();
+    private HashMap<Integer, Integer> runningPerDatacenter = new HashMap<>();
+    private ArrayList<Task> blockedTasks = new ArrayList<>();
+    private int runningDownloads = 0;
+    private int pausingCount = 0;
+    private long sequence = 0;
+
+    private long startedCount = 0;
+    private long preemptedCount = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+
+    private static boolean isDownload(int type) {
+        return type <= TYPE_DOWNLOAD_PHOTO;
+    }
+
+    private static boolean isHigher(Task a, Task b) {
+        if (a.priority != b.priority) {
+            return a.priority > b.priority;
+        }
+        if (a.priority >= PRIORITY_VISIBLE) {
+            return a.sequence > b.sequence;
+        }
+        return a.sequence < b.sequence;
+    }
+
+    public void add(Task task) {
+        if (task.state != taskStateIdle) {
+            return;
+        }
+        task.enqueueTime = System.currentTimeMillis();
+        task.sequence = sequence++;
+        task.state = taskStateQueued;
+        heapPush(task);
+        dispatch(task.type);
+    }
+
+    public void setPriority(Task task, int priority) {
+        if (task.priority == priority) {
+            return;
+        }
+        boolean raised = priority >= task.priority;
+        task.priority = priority;
+        if (task.state == taskStateQueued) {
+            task.sequence = sequence++;
+            if (raised) {
+                siftUp(task.type, task.heapIndex);
+            } else {
+                siftDown(task.type, task.heapIndex);
+            }
+            dispatch(task.type);
+        }
+    }
+
+    /**
+     * Moves a task to another datacenter, a running download counts against the new one
+     * from now on and the slot it held on the old one is given to the next task.
+     */
+    public void setDatacenterId(Task task, int datacenterId) {
+        if (task.datacenterId == datacenterId) {
+            return;
+        }
+        boolean counted = isDownload(task.type) && (task.state == taskStateRunning || task.state == taskStatePausing);
+        if (counted) {
+            decrementRunningOnDatacenter(task.datacenterId);
+            runningPerDatacenter.put(datacenterId, getRunningOnDatacenter(datacenterId) + 1);
+        }
+        task.datacenterId = datacenterId;
+        if (counted) {
+            dispatchReleased(task.type);
+        }
+    }
+
+    public void remove(Task task) {
+        if (task.state == taskStateQueued) {
+            heapRemove(task);
+            task.state = taskStateIdle;
+        } else if (task.state == taskStateRunning || task.state == taskStatePausing) {
+            releaseSlot(task);
+            task.state = taskStateIdle;
+            dispatchReleased(task.type);
+        }
+    }
+
+    public void onTaskPaused(Task task) {
+        if (task.state != taskStatePausing) {
+            return;
+        }
+        releaseSlot(task);
+        task.state = taskStateQueued;
+        task.enqueueTime = System.currentTimeMillis();
+        heapPush(task);
+        dispatchReleased(task.type);
+    }
+
+    public int getQueueDepth(int type) {
+        return heapSizes[type];
+    }
+
+    public int getRunningCount(int type) {
+        return runningCount[type];
+    }
+
+    public String getStatistics() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("transfers:");
+        for (int a = 0; a < TYPES_COUNT; a++) {
+            builder.append(String.format(Locale.US, " %d=%d/%d", a, runningCount[a], heapSizes[a]));
+        }
+        builder.append(String.format(Locale.US, " started=%d preempted=%d avgWait=%d maxWait=%d",
+                startedCount, preemptedCount, startedCount != 0 ? totalWaitTime / startedCount : 0, maxWaitTime));
+        return builder.toString();
+    }
+
+    private int getRunningOnDatacenter(int datacenterId) {
+        Integer count = runningPerDatacenter.get(datacenterId);
+        return count != null ? count : 0;
+    }
+
+    private void decrementRunningOnDatacenter(int datacenterId) {
+        int count = getRunningOnDatacenter(datacenterId) - 1;
+        if (count <= 0) {
+            runningPerDatacenter.remove(datacenterId);
+        } else {
+            runningPerDatacenter.put(datacenterId, count);
+        }
+    }
+
+    private void releaseSlot(Task task) {
+        if (task.state == taskStatePausing) {
+            pausingCount--;
+        }
+        runningTasks.remove(task);
+        runningCount[task.type]--;
+        if (isDownload(task.type)) {
+            runningDownloads--;
+            decrementRunningOnDatacenter(task.datacenterId);
+        }
+    }
+
+    private int getTypeLimit(Task task) {
+        if (isDownload(task.type)) {
+            return maxRunningDownloadsForPriority[task.priority];
+        }
+        return maxRunningUploads;
+    }
+
+    private boolean fitsBudget(Task task) {
+        if (!isDownload(task.type)) {
+            return true;
+        }
+        return runningDownloads < maxRunningDownloads && getRunningOnDatacenter(task.datacenterId) < maxRunningDownloadsPerDatacenter;
+    }
+
+    private void dispatchReleased(int type) {
+        if (isDownload(type)) {
+            dispatch(type);
+            for (int a = TYPE_DOWNLOAD_FILE; a <= TYPE_DOWNLOAD_PHOTO; a++) {
+                if (a != type) {
+                    dispatch(a);
+                }
+            }
+        } else {
+            dispatch(type);
+        }
+    }
+
+    private void dispatch(int type) {
+        while (heapSizes[type] > 0) {
+            Task task = heaps[type][0];
+            if (runningCount[type] >= getTypeLimit(task)) {
+                if (task.priority >= PRIORITY_VISIBLE) {
+                    preemptFor(task, true);
+                }
+                break;
+            }
+            heapRemove(task);
+            if (!fitsBudget(task)) {
+                if (task.priority >= PRIORITY_VISIBLE) {
+                    preemptFor(task, false);
+                }
+                blockedTasks.add(task);
+                if (runningDownloads >= maxRunningDownloads) {
+                    break;
+                }
+                continue;
+            }
+            startTask(task);
+        }
+        for (int a = 0; a < blockedTasks.size(); a++) {
+            heapPush(blockedTasks.get(a));
+        }
+        blockedTasks.clear();
+    }
+
+    private void startTask(Task task) {
+        task.state = taskStateRunning;
+        runningTasks.add(task);
+        runningCount[task.type]++;
+        if (isDownload(task.type)) {
+            runningDownloads++;
+            runningPerDatacenter.put(task.datacenterId, getRunningOnDatacenter(task.datacenterId) + 1);
+        }
+        long waitTime = System.currentTimeMillis() - task.enqueueTime;
+        totalWaitTime += waitTime;
+        if (waitTime > maxWaitTime) {
+            maxWaitTime = waitTime;
+        }
+        startedCount++;
+        task.onStart();
+    }
+
+    private void preemptFor(Task task, boolean sameType) {
+        if (pausingCount != 0) {
+            return;
+        }
+        Task victim = null;
+        for (int a = 0; a < runningTasks.size(); a++) {
+            Task running = runningTasks.get(a);
+            if (running.state != taskStateRunning || running.priority != PRIORITY_BACKGROUND || !isDownload(running.type)) {
+                continue;
+            }
+            if (sameType ? running.type != task.type : running.datacenterId != task.datacenterId && runningDownloads < maxRunningDownloads) {
+                continue;
+            }
+            if (victim == null || running.sequence > victim.sequence) {
+                victim = running;
+            }
+        }
+        if (victim != null && victim.onPreempt()) {
+            victim.state = taskStatePausing;
+            pausingCount++;
+            preemptedCount++;
+        }
+    }
+
+    private void heapPush(Task task) {
+        int type = task.type;
+        Task[] heap = heaps[type];
+        if (heapSizes[type] == heap.length) {
+            Task[] newHeap = new Task[heap.length * 2];
+            System.arraycopy(heap, 0, newHeap, 0, heap.length);
+            heaps[type] = heap = newHeap;
+        }
+        int index = heapSizes[type]++;
+        heap[index] = task;
+        task.heapIndex = index;
+        siftUp(type, index);
+    }
+
+    private void heapRemove(Task task) {
+        int type = task.type;
+        Task[] heap = heaps[type];
+        int index = task.heapIndex;
+        int last = --heapSizes[type];
+        task.heapIndex = -1;
+        if (index != last) {
+            Task moved = heap[last];
+            heap[index] = moved;
+            moved.heapIndex = index;
+            heap[last] = null;
+            siftDown(type, index);
+            if (moved.heapIndex == index) {
+                siftUp(type, index);
+            }
+        } else {
+            heap[last] = null;
+        }
+    }
+
+    private void siftUp(int type, int index) {
+        Task[] heap = heaps[type];
+        Task task = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (!isHigher(task, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].heapIndex = index;
+            index = parent;
+        }
+        heap[index] = task;
+        task.heapIndex = index;
+    }
+
+    private void siftDown(int type, int index) {
+        Task[] heap = heaps[type];
+        int size = heapSizes[type];
+        Task task = heap[index];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isHigher(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!isHigher(heap[child], task)) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].heapIndex = index;
+            index = child;
+        }
+        heap[index] = task;
+        task.heapIndex = index;
+    }
+}
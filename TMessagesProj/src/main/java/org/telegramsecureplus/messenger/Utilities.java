@@ -14,7 +14,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Base64;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -26,11 +25,12 @@ import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.RSAPublicKeySpec;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.crypto.Cipher;
 
@@ -39,10 +39,47 @@ public class Utilities {
     public static Pattern pattern = Pattern.compile("[0-9]+");
     public static SecureRandom random = new SecureRandom();
 
-    private static byte[] decompressBuffer;
-    private static ByteArrayOutputStreamExpand decompressStream;
+    private static final ThreadLocal<MessageDigest> sha1Digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            return null;
+        }
+    };
+    private static final ThreadLocal<byte[]> digestBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    private static final int ZIP_BUFFER_SIZE = 16384;
+    private static final int MAX_UNPACKED_SIZE = 64 * 1024 * 1024;
+    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<byte[]> zipBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[ZIP_BUFFER_SIZE];
+        }
+    };
 
-    public static ArrayList<String> goodPrimes = new ArrayList<>();
+    private static final HashSet<String> goodPrimes = new HashSet<>();
 
     public static class TPFactorizedValue {
         public long p, q;
@@ -203,8 +240,8 @@ public class Utilities {
         }
 
         String hex = bytesToHex(prime);
-        for (String cached : goodPrimes) {
-            if (cached.equals(hex)) {
+        synchronized (goodPrimes) {
+            if (goodPrimes.contains(hex)) {
                 return true;
             }
         }
@@ -214,16 +251,20 @@ public class Utilities {
             return false;
         }
 
-        goodPrimes.add(hex);
+        synchronized (goodPrimes) {
+            goodPrimes.add(hex);
+        }
 
         globalQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 try {
                     SerializedData data = new SerializedData();
-                    data.writeInt32(goodPrimes.size());
-                    for (String pr : goodPrimes) {
-                        data.writeString(pr);
+                    synchronized (goodPrimes) {
+                        data.writeInt32(goodPrimes.size());
+                        for (String pr : goodPrimes) {
+                            data.writeString(pr);
+                        }
                     }
                     byte[] bytes = data.toByteArray();
                     data.cleanup();
@@ -282,9 +323,20 @@ public class Utilities {
         return result;
     }
 
+    /**
+     * Returns the SHA-1 digest of the calling thread, reset and ready for use.
+     */
+    public static MessageDigest getSHA1Digest() {
+        MessageDigest md = sha1Digests.get();
+        if (md != null) {
+            md.reset();
+        }
+        return md;
+    }
+
     public static byte[] computeSHA1(byte[] convertme, int offset, int len) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            MessageDigest md = getSHA1Digest();
             md.update(convertme, offset, len);
             return md.digest();
         } catch (Exception e) {
@@ -294,21 +346,43 @@ public class Utilities {
     }
 
     public static byte[] computeSHA1(ByteBuffer convertme, int offset, int len) {
+        byte[] output = new byte[20];
+        if (!computeSHA1(convertme, offset, len, output)) {
+            return new byte[0];
+        }
+        return output;
+    }
+
+    /**
+     * Hashes the bytes of the buffer from offset up to end into output. Direct buffers
+     * are fed to the digest through a per-thread array instead of a full copy.
+     */
+    public static boolean computeSHA1(ByteBuffer convertme, int offset, int end, byte[] output) {
         int oldp = convertme.position();
         int oldl = convertme.limit();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            MessageDigest md = getSHA1Digest();
             convertme.position(offset);
-            convertme.limit(len);
-            md.update(convertme);
-            return md.digest();
+            convertme.limit(end);
+            if (convertme.hasArray()) {
+                md.update(convertme);
+            } else {
+                byte[] buffer = digestBuffers.get();
+                while (convertme.hasRemaining()) {
+                    int count = Math.min(buffer.length, convertme.remaining());
+                    convertme.get(buffer, 0, count);
+                    md.update(buffer, 0, count);
+                }
+            }
+            md.digest(output, 0, 20);
+            return true;
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         } finally {
             convertme.limit(oldl);
             convertme.position(oldp);
         }
-        return new byte[0];
+        return false;
     }
 
     public static byte[] computeSHA1(ByteBuffer convertme) {
@@ -350,39 +424,99 @@ public class Utilities {
     }
 
     public static TLObject decompress(byte[] data, TLObject parentObject, boolean exception) {
-        final int BUFFER_SIZE = 16384;
-        ByteArrayInputStream is = new ByteArrayInputStream(data);
-        GZIPInputStream gis;
-        SerializedData stream = null;
-        try {
-            if (decompressBuffer == null) {
-                decompressBuffer = new byte[BUFFER_SIZE];
-                decompressStream = new ByteArrayOutputStreamExpand(BUFFER_SIZE);
-            }
-            decompressStream.reset();
-            gis = new GZIPInputStream(is, BUFFER_SIZE);
-            int bytesRead;
-            while ((bytesRead = gis.read(decompressBuffer)) != -1) {
-                decompressStream.write(decompressBuffer, 0, bytesRead);
+        ByteBufferDesc stream = inflate(data);
+        if (stream != null) {
+            TLObject object = ConnectionsManager.getInstance().deserialize(parentObject, stream, exception);
+            BuffersStorage.getInstance().reuseFreeBuffer(stream);
+            return object;
+        }
+        return null;
+    }
+
+    private static int readInt32LE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static void writeInt32LE(ByteArrayOutputStream stream, int value) {
+        stream.write(value);
+        stream.write(value >> 8);
+        stream.write(value >> 16);
+        stream.write(value >> 24);
+    }
+
+    private static int getGzipHeaderLength(byte[] data) {
+        if (data.length < 18 || data[0] != 0x1f || data[1] != (byte) 0x8b || data[2] != 8) {
+            return -1;
+        }
+        int flags = data[3];
+        int offset = 10;
+        if ((flags & 4) != 0) {
+            offset += 2 + ((data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8));
+        }
+        for (int flag = 8; flag <= 16; flag <<= 1) {
+            if ((flags & flag) != 0) {
+                while (offset < data.length && data[offset] != 0) {
+                    offset++;
+                }
+                offset++;
             }
-            try {
-                gis.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+        }
+        if ((flags & 2) != 0) {
+            offset += 2;
+        }
+        return offset <= data.length - 8 ? offset : -1;
+    }
+
+    /**
+     * Inflates a single member gzip payload into a pooled buffer of the size stored in the
+     * gzip trailer, so the unpacked data exists once and needs no intermediate streams.
+     * The caller has to return the buffer to BuffersStorage.
+     */
+    public static ByteBufferDesc inflate(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        int headerLength = getGzipHeaderLength(data);
+        if (headerLength == -1) {
+            FileLog.e("tmessages", "invalid gzip header");
+            return null;
+        }
+        long checksum = readInt32LE(data, data.length - 8) & 0xffffffffL;
+        int size = readInt32LE(data, data.length - 4);
+        if (size <= 0 || size > MAX_UNPACKED_SIZE) {
+            FileLog.e("tmessages", "invalid gzip size " + size);
+            return null;
+        }
+        ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(size);
+        Inflater inflater = inflaters.get();
+        byte[] chunk = zipBuffers.get();
+        CRC32 crc32 = new CRC32();
+        try {
+            inflater.setInput(data, headerLength, data.length - headerLength);
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0) {
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("truncated gzip data");
+                    }
+                    continue;
+                }
+                if (count > buffer.buffer.remaining()) {
+                    throw new IOException("gzip data is larger than its trailer size");
+                }
+                buffer.buffer.put(chunk, 0, count);
+                crc32.update(chunk, 0, count);
             }
-            try {
-                is.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
+            if (buffer.buffer.hasRemaining() || crc32.getValue() != checksum) {
+                throw new IOException("gzip size or crc mismatch");
             }
-            stream = new SerializedData(decompressStream.toByteArray());
-        } catch (IOException e) {
+            buffer.position(0);
+            return buffer;
+        } catch (Exception e) {
             FileLog.e("tmessages", e);
-        }
-        if (stream != null) {
-            TLObject object = ConnectionsManager.getInstance().deserialize(parentObject, stream, exception);
-            stream.cleanup();
-            return object;
+            BuffersStorage.getInstance().reuseFreeBuffer(buffer);
+        } finally {
+            inflater.reset();
         }
         return null;
     }
@@ -392,23 +526,28 @@ public class Utilities {
             return null;
         }
 
-        byte[] packedData = null;
-        ByteArrayOutputStream bytesStream = new ByteArrayOutputStream();
+        Deflater deflater = deflaters.get();
+        byte[] chunk = zipBuffers.get();
+        ByteArrayOutputStream bytesStream = new ByteArrayOutputStream(Math.max(64, data.length / 2));
         try {
-            GZIPOutputStream zip = new GZIPOutputStream(bytesStream);
-            zip.write(data);
-            zip.close();
-            packedData = bytesStream.toByteArray();
-        } catch (IOException e) {
+            bytesStream.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                bytesStream.write(chunk, 0, count);
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            writeInt32LE(bytesStream, (int) crc32.getValue());
+            writeInt32LE(bytesStream, data.length);
+            return bytesStream.toByteArray();
+        } catch (Exception e) {
             FileLog.e("tmessages", e);
         } finally {
-            try {
-                bytesStream.close();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
-            }
+            deflater.reset();
         }
-        return packedData;
+        return null;
     }
 
     public static String MD5(String md5) {
@@ -15,7 +15,6 @@ import android.media.AudioManager;
 import android.os.PowerManager;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.text.style.ImageSpan;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -240,6 +239,9 @@ public class ChatActivityEnterView extends FrameLayoutFixed implements Notificat
             }
         });
         messageEditText.addTextChangedListener(new TextWatcher() {
+            private int changeStart;
+            private int changeCount;
+
             @Override
             public void beforeTextChanged(CharSequence charSequence, int i, int i2, int i3) {
 
@@ -247,6 +249,8 @@ public class ChatActivityEnterView extends FrameLayoutFixed implements Notificat
 
             @Override
             public void onTextChanged(CharSequence charSequence, int start, int before, int count) {
+                changeStart = start;
+                changeCount = count;
                 String message = getTrimmedString(charSequence.toString());
                 checkSendButton(true);
 
@@ -278,17 +282,7 @@ public class ChatActivityEnterView extends FrameLayoutFixed implements Notificat
                 if (sendByEnter && editable.length() > 0 && editable.charAt(editable.length() - 1) == '\n') {
                     sendMessage();
                 }
-                int i = 0;
-                ImageSpan[] arrayOfImageSpan = editable.getSpans(0, editable.length(), ImageSpan.class);
-                int j = arrayOfImageSpan.length;
-                while (true) {
-                    if (i >= j) {
-                        Emoji.replaceEmoji(editable, messageEditText.getPaint().getFontMetricsInt(), AndroidUtilities.dp(20));
-                        return;
-                    }
-                    editable.removeSpan(arrayOfImageSpan[i]);
-                    i++;
-                }
+                Emoji.replaceEmoji(editable, changeStart, changeCount, messageEditText.getPaint().getFontMetricsInt(), AndroidUtilities.dp(20));
             }
         });
 
@@ -12,7 +12,6 @@ import android.content.Context;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
-import android.text.style.ImageSpan;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -149,6 +148,9 @@ public class PhotoViewerCaptionEnterView extends FrameLayoutFixed implements Not
             }
         });
         messageEditText.addTextChangedListener(new TextWatcher() {
+            private int changeStart;
+            private int changeCount;
+
             @Override
             public void beforeTextChanged(CharSequence charSequence, int i, int i2, int i3) {
 
@@ -156,6 +158,8 @@ public class PhotoViewerCaptionEnterView extends FrameLayoutFixed implements Not
 
             @Override
             public void onTextChanged(CharSequence charSequence, int start, int before, int count) {
+                changeStart = start;
+                changeCount = count;
                 if (delegate != null) {
                     delegate.onTextChanged(charSequence);
                 }
@@ -163,17 +167,7 @@ public class PhotoViewerCaptionEnterView extends FrameLayoutFixed implements Not
 
             @Override
             public void afterTextChanged(Editable editable) {
-                int i = 0;
-                ImageSpan[] arrayOfImageSpan = editable.getSpans(0, editable.length(), ImageSpan.class);
-                int j = arrayOfImageSpan.length;
-                while (true) {
-                    if (i >= j) {
-                        Emoji.replaceEmoji(editable, messageEditText.getPaint().getFontMetricsInt(), AndroidUtilities.dp(20));
-                        return;
-                    }
-                    editable.removeSpan(arrayOfImageSpan[i]);
-                    i++;
-                }
+                Emoji.replaceEmoji(editable, changeStart, changeCount, messageEditText.getPaint().getFontMetricsInt(), AndroidUtilities.dp(20));
             }
         });
     }
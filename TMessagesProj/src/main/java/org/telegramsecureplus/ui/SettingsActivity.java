@@ -53,10 +53,12 @@ import org.telegramsecureplus.android.AnimationCompat.AnimatorListenerAdapterPro
 import org.telegramsecureplus.android.AnimationCompat.AnimatorSetProxy;
 import org.telegramsecureplus.android.AnimationCompat.ObjectAnimatorProxy;
 import org.telegramsecureplus.PhoneFormat.PhoneFormat;
+import org.telegramsecureplus.android.ImageLoader;
 import org.telegramsecureplus.android.MediaController;
 import org.telegramsecureplus.android.UserObject;
 import org.telegramsecureplus.messenger.ApplicationLoader;
 import org.telegramsecureplus.messenger.BuildVars;
+import org.telegramsecureplus.messenger.BuffersStorage;
 import org.telegramsecureplus.android.LocaleController;
 import org.telegramsecureplus.messenger.FileLoader;
 import org.telegramsecureplus.messenger.SerializedData;
@@ -134,6 +136,7 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
     private int telegramFaqRow;
     private int sendLogsRow;
     private int clearLogsRow;
+    private int dumpBuffersRow;
     private int switchBackendButtonRow;
     private int versionRow;
     private int contactsSectionRow;
@@ -249,6 +252,7 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
         if (BuildVars.DEBUG_VERSION) {
             sendLogsRow = rowCount++;
             clearLogsRow = rowCount++;
+            dumpBuffersRow = rowCount++;
             switchBackendButtonRow = rowCount++;
         }
         versionRow = rowCount++;
@@ -455,6 +459,13 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
                     sendLogs();
                 } else if (i == clearLogsRow) {
                     FileLog.cleanupLogs();
+                } else if (i == dumpBuffersRow) {
+                    BuffersStorage.getInstance().dumpStatistics();
+                    MessagesStorage.getInstance().getBuffersStorage().dumpStatistics();
+                    NotificationCenter.getInstance().dumpStatistics();
+                    ImageLoader.getInstance().dumpStatistics();
+                    FileLoader.getInstance().dumpStatistics();
+                    FileLog.dumpStatistics();
                 } else if (i == sendByEnterRow) {
                     SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
                     boolean send = preferences.getBoolean("send_by_enter", false);
@@ -1030,6 +1041,7 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
 
     private void sendLogs() {
         try {
+            FileLog.flush();
             ArrayList<Uri> uris = new ArrayList<>();
             File sdCard = ApplicationLoader.applicationContext.getExternalFilesDir(null);
             File dir = new File(sdCard.getAbsolutePath() + "/logs");
@@ -1068,7 +1080,7 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
         public boolean isEnabled(int i) {
             return i == textSizeRow || i == enableAnimationsRow || i == notificationRow || i == backgroundRow || i == numberRow ||
                     i == askQuestionRow || i == sendLogsRow || i == sendByEnterRow || i == privacyRow || i == wifiDownloadRow ||
-                    i == mobileDownloadRow || i == clearLogsRow || i == roamingDownloadRow || i == languageRow || i == usernameRow ||
+                    i == mobileDownloadRow || i == clearLogsRow || i == dumpBuffersRow || i == roamingDownloadRow || i == languageRow || i == usernameRow ||
                     i == switchBackendButtonRow || i == telegramFaqRow || i == contactsSortRow || i == contactsReimportRow || i == saveToGalleryRow ||
                     i == stickersRow;
         }
@@ -1140,6 +1152,8 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
                     textCell.setText("Send Logs", true);
                 } else if (i == clearLogsRow) {
                     textCell.setText("Clear Logs", true);
+                } else if (i == dumpBuffersRow) {
+                    textCell.setText("Dump Buffers Stats", true);
                 } else if (i == askQuestionRow) {
                     textCell.setText(LocaleController.getString("AskAQuestion", R.string.AskAQuestion), true);
                 } else if (i == privacyRow) {
@@ -1270,7 +1284,7 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
                 return 1;
             } else if (i == enableAnimationsRow || i == sendByEnterRow || i == saveToGalleryRow) {
                 return 3;
-            } else if (i == notificationRow || i == backgroundRow || i == askQuestionRow || i == sendLogsRow || i == privacyRow || i == clearLogsRow || i == switchBackendButtonRow || i == telegramFaqRow || i == contactsReimportRow || i == textSizeRow || i == languageRow || i == contactsSortRow || i == stickersRow) {
+            } else if (i == notificationRow || i == backgroundRow || i == askQuestionRow || i == sendLogsRow || i == privacyRow || i == clearLogsRow || i == dumpBuffersRow || i == switchBackendButtonRow || i == telegramFaqRow || i == contactsReimportRow || i == textSizeRow || i == languageRow || i == contactsSortRow || i == stickersRow) {
                 return 2;
             } else if (i == versionRow) {
                 return 5;
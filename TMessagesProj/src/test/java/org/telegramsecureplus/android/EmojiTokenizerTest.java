@@ -0,0 +1,320 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiTokenizerTest {
+
+    private static final int SMILE = 0;
+    private static final int FLAG_US = 1;
+    private static final int KEYCAP_ONE = 2;
+    private static final int KEYCAP_HASH = 3;
+    private static final int HEART = 4;
+    private static final int THUMBS_UP = 5;
+
+    private EmojiTokenizer tokenizer;
+
+    @Before
+    public void setUp() {
+        tokenizer = new EmojiTokenizer(6);
+        tokenizer.put(0x00000000D83DDE04L, SMILE);
+        tokenizer.put(0xD83CDDFAD83CDDF8L, FLAG_US);
+        tokenizer.put(0x00000000003120E3L, KEYCAP_ONE);
+        tokenizer.put(0x00000000002320E3L, KEYCAP_HASH);
+        tokenizer.put(0x0000000000002764L, HEART);
+        tokenizer.put(0x00000000D83DDC4DL, THUMBS_UP);
+        tokenizer.putSingleChar((char) 0x2764);
+    }
+
+    private ArrayList<String> tokenize(CharSequence text, int start, int end, final int limit) {
+        final ArrayList<String> tokens = new ArrayList<>();
+        tokenizer.tokenize(text, start, end, new EmojiTokenizer.Callback() {
+            @Override
+            public boolean emojiFound(int value, int start, int end) {
+                tokens.add(value + "@" + start + "-" + end);
+                return tokens.size() < limit;
+            }
+        });
+        return tokens;
+    }
+
+    private ArrayList<String> tokenize(CharSequence text) {
+        return tokenize(text, 0, text.length(), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void findsPackedCodes() {
+        assertEquals(FLAG_US, tokenizer.find(0xD83CDDFAD83CDDF8L));
+        assertEquals(-1, tokenizer.find(0xD83CDDFAD83CDDFAL));
+        assertEquals(-1, tokenizer.find(0x1234L));
+    }
+
+    @Test
+    public void surrogatePairsAndSingleChars() {
+        assertEquals(Arrays.asList(SMILE + "@1-3", HEART + "@4-5"), tokenize("a😄 ❤b"));
+    }
+
+    @Test
+    public void flagsTakeBothRegionalIndicators() {
+        assertEquals(Arrays.asList(FLAG_US + "@0-4", SMILE + "@4-6"), tokenize("🇺🇸😄"));
+        assertEquals(new ArrayList<String>(), tokenize("🇺🇺"));
+    }
+
+    @Test
+    public void keycapsNeedTheCombiningMark() {
+        assertEquals(Arrays.asList(KEYCAP_ONE + "@2-4", KEYCAP_HASH + "@5-7"), tokenize("121⃣x#⃣#"));
+        assertEquals(new ArrayList<String>(), tokenize("2⃣ 123"));
+    }
+
+    @Test
+    public void skinToneIsPartOfTheToken() {
+        assertEquals(Arrays.asList(THUMBS_UP + "@0-4", THUMBS_UP + "@4-6"), tokenize("👍🏽👍"));
+    }
+
+    @Test
+    public void straySurrogatesAreSkipped() {
+        assertEquals(Arrays.asList(SMILE + "@2-4"), tokenize("\uDE04\uD83D😄\uD83D"));
+        assertEquals(new ArrayList<String>(), tokenize("\uD83C"));
+    }
+
+    @Test
+    public void scanStopsWhenCallbackSaysSo() {
+        assertEquals(2, tokenize("❤❤❤❤", 0, 4, 2).size());
+    }
+
+    @Test
+    public void tokenMayEndPastTheScanRange() {
+        assertEquals(Arrays.asList(FLAG_US + "@1-5"), tokenize("x🇺🇸x", 0, 2, Integer.MAX_VALUE));
+    }
+
+    private static final char[] EMOJI_CHARS = {
+            0x00A9, 0x00AE, 0x203C, 0x2049, 0x2122, 0x2139, 0x2194, 0x2195, 0x2196, 0x2197,
+            0x2198, 0x2199, 0x21A9, 0x21AA, 0x231A, 0x231B, 0x23E9, 0x23EA, 0x23EB, 0x23EC,
+            0x23F0, 0x23F3, 0x24C2, 0x25AA, 0x25AB, 0x25B6, 0x25C0, 0x25FB, 0x25FC, 0x25FD,
+            0x25FE, 0x2600, 0x2601, 0x260E, 0x2611, 0x2614, 0x2615, 0x261D, 0x263A, 0x2648,
+            0x2649, 0x264A, 0x264B, 0x264C, 0x264D, 0x264E, 0x264F, 0x2650, 0x2651, 0x2652,
+            0x2653, 0x2660, 0x2663, 0x2665, 0x2666, 0x2668, 0x267B, 0x267F, 0x2693, 0x26A0,
+            0x26A1, 0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5, 0x26CE, 0x26D4, 0x26EA,
+            0x26F2, 0x26F3, 0x26F5, 0x26FA, 0x26FD, 0x2702, 0x2705, 0x2708, 0x2709, 0x270A,
+            0x270B, 0x270C, 0x270F, 0x2712, 0x2714, 0x2716, 0x2728, 0x2733, 0x2734, 0x2744,
+            0x2747, 0x274C, 0x274E, 0x2753, 0x2754, 0x2755, 0x2757, 0x2764, 0x2795, 0x2796,
+            0x2797, 0x27A1, 0x27B0, 0x27BF, 0x2934, 0x2935, 0x2B05, 0x2B06, 0x2B07, 0x2B1B,
+            0x2B1C, 0x2B50, 0x2B55, 0x3030, 0x303D, 0x3297, 0x3299
+    };
+
+    private static final int MAX_EMOJI_COUNT = 50;
+
+    /**
+     * The scanner replaceEmoji used before the tokenizer: a shift buffer of UTF-16 units,
+     * boxed HashMap lookups and a linear search of the single char emoji.
+     */
+    private static class OldScanner {
+        final HashMap<Long, Integer> codes;
+        int lookups;
+        int comparisons;
+
+        OldScanner(HashMap<Long, Integer> codes) {
+            this.codes = codes;
+        }
+
+        private Integer get(long code) {
+            lookups++;
+            return codes.get(code);
+        }
+
+        private boolean inArray(char c) {
+            for (char cc : EMOJI_CHARS) {
+                comparisons++;
+                if (cc == c) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isNextCharIsColor(CharSequence cs, int i) {
+            if (i + 2 >= cs.length()) {
+                return false;
+            }
+            int value = cs.charAt(i + 1) << 16 | cs.charAt(i + 2);
+            return value == 0xd83cdffb || value == 0xd83cdffc || value == 0xd83cdffd || value == 0xd83cdffe || value == 0xd83cdfff;
+        }
+
+        ArrayList<String> scan(CharSequence cs) {
+            ArrayList<String> tokens = new ArrayList<>();
+            long buf = 0;
+            for (int i = 0; i < cs.length(); i++) {
+                char c = cs.charAt(i);
+                if (c == 0xD83C || c == 0xD83D || (buf != 0 && (buf & 0xFFFFFFFF00000000L) == 0 && (c >= 0xDDE6 && c <= 0xDDFA))) {
+                    buf <<= 16;
+                    buf |= c;
+                } else if (buf > 0 && (c & 0xF000) == 0xD000) {
+                    buf <<= 16;
+                    buf |= c;
+                    Integer value = get(buf);
+                    if (value != null) {
+                        boolean nextIsSkinTone = isNextCharIsColor(cs, i);
+                        int start = c >= 0xDDE6 && c <= 0xDDFA ? i - 3 : i - 1;
+                        tokens.add(value + "@" + start + "-" + (i + (nextIsSkinTone ? 3 : 1)));
+                        if (nextIsSkinTone) {
+                            i += 2;
+                        }
+                    }
+                    buf = 0;
+                } else if (c == 0x20E3) {
+                    if (i > 0) {
+                        char c2 = cs.charAt(i - 1);
+                        if ((c2 >= '0' && c2 <= '9') || c2 == '#') {
+                            Integer value = get(((long) c2 << 16) | c);
+                            if (value != null) {
+                                boolean nextIsSkinTone = isNextCharIsColor(cs, i);
+                                tokens.add(value + "@" + (i - 1) + "-" + (i + (nextIsSkinTone ? 3 : 1)));
+                                if (nextIsSkinTone) {
+                                    i += 2;
+                                }
+                            }
+                            buf = 0;
+                        }
+                    }
+                } else if (inArray(c)) {
+                    Integer value = get(c);
+                    if (value != null) {
+                        boolean nextIsSkinTone = isNextCharIsColor(cs, i);
+                        tokens.add(value + "@" + i + "-" + (i + (nextIsSkinTone ? 3 : 1)));
+                        if (nextIsSkinTone) {
+                            i += 2;
+                        }
+                    }
+                }
+                if (tokens.size() >= MAX_EMOJI_COUNT) {
+                    break;
+                }
+            }
+            return tokens;
+        }
+    }
+
+    private static class CountingTokenizer extends EmojiTokenizer {
+        int lookups;
+
+        CountingTokenizer(int count) {
+            super(count);
+        }
+
+        @Override
+        public int find(long code) {
+            lookups++;
+            return super.find(code);
+        }
+    }
+
+    private static void appendCode(StringBuilder builder, long code) {
+        int length = code > 0xFFFFFFFFL ? 4 : code > 0xFFFFL ? 2 : 1;
+        for (int a = length - 1; a >= 0; a--) {
+            builder.append((char) (code >>> (a * 16)));
+        }
+    }
+
+    /**
+     * Chat-like messages: latin and cyrillic words, punctuation and digits mixed with every
+     * kind of emoji the sprite sheet has, skin tones and pairs that are not in the table.
+     * Stray surrogates and lone regional indicators are left out, the old scanner lost
+     * track on them and the tokenizer is meant to differ there.
+     */
+    private static ArrayList<String> createCorpus(ArrayList<Long> emoji, int count) {
+        String[] words = new String[] {"hello", "ok", "see you at 10", "Привет", "как дела", "lol", "#tag", "1st", "+7 999", "(c)", "@user", "yes!!!"};
+        ArrayList<String> corpus = new ArrayList<>();
+        Random random = new Random(25);
+        for (int a = 0; a < count; a++) {
+            StringBuilder builder = new StringBuilder();
+            int parts = 1 + random.nextInt(a % 50 == 0 ? 300 : 20);
+            for (int b = 0; b < parts; b++) {
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    builder.append(words[random.nextInt(words.length)]);
+                } else if (kind < 8) {
+                    appendCode(builder, emoji.get(random.nextInt(emoji.size())));
+                    if (random.nextInt(5) == 0) {
+                        builder.append("\uD83C").append((char) (0xDFFB + random.nextInt(5)));
+                    }
+                } else if (kind == 8) {
+                    builder.append("\uD83D").append((char) (0xDE80 + random.nextInt(64)));
+                } else {
+                    builder.append((char) ('0' + random.nextInt(10)));
+                }
+                if (random.nextBoolean()) {
+                    builder.append(' ');
+                }
+            }
+            corpus.add(builder.toString());
+        }
+        return corpus;
+    }
+
+    @Test
+    public void corpusMatchesTheOldScanner() {
+        ArrayList<Long> emoji = new ArrayList<>();
+        for (char c : EMOJI_CHARS) {
+            emoji.add((long) c);
+        }
+        for (int a = 0; a < 80; a++) {
+            emoji.add(0xD83DDE00L + a);
+            emoji.add(0xD83CDF00L + a);
+        }
+        for (int a = 0; a < 10; a++) {
+            emoji.add(((long) ('0' + a) << 16) | 0x20E3);
+        }
+        emoji.add(0x2320E3L);
+        emoji.add(0xD83CDDFAD83CDDF8L);
+        emoji.add(0xD83CDDE9D83CDDEAL);
+        emoji.add(0xD83CDDF7D83CDDFAL);
+
+        HashMap<Long, Integer> codes = new HashMap<>();
+        CountingTokenizer counting = new CountingTokenizer(emoji.size());
+        for (int a = 0; a < emoji.size(); a++) {
+            codes.put(emoji.get(a), a);
+            counting.put(emoji.get(a), a);
+        }
+        for (char c : EMOJI_CHARS) {
+            counting.putSingleChar(c);
+        }
+        tokenizer = counting;
+        OldScanner oldScanner = new OldScanner(codes);
+
+        int characters = 0;
+        int tokens = 0;
+        int cappedMessages = 0;
+        for (String message : createCorpus(emoji, 3000)) {
+            ArrayList<String> expected = oldScanner.scan(message);
+            assertEquals(message, expected, tokenize(message, 0, message.length(), MAX_EMOJI_COUNT));
+            characters += message.length();
+            tokens += expected.size();
+            if (expected.size() == MAX_EMOJI_COUNT) {
+                cappedMessages++;
+            }
+        }
+        assertTrue("found " + tokens + " emoji", tokens > 10000);
+        assertTrue("no message reached the cap", cappedMessages > 0);
+
+        // the tokenizer looks up only what the old scanner looked up as well, and does
+        // without the linear search the old one ran for almost every character
+        assertTrue("tokenizer " + counting.lookups + ", old scanner " + oldScanner.lookups, counting.lookups <= oldScanner.lookups);
+        assertTrue("old scanner compared " + oldScanner.comparisons + " for " + characters + " chars", oldScanner.comparisons > characters * 50);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android;
+
+import android.graphics.drawable.BitmapDrawable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.telegramsecureplus.messenger.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class LruCacheTest {
+
+    private static class RecordingCache extends LruCache {
+        ArrayList<String> evicted = new ArrayList<>();
+        boolean removedUnderLock;
+
+        RecordingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+            if (Thread.holdsLock(this)) {
+                removedUnderLock = true;
+            }
+            if (evicted) {
+                this.evicted.add(key);
+            }
+        }
+    }
+
+    @Test
+    public void frequentEntriesSurviveAScan() {
+        RecordingCache cache = new RecordingCache(10);
+        for (int a = 0; a < 8; a++) {
+            cache.put("hot" + a, new BitmapDrawable());
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int a = 0; a < 8; a++) {
+                assertNotNull(cache.get("hot" + a));
+            }
+        }
+        for (int a = 0; a < 100; a++) {
+            cache.put("scan" + a, new BitmapDrawable());
+        }
+        for (int a = 0; a < 8; a++) {
+            assertTrue("hot" + a, cache.contains("hot" + a));
+        }
+        assertEquals(10, cache.size());
+        assertFalse(cache.evicted.contains("hot0"));
+    }
+
+    @Test
+    public void newEntryIsNotEvictedByItsOwnPut() {
+        RecordingCache cache = new RecordingCache(5);
+        for (int a = 0; a < 20; a++) {
+            cache.put("key" + a, new BitmapDrawable());
+            assertTrue(cache.contains("key" + a));
+            assertTrue(cache.size() <= 5);
+        }
+    }
+
+    @Test
+    public void entryRemovedIsCalledWithoutTheLock() {
+        RecordingCache cache = new RecordingCache(4);
+        for (int a = 0; a < 50; a++) {
+            cache.put("key" + a, new BitmapDrawable());
+            cache.get("key" + (a / 2));
+        }
+        cache.remove("key49");
+        cache.evictAll();
+        assertFalse(cache.evicted.isEmpty());
+        assertFalse(cache.removedUnderLock);
+        assertEquals(0, cache.size());
+        assertNull(cache.get("key48"));
+    }
+
+    private static int sizeOfKey(String key) {
+        if (key.startsWith("photo")) {
+            return 6;
+        } else if (key.startsWith("thumb")) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static class SizedCache extends LruCache {
+        SizedCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, BitmapDrawable value) {
+            return sizeOfKey(key);
+        }
+    }
+
+    /**
+     * The cache before the segments: one access ordered map, the eldest entry goes first.
+     */
+    private static class PlainLruCache {
+        private final LinkedHashMap<String, Integer> map = new LinkedHashMap<>(0, 0.75f, true);
+        private final int maxSize;
+        private int size;
+
+        PlainLruCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        boolean get(String key) {
+            return map.get(key) != null;
+        }
+
+        void put(String key) {
+            int valueSize = sizeOfKey(key);
+            map.put(key, valueSize);
+            size += valueSize;
+            Iterator<Map.Entry<String, Integer>> iterator = map.entrySet().iterator();
+            while (size > maxSize) {
+                Map.Entry<String, Integer> entry = iterator.next();
+                if (entry.getKey().equals(key)) {
+                    break;
+                }
+                size -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Replays the trace the way ImageLoader uses the cache, a miss is followed by a put of the
+     * decoded image. Returns the hit ratios of the segmented and the plain LRU cache.
+     */
+    private static float[] replay(ArrayList<String> trace, int maxSize) {
+        SizedCache cache = new SizedCache(maxSize);
+        PlainLruCache plain = new PlainLruCache(maxSize);
+        BitmapDrawable drawable = new BitmapDrawable();
+        int hits = 0;
+        int plainHits = 0;
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, drawable);
+            }
+            if (plain.get(key)) {
+                plainHits++;
+            } else {
+                plain.put(key);
+            }
+            assertTrue(cache.size() <= maxSize);
+        }
+        return new float[] {(float) hits / trace.size(), (float) plainHits / trace.size()};
+    }
+
+    /**
+     * Scrolling chats: avatars and thumbs with skewed popularity, now and then a pass through
+     * a gallery whose photos are larger and never come back.
+     */
+    private static ArrayList<String> chatTrace(long seed) {
+        Random random = new Random(seed);
+        double[] popularity = new double[300];
+        double total = 0;
+        for (int a = 0; a < popularity.length; a++) {
+            total += 1.0 / Math.pow(a + 1, 0.9);
+            popularity[a] = total;
+        }
+        ArrayList<String> trace = new ArrayList<>();
+        int photo = 0;
+        for (int round = 0; round < 40; round++) {
+            for (int a = 0; a < 1000; a++) {
+                int index = Arrays.binarySearch(popularity, random.nextDouble() * total);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                trace.add((index % 3 == 0 ? "thumb" : "avatar") + index);
+            }
+            int scan = 30 + random.nextInt(60);
+            for (int a = 0; a < scan; a++) {
+                trace.add("photo" + photo++);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Pure recency: the working set fits into the cache but keeps moving on, half of it is
+     * replaced by new keys in every phase.
+     */
+    private static ArrayList<String> shiftingTrace(long seed) {
+        Random random = new Random(seed);
+        ArrayList<String> trace = new ArrayList<>();
+        for (int phase = 0; phase < 20; phase++) {
+            for (int a = 0; a < 3000; a++) {
+                trace.add("avatar" + (phase * 40 + random.nextInt(80)));
+            }
+        }
+        return trace;
+    }
+
+    @Test
+    public void replayBeatsPlainLruOnGalleryScans() {
+        for (int maxSize : new int[] {100, 200, 400}) {
+            float[] ratios = replay(chatTrace(maxSize), maxSize);
+            assertTrue("size " + maxSize + ": " + ratios[0] + " vs lru " + ratios[1], ratios[0] > ratios[1] + 0.05f);
+        }
+    }
+
+    @Test
+    public void replayKeepsUpWithPlainLruOnAMovingWorkingSet() {
+        for (int maxSize : new int[] {100, 200}) {
+            float[] ratios = replay(shiftingTrace(maxSize), maxSize);
+            assertTrue("size " + maxSize + ": " + ratios[0] + " vs lru " + ratios[1], ratios[0] > ratios[1] - 0.05f);
+        }
+    }
+}
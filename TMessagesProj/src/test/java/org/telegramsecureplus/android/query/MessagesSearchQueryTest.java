@@ -0,0 +1,244 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android.query;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.telegramsecureplus.messenger.BuildConfig;
+import org.telegramsecureplus.messenger.SerializedData;
+import org.telegramsecureplus.messenger.TLRPC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessagesSearchQueryTest {
+
+    private static final long DIALOG_ID = 5L << 32;
+
+    private SQLiteDatabase database;
+
+    @Before
+    public void setUp() {
+        database = SQLiteDatabase.create(null);
+        database.execSQL("CREATE TABLE messages(mid INTEGER PRIMARY KEY, uid INTEGER, read_state INTEGER, send_state INTEGER, date INTEGER, data BLOB, out INTEGER, ttl INTEGER, media INTEGER, replydata BLOB)");
+        database.execSQL("CREATE INDEX uid_date_mid_idx_messages ON messages(uid, date, mid)");
+        database.execSQL("CREATE TABLE messages_search(token TEXT, uid INTEGER, mid INTEGER)");
+        database.execSQL("CREATE INDEX token_uid_idx_messages_search ON messages_search(token, uid)");
+        database.execSQL("CREATE INDEX mid_idx_messages_search ON messages_search(mid)");
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    private static TLRPC.Message createMessage(int id, int date, String text, String caption) {
+        TLRPC.TL_message_secret message = new TLRPC.TL_message_secret();
+        message.id = id;
+        message.date = date;
+        message.from_id = 1;
+        message.to_id = new TLRPC.TL_peerUser();
+        message.to_id.user_id = 2;
+        message.message = text;
+        if (caption != null) {
+            message.media = new TLRPC.TL_messageMediaPhoto();
+            message.media.photo = new TLRPC.TL_photoEmpty();
+            message.media.caption = caption;
+        } else {
+            message.media = new TLRPC.TL_messageMediaEmpty();
+        }
+        message.attachPath = "";
+        return message;
+    }
+
+    /**
+     * Stores the message and its words the way putMessagesQueries does, extra tokens stand in
+     * for the transliterations LocaleController would add.
+     */
+    private void insert(long uid, TLRPC.Message message, String... extraTokens) {
+        SerializedData data = new SerializedData();
+        message.serializeToStream(data);
+        SQLiteStatement statement = database.compileStatement("INSERT INTO messages(mid, uid, read_state, send_state, date, data, out, ttl, media) VALUES(?, ?, 0, 0, ?, ?, 0, 0, 0)");
+        statement.bindLong(1, message.id);
+        statement.bindLong(2, uid);
+        statement.bindLong(3, message.date);
+        statement.bindBlob(4, data.toByteArray());
+        statement.executeInsert();
+        statement.close();
+
+        ArrayList<String> tokens = new ArrayList<>();
+        MessagesSearchQuery.addSearchWords(message.message, tokens);
+        MessagesSearchQuery.addSearchWords(message.media.caption, tokens);
+        tokens.addAll(Arrays.asList(extraTokens));
+        statement = database.compileStatement("INSERT INTO messages_search VALUES(?, ?, ?)");
+        for (String token : tokens) {
+            statement.bindString(1, token);
+            statement.bindLong(2, uid);
+            statement.bindLong(3, message.id);
+            statement.executeInsert();
+        }
+        statement.close();
+    }
+
+    private static ArrayList<String[]> getTerms(String query) {
+        ArrayList<String> words = new ArrayList<>();
+        MessagesSearchQuery.addSearchWords(query, words);
+        ArrayList<String[]> terms = new ArrayList<>();
+        for (String word : words) {
+            terms.add(new String[]{word});
+        }
+        return terms;
+    }
+
+    private Cursor query(ArrayList<String[]> terms, int maxDate, int maxId, String prefix) {
+        Object[] args = MessagesSearchQuery.getLocalSearchArgs(terms);
+        return database.rawQuery(prefix + MessagesSearchQuery.getLocalSearchSql(DIALOG_ID, terms, maxDate, maxId), Arrays.copyOf(args, args.length, String[].class));
+    }
+
+    /**
+     * Returns mid and date of every row of one page, the query itself limits it to 21.
+     */
+    private ArrayList<int[]> search(ArrayList<String[]> terms, int maxDate, int maxId) {
+        ArrayList<int[]> result = new ArrayList<>();
+        Cursor cursor = query(terms, maxDate, maxId, "");
+        while (cursor.moveToNext()) {
+            SerializedData data = new SerializedData(cursor.getBlob(1));
+            assertTrue(TLRPC.Message.TLdeserialize(data, data.readInt32(false), false) != null);
+            result.add(new int[]{cursor.getInt(3), cursor.getInt(4)});
+        }
+        cursor.close();
+        return result;
+    }
+
+    private ArrayList<Integer> searchIds(String query) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int[] row : search(getTerms(query), 0, 0)) {
+            ids.add(row[0]);
+        }
+        return ids;
+    }
+
+    @Test
+    public void splitsLowercasedWords() {
+        ArrayList<String> words = new ArrayList<>();
+        MessagesSearchQuery.addSearchWords("Say HELLO, hello-world at 9am! Привет", words);
+        assertEquals(Arrays.asList("say", "hello", "world", "at", "9am", "привет"), words);
+
+        words.clear();
+        MessagesSearchQuery.addSearchWords(null, words);
+        MessagesSearchQuery.addSearchWords(" ... ", words);
+        assertTrue(words.isEmpty());
+
+        assertEquals("abd", MessagesSearchQuery.getPrefixEnd("abc"));
+        assertEquals("прия", MessagesSearchQuery.getPrefixEnd("прию"));
+    }
+
+    @Test
+    public void matchesEveryWordByPrefix() {
+        insert(DIALOG_ID, createMessage(-1, 10, "Meet at the station", null));
+        insert(DIALOG_ID, createMessage(-2, 11, "", "the STATUE, from the photo"));
+        insert(DIALOG_ID, createMessage(-3, 12, "meeting moved", null));
+        insert(DIALOG_ID, createMessage(-4, 13, "a stb box", null));
+        insert(DIALOG_ID, createMessage(-5, 14, null, null));
+        insert(DIALOG_ID + 1, createMessage(-6, 15, "station elsewhere", null));
+
+        assertEquals(Arrays.asList(-2, -1), searchIds("stat"));
+        assertEquals(Arrays.asList(-1), searchIds("station"));
+        assertEquals(Arrays.asList(-3, -1), searchIds("MEET"));
+        assertEquals(Arrays.asList(-1), searchIds("meet stat"));
+        assertEquals(Arrays.asList(-2), searchIds("photo the"));
+        assertTrue(searchIds("stations").isEmpty());
+        assertTrue(searchIds("tion").isEmpty());
+    }
+
+    @Test
+    public void transliterationIsAnAlternative() {
+        insert(DIALOG_ID, createMessage(-1, 10, "привет всем", null), "privet", "vsem");
+        insert(DIALOG_ID, createMessage(-2, 11, "privet", null));
+        insert(DIALOG_ID, createMessage(-3, 12, "привет", null));
+
+        ArrayList<String[]> terms = new ArrayList<>();
+        terms.add(new String[]{"прив", "priv"});
+        ArrayList<int[]> rows = search(terms, 0, 0);
+        assertEquals(3, rows.size());
+
+        terms.add(new String[]{"vse"});
+        rows = search(terms, 0, 0);
+        assertEquals(1, rows.size());
+        assertEquals(-1, rows.get(0)[0]);
+    }
+
+    @Test
+    public void searchUsesTheTokenIndex() {
+        Cursor cursor = query(getTerms("meet stat"), 100, -5, "EXPLAIN QUERY PLAN ");
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+        }
+        cursor.close();
+        assertTrue(plan.toString(), plan.indexOf("token_uid_idx_messages_search") != -1);
+    }
+
+    @Test
+    public void pagesContinueAfterTheLastResult() {
+        int total = 500;
+        for (int a = 0; a < total; a++) {
+            insert(DIALOG_ID, createMessage(-(a + 1), 1000000 + a / 3, a % 4 != 1 ? "meet at the Station " + a : "unrelated " + a, null));
+        }
+        // newest date first, three messages share each date and the higher mid comes first
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int group = (total - 1) / 3; group >= 0; group--) {
+            for (int a = group * 3; a < Math.min(group * 3 + 3, total); a++) {
+                if (a % 4 != 1) {
+                    expected.add(-(a + 1));
+                }
+            }
+        }
+        for (int a = 0; a < 50; a++) {
+            insert(DIALOG_ID + 1, createMessage(-(total + a + 1), 1000000 + a, "station elsewhere", null));
+        }
+
+        // searchMessagesInChat shows 20 results of a page and asks for the next one after the
+        // 20th when the 21st exists
+        ArrayList<String[]> terms = getTerms("station");
+        ArrayList<Integer> found = new ArrayList<>();
+        int maxDate = 0;
+        int maxId = 0;
+        int pages = 0;
+        while (true) {
+            ArrayList<int[]> page = search(terms, maxDate, maxId);
+            pages++;
+            assertTrue(page.size() <= 21);
+            for (int a = 0; a < Math.min(page.size(), 20); a++) {
+                found.add(page.get(a)[0]);
+            }
+            if (page.size() != 21) {
+                break;
+            }
+            maxId = page.get(19)[0];
+            maxDate = page.get(19)[1];
+        }
+
+        assertEquals(expected, found);
+        assertTrue(pages > 10);
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.android.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.telegramsecureplus.messenger.BuildConfig;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MP4BuilderTest {
+
+    private static final int SAMPLE_PADDING = 8;
+
+    private File file;
+
+    private static class InputTrack {
+        final boolean isAudio;
+        final int timeScale;
+        final long lastDuration;
+        final ArrayList<byte[]> payloads = new ArrayList<>();
+        final ArrayList<Long> presentationTimes = new ArrayList<>();
+        final ArrayList<Long> syncSamples = new ArrayList<>();
+
+        InputTrack(boolean isAudio, int timeScale, long lastDuration) {
+            this.isAudio = isAudio;
+            this.timeScale = timeScale;
+            this.lastDuration = lastDuration;
+        }
+
+        byte[] expectedBytes(int index) {
+            byte[] payload = payloads.get(index);
+            if (isAudio) {
+                return payload;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(payload.length);
+            buffer.putInt(payload.length - 4);
+            buffer.put(payload, 4, payload.length - 4);
+            return buffer.array();
+        }
+
+        long[] expectedSizes() {
+            long[] sizes = new long[payloads.size()];
+            for (int a = 0; a < sizes.length; a++) {
+                sizes[a] = payloads.get(a).length;
+            }
+            return sizes;
+        }
+
+        long[] expectedDurations() {
+            long[] durations = new long[presentationTimes.size()];
+            for (int a = 1; a < durations.length; a++) {
+                long delta = presentationTimes.get(a) - presentationTimes.get(a - 1);
+                durations[a - 1] = (delta * timeScale + 500000L) / 1000000L;
+            }
+            durations[durations.length - 1] = lastDuration;
+            return durations;
+        }
+    }
+
+    private static class Mdat {
+        long start;
+        long size;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("mp4builder", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static boolean writeSample(MP4Builder builder, int trackIndex, InputTrack track, byte[] payload, long presentationTimeUs, boolean sync) throws Exception {
+        track.payloads.add(payload);
+        track.presentationTimes.add(presentationTimeUs);
+        if (sync) {
+            track.syncSamples.add((long) track.payloads.size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(payload.length + SAMPLE_PADDING * 2);
+        buffer.position(SAMPLE_PADDING);
+        buffer.put(payload);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(SAMPLE_PADDING, payload.length, presentationTimeUs, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        return builder.writeSampleData(trackIndex, buffer, info, track.isAudio);
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ArrayList<Mdat> readMdats(byte[] data) {
+        ArrayList<Mdat> result = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = 0;
+        while (position < data.length) {
+            long size = buffer.getInt((int) position) & 0xffffffffL;
+            String type = new String(data, (int) position + 4, 4);
+            if (size == 1) {
+                size = buffer.getLong((int) position + 8);
+            }
+            assertTrue("bad box size at " + position, size >= 8);
+            if (type.equals("mdat")) {
+                Mdat mdat = new Mdat();
+                mdat.start = position;
+                mdat.size = size;
+                result.add(mdat);
+            }
+            position += size;
+        }
+        assertEquals(data.length, position);
+        return result;
+    }
+
+    private static long[] sampleOffsets(SampleTableBox stbl, long[] sizes) {
+        long[] chunkOffsets = stbl.getChunkOffsetBox().getChunkOffsets();
+        List<SampleToChunkBox.Entry> entries = stbl.getSampleToChunkBox().getEntries();
+        long[] offsets = new long[sizes.length];
+        int sample = 0;
+        int entry = 0;
+        for (int chunk = 1; chunk <= chunkOffsets.length; chunk++) {
+            if (entry + 1 < entries.size() && entries.get(entry + 1).getFirstChunk() == chunk) {
+                entry++;
+            }
+            long offset = chunkOffsets[chunk - 1];
+            for (long a = 0; a < entries.get(entry).getSamplesPerChunk(); a++) {
+                offsets[sample] = offset;
+                offset += sizes[sample];
+                sample++;
+            }
+        }
+        assertEquals(sizes.length, sample);
+        return offsets;
+    }
+
+    private static long[] expandStts(TimeToSampleBox stts) {
+        ArrayList<Long> durations = new ArrayList<>();
+        for (TimeToSampleBox.Entry entry : stts.getEntries()) {
+            for (long a = 0; a < entry.getCount(); a++) {
+                durations.add(entry.getDelta());
+            }
+        }
+        long[] result = new long[durations.size()];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = durations.get(a);
+        }
+        return result;
+    }
+
+    private static long[] toArray(ArrayList<Long> values) {
+        long[] result = new long[values.size()];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = values.get(a);
+        }
+        return result;
+    }
+
+    @Test
+    public void syntheticStreamRoundTrips() throws Exception {
+        Mp4Movie movie = new Mp4Movie();
+        movie.setCacheFile(file);
+        movie.setSize(320, 240);
+        MP4Builder builder = new MP4Builder().createMovie(movie);
+        int videoIndex = builder.addTrack(MediaFormat.createVideoFormat("video/avc", 320, 240), false);
+        int audioIndex = builder.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 2), true);
+        InputTrack video = new InputTrack(false, 90000, 3015);
+        InputTrack audio = new InputTrack(true, 44100, 1024);
+
+        Random random = new Random(20);
+        ArrayList<Long> flushedLengths = new ArrayList<>();
+        long audioTime = 0;
+        boolean lastFlushed = false;
+        for (int a = 0; a < 150; a++) {
+            long videoTime = a * 33333L + random.nextInt(100);
+            int size;
+            if (a == 60) {
+                size = 300000;
+            } else if (a % 30 == 0) {
+                size = 20000 + random.nextInt(20000);
+            } else {
+                size = 500 + random.nextInt(6000);
+            }
+            lastFlushed = writeSample(builder, videoIndex, video, randomBytes(random, size), videoTime, a % 30 == 0);
+            if (lastFlushed) {
+                flushedLengths.add(file.length());
+            }
+            while (audioTime <= videoTime) {
+                lastFlushed = writeSample(builder, audioIndex, audio, randomBytes(random, 150 + random.nextInt(300)), audioTime, false);
+                if (lastFlushed) {
+                    flushedLengths.add(file.length());
+                }
+                audioTime += 23220;
+            }
+        }
+        builder.finishMovie(false);
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) input.length()];
+        input.readFully(data);
+        input.close();
+
+        ArrayList<Mdat> mdats = readMdats(data);
+        assertEquals(flushedLengths.size() + (lastFlushed ? 0 : 1), mdats.size());
+        for (int a = 0; a < flushedLengths.size(); a++) {
+            Mdat mdat = mdats.get(a);
+            assertEquals(mdat.start + mdat.size, (long) flushedLengths.get(a));
+        }
+        long[] mdatContent = new long[mdats.size()];
+
+        IsoFile isoFile = new IsoFile(new FileDataSourceImpl(file));
+        List<TrackBox> trackBoxes = isoFile.getMovieBox().getBoxes(TrackBox.class);
+        assertEquals(2, trackBoxes.size());
+        InputTrack[] inputs = new InputTrack[] {video, audio};
+        for (int t = 0; t < inputs.length; t++) {
+            InputTrack track = inputs[t];
+            TrackBox trackBox = trackBoxes.get(t);
+            assertEquals(t + 1, trackBox.getTrackHeaderBox().getTrackId());
+            SampleTableBox stbl = trackBox.getSampleTableBox();
+
+            long[] sizes = stbl.getSampleSizeBox().getSampleSizes();
+            assertArrayEquals(track.expectedSizes(), sizes);
+            assertArrayEquals(track.expectedDurations(), expandStts(stbl.getTimeToSampleBox()));
+            if (track.isAudio) {
+                assertNull(stbl.getSyncSampleBox());
+            } else {
+                assertArrayEquals(toArray(track.syncSamples), stbl.getSyncSampleBox().getSampleNumber());
+            }
+
+            long[] offsets = sampleOffsets(stbl, sizes);
+            for (int a = 0; a < offsets.length; a++) {
+                byte[] expected = track.expectedBytes(a);
+                byte[] actual = new byte[expected.length];
+                System.arraycopy(data, (int) offsets[a], actual, 0, actual.length);
+                assertArrayEquals("sample " + a + " of track " + t, expected, actual);
+
+                boolean found = false;
+                for (int m = 0; m < mdats.size(); m++) {
+                    Mdat mdat = mdats.get(m);
+                    if (offsets[a] >= mdat.start + 16 && offsets[a] + sizes[a] <= mdat.start + mdat.size) {
+                        mdatContent[m] += sizes[a];
+                        found = true;
+                        break;
+                    }
+                }
+                assertTrue("sample " + a + " of track " + t + " is outside every mdat", found);
+            }
+        }
+        isoFile.close();
+
+        for (int m = 0; m < mdats.size(); m++) {
+            assertEquals("mdat " + m, mdats.get(m).size, 16 + mdatContent[m]);
+        }
+    }
+}
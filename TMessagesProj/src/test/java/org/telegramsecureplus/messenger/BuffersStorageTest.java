@@ -0,0 +1,73 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class BuffersStorageTest {
+
+    private static void runOnQueue(final Runnable runnable) throws Exception {
+        final Throwable[] error = new Throwable[1];
+        DispatchQueue queue = new DispatchQueue("buffersTest") {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        queue.join();
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+    }
+
+    @Test
+    public void magazineBuffersCountAsRetained() throws Exception {
+        final BuffersStorage storage = new BuffersStorage("test");
+        final long initial = storage.getRetainedBytes();
+        runOnQueue(new Runnable() {
+            @Override
+            public void run() {
+                ByteBufferDesc first = storage.getFreeBuffer(1000);
+                ByteBufferDesc second = storage.getFreeBuffer(1000);
+                storage.reuseFreeBuffer(first);
+                storage.reuseFreeBuffer(second);
+                assertEquals(initial + 2 * (1024 + 200), storage.getRetainedBytes());
+                assertTrue(storage.getStatistics().contains("cached=2"));
+
+                assertSame(second, storage.getFreeBuffer(1000));
+                assertEquals(initial + (1024 + 200), storage.getRetainedBytes());
+            }
+        });
+    }
+
+    @Test
+    public void pooledBuffersCountAsRetained() {
+        BuffersStorage storage = new BuffersStorage("test");
+        long initial = storage.getRetainedBytes();
+        assertEquals(5 * 128, initial);
+        ByteBufferDesc buffer = storage.getFreeBuffer(5000);
+        storage.reuseFreeBuffer(buffer);
+        assertEquals(initial + 16384 + 200, storage.getRetainedBytes());
+        storage.getFreeBuffer(5000);
+        assertEquals(initial, storage.getRetainedBytes());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FileLogDecoderTest {
+
+    private static final long START_TIME = 1445000000000L;
+
+    private File file;
+    private SimpleDateFormat dateFormat;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("log", ".bin");
+        dateFormat = new SimpleDateFormat("dd_MM_yyyy_HH_mm_ss.SSS", Locale.US);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private DataOutputStream openLog(int magic, int version) throws IOException {
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(file));
+        stream.writeInt(magic);
+        stream.writeInt(version);
+        stream.writeLong(START_TIME);
+        return stream;
+    }
+
+    private static void writeTag(DataOutputStream stream, int id, String name) throws IOException {
+        byte[] bytes = name.getBytes("UTF-8");
+        stream.writeByte(FileLog.RECORD_TAG);
+        stream.writeShort(id);
+        stream.writeShort(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static void writeEntry(DataOutputStream stream, int level, int tagId, long time, long threadId, String text, long... values) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        stream.writeByte(FileLog.RECORD_ENTRY);
+        stream.writeByte(level);
+        stream.writeShort(tagId);
+        stream.writeLong(time);
+        stream.writeLong(threadId);
+        stream.writeByte(values.length);
+        for (long value : values) {
+            stream.writeLong(value);
+        }
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private String decode() throws IOException {
+        StringWriter writer = new StringWriter();
+        FileLogDecoder.decode(file, writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void decodesRecords() throws Exception {
+        DataOutputStream stream = openLog(FileLog.FILE_MAGIC, FileLog.FILE_VERSION);
+        writeTag(stream, 0, "tmessages");
+        writeEntry(stream, 0, 0, START_TIME + 5, 12, "load %d of %x", 3, 255);
+        writeEntry(stream, 2, 0, START_TIME + 10, 13, "сбой ✓");
+        stream.writeByte(FileLog.RECORD_DROPPED);
+        stream.writeLong(42);
+        writeEntry(stream, 1, 7, START_TIME + 20, 14, "no tag");
+        stream.writeByte(FileLog.RECORD_END);
+        writeEntry(stream, 0, 0, START_TIME + 30, 15, "after end");
+        stream.close();
+
+        String expected = "-----start log " + dateFormat.format(new Date(START_TIME)) + "-----\n"
+                + dateFormat.format(new Date(START_TIME + 5)) + " D/tmessages [12]: load 3 of ff\n"
+                + dateFormat.format(new Date(START_TIME + 10)) + " E/tmessages [13]: сбой ✓\n"
+                + "----- 42 records dropped -----\n"
+                + dateFormat.format(new Date(START_TIME + 20)) + " W/? [14]: no tag\n";
+        assertEquals(expected, decode());
+    }
+
+    @Test
+    public void stopsAtEndOfFile() throws Exception {
+        DataOutputStream stream = openLog(FileLog.FILE_MAGIC, FileLog.FILE_VERSION);
+        writeTag(stream, 1, "net");
+        writeEntry(stream, 0, 1, START_TIME, 1, "only");
+        stream.close();
+
+        assertEquals("-----start log " + dateFormat.format(new Date(START_TIME)) + "-----\n"
+                + dateFormat.format(new Date(START_TIME)) + " D/net [1]: only\n", decode());
+    }
+
+    @Test
+    public void rejectsForeignFiles() throws Exception {
+        openLog(0x12345678, FileLog.FILE_VERSION).close();
+        try {
+            decode();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        openLog(FileLog.FILE_MAGIC, FileLog.FILE_VERSION + 1).close();
+        try {
+            decode();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void formatsMessages() {
+        assertEquals("a 1 b 10", FileLogDecoder.formatMessage("a %d b %x", new long[]{1, 16}));
+        assertEquals("size -5", FileLogDecoder.formatMessage("size %d", new long[]{-5}));
+        assertEquals("keep %s 7", FileLogDecoder.formatMessage("keep %s %d", new long[]{7}));
+        assertEquals("extra 1 2 3", FileLogDecoder.formatMessage("extra %d", new long[]{1, 2, 3}));
+        assertEquals("left %d", FileLogDecoder.formatMessage("left %d", new long[0]));
+        assertEquals("end % 9", FileLogDecoder.formatMessage("end %", new long[]{9}));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+
+    private static class Recorder implements FrameDecoder.FrameDecoderDelegate {
+        ArrayList<Object> received = new ArrayList<>();
+
+        @Override
+        public void frameDecoderReceivedQuickAck(int ackId) {
+            received.add(ackId);
+        }
+
+        @Override
+        public void frameDecoderReceivedFrame(ByteBufferDesc frame, int length) {
+            byte[] bytes = new byte[length];
+            frame.readRaw(bytes, false);
+            received.add(Arrays.toString(bytes));
+            BuffersStorage.getInstance().reuseFreeBuffer(frame);
+        }
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int a = 0; a < length; a++) {
+            bytes[a] = (byte) (a * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static void writeFrame(ByteArrayOutputStream stream, byte[] body) {
+        int words = body.length / 4;
+        if (words < 0x7f) {
+            stream.write(words);
+        } else {
+            stream.write(0x7f);
+            stream.write(words & 0xff);
+            stream.write((words >> 8) & 0xff);
+            stream.write((words >> 16) & 0xff);
+        }
+        stream.write(body, 0, body.length);
+    }
+
+    private static void writeQuickAck(ByteArrayOutputStream stream, int ackId) {
+        ackId |= 1 << 31;
+        stream.write((ackId >> 24) & 0xff);
+        stream.write((ackId >> 16) & 0xff);
+        stream.write((ackId >> 8) & 0xff);
+        stream.write(ackId & 0xff);
+    }
+
+    private static byte[] stream() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeFrame(stream, body(4, 1));
+        writeQuickAck(stream, 0x1234567);
+        writeFrame(stream, body(0x7e * 4, 2));
+        writeFrame(stream, body(0x7f * 4, 3));
+        writeFrame(stream, body(1000, 4));
+        writeQuickAck(stream, 5);
+        return stream.toByteArray();
+    }
+
+    private static ArrayList<Object> decode(byte[] data, int[] splits) {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        int start = 0;
+        for (int a = 0; a <= splits.length; a++) {
+            int end = a < splits.length ? splits[a] : data.length;
+            assertTrue(decoder.decode(ByteBuffer.wrap(data, start, end - start).slice()));
+            start = end;
+        }
+        return recorder.received;
+    }
+
+    @Test
+    public void decodesWholeStream() {
+        ArrayList<Object> received = decode(stream(), new int[0]);
+        assertEquals(6, received.size());
+        assertEquals(0x1234567, received.get(1));
+        assertEquals(Arrays.toString(body(0x7f * 4, 3)), received.get(3));
+        assertEquals(5, received.get(5));
+    }
+
+    @Test
+    public void splitAtEveryBoundaryGivesSameFrames() {
+        byte[] data = stream();
+        ArrayList<Object> expected = decode(data, new int[0]);
+        for (int split = 0; split <= data.length; split++) {
+            assertEquals("split at " + split, expected, decode(data, new int[]{split}));
+        }
+    }
+
+    @Test
+    public void byteByByteGivesSameFrames() {
+        byte[] data = stream();
+        int[] splits = new int[data.length - 1];
+        for (int a = 0; a < splits.length; a++) {
+            splits[a] = a + 1;
+        }
+        assertEquals(decode(data, new int[0]), decode(data, splits));
+    }
+
+    @Test
+    public void rejectsOversizedFrame() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int words = FrameDecoder.MAX_FRAME_LENGTH / 4 + 1;
+        stream.write(0x7f);
+        stream.write(words & 0xff);
+        stream.write((words >> 8) & 0xff);
+        stream.write((words >> 16) & 0xff);
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        assertFalse(decoder.decode(ByteBuffer.wrap(stream.toByteArray())));
+        assertTrue(recorder.received.isEmpty());
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        byte[] data = stream();
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        decoder.decode(ByteBuffer.wrap(data, 0, 3).slice());
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(data));
+        assertArrayEquals(decode(data, new int[0]).toArray(), recorder.received.toArray());
+    }
+}
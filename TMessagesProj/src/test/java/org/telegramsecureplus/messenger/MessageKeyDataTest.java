@@ -0,0 +1,192 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MessageKeyDataTest {
+
+    private static byte[] sha1(byte[]... parts) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (byte[] part : parts) {
+            md.update(part);
+        }
+        return md.digest();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * The derivation as it was written before, one serialized buffer per digest.
+     */
+    private static byte[][] oldGenerate(byte[] authKey, byte[] messageKey, boolean incoming) throws Exception {
+        int x = incoming ? 8 : 0;
+
+        byte[] sha1_a = sha1(messageKey, Arrays.copyOfRange(authKey, x, x + 32));
+        byte[] sha1_b = sha1(Arrays.copyOfRange(authKey, 32 + x, 48 + x), messageKey, Arrays.copyOfRange(authKey, 48 + x, 64 + x));
+        byte[] sha1_c = sha1(Arrays.copyOfRange(authKey, 64 + x, 96 + x), messageKey);
+        byte[] sha1_d = sha1(messageKey, Arrays.copyOfRange(authKey, 96 + x, 128 + x));
+
+        byte[] aesKey = concat(Arrays.copyOfRange(sha1_a, 0, 8), Arrays.copyOfRange(sha1_b, 8, 20), Arrays.copyOfRange(sha1_c, 4, 16));
+        byte[] aesIv = concat(Arrays.copyOfRange(sha1_a, 8, 20), Arrays.copyOfRange(sha1_b, 0, 8), Arrays.copyOfRange(sha1_c, 16, 20), Arrays.copyOfRange(sha1_d, 0, 8));
+        return new byte[][]{aesKey, aesIv};
+    }
+
+    /**
+     * The old generateMessageKeyData line by line: a SerializedData per digest and per
+     * result array and a new MessageDigest for every hash.
+     */
+    private static byte[][] legacyGenerate(byte[] authKey, byte[] messageKey, boolean incoming) throws Exception {
+        int x = incoming ? 8 : 0;
+
+        SerializedData data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, x, 32);
+        byte[] sha1_a = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 32 + x, 16);
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 48 + x, 16);
+        byte[] sha1_b = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(authKey, 64 + x, 32);
+        data.writeRaw(messageKey);
+        byte[] sha1_c = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(messageKey);
+        data.writeRaw(authKey, 96 + x, 32);
+        byte[] sha1_d = MessageDigest.getInstance("SHA-1").digest(data.toByteArray());
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 0, 8);
+        data.writeRaw(sha1_b, 8, 12);
+        data.writeRaw(sha1_c, 4, 12);
+        byte[] aesKey = data.toByteArray();
+        data.cleanup();
+
+        data = new SerializedData();
+        data.writeRaw(sha1_a, 8, 12);
+        data.writeRaw(sha1_b, 0, 8);
+        data.writeRaw(sha1_c, 16, 4);
+        data.writeRaw(sha1_d, 0, 8);
+        byte[] aesIv = data.toByteArray();
+        data.cleanup();
+
+        return new byte[][]{aesKey, aesIv};
+    }
+
+    @Test
+    public void matchesOldDerivation() throws Exception {
+        Random random = new Random(42);
+        byte[] authKey = new byte[256];
+        byte[] messageKey = new byte[16];
+        MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+        for (int a = 0; a < 100; a++) {
+            random.nextBytes(authKey);
+            random.nextBytes(messageKey);
+            boolean incoming = (a & 1) != 0;
+
+            assertTrue(keyData.generate(authKey, messageKey, incoming));
+            byte[][] expected = oldGenerate(authKey, messageKey, incoming);
+            assertArrayEquals(expected[0], keyData.aesKey);
+            assertArrayEquals(expected[1], keyData.aesIv);
+        }
+    }
+
+    @Test
+    public void directionsDiffer() {
+        byte[] authKey = new byte[256];
+        byte[] messageKey = new byte[16];
+        new Random(7).nextBytes(authKey);
+        new Random(8).nextBytes(messageKey);
+
+        MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+        keyData.generate(authKey, messageKey, false);
+        byte[] outKey = keyData.aesKey.clone();
+        keyData.generate(authKey, messageKey, true);
+        assertFalse(Arrays.equals(outKey, keyData.aesKey));
+    }
+
+    @Test
+    public void rejectsMissingAuthKey() {
+        MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+        assertFalse(keyData.generate(null, new byte[16], false));
+        assertFalse(keyData.generate(new byte[0], new byte[16], false));
+        assertSame(keyData, MessageKeyData.getThreadKeyData());
+    }
+
+    @Test
+    public void allocatesLessThanTheOldDerivation() throws Exception {
+        assumeTrue(AllocationCounter.allocatedBytes() >= 0);
+        byte[] authKey = new byte[256];
+        byte[] messageKey = new byte[16];
+        new Random(9).nextBytes(authKey);
+        new Random(10).nextBytes(messageKey);
+        MessageKeyData keyData = MessageKeyData.getThreadKeyData();
+        final int runs = 1000;
+
+        for (int a = 0; a < 100; a++) {
+            byte[][] legacy = legacyGenerate(authKey, messageKey, (a & 1) != 0);
+            assertTrue(keyData.generate(authKey, messageKey, (a & 1) != 0));
+            assertArrayEquals(legacy[0], keyData.aesKey);
+            assertArrayEquals(legacy[1], keyData.aesIv);
+        }
+
+        long start = AllocationCounter.allocatedBytes();
+        for (int a = 0; a < runs; a++) {
+            legacyGenerate(authKey, messageKey, false);
+        }
+        long legacyBytes = AllocationCounter.allocatedBytes() - start;
+
+        start = AllocationCounter.allocatedBytes();
+        for (int a = 0; a < runs; a++) {
+            keyData.generate(authKey, messageKey, false);
+        }
+        long bytes = AllocationCounter.allocatedBytes() - start;
+
+        // six streams, six result arrays and four digests per packet before, the per-thread
+        // digest and arrays now
+        assertTrue("old derivation allocated " + legacyBytes, legacyBytes > (long) runs * 1000);
+        assertTrue("generate allocated " + bytes + ", old derivation " + legacyBytes, bytes * 20 < legacyBytes);
+    }
+}
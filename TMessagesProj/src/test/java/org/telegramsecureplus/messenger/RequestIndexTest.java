@@ -0,0 +1,179 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestIndexTest {
+
+    private static final int[] CLASSES = new int[] {RPCRequest.RPCRequestClassGeneric, RPCRequest.RPCRequestClassDownloadMedia, RPCRequest.RPCRequestClassUploadMedia};
+
+    private long nextMessageId = 0x5000000000000000L;
+
+    private long generateMessageId() {
+        nextMessageId += 4;
+        return nextMessageId;
+    }
+
+    private static RPCRequest createRequest(long token, int requestClass) {
+        RPCRequest request = new RPCRequest();
+        request.token = token;
+        request.flags = requestClass | RPCRequest.RPCRequestClassFailOnServerErrors;
+        return request;
+    }
+
+    /**
+     * Compares the index with what the requests themselves say: every known request is found
+     * by its token, every running one by its current and older message ids, and nothing else.
+     */
+    private static void checkConsistency(RequestIndex index, ArrayList<RPCRequest> requests, HashSet<RPCRequest> known) {
+        HashMap<Long, RPCRequest> messageIds = new HashMap<>();
+        int[] running = new int[CLASSES.length];
+        for (RPCRequest request : requests) {
+            if (known.contains(request)) {
+                assertSame(request, index.getRequest(request.token));
+            } else {
+                assertNull(index.getRequest(request.token));
+            }
+            if (!request.running) {
+                continue;
+            }
+            if (request.runningMessageId != 0) {
+                messageIds.put(request.runningMessageId, request);
+            }
+            for (long messageId : request.respondsToMessageIds) {
+                messageIds.put(messageId, request);
+            }
+            for (int a = 0; a < CLASSES.length; a++) {
+                if ((request.flags & CLASSES[a]) != 0) {
+                    running[a]++;
+                }
+            }
+        }
+        for (Map.Entry<Long, RPCRequest> entry : messageIds.entrySet()) {
+            assertSame(entry.getValue(), index.getRunningRequest(entry.getKey()));
+        }
+        for (int a = 0; a < CLASSES.length; a++) {
+            assertEquals(running[a], index.getRunningRequestsCount(CLASSES[a]));
+        }
+        assertEquals(known.size(), index.getRequestsCount());
+        assertEquals(messageIds.size(), index.getMessageIdsCount());
+        assertNull(index.getRunningRequest(0));
+    }
+
+    @Test
+    public void thousandsOfRequestsStayConsistent() {
+        RequestIndex index = new RequestIndex();
+        Random random = new Random(11);
+        ArrayList<RPCRequest> requests = new ArrayList<>();
+        HashSet<RPCRequest> known = new HashSet<>();
+        for (int a = 0; a < 5000; a++) {
+            RPCRequest request = createRequest(a + 1, CLASSES[random.nextInt(CLASSES.length)]);
+            requests.add(request);
+            index.putRequest(request);
+            known.add(request);
+        }
+        checkConsistency(index, requests, known);
+
+        for (int a = 0; a < 3000; a++) {
+            RPCRequest request = requests.get(a);
+            index.setRunningMessageId(request, generateMessageId());
+            index.addRunningRequest(request);
+        }
+        checkConsistency(index, requests, known);
+
+        for (int round = 0; round < 20000; round++) {
+            RPCRequest request = requests.get(random.nextInt(requests.size()));
+            int action = random.nextInt(6);
+            if (action == 0 && request.running) {
+                // resent on a new connection, answers for the old id are dropped
+                index.setRunningMessageId(request, 0);
+                index.setRunningMessageId(request, generateMessageId());
+            } else if (action == 1 && request.running && request.runningMessageId != 0) {
+                // future salts and destroy session still accept answers to the old id
+                request.addRespondMessageId(request.runningMessageId);
+                index.setRunningMessageId(request, 0);
+                index.setRunningMessageId(request, generateMessageId());
+            } else if (action == 2 && known.contains(request)) {
+                index.cancelRequest(request);
+                known.remove(request);
+                assertTrue(request.cancelled);
+                assertFalse(request.running);
+            } else if (action == 3 && request.running) {
+                RPCRequest found = index.getRunningRequest(request.runningMessageId);
+                assertSame(request, found);
+                assertTrue(index.removeRunningRequest(found));
+                assertFalse(index.removeRunningRequest(found));
+                index.forgetRequest(found);
+                known.remove(found);
+            } else if (action == 4 && known.contains(request) && !request.running && !request.cancelled) {
+                index.setRunningMessageId(request, generateMessageId());
+                index.addRunningRequest(request);
+            } else if (action == 5) {
+                RPCRequest request2 = createRequest(requests.size() + 1, CLASSES[random.nextInt(CLASSES.length)]);
+                requests.add(request2);
+                index.putRequest(request2);
+                known.add(request2);
+            }
+            if (round % 1000 == 0) {
+                checkConsistency(index, requests, known);
+            }
+        }
+        checkConsistency(index, requests, known);
+
+        for (RPCRequest request : requests) {
+            if (known.contains(request)) {
+                index.cancelRequest(request);
+            }
+        }
+        known.clear();
+        checkConsistency(index, requests, known);
+        assertEquals(0, index.getMessageIdsCount());
+        for (int requestClass : CLASSES) {
+            assertEquals(0, index.getRunningRequestsCount(requestClass));
+        }
+    }
+
+    @Test
+    public void forgottenTokenDoesNotDropANewerRequest() {
+        RequestIndex index = new RequestIndex();
+        RPCRequest first = createRequest(7, RPCRequest.RPCRequestClassGeneric);
+        RPCRequest second = createRequest(7, RPCRequest.RPCRequestClassGeneric);
+        index.putRequest(first);
+        index.putRequest(second);
+        index.forgetRequest(first);
+        assertSame(second, index.getRequest(7));
+    }
+
+    @Test
+    public void messageIdReusedByAnotherRequestIsKept() {
+        RequestIndex index = new RequestIndex();
+        RPCRequest first = createRequest(1, RPCRequest.RPCRequestClassDownloadMedia);
+        RPCRequest second = createRequest(2, RPCRequest.RPCRequestClassDownloadMedia);
+        index.setRunningMessageId(first, 100);
+        index.addRunningRequest(first);
+        index.setRunningMessageId(second, 100);
+        index.addRunningRequest(second);
+        index.removeRunningRequest(first);
+        assertSame(second, index.getRunningRequest(100));
+        assertEquals(1, index.getRunningRequestsCount(RPCRequest.RPCRequestClassDownloadMedia));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SessionStoreTest {
+
+    private static final int MAGIC = 0x7e55104e;
+    private static final String NAME = "session.dat";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("session", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] payload() {
+        SerializedData data = new SerializedData();
+        data.writeInt32(2);
+        data.writeInt64(0x1122334455667788L);
+        data.writeInt32(77);
+        byte[] bytes = data.toByteArray();
+        data.cleanup();
+        return bytes;
+    }
+
+    private static byte[] storeBytes(int version, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(version);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private SerializedData readStore(byte[] bytes) throws Exception {
+        FileOutputStream stream = new FileOutputStream(new File(directory, NAME));
+        stream.write(bytes);
+        stream.close();
+        return new SessionStore(directory, NAME).read();
+    }
+
+    @Test
+    public void readsValidStore() throws Exception {
+        SerializedData data = readStore(storeBytes(1, payload()));
+        assertNotNull(data);
+        assertEquals(2, data.readInt32(false));
+        assertEquals(0x1122334455667788L, data.readInt64(false));
+        assertEquals(77, data.readInt32(false));
+        data.cleanup();
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws Exception {
+        byte[] bytes = storeBytes(1, payload());
+        bytes[bytes.length - 1] ^= 0x40;
+        assertNull(readStore(bytes));
+
+        bytes = storeBytes(1, payload());
+        bytes[12] ^= 1;
+        assertNull(readStore(bytes));
+    }
+
+    @Test
+    public void rejectsHeaderMismatch() throws Exception {
+        byte[] bytes = storeBytes(1, payload());
+        bytes[0] ^= 1;
+        assertNull(readStore(bytes));
+
+        assertNull(readStore(storeBytes(2, payload())));
+
+        bytes = storeBytes(1, payload());
+        byte[] truncated = new byte[bytes.length - 4];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertNull(readStore(truncated));
+
+        assertNull(readStore(new byte[8]));
+    }
+
+    @Test
+    public void missingStore() {
+        SessionStore store = new SessionStore(directory, NAME);
+        assertFalse(store.exists());
+        assertNull(store.read());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TLClassStoreTest {
+
+    @Test
+    public void everyConstructorInstantiatesItsOwnClass() throws Exception {
+        TLClassStore store = new TLClassStore();
+        int[] constructors = store.getConstructors();
+        assertTrue(constructors.length > 0);
+        for (int constructor : constructors) {
+            TLObject object = store.newInstance(constructor);
+            assertNotNull(String.format("no class for %x", constructor), object);
+            int classConstructor = object.getClass().getField("constructor").getInt(null);
+            assertEquals(String.format("%x instantiated %s", constructor, object.getClass().getSimpleName()), constructor, classConstructor);
+        }
+    }
+
+    @Test
+    public void unknownConstructorReturnsNull() {
+        TLClassStore store = new TLClassStore();
+        assertNull(store.newInstance(0x12345678));
+        assertNull(store.TLdeserialize(null, 0x12345678, false));
+    }
+
+    private static byte[] serialize(TLObject object) {
+        SerializedData data = new SerializedData();
+        object.serializeToStream(data);
+        byte[] bytes = data.toByteArray();
+        data.cleanup();
+        return bytes;
+    }
+
+    private static TLObject decode(TLClassStore store, byte[] bytes) {
+        SerializedData data = new SerializedData(bytes);
+        TLObject object = store.TLdeserialize(data, data.readInt32(false), false);
+        data.cleanup();
+        return object;
+    }
+
+    private static TLRPC.TL_updates createUpdates() {
+        TLRPC.TL_updates updates = new TLRPC.TL_updates();
+        for (int a = 0; a < 20; a++) {
+            TLRPC.TL_updateUserStatus update = new TLRPC.TL_updateUserStatus();
+            update.user_id = 1000 + a;
+            update.status = new TLRPC.TL_userStatusOnline();
+            update.status.expires = 1445000000 + a;
+            updates.updates.add(update);
+        }
+        updates.date = 1445000000;
+        updates.seq = 77;
+        return updates;
+    }
+
+    private static TLRPC.TL_photo createPhoto() {
+        TLRPC.TL_photo photo = new TLRPC.TL_photo();
+        photo.id = 0x1122334455667788L;
+        photo.access_hash = -5;
+        photo.user_id = 42;
+        photo.date = 1445000000;
+        photo.geo = new TLRPC.TL_geoPointEmpty();
+        for (int a = 0; a < 3; a++) {
+            TLRPC.TL_photoSize size = new TLRPC.TL_photoSize();
+            size.type = "smx".substring(a, a + 1);
+            TLRPC.TL_fileLocation location = new TLRPC.TL_fileLocation();
+            location.dc_id = 2;
+            location.volume_id = 800000 + a;
+            location.local_id = a;
+            location.secret = 99 - a;
+            size.location = location;
+            size.w = size.h = 90 << a;
+            size.size = 1000 * (a + 1);
+            photo.sizes.add(size);
+        }
+        return photo;
+    }
+
+    @Test
+    public void decodesRecordedPayloads() {
+        TLClassStore store = new TLClassStore();
+        TLRPC.TL_updateShortMessage shortMessage = new TLRPC.TL_updateShortMessage();
+        shortMessage.flags = 8;
+        shortMessage.id = 15;
+        shortMessage.user_id = 7;
+        shortMessage.message = "hello";
+        shortMessage.pts = 100;
+        shortMessage.pts_count = 1;
+        shortMessage.date = 1445000000;
+        shortMessage.reply_to_msg_id = 14;
+
+        TLObject[] objects = new TLObject[]{createUpdates(), createPhoto(), shortMessage};
+        for (TLObject object : objects) {
+            byte[] bytes = serialize(object);
+            TLObject first = decode(store, bytes);
+            TLObject second = decode(store, bytes);
+            assertNotNull(first);
+            assertEquals(object.getClass(), first.getClass());
+            assertNotSame(first, second);
+            assertArrayEquals(bytes, serialize(first));
+        }
+    }
+}
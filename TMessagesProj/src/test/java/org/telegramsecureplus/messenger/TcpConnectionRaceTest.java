@@ -0,0 +1,226 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Races a connection against loopback servers. A blackholed server has a full accept
+ * queue and never accepts, so the kernel drops the SYNs and the connect hangs. A slow
+ * server starts accepting after a delay, a healthy one accepts right away.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class TcpConnectionRaceTest {
+
+    private static final String BLACKHOLE_ADDRESS = "127.0.0.1";
+    private static final String SLOW_ADDRESS = "127.0.0.2";
+    private static final String HEALTHY_ADDRESS = "127.0.0.3";
+    private static final int SLOW_ACCEPT_DELAY = 3000;
+    private static final int STAGGER = 500;
+
+    private final ArrayList<Closeable> resources = new ArrayList<>();
+    private final ArrayList<TcpConnection> connections = new ArrayList<>();
+
+    private static class TestConnection extends TcpConnection {
+        final Datacenter datacenter;
+
+        TestConnection(Datacenter datacenter) {
+            super(datacenter.datacenterId);
+            this.datacenter = datacenter;
+            transportRequestClass = RPCRequest.RPCRequestClassUploadMedia;
+        }
+
+        @Override
+        Datacenter getDatacenter() {
+            return datacenter;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (TcpConnection connection : connections) {
+            connection.suspendConnection(true);
+        }
+        synchronized (resources) {
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    private void track(Closeable resource) {
+        synchronized (resources) {
+            resources.add(resource);
+        }
+    }
+
+    private ServerSocket createServer(String address, int backlog) throws IOException {
+        ServerSocket server = new ServerSocket(0, backlog, InetAddress.getByName(address));
+        track(server);
+        return server;
+    }
+
+    private void acceptAfter(final ServerSocket server, final int delay) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delay);
+                    while (true) {
+                        track(server.accept());
+                    }
+                } catch (Exception e) {
+                    //server closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void fillBacklog(ServerSocket server) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        for (int a = 0; a < 16; a++) {
+            Socket socket = new Socket();
+            track(socket);
+            try {
+                socket.connect(address, 200);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+        }
+        fail("accept queue of " + address + " never filled up");
+    }
+
+    private ServerSocket createBlackholeServer() throws IOException {
+        ServerSocket server = createServer(BLACKHOLE_ADDRESS, 1);
+        fillBacklog(server);
+        return server;
+    }
+
+    private ServerSocket createSlowServer() throws IOException {
+        ServerSocket server = createServer(SLOW_ADDRESS, 1);
+        fillBacklog(server);
+        acceptAfter(server, SLOW_ACCEPT_DELAY);
+        return server;
+    }
+
+    private ServerSocket createHealthyServer() throws IOException {
+        ServerSocket server = createServer(HEALTHY_ADDRESS, 50);
+        acceptAfter(server, 0);
+        return server;
+    }
+
+    private static Datacenter createDatacenter(ServerSocket... servers) {
+        Datacenter datacenter = new Datacenter();
+        datacenter.datacenterId = 1;
+        datacenter.defaultPorts = new int[] {-1};
+        for (ServerSocket server : servers) {
+            datacenter.addAddressAndPort(server.getInetAddress().getHostAddress(), server.getLocalPort(), 0);
+        }
+        return datacenter;
+    }
+
+    private static Datacenter.Endpoint findEndpoint(Datacenter datacenter, String address) {
+        for (Datacenter.Endpoint endpoint : datacenter.getConnectEndpoints(0, false)) {
+            if (endpoint.address.equals(address)) {
+                return endpoint;
+            }
+        }
+        fail("no endpoint for " + address);
+        return null;
+    }
+
+    private long connectAndWait(Datacenter datacenter) throws InterruptedException {
+        TcpConnection connection = new TestConnection(datacenter);
+        connections.add(connection);
+        long start = System.currentTimeMillis();
+        connection.connect();
+        while (connection.channelToken == 0) {
+            if (System.currentTimeMillis() - start > 10000) {
+                fail("connection race never finished");
+            }
+            Thread.sleep(5);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        connection.suspendConnection(true);
+        return elapsed;
+    }
+
+    @Test
+    public void healthyEndpointWinsTheRace() throws Exception {
+        Datacenter datacenter = createDatacenter(createBlackholeServer(), createSlowServer(), createHealthyServer());
+
+        long elapsed = connectAndWait(datacenter);
+        assertTrue("healthy endpoint started before two stagger steps: " + elapsed, elapsed >= 2 * STAGGER - 100);
+        assertTrue("race waited for the slow endpoint: " + elapsed, elapsed < SLOW_ACCEPT_DELAY);
+
+        Datacenter.Endpoint healthy = findEndpoint(datacenter, HEALTHY_ADDRESS);
+        assertEquals(1, healthy.successCount);
+        Datacenter.Endpoint blackhole = findEndpoint(datacenter, BLACKHOLE_ADDRESS);
+        Datacenter.Endpoint slow = findEndpoint(datacenter, SLOW_ADDRESS);
+        assertEquals(0, blackhole.successCount + blackhole.failureCount);
+        assertEquals(0, slow.successCount + slow.failureCount);
+    }
+
+    @Test
+    public void refusedEndpointStartsTheNextAttemptRightAway() throws Exception {
+        ServerSocket closed = createServer(BLACKHOLE_ADDRESS, 1);
+        ServerSocket healthyServer = createHealthyServer();
+        Datacenter datacenter = createDatacenter(closed, healthyServer);
+        closed.close();
+
+        long elapsed = connectAndWait(datacenter);
+        assertTrue("refused attempt waited for the stagger: " + elapsed, elapsed < STAGGER);
+        assertEquals(1, findEndpoint(datacenter, BLACKHOLE_ADDRESS).failureCount);
+        assertEquals(1, findEndpoint(datacenter, HEALTHY_ADDRESS).successCount);
+        assertEquals(HEALTHY_ADDRESS, datacenter.getConnectEndpoints(0, false).get(0).address);
+    }
+
+    @Test
+    public void persistedHealthReordersLaterAttempts() throws Exception {
+        Datacenter datacenter = createDatacenter(createBlackholeServer(), createSlowServer(), createHealthyServer());
+        assertEquals(BLACKHOLE_ADDRESS, datacenter.getConnectEndpoints(0, false).get(0).address);
+        long elapsed = connectAndWait(datacenter);
+        assertTrue(elapsed >= 2 * STAGGER - 100);
+
+        SerializedData data = new SerializedData();
+        datacenter.SerializeToStream(data);
+        Datacenter restored = new Datacenter(new SerializedData(data.toByteArray()), 1);
+        restored.defaultPorts = new int[] {-1};
+        assertEquals(HEALTHY_ADDRESS, restored.getConnectEndpoints(0, false).get(0).address);
+        assertEquals(1, findEndpoint(restored, HEALTHY_ADDRESS).successCount);
+
+        elapsed = connectAndWait(restored);
+        assertTrue("healthy endpoint was not tried first: " + elapsed, elapsed < STAGGER);
+        assertEquals(2, findEndpoint(restored, HEALTHY_ADDRESS).successCount);
+    }
+}
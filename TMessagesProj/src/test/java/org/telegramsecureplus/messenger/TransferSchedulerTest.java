@@ -0,0 +1,211 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransferSchedulerTest {
+
+    private static class TestTask extends TransferScheduler.Task {
+        final ArrayList<TestTask> started;
+        final boolean preemptable;
+        boolean preempted;
+        long order;
+
+        TestTask(int type, int datacenterId, int priority, ArrayList<TestTask> started, boolean preemptable) {
+            super(type, datacenterId, priority);
+            this.started = started;
+            this.preemptable = preemptable;
+        }
+
+        @Override
+        protected void onStart() {
+            started.add(this);
+        }
+
+        @Override
+        protected boolean onPreempt() {
+            preempted = true;
+            return preemptable;
+        }
+    }
+
+    private static boolean isHigher(TestTask a, TestTask b) {
+        if (a.getPriority() != b.getPriority()) {
+            return a.getPriority() > b.getPriority();
+        }
+        if (a.getPriority() >= TransferScheduler.PRIORITY_VISIBLE) {
+            return a.order > b.order;
+        }
+        return a.order < b.order;
+    }
+
+    @Test
+    public void uploadsStartInPriorityOrder() {
+        TransferScheduler scheduler = new TransferScheduler();
+        ArrayList<TestTask> started = new ArrayList<>();
+        TestTask blocker = new TestTask(TransferScheduler.TYPE_UPLOAD, 2, TransferScheduler.PRIORITY_BACKGROUND, started, false);
+        scheduler.add(blocker);
+        assertSame(blocker, started.get(0));
+
+        Random random = new Random(42);
+        ArrayList<TestTask> queued = new ArrayList<>();
+        long order = 0;
+        for (int a = 0; a < 200; a++) {
+            TestTask task = new TestTask(TransferScheduler.TYPE_UPLOAD, 2, random.nextInt(4), started, false);
+            task.order = order++;
+            scheduler.add(task);
+            queued.add(task);
+        }
+        for (int a = 0; a < 100; a++) {
+            TestTask task = queued.get(random.nextInt(queued.size()));
+            int priority = random.nextInt(4);
+            if (priority != task.getPriority()) {
+                task.order = order++;
+                scheduler.setPriority(task, priority);
+            }
+        }
+        for (int a = 0; a < 30; a++) {
+            scheduler.remove(queued.remove(random.nextInt(queued.size())));
+        }
+        assertEquals(queued.size(), scheduler.getQueueDepth(TransferScheduler.TYPE_UPLOAD));
+
+        TestTask running = blocker;
+        while (!queued.isEmpty()) {
+            int count = started.size();
+            scheduler.remove(running);
+            assertEquals(count + 1, started.size());
+            running = started.get(count);
+            for (TestTask task : queued) {
+                assertFalse(isHigher(task, running));
+            }
+            assertTrue(queued.remove(running));
+            assertEquals(1, scheduler.getRunningCount(TransferScheduler.TYPE_UPLOAD));
+        }
+        scheduler.remove(running);
+        assertEquals(0, scheduler.getRunningCount(TransferScheduler.TYPE_UPLOAD));
+        assertEquals(0, scheduler.getQueueDepth(TransferScheduler.TYPE_UPLOAD));
+    }
+
+    @Test
+    public void visibleDownloadPreemptsBackgroundOne() {
+        TransferScheduler scheduler = new TransferScheduler();
+        ArrayList<TestTask> started = new ArrayList<>();
+        TestTask[] running = new TestTask[3];
+        for (int a = 0; a < running.length; a++) {
+            running[a] = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_VISIBLE, started, true);
+            scheduler.add(running[a]);
+        }
+        assertEquals(3, scheduler.getRunningCount(TransferScheduler.TYPE_DOWNLOAD_PHOTO));
+        scheduler.setPriority(running[0], TransferScheduler.PRIORITY_BACKGROUND);
+        scheduler.setPriority(running[1], TransferScheduler.PRIORITY_BACKGROUND);
+
+        TestTask visible = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_VISIBLE, started, true);
+        scheduler.add(visible);
+        assertEquals(3, started.size());
+        assertFalse(running[0].preempted);
+        assertTrue(running[1].preempted);
+        assertFalse(running[2].preempted);
+
+        scheduler.onTaskPaused(running[1]);
+        assertEquals(4, started.size());
+        assertSame(visible, started.get(3));
+        assertEquals(1, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_PHOTO));
+
+        scheduler.remove(visible);
+        scheduler.remove(running[2]);
+        assertEquals(4, started.size());
+        scheduler.remove(running[0]);
+        assertSame(running[1], started.get(4));
+        assertEquals(0, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_PHOTO));
+    }
+
+    @Test
+    public void prefetchRunsAheadOfBackgroundAndIsNotPreempted() {
+        TransferScheduler scheduler = new TransferScheduler();
+        ArrayList<TestTask> started = new ArrayList<>();
+        TestTask[] background = new TestTask[3];
+        for (int a = 0; a < background.length; a++) {
+            background[a] = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_BACKGROUND, started, true);
+            scheduler.add(background[a]);
+        }
+        assertEquals(1, started.size());
+        assertEquals(2, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_PHOTO));
+
+        TestTask prefetch = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_PREFETCH, started, true);
+        scheduler.add(prefetch);
+        assertSame(prefetch, started.get(1));
+        TestTask visible = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_VISIBLE, started, true);
+        scheduler.add(visible);
+        assertSame(visible, started.get(2));
+
+        TestTask secondVisible = new TestTask(TransferScheduler.TYPE_DOWNLOAD_PHOTO, 2, TransferScheduler.PRIORITY_VISIBLE, started, true);
+        scheduler.add(secondVisible);
+        assertEquals(3, started.size());
+        assertTrue(background[0].preempted);
+        assertFalse(prefetch.preempted);
+
+        scheduler.onTaskPaused(background[0]);
+        assertSame(secondVisible, started.get(3));
+        assertEquals(3, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_PHOTO));
+    }
+
+    @Test
+    public void migratedDownloadMovesToTheNewDatacenter() {
+        TransferScheduler scheduler = new TransferScheduler();
+        ArrayList<TestTask> started = new ArrayList<>();
+        TestTask[] running = new TestTask[6];
+        for (int a = 0; a < running.length; a++) {
+            running[a] = new TestTask(a < 3 ? TransferScheduler.TYPE_DOWNLOAD_PHOTO : TransferScheduler.TYPE_DOWNLOAD_FILE, 2, TransferScheduler.PRIORITY_USER, started, false);
+            scheduler.add(running[a]);
+        }
+        assertEquals(6, started.size());
+
+        TestTask audio = new TestTask(TransferScheduler.TYPE_DOWNLOAD_AUDIO, 2, TransferScheduler.PRIORITY_USER, started, false);
+        scheduler.add(audio);
+        assertEquals(6, started.size());
+        assertEquals(1, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_AUDIO));
+
+        scheduler.setDatacenterId(running[0], 4);
+        assertSame(audio, started.get(6));
+
+        TestTask secondAudio = new TestTask(TransferScheduler.TYPE_DOWNLOAD_AUDIO, 2, TransferScheduler.PRIORITY_USER, started, false);
+        scheduler.add(secondAudio);
+        assertEquals(7, started.size());
+        scheduler.remove(running[0]);
+        assertEquals(7, started.size());
+        scheduler.remove(running[1]);
+        assertSame(secondAudio, started.get(7));
+    }
+
+    @Test
+    public void taskThatRefusesPreemptionKeepsItsSlot() {
+        TransferScheduler scheduler = new TransferScheduler();
+        ArrayList<TestTask> started = new ArrayList<>();
+        TestTask background = new TestTask(TransferScheduler.TYPE_DOWNLOAD_FILE, 2, TransferScheduler.PRIORITY_BACKGROUND, started, false);
+        scheduler.add(background);
+        TestTask second = new TestTask(TransferScheduler.TYPE_DOWNLOAD_FILE, 2, TransferScheduler.PRIORITY_BACKGROUND, started, false);
+        scheduler.add(second);
+        assertEquals(1, started.size());
+        assertEquals(1, scheduler.getQueueDepth(TransferScheduler.TYPE_DOWNLOAD_FILE));
+
+        scheduler.setPriority(second, TransferScheduler.PRIORITY_USER);
+        assertSame(second, started.get(1));
+        assertFalse(background.preempted);
+        assertEquals(2, scheduler.getRunningCount(TransferScheduler.TYPE_DOWNLOAD_FILE));
+    }
+}
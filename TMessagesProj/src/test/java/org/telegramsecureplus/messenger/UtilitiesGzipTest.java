@@ -0,0 +1,201 @@
+/*
+ * This is the source code of Telegram for Android v. 2.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2015.
+ */
+
+package org.telegramsecureplus.messenger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class UtilitiesGzipTest {
+
+    private static byte[] randomData(int length, long seed) {
+        byte[] data = new byte[length];
+        Random random = new Random(seed);
+        for (int a = 0; a < length; a++) {
+            data[a] = (byte) random.nextInt(a % 3 == 0 ? 256 : 16);
+        }
+        return data;
+    }
+
+    private static byte[] unpack(byte[] packed) {
+        ByteBufferDesc buffer = Utilities.inflate(packed);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] result = new byte[buffer.limit()];
+        buffer.buffer.get(result);
+        BuffersStorage.getInstance().reuseFreeBuffer(buffer);
+        return result;
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream stream = new GZIPOutputStream(bytes);
+        stream.write(data);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws Exception {
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int count;
+        while ((count = stream.read(chunk)) != -1) {
+            bytes.write(chunk, 0, count);
+        }
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static final ByteArrayOutputStream legacyStream = new ByteArrayOutputStream(16384);
+    private static final byte[] legacyBuffer = new byte[16384];
+
+    /**
+     * The decompress path this replaced: a GZIPInputStream per response, a shared expanding
+     * stream and a copy of its contents for SerializedData.
+     */
+    private static SerializedData legacyUnpack(byte[] packed) throws Exception {
+        legacyStream.reset();
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(packed), 16384);
+        int count;
+        while ((count = stream.read(legacyBuffer)) != -1) {
+            legacyStream.write(legacyBuffer, 0, count);
+        }
+        stream.close();
+        return new SerializedData(legacyStream.toByteArray());
+    }
+
+    /**
+     * Something shaped like a packed messages response: constructors, ids and dates
+     * between short texts that repeat a lot.
+     */
+    private static byte[] responseData(int count) {
+        SerializedData data = new SerializedData();
+        Random random = new Random(count);
+        data.writeInt32(0x1cb5c415);
+        data.writeInt32(count);
+        for (int a = 0; a < count; a++) {
+            data.writeInt32(0xa7ab1991);
+            data.writeInt32(a + 1);
+            data.writeInt32(random.nextInt(1000));
+            data.writeInt32(1430000000 + a * 7);
+            data.writeString("message " + a + " about " + (random.nextBoolean() ? "the weekend trip" : "lunch") + " " + random.nextInt(100));
+        }
+        return data.toByteArray();
+    }
+
+    @Test
+    public void inflateAllocatesLessThanTheStreamPath() throws Exception {
+        assumeTrue(AllocationCounter.allocatedBytes() >= 0);
+        byte[] data = responseData(3000);
+        byte[] packed = Utilities.compress(data);
+        final int runs = 20;
+
+        for (int a = 0; a < 5; a++) {
+            SerializedData legacy = legacyUnpack(packed);
+            assertArrayEquals(data, legacy.readData(data.length, false));
+            legacy.cleanup();
+            assertArrayEquals(data, unpack(packed));
+        }
+
+        long start = AllocationCounter.allocatedBytes();
+        for (int a = 0; a < runs; a++) {
+            legacyUnpack(packed).cleanup();
+        }
+        long legacyBytes = AllocationCounter.allocatedBytes() - start;
+
+        start = AllocationCounter.allocatedBytes();
+        for (int a = 0; a < runs; a++) {
+            ByteBufferDesc buffer = Utilities.inflate(packed);
+            assertEquals(data.length, buffer.limit());
+            BuffersStorage.getInstance().reuseFreeBuffer(buffer);
+        }
+        long pooledBytes = AllocationCounter.allocatedBytes() - start;
+
+        // the stream path copies every response at least once, the pooled one reuses its buffer
+        assertTrue("stream path allocated " + legacyBytes, legacyBytes >= (long) runs * data.length);
+        assertTrue("inflate allocated " + pooledBytes + ", stream path " + legacyBytes, pooledBytes * 4 < legacyBytes);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        int[] sizes = new int[]{1, 15, 1024, 16384, 16385, 100000};
+        for (int size : sizes) {
+            byte[] data = randomData(size, size);
+            byte[] packed = Utilities.compress(data);
+            assertNotNull(packed);
+            assertArrayEquals(data, unpack(packed));
+            assertArrayEquals(data, gunzip(packed));
+        }
+    }
+
+    @Test
+    public void inflatesStandardGzip() throws Exception {
+        byte[] data = randomData(50000, 1);
+        assertArrayEquals(data, unpack(gzip(data)));
+    }
+
+    @Test
+    public void rejectsCorruptedTrailer() {
+        byte[] data = randomData(20000, 2);
+        byte[] packed = Utilities.compress(data);
+
+        byte[] badCrc = packed.clone();
+        badCrc[badCrc.length - 8] ^= 1;
+        assertNull(unpack(badCrc));
+
+        byte[] smallerSize = packed.clone();
+        smallerSize[smallerSize.length - 4]--;
+        assertNull(unpack(smallerSize));
+
+        byte[] largerSize = packed.clone();
+        largerSize[largerSize.length - 4]++;
+        assertNull(unpack(largerSize));
+
+        byte[] zeroSize = packed.clone();
+        Arrays.fill(zeroSize, zeroSize.length - 4, zeroSize.length, (byte) 0);
+        assertNull(unpack(zeroSize));
+    }
+
+    @Test
+    public void rejectsBrokenInput() {
+        byte[] packed = Utilities.compress(randomData(20000, 3));
+
+        byte[] truncated = Arrays.copyOf(packed, packed.length / 2);
+        System.arraycopy(packed, packed.length - 8, truncated, truncated.length - 8, 8);
+        assertNull(unpack(truncated));
+
+        byte[] badHeader = packed.clone();
+        badHeader[0] = 0;
+        assertNull(unpack(badHeader));
+
+        assertNull(unpack(new byte[10]));
+        assertNull(Utilities.inflate(null));
+
+        assertEquals(20000, unpack(packed).length);
+    }
+}